@@ -0,0 +1,214 @@
+package org.entur.kishar.gtfsrt;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.entur.kishar.metrics.PrometheusMetricsService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Function;
+import java.util.zip.DataFormatException;
+
+/**
+ * Compresses the entities written to another store, with an {@link EntityCompression} per map type,
+ * and decompresses them when read. Entities that cannot be decompressed, e.g. because their
+ * dictionary is unknown, are left out as if they had expired.
+ */
+class CompressingEntityStore implements EntityStore {
+
+    private static final Logger LOG = LoggerFactory.getLogger(CompressingEntityStore.class);
+
+    private final EntityStore store;
+
+    private final Map<RedisService.Type, EntityCompression> compressions = new EnumMap<>(RedisService.Type.class);
+
+    private final ExecutorService trainer = Executors.newSingleThreadExecutor(
+            new ThreadFactoryBuilder().setNameFormat("kishar-dictionary-trainer-%d").setDaemon(true).build());
+
+    private PrometheusMetricsService metrics;
+
+    /**
+     * @param sampleCount      number of entities to train a dictionary from
+     * @param rotationMillis   interval at which a new dictionary is trained, 0 to keep the first
+     * @param retainedVersions number of the latest dictionary versions kept, 0 to keep all
+     */
+    CompressingEntityStore(EntityStore store, Function<RedisService.Type, EntityCompression.DictionaryStore> dictionaries,
+                           int sampleCount, long rotationMillis, int retainedVersions) {
+        this.store = store;
+        for (RedisService.Type type : RedisService.Type.values()) {
+            compressions.put(type, new EntityCompression(type.name(), dictionaries.apply(type), sampleCount, rotationMillis,
+                    retainedVersions, trainer));
+        }
+    }
+
+    @Override
+    public void init(PrometheusMetricsService metrics) {
+        this.metrics = metrics;
+        store.init(metrics);
+        long now = System.currentTimeMillis();
+        compressions.values().forEach(compression -> compression.start(now));
+    }
+
+    /**
+     * Compresses the entities changed. Those unchanged are passed on as they are, as their values are
+     * not written. So are those only extended, unless dictionaries are removed: then they are
+     * written again with the dictionary in use, as the one they were compressed with is only kept
+     * until they were to expire.
+     */
+    @Override
+    public WriteCounts write(RedisService.Type type, List<EntityWrite> entities, long now) {
+        EntityCompression compression = compressions.get(type);
+        List<EntityWrite> compressed = new ArrayList<>(entities.size());
+        int count = 0;
+        long rawBytes = 0;
+        long storedBytes = 0;
+        long start = System.nanoTime();
+        for (EntityWrite entity : entities) {
+            if (entity.outcome() == EntityFingerprints.Outcome.UNCHANGED
+                    || entity.outcome() == EntityFingerprints.Outcome.EXPIRING && !compression.removesDictionaries()) {
+                compressed.add(entity);
+                continue;
+            }
+            byte[] value = compression.encode(entity.data(), entity.expiresAt(), now);
+            compressed.add(new EntityWrite(entity.key(), value, entity.expiresAt(), EntityFingerprints.Outcome.CHANGED));
+            count++;
+            rawBytes += entity.data().length;
+            storedBytes += value.length;
+        }
+        if (metrics != null && count > 0) {
+            metrics.registerEntityCompression(type.name(), count, rawBytes, storedBytes, System.nanoTime() - start);
+        }
+        return store.write(type, compressed, now);
+    }
+
+    @Override
+    public Map<String, byte[]> readAll(RedisService.Type type, long now) {
+        Map<String, byte[]> entities = new HashMap<>();
+        readAll(type, now, EntitySink.of(entities));
+        return entities;
+    }
+
+    @Override
+    public void readAll(RedisService.Type type, long now, EntitySink sink) {
+        DecodingSink decoding = new DecodingSink(type, sink);
+        store.readAll(type, now, decoding);
+        decoding.finish();
+    }
+
+    @Override
+    public RedisService.GtfsRtChanges readChanges(RedisService.Type type, long since, long now) {
+        RedisService.GtfsRtChanges changes = store.readChanges(type, since, now);
+        return changes != null ? new RedisService.GtfsRtChanges(decode(type, changes.updated()), changes.removed()) : null;
+    }
+
+    @Override
+    public Set<String> readExpiredKeys(RedisService.Type type, long since, long now) {
+        return store.readExpiredKeys(type, since, now);
+    }
+
+    @Override
+    public void trimChangeLog(RedisService.Type type, long cutoff) {
+        store.trimChangeLog(type, cutoff);
+    }
+
+    @Override
+    public void clear(long now) {
+        store.clear(now);
+    }
+
+    @Override
+    public void checkpoint(long now) throws IOException {
+        store.checkpoint(now);
+    }
+
+    @Override
+    public void close() {
+        trainer.shutdownNow();
+        store.close();
+    }
+
+    /**
+     * Returns the entities as written, from the values stored. Also used for the values published
+     * to the mirrors, which are the same.
+     */
+    Map<String, byte[]> decode(RedisService.Type type, Map<String, byte[]> values) {
+        if (values.isEmpty()) {
+            return values;
+        }
+        Map<String, byte[]> entities = new HashMap<>(values.size() * 4 / 3 + 1);
+        DecodingSink decoding = new DecodingSink(type, EntitySink.of(entities));
+        values.forEach(decoding::put);
+        decoding.finish();
+        return entities;
+    }
+
+    /**
+     * Decompresses the values passed to it, and passes them on to another sink.
+     */
+    private final class DecodingSink implements EntitySink {
+
+        private final RedisService.Type type;
+
+        private final EntityCompression compression;
+
+        private final EntitySink sink;
+
+        private int count;
+
+        private int failed;
+
+        private long decodeNanos;
+
+        private DecodingSink(RedisService.Type type, EntitySink sink) {
+            this.type = type;
+            this.compression = compressions.get(type);
+            this.sink = sink;
+        }
+
+        @Override
+        public void put(String key, byte[] value) {
+            byte[] entity = decode(key, value);
+            if (entity != null) {
+                sink.put(key, entity);
+            }
+        }
+
+        @Override
+        public boolean putIfAbsent(String key, byte[] value) {
+            byte[] entity = decode(key, value);
+            return entity == null || sink.putIfAbsent(key, entity);
+        }
+
+        private byte[] decode(String key, byte[] value) {
+            long start = System.nanoTime();
+            count++;
+            try {
+                return compression.decode(value);
+            } catch (DataFormatException e) {
+                if (failed++ == 0) {
+                    LOG.warn("Failed to decompress entity {} of {}, leaving it out", key, type, e);
+                }
+                return null;
+            } finally {
+                decodeNanos += System.nanoTime() - start;
+            }
+        }
+
+        private void finish() {
+            if (failed > 1) {
+                LOG.warn("Failed to decompress {} entities of {}, leaving them out", failed, type);
+            }
+            if (metrics != null && count > 0) {
+                metrics.registerEntityDecompression(type.name(), count, decodeNanos);
+            }
+        }
+    }
+}
@@ -0,0 +1,609 @@
+package org.entur.kishar.gtfsrt;
+
+import org.entur.kishar.metrics.PrometheusMetricsService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Entities kept by this instance in a file on local disk, for datasets larger than what should be
+ * held in memory. Writes are appended to the file, and an {@link InMemoryEntityStore} holds where
+ * in the file the current version of each entity is, so entities expire the same way as in memory.
+ * When the file has grown to twice the size of the entities in it, the entities are copied to a
+ * new file which replaces it. They are copied without holding the store, so writes and reads go on
+ * meanwhile; only what was appended during the copy is copied while holding it.
+ * <p>
+ * The file is a 4-byte magic number followed by records of: map type, key, the time the entity
+ * expires and its data. A record without data extends the time to live of the entity. On startup
+ * the file is read to rebuild the index; a record cut short by a crash ends the file.
+ */
+class DiskEntityStore implements EntityStore {
+
+    private static final Logger LOG = LoggerFactory.getLogger(DiskEntityStore.class);
+
+    private static final int MAGIC = 0x4B445331;
+
+    /**
+     * Data length of a record that only extends the time to live.
+     */
+    private static final int EXTENSION = -1;
+
+    /**
+     * Size of a record besides its key and data: type, key length, expiry and data length.
+     */
+    private static final int RECORD_OVERHEAD = 1 + Integer.BYTES + Long.BYTES + Integer.BYTES;
+
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    static final long MIN_COMPACTION_BYTES = 64 << 20;
+
+    private final Path file;
+
+    private final Path compactionFile;
+
+    private final long minCompactionBytes;
+
+    /**
+     * Location of each entity in the file, as encoded by {@link #location}.
+     */
+    private final InMemoryEntityStore index;
+
+    private final LocalChangeLog changeLog = new LocalChangeLog();
+
+    private FileChannel channel;
+
+    private RecordWriter writer;
+
+    /**
+     * Length of the file at which it is compacted.
+     */
+    private long compactionLength;
+
+    private boolean compacting;
+
+    /**
+     * Incremented when the store is cleared, so a compaction started before is not used.
+     */
+    private long generation;
+
+    private long recoveryMillis;
+
+    private PrometheusMetricsService metrics;
+
+    DiskEntityStore(Path directory) throws IOException {
+        this(directory, MIN_COMPACTION_BYTES);
+    }
+
+    DiskEntityStore(Path directory, long minCompactionBytes) throws IOException {
+        Files.createDirectories(directory);
+        this.file = directory.resolve("entities.data");
+        this.compactionFile = directory.resolve("entities.data.tmp");
+        this.minCompactionBytes = minCompactionBytes;
+        long now = System.currentTimeMillis();
+        this.index = new InMemoryEntityStore(Long.MAX_VALUE, false, this::onRemoval, now);
+        Files.deleteIfExists(compactionFile);
+        this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        recover(now);
+        this.recoveryMillis = System.currentTimeMillis() - now;
+    }
+
+    @Override
+    public void init(PrometheusMetricsService metrics) {
+        this.metrics = metrics;
+        if (metrics != null) {
+            for (RedisService.Type type : RedisService.Type.values()) {
+                metrics.registerInMemoryRecoveredEntities(type.name(), index.size(type));
+                metrics.registerInMemoryStoreSize(type.name(), () -> index.size(type), () -> index.weight(type));
+            }
+            metrics.registerInMemoryRecovery(recoveryMillis);
+        }
+    }
+
+    /**
+     * Appends the entities to the file, and compacts it, without holding the store, if it has grown
+     * enough.
+     */
+    @Override
+    public WriteCounts write(RedisService.Type type, List<EntityWrite> entities, long now) {
+        WriteCounts counts;
+        boolean compact;
+        synchronized (this) {
+            counts = append(type, entities, now);
+            compact = !compacting && writer.length() >= compactionLength;
+            compacting |= compact;
+        }
+        if (compact) {
+            compact(now);
+        }
+        return counts;
+    }
+
+    /**
+     * Appends the entities to the file, and updates the index once they have been written. If they
+     * cannot be written, the file is truncated to where it was and the index is left as it was.
+     */
+    private WriteCounts append(RedisService.Type type, List<EntityWrite> entities, long now) {
+        int unchanged = 0;
+        int extended = 0;
+        long validLength = writer.length();
+        Map<String, byte[]> locations = new LinkedHashMap<>();
+        List<String> changed = new ArrayList<>();
+        try {
+            for (EntityWrite entity : entities) {
+                byte[] location = locations.containsKey(entity.key()) ? locations.get(entity.key()) : index.get(type, entity.key(), now);
+                if (entity.outcome() == EntityFingerprints.Outcome.UNCHANGED && location != null) {
+                    unchanged++;
+                    continue;
+                }
+                byte[] key = entity.key().getBytes(StandardCharsets.UTF_8);
+                if (entity.outcome() == EntityFingerprints.Outcome.EXPIRING && location != null) {
+                    writer.append(type, key, entity.expiresAt(), null);
+                    ByteBuffer current = ByteBuffer.wrap(location);
+                    locations.put(entity.key(), location(current.getLong(), current.getInt(), entity.expiresAt()));
+                    extended++;
+                    continue;
+                }
+                long offset = writer.append(type, key, entity.expiresAt(), ByteBuffer.wrap(entity.data()));
+                locations.put(entity.key(), location(offset, entity.data().length, entity.expiresAt()));
+                changed.add(entity.key());
+            }
+            writer.drain();
+        } catch (IOException e) {
+            try {
+                writer.truncate(validLength);
+            } catch (IOException truncateFailure) {
+                e.addSuppressed(truncateFailure);
+            }
+            throw new UncheckedIOException("Failed to write to " + file, e);
+        }
+        for (Map.Entry<String, byte[]> location : locations.entrySet()) {
+            index.put(type, location.getKey(), location.getValue(), expiresAt(location.getValue()), now);
+        }
+        for (String key : changed) {
+            changeLog.log(type, key, now);
+        }
+        return new WriteCounts(unchanged, extended, changed.size());
+    }
+
+    @Override
+    public synchronized Map<String, byte[]> readAll(RedisService.Type type, long now) {
+        Map<String, byte[]> result = new HashMap<>();
+        try {
+            for (Entry entry : entries(type, now)) {
+                result.put(entry.key(), read(entry.offset(), entry.length()));
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to read from " + file, e);
+        }
+        return result;
+    }
+
+    @Override
+    public synchronized RedisService.GtfsRtChanges readChanges(RedisService.Type type, long since, long now) {
+        if (!changeLog.isCompleteSince(type, since, now)) {
+            return null;
+        }
+        // Expired entities are logged as they are removed
+        index.expire(now);
+
+        Map<String, byte[]> updated = new HashMap<>();
+        Set<String> removed = new HashSet<>();
+        try {
+            for (String key : changeLog.changedSince(type, since - RedisService.CHANGE_LOG_OVERLAP_MILLIS)) {
+                byte[] location = index.get(type, key, now);
+                if (location != null) {
+                    ByteBuffer current = ByteBuffer.wrap(location);
+                    updated.put(key, read(current.getLong(), current.getInt()));
+                } else {
+                    removed.add(key);
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to read from " + file, e);
+        }
+        return new RedisService.GtfsRtChanges(updated, removed);
+    }
+
+    @Override
+    public synchronized Set<String> readExpiredKeys(RedisService.Type type, long since, long now) {
+        index.expire(now);
+        Set<String> expired = changeLog.changedSince(type, since - RedisService.CHANGE_LOG_OVERLAP_MILLIS);
+        expired.removeIf(key -> index.get(type, key, now) != null);
+        return expired;
+    }
+
+    @Override
+    public void trimChangeLog(RedisService.Type type, long cutoff) {
+        changeLog.trim(type, cutoff);
+    }
+
+    @Override
+    public synchronized void clear(long now) {
+        index.clear();
+        generation++;
+        try {
+            writer = RecordWriter.create(channel);
+            compactionLength = minCompactionBytes;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to clear " + file, e);
+        }
+        changeLog.restart(now);
+    }
+
+    /**
+     * Forces what has been written to disk.
+     */
+    @Override
+    public synchronized void checkpoint(long now) throws IOException {
+        writer.drain();
+        channel.force(false);
+    }
+
+    @Override
+    public synchronized void close() {
+        try {
+            writer.drain();
+            channel.close();
+        } catch (IOException e) {
+            LOG.warn("Failed to close {}", file, e);
+        }
+    }
+
+    /**
+     * Length of the file, including what has not been written yet.
+     */
+    synchronized long length() {
+        return writer.length();
+    }
+
+    private byte[] read(long offset, int size) throws IOException {
+        ByteBuffer data = ByteBuffer.allocate(size);
+        readFully(channel, data, offset);
+        return data.array();
+    }
+
+    /**
+     * An entity in the file.
+     */
+    private record Entry(String key, long offset, int length, long expiresAt) {
+    }
+
+    /**
+     * Returns the entities of the type that have not expired, in the order they are in the file, so
+     * they are read front to back.
+     */
+    private List<Entry> entries(RedisService.Type type, long now) {
+        List<Entry> entries = index.read(type, now, new InMemoryEntityStore.EntityReader<>() {
+            private final List<Entry> entries = new ArrayList<>();
+
+            @Override
+            public void accept(String key, ByteBuffer location) {
+                entries.add(new Entry(key, location.getLong(), location.getInt(), location.getLong()));
+            }
+
+            @Override
+            public List<Entry> finish() {
+                return entries;
+            }
+        });
+        entries.sort(Comparator.comparingLong(Entry::offset));
+        return entries;
+    }
+
+    /**
+     * Copies the entities that have not expired to a new file, which replaces the current one. The
+     * entities listed when it starts are copied without holding the store. Then, holding it, what
+     * has been appended since is copied as it is, and the new file replaces the current one.
+     */
+    private void compact(long now) {
+        long start = System.currentTimeMillis();
+        FileChannel source;
+        long copiedLength;
+        long copiedGeneration;
+        Map<RedisService.Type, List<Entry>> entries = new EnumMap<>(RedisService.Type.class);
+        synchronized (this) {
+            source = channel;
+            copiedLength = writer.length();
+            copiedGeneration = generation;
+            for (RedisService.Type type : RedisService.Type.values()) {
+                entries.put(type, entries(type, now));
+            }
+        }
+
+        FileChannel target = null;
+        try {
+            target = FileChannel.open(compactionFile,
+                    StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+            RecordWriter compacted = RecordWriter.create(target);
+            Map<Long, Long> offsets = new HashMap<>();
+            for (Map.Entry<RedisService.Type, List<Entry>> typeEntries : entries.entrySet()) {
+                for (Entry entry : typeEntries.getValue()) {
+                    ByteBuffer data = ByteBuffer.allocate(entry.length());
+                    readFully(source, data, entry.offset());
+                    data.flip();
+                    offsets.put(entry.offset(), compacted.append(typeEntries.getKey(),
+                            entry.key().getBytes(StandardCharsets.UTF_8), entry.expiresAt(), data));
+                }
+            }
+            compacted.drain();
+
+            synchronized (this) {
+                if (generation != copiedGeneration) {
+                    LOG.info("Not compacting {}, which was cleared in the meantime", file);
+                    target.close();
+                    target = null;
+                    Files.deleteIfExists(compactionFile);
+                    return;
+                }
+                // Written after every batch, so everything appended since is in the file
+                long appendedLength = writer.length() - copiedLength;
+                long appendedOffset = compacted.length();
+                long transferred = 0;
+                while (transferred < appendedLength) {
+                    transferred += source.transferTo(copiedLength + transferred, appendedLength - transferred, target);
+                }
+                target.force(true);
+                Files.move(compactionFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+                // The replaced file is only deleted once closed, so nothing can be lost in between
+                FileChannel replaced = channel;
+                channel = target;
+                writer = new RecordWriter(target, appendedOffset + appendedLength);
+                target = null;
+                try {
+                    replaced.close();
+                } catch (IOException e) {
+                    LOG.warn("Failed to close the file replaced by {}", file, e);
+                }
+                for (RedisService.Type type : RedisService.Type.values()) {
+                    for (Entry entry : entries(type, now)) {
+                        Long offset = entry.offset() >= copiedLength
+                                ? Long.valueOf(entry.offset() - copiedLength + appendedOffset)
+                                : offsets.get(entry.offset());
+                        if (offset != null) {
+                            index.put(type, entry.key(), location(offset, entry.length(), entry.expiresAt()), entry.expiresAt(), now);
+                        } else {
+                            // Expired when the copy started
+                            index.remove(type, entry.key());
+                        }
+                    }
+                }
+                compactionLength = Math.max(minCompactionBytes, 2 * writer.length());
+                LOG.info("Compacted {} from {} to {} bytes in {} ms", file, copiedLength + appendedLength,
+                        writer.length(), System.currentTimeMillis() - start);
+            }
+        } catch (IOException e) {
+            synchronized (this) {
+                compactionLength = Math.max(minCompactionBytes, 2 * writer.length());
+                LOG.error("Failed to compact {}, trying again at {} bytes", file, compactionLength, e);
+            }
+            try {
+                if (target != null) {
+                    target.close();
+                }
+                Files.deleteIfExists(compactionFile);
+            } catch (IOException closeFailure) {
+                LOG.warn("Failed to remove {}", compactionFile, closeFailure);
+            }
+        } finally {
+            synchronized (this) {
+                compacting = false;
+            }
+        }
+    }
+
+    /**
+     * Rebuilds the index from the file, skipping entities that have expired.
+     */
+    private void recover(long now) throws IOException {
+        long size = channel.size();
+        long position = 0;
+        long records = 0;
+        ByteBuffer header = ByteBuffer.allocate(Integer.BYTES + 1);
+        try {
+            header.limit(Integer.BYTES);
+            readFully(channel, header, 0);
+            if (header.flip().getInt() != MAGIC) {
+                throw new IOException(file + " is not an entity file");
+            }
+            position = Integer.BYTES;
+            RedisService.Type[] types = RedisService.Type.values();
+            while (position < size) {
+                header.clear();
+                readFully(channel, header, position);
+                header.flip();
+                int typeOrdinal = header.get();
+                int keyLength = header.getInt();
+                if (typeOrdinal < 0 || typeOrdinal >= types.length || keyLength < 0 || keyLength > BUFFER_SIZE) {
+                    throw new IOException("Invalid record at " + position);
+                }
+                ByteBuffer rest = ByteBuffer.allocate(keyLength + Long.BYTES + Integer.BYTES);
+                readFully(channel, rest, position + header.capacity());
+                rest.flip();
+                byte[] key = new byte[keyLength];
+                rest.get(key);
+                long expiresAt = rest.getLong();
+                int dataLength = rest.getInt();
+                long offset = position + RECORD_OVERHEAD + keyLength;
+                long end = offset + Math.max(dataLength, 0);
+                if (dataLength < EXTENSION || end > size) {
+                    throw new EOFException();
+                }
+                RedisService.Type type = types[typeOrdinal];
+                String keyString = new String(key, StandardCharsets.UTF_8);
+                if (expiresAt <= now) {
+                    index.remove(type, keyString);
+                } else if (dataLength >= 0) {
+                    index.put(type, keyString, location(offset, dataLength, expiresAt), expiresAt, now);
+                } else {
+                    byte[] location = index.get(type, keyString, now);
+                    if (location != null) {
+                        ByteBuffer current = ByteBuffer.wrap(location);
+                        index.put(type, keyString, location(current.getLong(), current.getInt(), expiresAt), expiresAt, now);
+                    }
+                }
+                records++;
+                position = end;
+            }
+        } catch (IOException e) {
+            if (size > 0) {
+                LOG.warn("Ignoring the end of {} after {} records, from {} of {} bytes", file, records, position, size, e);
+            }
+        }
+
+        if (position < Integer.BYTES) {
+            writer = RecordWriter.create(channel);
+        } else {
+            // Drop a record cut short by a crash, so appended records can be read
+            writer = new RecordWriter(channel, position);
+            writer.truncate(position);
+        }
+
+        long liveLength = Integer.BYTES;
+        for (RedisService.Type type : RedisService.Type.values()) {
+            for (Entry entry : entries(type, now)) {
+                liveLength += RECORD_OVERHEAD + entry.key().getBytes(StandardCharsets.UTF_8).length + entry.length();
+            }
+        }
+        compactionLength = Math.max(minCompactionBytes, 2 * liveLength);
+        LOG.info("Read {} records from {} in {} ms, {} of {} bytes in use", records, file,
+                System.currentTimeMillis() - now, liveLength, writer.length());
+    }
+
+    /**
+     * Logs the removal of an entity as a change, so mirrors drop it.
+     */
+    private void onRemoval(RedisService.Type type, String key, InMemoryEntityStore.RemovalCause cause) {
+        changeLog.log(type, key, System.currentTimeMillis());
+        if (metrics != null) {
+            metrics.registerInMemoryEviction(type.name(), cause.name().toLowerCase());
+        }
+    }
+
+    /**
+     * The value of an entity in the index: where its data is in the file, and when it expires.
+     */
+    private static byte[] location(long offset, int length, long expiresAt) {
+        return ByteBuffer.allocate(Long.BYTES + Integer.BYTES + Long.BYTES).putLong(offset).putInt(length).putLong(expiresAt).array();
+    }
+
+    private static long expiresAt(byte[] location) {
+        return ByteBuffer.wrap(location).getLong(Long.BYTES + Integer.BYTES);
+    }
+
+    private static void readFully(FileChannel source, ByteBuffer target, long position) throws IOException {
+        while (target.hasRemaining()) {
+            int read = source.read(target, position);
+            if (read < 0) {
+                throw new EOFException();
+            }
+            position += read;
+        }
+    }
+
+    /**
+     * Appends records to a file through a buffer, keeping track of the length of the file including
+     * what is buffered.
+     */
+    private static final class RecordWriter {
+
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+        private final FileChannel target;
+
+        private long length;
+
+        private RecordWriter(FileChannel target, long length) {
+            this.target = target;
+            this.length = length;
+        }
+
+        /**
+         * Empties the file, and starts it with the magic number.
+         */
+        static RecordWriter create(FileChannel target) throws IOException {
+            RecordWriter writer = new RecordWriter(target, 0);
+            writer.truncate(0);
+            writer.buffer.putInt(MAGIC);
+            writer.length = Integer.BYTES;
+            writer.drain();
+            return writer;
+        }
+
+        long length() {
+            return length;
+        }
+
+        /**
+         * Appends a record, to be written by {@link #drain}.
+         *
+         * @param data the data of the entity, or null to extend its time to live
+         * @return the position of the data in the file
+         */
+        long append(RedisService.Type type, byte[] key, long expiresAt, ByteBuffer data) throws IOException {
+            int size = RECORD_OVERHEAD + key.length;
+            if (buffer.remaining() < size) {
+                drain();
+            }
+            if (buffer.remaining() < size) {
+                throw new IOException("Key too long: " + key.length + " bytes");
+            }
+            buffer.put((byte) type.ordinal());
+            buffer.putInt(key.length);
+            buffer.put(key);
+            buffer.putLong(expiresAt);
+            buffer.putInt(data != null ? data.remaining() : EXTENSION);
+            length += size;
+            long offset = length;
+            if (data != null) {
+                length += data.remaining();
+                if (data.remaining() <= buffer.remaining()) {
+                    buffer.put(data);
+                } else {
+                    drain();
+                    while (data.hasRemaining()) {
+                        target.write(data);
+                    }
+                }
+            }
+            return offset;
+        }
+
+        void drain() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                target.write(buffer);
+            }
+            buffer.clear();
+        }
+
+        /**
+         * Drops what is buffered, and cuts the file at the given length.
+         */
+        void truncate(long validLength) throws IOException {
+            buffer.clear();
+            target.truncate(validLength);
+            target.position(validLength);
+            length = validLength;
+        }
+    }
+}
@@ -0,0 +1,488 @@
+package org.entur.kishar.gtfsrt;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compresses the values of one map type with {@link Deflater}, using a preset dictionary of the
+ * content the entities have in common: stop and route ids, {@code RUT:ServiceJourney:} prefixes and
+ * so on. The dictionary is trained from a sample of the entities written, and shared with the other
+ * instances through a {@link DictionaryStore}. It can be replaced at an interval, as the content
+ * changes; each value names the version of the dictionary it was compressed with. Each version is
+ * kept in the store at least until the last value compressed with it expires, and a number of the
+ * latest versions are kept regardless. Dictionaries are trained on an executor of their own, so
+ * writes are not held while they are; until one is in use, writes go on with the previous.
+ * <p>
+ * A compressed value is a zero byte, which no encoded feed entity starts with, then the dictionary
+ * version and the uncompressed length as varints, then the raw deflate stream. Version 0 is no
+ * dictionary, used until one has been trained. Values that would not be smaller are stored as they
+ * are, and values not starting with a zero byte are read as they are.
+ */
+class EntityCompression {
+
+    private static final Logger LOG = LoggerFactory.getLogger(EntityCompression.class);
+
+    private static final byte MARKER = 0;
+
+    static final int DICTIONARY_SIZE = 16 * 1024;
+
+    /**
+     * Length of the substrings counted when training.
+     */
+    private static final int GRAM = 12;
+
+    /**
+     * Length of the dictionary segment taken around each common substring.
+     */
+    private static final int SEGMENT = 32;
+
+    /**
+     * Share of the substrings counted when training, chosen by their content so the same substring
+     * is counted in every sample or in none: one in eight.
+     */
+    private static final long GRAM_SAMPLING_MASK = 7;
+
+    /**
+     * Number of the samples compressed to log the ratio of a new dictionary.
+     */
+    private static final int RATIO_SAMPLES = 100;
+
+    /**
+     * Time added to the expiry of a value when a dictionary is to be kept until it, so the store is
+     * only told again once values live an hour longer.
+     */
+    private static final long KEEP_MARGIN_MILLIS = 3600_000;
+
+    /**
+     * Where the dictionaries are kept, by version.
+     */
+    interface DictionaryStore {
+        /**
+         * @return the latest version published, 0 if none
+         */
+        int latestVersion();
+
+        /**
+         * @return the dictionary, or null if there is no such version
+         */
+        byte[] read(int version);
+
+        /**
+         * Publishes the dictionary as the given version, unless that version has already been
+         * published.
+         *
+         * @return whether it was published
+         */
+        boolean publish(int version, byte[] dictionary);
+
+        /**
+         * Keeps the dictionary of the version at least until the given time, in epoch millis, unless
+         * it is already kept longer.
+         */
+        void keepUntil(int version, long time);
+
+        /**
+         * Removes the dictionaries of the versions before the given one that are not to be kept
+         * after {@code now}.
+         */
+        void removeBefore(int version, long now);
+    }
+
+    private record Dictionary(int version, byte[] bytes) {
+    }
+
+    private static final Dictionary NONE = new Dictionary(0, null);
+
+    private static final ThreadLocal<Deflater> DEFLATERS = ThreadLocal.withInitial(() -> new Deflater(Deflater.DEFAULT_COMPRESSION, true));
+
+    private static final ThreadLocal<Inflater> INFLATERS = ThreadLocal.withInitial(() -> new Inflater(true));
+
+    private final String name;
+
+    private final DictionaryStore dictionaries;
+
+    private final int sampleCount;
+
+    private final long rotationMillis;
+
+    private final int retainedVersions;
+
+    private final Executor trainer;
+
+    private final Map<Integer, byte[]> known = new ConcurrentHashMap<>();
+
+    /**
+     * The time each version was last told to be kept until, by this instance.
+     */
+    private final Map<Integer, Long> keptUntil = new ConcurrentHashMap<>();
+
+    private volatile Dictionary current = NONE;
+
+    /**
+     * Entities sampled for the next dictionary, null if not sampling.
+     */
+    private List<byte[]> samples;
+
+    private volatile long nextRotation = Long.MAX_VALUE;
+
+    /**
+     * @param name             of what is compressed, for logging
+     * @param sampleCount      number of entities to train a dictionary from
+     * @param rotationMillis   interval at which a new dictionary is trained, 0 to keep the first
+     * @param retainedVersions number of the latest dictionary versions kept, including the one in
+     *                         use, 0 to keep all. Older versions are kept while values compressed
+     *                         with them have not expired.
+     * @param trainer          where dictionaries are trained
+     */
+    EntityCompression(String name, DictionaryStore dictionaries, int sampleCount, long rotationMillis,
+                      int retainedVersions, Executor trainer) {
+        this.name = name;
+        this.dictionaries = dictionaries;
+        this.sampleCount = sampleCount;
+        this.rotationMillis = rotationMillis;
+        this.retainedVersions = retainedVersions;
+        this.trainer = trainer;
+    }
+
+    /**
+     * Starts using the latest dictionary published, or starts sampling for the first one.
+     */
+    void start(long now) {
+        int latest = dictionaries.latestVersion();
+        byte[] dictionary = latest > 0 ? dictionaries.read(latest) : null;
+        if (dictionary != null) {
+            use(new Dictionary(latest, dictionary), now);
+            LOG.info("Compressing {} with dictionary version {}", name, latest);
+        } else {
+            startSampling();
+        }
+    }
+
+    int currentVersion() {
+        return current.version();
+    }
+
+    /**
+     * Whether dictionaries are removed, so a value must not be kept longer than it was written to
+     * live, or its dictionary may be gone when it is read.
+     */
+    boolean removesDictionaries() {
+        return retainedVersions > 0;
+    }
+
+    /**
+     * Compresses the entity, to be stored until {@code expiresAt}. The dictionary it is compressed
+     * with is kept until then before the value is returned.
+     */
+    byte[] encode(byte[] entity, long expiresAt, long now) {
+        if (now >= nextRotation) {
+            nextRotation = Long.MAX_VALUE;
+            rotate(now);
+        }
+        sample(entity, now);
+        Dictionary dictionary = current;
+        byte[] value = compress(entity, dictionary);
+        if (value != entity && dictionary.version() > 0) {
+            keepUntil(dictionary.version(), expiresAt);
+        }
+        return value;
+    }
+
+    private void keepUntil(int version, long expiresAt) {
+        if (keptUntil.getOrDefault(version, 0L) < expiresAt) {
+            long time = expiresAt + KEEP_MARGIN_MILLIS;
+            dictionaries.keepUntil(version, time);
+            keptUntil.merge(version, time, Math::max);
+        }
+    }
+
+    /**
+     * Starts using a dictionary published by another instance since this one was, or else samples
+     * for the next.
+     */
+    private void rotate(long now) {
+        int latest = dictionaries.latestVersion();
+        byte[] published = latest > current.version() ? dictionaries.read(latest) : null;
+        if (published != null) {
+            use(new Dictionary(latest, published), now);
+            LOG.info("Compressing {} with dictionary version {}, published by another instance", name, latest);
+        } else {
+            startSampling();
+        }
+    }
+
+    /**
+     * Returns the entity as written.
+     *
+     * @throws DataFormatException if the value cannot be decompressed
+     */
+    byte[] decode(byte[] value) throws DataFormatException {
+        if (value.length == 0 || value[0] != MARKER) {
+            return value;
+        }
+        int[] position = {1};
+        int version = readVarint(value, position);
+        int length = readVarint(value, position);
+        byte[] dictionary = null;
+        if (version > 0) {
+            dictionary = known.computeIfAbsent(version, dictionaries::read);
+            if (dictionary == null) {
+                throw new DataFormatException("Unknown dictionary version " + version);
+            }
+        }
+        Inflater inflater = INFLATERS.get();
+        inflater.reset();
+        if (dictionary != null) {
+            inflater.setDictionary(dictionary);
+        }
+        inflater.setInput(value, position[0], value.length - position[0]);
+        byte[] entity = new byte[length];
+        int inflated = 0;
+        while (inflated < length) {
+            int read = inflater.inflate(entity, inflated, length - inflated);
+            if (read == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) {
+                break;
+            }
+            inflated += read;
+        }
+        if (inflated != length) {
+            throw new DataFormatException("Expected " + length + " bytes, inflated " + inflated);
+        }
+        return entity;
+    }
+
+    private synchronized void startSampling() {
+        if (samples == null) {
+            samples = new ArrayList<>(sampleCount);
+        }
+    }
+
+    private void sample(byte[] entity, long now) {
+        List<byte[]> trainingSamples;
+        synchronized (this) {
+            if (samples == null) {
+                return;
+            }
+            samples.add(entity);
+            if (samples.size() < sampleCount) {
+                return;
+            }
+            trainingSamples = samples;
+            samples = null;
+        }
+        try {
+            trainer.execute(() -> publishDictionary(trainingSamples, now));
+        } catch (RejectedExecutionException e) {
+            LOG.debug("Not training a dictionary for {}, shutting down", name);
+        }
+    }
+
+    private void publishDictionary(List<byte[]> trainingSamples, long now) {
+        try {
+            trainAndPublish(trainingSamples, now);
+        } catch (RuntimeException e) {
+            LOG.warn("Failed to train a dictionary for {}, sampling again", name, e);
+            startSampling();
+        }
+    }
+
+    private void trainAndPublish(List<byte[]> trainingSamples, long now) {
+        long start = System.currentTimeMillis();
+        byte[] trained = train(trainingSamples, DICTIONARY_SIZE);
+        int version = dictionaries.latestVersion() + 1;
+        if (dictionaries.publish(version, trained)) {
+            Dictionary dictionary = new Dictionary(version, trained);
+            use(dictionary, now);
+            if (retainedVersions > 0 && version > retainedVersions) {
+                dictionaries.removeBefore(version - retainedVersions + 1, now);
+            }
+            if (LOG.isInfoEnabled()) {
+                List<byte[]> ratioSamples = trainingSamples.subList(0, Math.min(RATIO_SAMPLES, trainingSamples.size()));
+                LOG.info("Trained dictionary version {} for {} from {} entities in {} ms: {} bytes, compressing {} of the samples to {} % of their size, {} % without it",
+                        version, name, trainingSamples.size(), System.currentTimeMillis() - start, trained.length,
+                        ratioSamples.size(), ratio(ratioSamples, dictionary), ratio(ratioSamples, NONE));
+            }
+        } else {
+            // Another instance published a dictionary first
+            int latest = dictionaries.latestVersion();
+            byte[] published = dictionaries.read(latest);
+            if (published != null) {
+                use(new Dictionary(latest, published), now);
+                LOG.info("Compressing {} with dictionary version {}, published by another instance", name, latest);
+            }
+        }
+    }
+
+    private void use(Dictionary dictionary, long now) {
+        known.put(dictionary.version(), dictionary.bytes());
+        current = dictionary;
+        if (retainedVersions > 0) {
+            // Read from the store again if still needed
+            int oldest = dictionary.version() - retainedVersions + 1;
+            known.keySet().removeIf(version -> version < oldest);
+            keptUntil.keySet().removeIf(version -> version < dictionary.version());
+        }
+        if (rotationMillis > 0) {
+            nextRotation = now + rotationMillis;
+        }
+    }
+
+    private static long ratio(List<byte[]> samples, Dictionary dictionary) {
+        long raw = 0;
+        long compressed = 0;
+        for (byte[] sample : samples) {
+            raw += sample.length;
+            compressed += compress(sample, dictionary).length;
+        }
+        return raw > 0 ? Math.round(100.0 * compressed / raw) : 100;
+    }
+
+    private static byte[] compress(byte[] entity, Dictionary dictionary) {
+        Deflater deflater = DEFLATERS.get();
+        deflater.reset();
+        if (dictionary.bytes() != null) {
+            deflater.setDictionary(dictionary.bytes());
+        }
+        deflater.setInput(entity);
+        deflater.finish();
+
+        // Only worth it if smaller than the entity
+        byte[] value = new byte[entity.length];
+        value[0] = MARKER;
+        int position = writeVarint(value, 1, dictionary.version());
+        position = writeVarint(value, position, entity.length);
+        while (!deflater.finished() && position < value.length) {
+            position += deflater.deflate(value, position, value.length - position);
+        }
+        return deflater.finished() ? Arrays.copyOf(value, position) : entity;
+    }
+
+    /**
+     * Builds a dictionary of the content most of the samples have in common, at most
+     * {@code maxSize} bytes: segments around the substrings found in the most samples, the most
+     * common last, as deflate codes nearer matches in fewer bits.
+     */
+    static byte[] train(List<byte[]> samples, int maxSize) {
+        Map<Long, Candidate> candidates = new HashMap<>();
+        for (int i = 0; i < samples.size(); i++) {
+            byte[] sample = samples.get(i);
+            Set<Long> seen = new HashSet<>();
+            for (int position = 0; position + GRAM <= sample.length; position++) {
+                long hash = hash(sample, position);
+                if ((hash & GRAM_SAMPLING_MASK) == 0 && seen.add(hash)) {
+                    Candidate candidate = candidates.get(hash);
+                    if (candidate == null) {
+                        candidates.put(hash, new Candidate(hash, i, position));
+                    } else {
+                        candidate.count++;
+                    }
+                }
+            }
+        }
+
+        int minCount = Math.max(2, samples.size() / 50);
+        List<Candidate> common = new ArrayList<>();
+        for (Candidate candidate : candidates.values()) {
+            if (candidate.count >= minCount) {
+                common.add(candidate);
+            }
+        }
+        common.sort(Comparator.comparingInt((Candidate candidate) -> candidate.count).reversed());
+
+        List<byte[]> segments = new ArrayList<>();
+        Set<Long> covered = new HashSet<>();
+        int size = 0;
+        for (Candidate candidate : common) {
+            if (size >= maxSize) {
+                break;
+            }
+            if (covered.contains(candidate.hash)) {
+                continue;
+            }
+            byte[] sample = samples.get(candidate.sample);
+            int end = Math.min(sample.length, candidate.position + SEGMENT);
+            int start = Math.max(0, end - SEGMENT);
+            byte[] segment = Arrays.copyOfRange(sample, start, Math.min(end, start + maxSize - size));
+            for (int position = 0; position + GRAM <= segment.length; position++) {
+                covered.add(hash(segment, position));
+            }
+            segments.add(segment);
+            size += segment.length;
+        }
+
+        Collections.reverse(segments);
+        ByteArrayOutputStream dictionary = new ByteArrayOutputStream(size);
+        for (byte[] segment : segments) {
+            dictionary.writeBytes(segment);
+        }
+        return dictionary.toByteArray();
+    }
+
+    private static final class Candidate {
+        private final long hash;
+        private final int sample;
+        private final int position;
+        private int count = 1;
+
+        private Candidate(long hash, int sample, int position) {
+            this.hash = hash;
+            this.sample = sample;
+            this.position = position;
+        }
+    }
+
+    private static long hash(byte[] data, int position) {
+        long hash = 0;
+        for (int i = position; i < position + GRAM; i++) {
+            hash = hash * 31 + data[i];
+        }
+        // Mixed, so the low bits used for sampling depend on all the bytes
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+    private static int writeVarint(byte[] target, int position, int value) {
+        while ((value & ~0x7F) != 0) {
+            target[position++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        target[position++] = (byte) value;
+        return position;
+    }
+
+    private static int readVarint(byte[] source, int[] position) throws DataFormatException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            if (position[0] >= source.length) {
+                throw new DataFormatException("Value cut short");
+            }
+            byte b = source[position[0]++];
+            value |= (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new DataFormatException("Invalid varint");
+    }
+}
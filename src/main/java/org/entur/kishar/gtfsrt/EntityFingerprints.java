@@ -0,0 +1,93 @@
+package org.entur.kishar.gtfsrt;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * 64-bit fingerprints of the entities last written to the store by this instance, with the time
+ * they expire there. Lets an entity that is sent again unchanged be skipped, or only have its time
+ * to live extended, instead of being written again.
+ * <p>
+ * Only writes made by this instance are known, so an entity changed by another instance and then
+ * sent here unchanged again is skipped until the copy written here would have expired. An entity is
+ * only recorded once it has been written, so one that failed to be written is not skipped.
+ */
+class EntityFingerprints {
+
+    enum Outcome {
+        /**
+         * New or changed entity - write it.
+         */
+        CHANGED,
+        /**
+         * Same entity, and the stored copy lives long enough - skip it.
+         */
+        UNCHANGED,
+        /**
+         * Same entity, but the stored copy has used up more than half of its time to live - only
+         * extend it.
+         */
+        EXPIRING
+    }
+
+    private record Fingerprint(long hash, long expiresAt) {
+    }
+
+    private static final HashFunction HASH_FUNCTION = Hashing.farmHashFingerprint64();
+
+    private final Map<RedisService.Type, Cache<String, Fingerprint>> fingerprints = new EnumMap<>(RedisService.Type.class);
+
+    /**
+     * @param maxSize number of fingerprints kept per type
+     */
+    EntityFingerprints(long maxSize) {
+        for (RedisService.Type type : RedisService.Type.values()) {
+            fingerprints.put(type, CacheBuilder.newBuilder().maximumSize(maxSize).build());
+        }
+    }
+
+    static long hash(byte[] data) {
+        return HASH_FUNCTION.hashBytes(data).asLong();
+    }
+
+    /**
+     * Compares the entity with the one last written for the same key.
+     *
+     * @param hash      of the entity, from {@link #hash}
+     * @param expiresAt time the entity is to expire, in epoch millis
+     */
+    Outcome check(RedisService.Type type, String key, long hash, long now, long expiresAt) {
+        Fingerprint previous = fingerprints.get(type).getIfPresent(key);
+        if (previous == null || previous.hash() != hash || previous.expiresAt() <= now) {
+            return Outcome.CHANGED;
+        } else if (previous.expiresAt() - now >= (expiresAt - now) / 2) {
+            return Outcome.UNCHANGED;
+        }
+        return Outcome.EXPIRING;
+    }
+
+    /**
+     * Records the entity as written, to expire at the given time.
+     */
+    void record(RedisService.Type type, String key, long hash, long expiresAt) {
+        fingerprints.get(type).put(key, new Fingerprint(hash, expiresAt));
+    }
+
+    /**
+     * Forgets the entities, whose writes may have failed, so they are written again when next sent.
+     */
+    void forget(RedisService.Type type, Iterable<String> keys) {
+        fingerprints.get(type).invalidateAll(keys);
+    }
+
+    void clear() {
+        for (Cache<String, Fingerprint> cache : fingerprints.values()) {
+            cache.invalidateAll();
+        }
+    }
+}
@@ -0,0 +1,441 @@
+package org.entur.kishar.gtfsrt;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32C;
+
+/**
+ * Keeps the content of the {@link InMemoryEntityStore} on local disk, so it survives a restart: a
+ * snapshot of all entities, and a journal of the writes, extensions and removals since. Starting a
+ * snapshot moves the journal aside and starts a new one, and the snapshot may then hold each entity
+ * as it was at any time since: replaying the new journal on top of it gives the entities as they
+ * are. The journal moved aside is removed once the snapshot is complete, so the journals never hold
+ * much more than one snapshot interval.
+ * <p>
+ * Each journal has a generation, and a snapshot the generation of the journal started with it. A
+ * journal older than the snapshot is not read, as the snapshot already holds its changes.
+ * <p>
+ * The files are a 4-byte magic number and the generation, followed by records of: operation, map
+ * type, key, and
+ * depending on the operation, the time the entity expires and its data, then a CRC-32C of the
+ * record. They are memory-mapped when read back. A record cut short by a crash, or one that cannot
+ * be read or does not match its checksum, ends the journal; it is truncated there.
+ * <p>
+ * Journal records are written to the operating system when {@link #flush()} is called, and the
+ * snapshot is forced to disk before it replaces the previous one. If a write fails, journaling
+ * stops until the next snapshot, which writes everything again.
+ * <p>
+ * Not thread safe; guarded by the store, except for a {@link SnapshotWriter}, which is written
+ * without holding it. Only one snapshot is written at a time.
+ */
+class EntityJournal {
+
+    private static final Logger LOG = LoggerFactory.getLogger(EntityJournal.class);
+
+    private static final int JOURNAL_MAGIC = 0x4B4A4E33;
+    private static final int SNAPSHOT_MAGIC = 0x4B534E33;
+
+    /**
+     * The magic number and the generation.
+     */
+    static final int HEADER_SIZE = Integer.BYTES + Long.BYTES;
+
+    private static final byte PUT = 1;
+    private static final byte EXTEND = 2;
+    private static final byte REMOVE = 3;
+
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    /**
+     * Receives the entities read back from disk, in the order they were written.
+     */
+    interface Loader {
+        void put(RedisService.Type type, String key, byte[] data, long expiresAt);
+
+        void extend(RedisService.Type type, String key, long expiresAt);
+
+        void remove(RedisService.Type type, String key);
+    }
+
+    private final Path snapshotFile;
+
+    private final Path snapshotTempFile;
+
+    private final Path journalFile;
+
+    /**
+     * The journal moved aside when a snapshot was started, until the snapshot is complete.
+     */
+    private final Path previousJournalFile;
+
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+    private final CRC32C checksum = new CRC32C();
+
+    private FileChannel journal;
+
+    /**
+     * Generation of the journal being written.
+     */
+    private long generation;
+
+    private boolean failed;
+
+    EntityJournal(Path directory) throws IOException {
+        Files.createDirectories(directory);
+        this.snapshotFile = directory.resolve("entities.snapshot");
+        this.snapshotTempFile = directory.resolve("entities.snapshot.tmp");
+        this.journalFile = directory.resolve("entities.journal");
+        this.previousJournalFile = directory.resolve("entities.journal.previous");
+    }
+
+    /**
+     * Reads the snapshot, then the journals not older than it, and opens the journal to append to
+     * it.
+     *
+     * @return the number of records read
+     */
+    long recover(Loader loader) throws IOException {
+        long records = 0;
+        long snapshotGeneration = 0;
+        if (Files.exists(snapshotFile)) {
+            Replay replay = replay(snapshotFile, SNAPSHOT_MAGIC, loader, 0);
+            records += replay.records();
+            snapshotGeneration = replay.generation();
+        }
+        generation = snapshotGeneration;
+        if (Files.exists(previousJournalFile)) {
+            // A snapshot was not completed, so the journal before it is still needed
+            Replay replay = replay(previousJournalFile, JOURNAL_MAGIC, loader, snapshotGeneration);
+            records += replay.records();
+            if (replay.length() == 0) {
+                Files.delete(previousJournalFile);
+            } else {
+                // Drop a record cut short, as the journal may be appended to it
+                try (FileChannel previous = FileChannel.open(previousJournalFile, StandardOpenOption.WRITE)) {
+                    previous.truncate(replay.length());
+                }
+            }
+            generation = Math.max(generation, replay.generation());
+        }
+        long journalLength = 0;
+        if (Files.exists(journalFile)) {
+            Replay replay = replay(journalFile, JOURNAL_MAGIC, loader, snapshotGeneration);
+            records += replay.records();
+            journalLength = replay.length();
+            generation = Math.max(generation, replay.generation());
+        }
+        if (journalLength == 0) {
+            generation++;
+        }
+        openJournal(journalLength);
+        return records;
+    }
+
+    void appendPut(RedisService.Type type, String key, ByteBuffer data, long expiresAt) {
+        if (journal == null || failed) {
+            return;
+        }
+        try {
+            writeRecord(journal, buffer, checksum, PUT, type, key, expiresAt, data);
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    void appendExtend(RedisService.Type type, String key, long expiresAt) {
+        if (journal == null || failed) {
+            return;
+        }
+        try {
+            writeRecord(journal, buffer, checksum, EXTEND, type, key, expiresAt, null);
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    void appendRemove(RedisService.Type type, String key) {
+        if (journal == null || failed) {
+            return;
+        }
+        try {
+            writeRecord(journal, buffer, checksum, REMOVE, type, key, 0, null);
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    /**
+     * Writes the journal records buffered so far.
+     */
+    void flush() {
+        if (journal == null || failed) {
+            return;
+        }
+        try {
+            drain(journal, buffer);
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    /**
+     * Moves the journal aside and starts a new one, and starts writing a snapshot. The snapshot is
+     * then written without holding the store, with the entities as they are at any time from now.
+     */
+    SnapshotWriter startSnapshot() throws IOException {
+        flush();
+        if (journal != null) {
+            journal.close();
+            journal = null;
+        }
+        if (Files.exists(journalFile)) {
+            if (Files.exists(previousJournalFile)) {
+                // The last snapshot was not completed, so both journals are still needed
+                try (FileChannel previous = FileChannel.open(previousJournalFile, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+                     FileChannel current = FileChannel.open(journalFile, StandardOpenOption.READ)) {
+                    long position = HEADER_SIZE;
+                    while (position < current.size()) {
+                        position += current.transferTo(position, current.size() - position, previous);
+                    }
+                }
+                Files.delete(journalFile);
+            } else {
+                Files.move(journalFile, previousJournalFile, StandardCopyOption.ATOMIC_MOVE);
+            }
+        }
+        generation++;
+        openJournal(0);
+        failed = false;
+        return new SnapshotWriter(FileChannel.open(snapshotTempFile,
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING), generation);
+    }
+
+    void close() {
+        if (journal != null) {
+            flush();
+            try {
+                journal.close();
+            } catch (IOException e) {
+                LOG.warn("Failed to close journal", e);
+            }
+            journal = null;
+        }
+    }
+
+    /**
+     * Writes all entities to a new file, which replaces the snapshot and the journal moved aside
+     * once complete. Has buffers of its own, so it is written while the journal is.
+     */
+    class SnapshotWriter implements AutoCloseable {
+
+        private final FileChannel channel;
+
+        private final ByteBuffer snapshotBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+        private final CRC32C snapshotChecksum = new CRC32C();
+
+        private boolean completed;
+
+        private long records;
+
+        private SnapshotWriter(FileChannel channel, long generation) {
+            this.channel = channel;
+            snapshotBuffer.putInt(SNAPSHOT_MAGIC);
+            snapshotBuffer.putLong(generation);
+        }
+
+        void put(RedisService.Type type, String key, ByteBuffer data, long expiresAt) throws IOException {
+            writeRecord(channel, snapshotBuffer, snapshotChecksum, PUT, type, key, expiresAt, data);
+            records++;
+        }
+
+        /**
+         * Forces the snapshot to disk, moves it in place of the previous one, and removes the
+         * journal moved aside.
+         *
+         * @return the number of entities in the snapshot
+         */
+        long complete() throws IOException {
+            drain(channel, snapshotBuffer);
+            channel.force(true);
+            channel.close();
+            Files.move(snapshotTempFile, snapshotFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            // Not read after the snapshot even if left behind, as it is of an earlier generation
+            Files.deleteIfExists(previousJournalFile);
+            completed = true;
+            return records;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (!completed) {
+                channel.close();
+                Files.deleteIfExists(snapshotTempFile);
+            }
+        }
+    }
+
+    private void openJournal(long validLength) throws IOException {
+        journal = FileChannel.open(journalFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        buffer.clear();
+        if (validLength < HEADER_SIZE) {
+            journal.truncate(0);
+            buffer.putInt(JOURNAL_MAGIC);
+            buffer.putLong(generation);
+            drain(journal, buffer);
+        } else {
+            // Drop a record cut short by a crash, so appended records can be read
+            journal.truncate(validLength);
+            journal.position(validLength);
+        }
+    }
+
+    private static void writeRecord(FileChannel channel, ByteBuffer buffer, CRC32C checksum, byte operation,
+                                    RedisService.Type type, String key, long expiresAt, ByteBuffer data) throws IOException {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        int size = 2 + Integer.BYTES + keyBytes.length + (operation == REMOVE ? 0 : Long.BYTES)
+                + (data != null ? Integer.BYTES : 0) + Integer.BYTES;
+        if (buffer.remaining() < size) {
+            drain(channel, buffer);
+        }
+        if (buffer.remaining() < size) {
+            throw new IOException("Key too long for the journal: " + keyBytes.length + " bytes");
+        }
+        checksum.reset();
+        int start = buffer.position();
+        buffer.put(operation);
+        buffer.put((byte) type.ordinal());
+        buffer.putInt(keyBytes.length);
+        buffer.put(keyBytes);
+        if (operation != REMOVE) {
+            buffer.putLong(expiresAt);
+        }
+        if (data != null) {
+            ByteBuffer content = data.duplicate().clear();
+            buffer.putInt(content.remaining());
+            if (content.remaining() + Integer.BYTES <= buffer.remaining()) {
+                buffer.put(content);
+            } else {
+                // Large values are written straight from where they are stored
+                checksum.update(buffer.slice(start, buffer.position() - start));
+                start = 0;
+                drain(channel, buffer);
+                checksum.update(content.duplicate());
+                while (content.hasRemaining()) {
+                    channel.write(content);
+                }
+            }
+        }
+        checksum.update(buffer.slice(start, buffer.position() - start));
+        buffer.putInt((int) checksum.getValue());
+    }
+
+    private static void drain(FileChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    private void fail(IOException e) {
+        LOG.error("Failed to write to the journal in {}, stopping journaling until the next snapshot", journalFile.getParent(), e);
+        failed = true;
+        buffer.clear();
+    }
+
+    /**
+     * @param records    number of records read
+     * @param length     length of the file up to the end of the last complete record, 0 if it was
+     *                   not read
+     * @param generation of the file, 0 if it was not read
+     */
+    private record Replay(long records, long length, long generation) {
+    }
+
+    /**
+     * Applies the records of the file to the loader, unless it is of a generation before
+     * {@code minGeneration}.
+     */
+    private Replay replay(Path file, int magic, Loader loader, long minGeneration) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException(file + " is larger than 2 GB");
+            }
+            MappedByteBuffer data = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            if (size < HEADER_SIZE || data.getInt() != magic) {
+                LOG.warn("Ignoring {}, which is not a complete {}", file, magic == SNAPSHOT_MAGIC ? "snapshot" : "journal");
+                return new Replay(0, 0, 0);
+            }
+            long fileGeneration = data.getLong();
+            if (fileGeneration < minGeneration) {
+                LOG.info("Ignoring {}, which is older than the snapshot", file);
+                return new Replay(0, 0, fileGeneration);
+            }
+            RedisService.Type[] types = RedisService.Type.values();
+            long records = 0;
+            int end = data.position();
+            try {
+                while (data.hasRemaining()) {
+                    byte operation = data.get();
+                    if (operation != PUT && operation != EXTEND && operation != REMOVE) {
+                        // Not a record written by this version - end the file here, as for a record cut short
+                        LOG.warn("Ignoring the end of {} after {} records, from {} of {} bytes: unknown operation {}",
+                                file, records, end, size, operation);
+                        break;
+                    }
+                    RedisService.Type type = types[data.get()];
+                    String key = new String(readBytes(data), StandardCharsets.UTF_8);
+                    long expiresAt = operation != REMOVE ? data.getLong() : 0;
+                    byte[] value = operation == PUT ? readBytes(data) : null;
+                    checksum.reset();
+                    checksum.update(data.slice(end, data.position() - end));
+                    if (data.getInt() != (int) checksum.getValue()) {
+                        LOG.warn("Ignoring the end of {} after {} records, from {} of {} bytes: checksum mismatch",
+                                file, records, end, size);
+                        break;
+                    }
+                    if (operation == PUT) {
+                        loader.put(type, key, value, expiresAt);
+                    } else if (operation == EXTEND) {
+                        loader.extend(type, key, expiresAt);
+                    } else {
+                        loader.remove(type, key);
+                    }
+                    records++;
+                    end = data.position();
+                }
+            } catch (BufferUnderflowException | ArrayIndexOutOfBoundsException e) {
+                LOG.warn("Ignoring the end of {} after {} records, from {} of {} bytes", file, records, end, size);
+            }
+            return new Replay(records, end, fileGeneration);
+        }
+    }
+
+    /**
+     * Reads a length and that many bytes, checking the length against what is left first, so a
+     * corrupt length ends the file instead of allocating up to 2 GB.
+     */
+    private static byte[] readBytes(ByteBuffer data) {
+        int length = data.getInt();
+        if (length < 0 || length > data.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        byte[] bytes = new byte[length];
+        data.get(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,121 @@
+package org.entur.kishar.gtfsrt;
+
+import org.entur.kishar.metrics.PrometheusMetricsService;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Where the entities of each map type are stored, each until the time it expires, with a log of
+ * the changes so readers can follow them without reading everything. Implemented by
+ * {@link RedisEntityStore}, shared by all instances, and by {@link LocalEntityStore} and
+ * {@link DiskEntityStore}, which keep the entities of one instance in memory or in a file.
+ * <p>
+ * All methods take the current time, in epoch millis.
+ */
+interface EntityStore {
+
+    /**
+     * An entity to write.
+     *
+     * @param outcome how it compares with what was written before, {@code CHANGED} if not known
+     */
+    record EntityWrite(String key, byte[] data, long expiresAt, EntityFingerprints.Outcome outcome) {
+    }
+
+    /**
+     * What was done with the entities of a write.
+     *
+     * @param unchanged skipped, as the same data is stored
+     * @param extended  had only their time to live extended
+     * @param changed   were written
+     */
+    record WriteCounts(int unchanged, int extended, int changed) {
+    }
+
+    /**
+     * Receives the entities of a full read as they are read.
+     */
+    interface EntitySink {
+        /**
+         * Adds the entity, replacing any added with the same key.
+         */
+        void put(String key, byte[] entity);
+
+        /**
+         * Adds the entity, unless one with the same key has been added.
+         *
+         * @return whether it was added
+         */
+        boolean putIfAbsent(String key, byte[] entity);
+
+        static EntitySink of(Map<String, byte[]> entities) {
+            return new EntitySink() {
+                @Override
+                public void put(String key, byte[] entity) {
+                    entities.put(key, entity);
+                }
+
+                @Override
+                public boolean putIfAbsent(String key, byte[] entity) {
+                    return entities.putIfAbsent(key, entity) == null;
+                }
+            };
+        }
+    }
+
+    /**
+     * Called once on startup, before anything else, with the metrics service if there is one.
+     */
+    default void init(PrometheusMetricsService metrics) {
+    }
+
+    WriteCounts write(RedisService.Type type, List<EntityWrite> entities, long now);
+
+    /**
+     * Returns all entities of the type that have not expired, by key.
+     */
+    Map<String, byte[]> readAll(RedisService.Type type, long now);
+
+    /**
+     * Passes all entities of the type that have not expired to the sink, as they are read. Stores
+     * that read them in pages override this, so a full read does not hold them all at once.
+     */
+    default void readAll(RedisService.Type type, long now, EntitySink sink) {
+        readAll(type, now).forEach(sink::put);
+    }
+
+    /**
+     * Returns the entities written, and the keys removed or expired, since {@code since}. Returns
+     * null if the change log does not go back that far, and the caller must read everything with
+     * {@link #readAll}.
+     */
+    RedisService.GtfsRtChanges readChanges(RedisService.Type type, long since, long now);
+
+    /**
+     * Returns the keys of the entities that have expired since {@code since}, and not been written
+     * again.
+     */
+    Set<String> readExpiredKeys(RedisService.Type type, long since, long now);
+
+    /**
+     * Drops changes before {@code cutoff} from the change log of the type.
+     */
+    void trimChangeLog(RedisService.Type type, long cutoff);
+
+    /**
+     * Removes all entities, and restarts the change logs from {@code now}.
+     */
+    void clear(long now);
+
+    /**
+     * Makes what has been written so far durable, if the store keeps it on local disk.
+     */
+    default void checkpoint(long now) throws IOException {
+    }
+
+    default void close() {
+    }
+}
@@ -0,0 +1,154 @@
+package org.entur.kishar.gtfsrt;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Local copy of one of the GTFS-RT maps in redis. Each refresh only fetches the entities written
+ * or expired since the previous one, as recorded in the change log kept by {@link RedisService}.
+ * The whole map is read on the first refresh, when the change log does not go back far enough, and
+ * at a fixed interval as a safety net.
+ * <p>
+ * When the entities written are published by {@link RedisService}, the mirror is a near cache: the
+ * entities are received as they are written, and each refresh only reads the keys that have
+ * expired. The whole map is also read after the subscription has been re-established, as messages
+ * may have been lost while it was down.
+ */
+class GtfsRtMapMirror {
+
+    private static final Logger LOG = LoggerFactory.getLogger(GtfsRtMapMirror.class);
+
+    private final RedisService redisService;
+
+    private final RedisService.Type type;
+
+    private final long fullResyncIntervalMillis;
+
+    /**
+     * Sorted by key, so the same entities always give the same feed.
+     */
+    private final Map<String, byte[]> entities = new TreeMap<>();
+
+    /**
+     * Messages received since the previous refresh. Null if updates are not published.
+     */
+    private final Queue<byte[]> received;
+
+    private volatile boolean resyncRequested;
+
+    private long cursor;
+
+    private long lastFullRead;
+
+    /**
+     * Largest delay, in millis, from an entity being written until it was applied to the mirror in
+     * the last refresh.
+     */
+    private long staleness;
+
+    GtfsRtMapMirror(RedisService redisService, RedisService.Type type, long fullResyncIntervalMillis) {
+        this.redisService = redisService;
+        this.type = type;
+        this.fullResyncIntervalMillis = fullResyncIntervalMillis;
+        if (redisService.isPublishingUpdates()) {
+            received = new ConcurrentLinkedQueue<>();
+            redisService.subscribeToUpdates(type, received::add, () -> resyncRequested = true);
+        } else {
+            received = null;
+        }
+    }
+
+    boolean isNearCache() {
+        return received != null;
+    }
+
+    long getStaleness() {
+        return staleness;
+    }
+
+    /**
+     * Drops the copy, and the messages received, while it is not used. The next refresh reads the
+     * whole map.
+     */
+    synchronized void invalidate() {
+        entities.clear();
+        if (received != null) {
+            received.clear();
+        }
+        lastFullRead = 0;
+    }
+
+    /**
+     * Brings the copy up to date and returns it. The returned map is a view that changes with the
+     * next refresh.
+     */
+    synchronized Map<String, byte[]> refresh() {
+        long now = System.currentTimeMillis();
+        staleness = 0;
+        boolean fullRead = lastFullRead == 0 || now - lastFullRead >= fullResyncIntervalMillis || resyncRequested;
+        if (!fullRead && received != null) {
+            fullRead = !applyReceived(now);
+        } else if (!fullRead) {
+            RedisService.GtfsRtChanges changes = redisService.readGtfsRtChanges(type, cursor);
+            if (changes != null) {
+                entities.keySet().removeAll(changes.removed());
+                entities.putAll(changes.updated());
+                LOG.debug("Read {} changed and {} removed entities of {}", changes.updated().size(), changes.removed().size(), type);
+            } else {
+                fullRead = true;
+            }
+        }
+
+        if (fullRead) {
+            resyncRequested = false;
+            if (received != null) {
+                // Everything written so far is in the full read
+                received.clear();
+            }
+            entities.clear();
+            redisService.readGtfsRtMap(type, EntityStore.EntitySink.of(entities));
+            redisService.trimChangeLog(type);
+            lastFullRead = now;
+            LOG.debug("Read all {} entities of {}", entities.size(), type);
+        }
+        cursor = now;
+        return Collections.unmodifiableMap(entities);
+    }
+
+    /**
+     * Applies the entities received since the previous refresh, and removes those that have expired.
+     *
+     * @return false if the map has been reset, and must be read again
+     */
+    private boolean applyReceived(long now) {
+        int updated = 0;
+        byte[] message;
+        while ((message = received.poll()) != null) {
+            MirrorUpdates updates;
+            try {
+                updates = MirrorUpdates.decode(message);
+            } catch (IOException e) {
+                LOG.warn("Invalid update message for {}, reading all entities", type, e);
+                return false;
+            }
+            if (updates.reset()) {
+                return false;
+            }
+            entities.putAll(redisService.decodeUpdates(type, updates.updated()));
+            updated += updates.updated().size();
+            staleness = Math.max(staleness, now - updates.publishedAt());
+        }
+        Set<String> expired = redisService.readExpiredKeys(type, cursor);
+        entities.keySet().removeAll(expired);
+        LOG.debug("Received {} and expired {} entities of {}", updated, expired.size(), type);
+        return true;
+    }
+}
@@ -0,0 +1,116 @@
+package org.entur.kishar.gtfsrt;
+
+import com.google.protobuf.Duration;
+import org.entur.kishar.gtfsrt.domain.GtfsRtData;
+
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Holds the latest entity written for each key until the next flush, so an entity updated several
+ * times between two flushes is only written to the store once. The time to live of an entity is
+ * counted from when it was put in the buffer, not from when it is flushed. Those who put entities in
+ * the buffer are told when the flush that writes them is done, so a message is only acknowledged
+ * once its entities are in the store.
+ */
+class GtfsRtWriteBuffer {
+
+    private record Pending(byte[] data, long expiresAt) {
+    }
+
+    /**
+     * The entities taken from the buffer by a flush, by type, and the future to complete once they
+     * have been written.
+     */
+    record Drained(Map<RedisService.Type, Map<String, GtfsRtData>> entities, CompletableFuture<Void> flushed) {
+    }
+
+    private final int maxSize;
+
+    private final Map<RedisService.Type, Map<String, Pending>> pending = new EnumMap<>(RedisService.Type.class);
+
+    private int size;
+
+    private CompletableFuture<Void> flushed = new CompletableFuture<>();
+
+    /**
+     * @param maxSize number of buffered entities, over all types, at which the buffer should be
+     *                flushed without waiting for the next interval
+     */
+    GtfsRtWriteBuffer(int maxSize) {
+        this.maxSize = maxSize;
+        for (RedisService.Type type : RedisService.Type.values()) {
+            pending.put(type, new HashMap<>());
+        }
+    }
+
+    /**
+     * Adds the entities to the buffer, replacing those already buffered with the same key. The
+     * flush that writes them completes {@link #getFlushed()}.
+     *
+     * @return the number of buffered entities that were replaced
+     */
+    synchronized int put(Map<String, GtfsRtData> gtfsRt, RedisService.Type type) {
+        long now = System.currentTimeMillis();
+        Map<String, Pending> entities = pending.get(type);
+        int superseded = 0;
+        for (Map.Entry<String, GtfsRtData> entry : gtfsRt.entrySet()) {
+            long expiresAt = now + TimeUnit.SECONDS.toMillis(entry.getValue().getTimeToLive().getSeconds());
+            if (entities.put(entry.getKey(), new Pending(entry.getValue().getData(), expiresAt)) != null) {
+                superseded++;
+            } else {
+                size++;
+            }
+        }
+        return superseded;
+    }
+
+    synchronized boolean isFull() {
+        return size >= maxSize;
+    }
+
+    /**
+     * Returns the future completed by the next flush, which writes the entities in the buffer now.
+     */
+    synchronized CompletableFuture<Void> getFlushed() {
+        return flushed;
+    }
+
+    /**
+     * Empties the buffer and returns its entities, with the time to live that remains of them. The
+     * caller writes them, then completes the future returned with them.
+     */
+    synchronized Drained drain() {
+        long now = System.currentTimeMillis();
+        Map<RedisService.Type, Map<String, GtfsRtData>> drained = new EnumMap<>(RedisService.Type.class);
+        for (RedisService.Type type : RedisService.Type.values()) {
+            Map<String, Pending> entities = pending.put(type, new HashMap<>());
+            Map<String, GtfsRtData> result = new HashMap<>();
+            for (Map.Entry<String, Pending> entry : entities.entrySet()) {
+                long remaining = TimeUnit.MILLISECONDS.toSeconds(entry.getValue().expiresAt() - now + 999);
+                result.put(entry.getKey(), new GtfsRtData(entry.getValue().data(), Duration.newBuilder().setSeconds(remaining).build()));
+            }
+            drained.put(type, result);
+        }
+        size = 0;
+        CompletableFuture<Void> done = flushed;
+        flushed = new CompletableFuture<>();
+        return new Drained(drained, done);
+    }
+
+    /**
+     * Drops the entities in the buffer. Those who put them are told they are done, as they are not
+     * to be written.
+     */
+    synchronized void clear() {
+        for (Map<String, Pending> entities : pending.values()) {
+            entities.clear();
+        }
+        size = 0;
+        flushed.complete(null);
+        flushed = new CompletableFuture<>();
+    }
+}
@@ -0,0 +1,566 @@
+package org.entur.kishar.gtfsrt;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Entities of all map types when redis is not used. Each entity expires at the time given when it
+ * was written, tracked by a hierarchical timer wheel: entities are placed in buckets of one second
+ * up to about a minute ahead, of about a minute up to about an hour, and so on, and are moved to
+ * finer buckets as their time approaches. Advancing the wheel only visits the buckets whose time
+ * has passed, so expiry costs the same whether there are a hundred entities or a million.
+ * <p>
+ * The total size of the entities is bounded by an estimate of the memory they use. When it is
+ * exceeded, the entities closest to expiry are evicted first.
+ * <p>
+ * The data of the entities is kept on the heap, or outside it in {@link OffHeapSlabs}. Either way
+ * it can be read in place, in key order, with {@link #read}.
+ * <p>
+ * With an {@link EntityJournal}, every change is also recorded on disk, and the entities are
+ * recovered from it on startup.
+ * <p>
+ * All methods take the current time, in epoch millis, so the wheel follows the caller's clock.
+ */
+class InMemoryEntityStore {
+
+    enum RemovalCause {
+        /**
+         * The time to live of the entity ran out.
+         */
+        EXPIRED,
+        /**
+         * The entity was evicted to stay within the size bound.
+         */
+        SIZE
+    }
+
+    interface RemovalListener {
+        void onRemoval(RedisService.Type type, String key, RemovalCause cause);
+    }
+
+    /**
+     * Reads the entities of a type in place, see {@link #read}.
+     */
+    interface EntityReader<T> {
+        /**
+         * @param entity read-only view of the data, only valid until the read is finished
+         */
+        void accept(String key, ByteBuffer entity);
+
+        T finish();
+    }
+
+    /**
+     * Estimated memory used by an entity besides its key and data: the node, the map entry, and the
+     * object headers of the key and data.
+     */
+    static final int ENTRY_OVERHEAD = 112;
+
+    private static final int BUCKETS = 64;
+
+    /**
+     * Number of entities copied for a snapshot each time the store is held.
+     */
+    private static final int SNAPSHOT_CHUNK_SIZE = 1000;
+
+    /**
+     * Bucket width of each level of the wheel, as a power of two of millis: about 1 second, 1
+     * minute, 1 hour, 3 days and 6 months. Each level spans {@link #BUCKETS} buckets, which is the
+     * width of a bucket of the next level.
+     */
+    private static final int[] SHIFTS = {10, 16, 22, 28, 34};
+
+    private final long maxBytes;
+
+    private final RemovalListener listener;
+
+    /**
+     * Null if the data is kept on the heap.
+     */
+    private final OffHeapSlabs slabs;
+
+    /**
+     * Sorted by key, so the same entities are always read in the same order.
+     */
+    private final Map<RedisService.Type, TreeMap<String, Node>> entities = new EnumMap<>(RedisService.Type.class);
+
+    private final Map<RedisService.Type, Long> bytes = new EnumMap<>(RedisService.Type.class);
+
+    private final Node[][] wheel = new Node[SHIFTS.length][BUCKETS];
+
+    /**
+     * Held while a snapshot is written, so there is only one at a time.
+     */
+    private final Object snapshotLock = new Object();
+
+    /**
+     * Null if the entities are not persisted.
+     */
+    private EntityJournal journal;
+
+    private long totalBytes;
+
+    /**
+     * Time the wheel has been advanced to.
+     */
+    private long time;
+
+    InMemoryEntityStore(long maxBytes, boolean offHeap, RemovalListener listener, long now) {
+        this.maxBytes = maxBytes;
+        this.listener = listener;
+        this.slabs = offHeap ? new OffHeapSlabs() : null;
+        this.time = now;
+        for (RedisService.Type type : RedisService.Type.values()) {
+            entities.put(type, new TreeMap<>());
+            bytes.put(type, 0L);
+        }
+        for (Node[] level : wheel) {
+            for (int i = 0; i < BUCKETS; i++) {
+                level[i] = Node.sentinel();
+            }
+        }
+    }
+
+    /**
+     * Writes the entity, replacing any earlier version, to expire at {@code expiresAt}.
+     */
+    synchronized void put(RedisService.Type type, String key, byte[] data, long expiresAt, long now) {
+        advance(now);
+        Node node = slabs != null
+                ? new Node(type, key, null, slabs.allocate(data), data.length, expiresAt)
+                : new Node(type, key, data, 0, data.length, expiresAt);
+        Node previous = entities.get(type).put(key, node);
+        if (previous != null) {
+            unlink(previous);
+            addBytes(type, -previous.weight());
+            freeData(previous);
+        }
+        addBytes(type, node.weight());
+        schedule(node);
+        if (journal != null) {
+            journal.appendPut(type, key, view(node), expiresAt);
+        }
+        evictIfNeeded();
+    }
+
+    /**
+     * Moves the expiry of the entity to {@code expiresAt}, keeping its data.
+     *
+     * @return false if there is no such entity
+     */
+    synchronized boolean extend(RedisService.Type type, String key, long expiresAt, long now) {
+        advance(now);
+        Node node = entities.get(type).get(key);
+        if (node == null || node.expiresAt <= now) {
+            return false;
+        }
+        unlink(node);
+        node.expiresAt = expiresAt;
+        schedule(node);
+        if (journal != null) {
+            journal.appendExtend(type, key, expiresAt);
+        }
+        return true;
+    }
+
+    /**
+     * Removes the entity, without notifying the listener.
+     *
+     * @return false if there is no such entity
+     */
+    synchronized boolean remove(RedisService.Type type, String key) {
+        Node node = entities.get(type).remove(key);
+        if (node == null) {
+            return false;
+        }
+        unlink(node);
+        addBytes(type, -node.weight());
+        freeData(node);
+        if (journal != null) {
+            journal.appendRemove(type, key);
+        }
+        return true;
+    }
+
+    /**
+     * Returns the data of the entity, or null if there is none or it has expired.
+     */
+    synchronized byte[] get(RedisService.Type type, String key, long now) {
+        Node node = entities.get(type).get(key);
+        return node != null && node.expiresAt > now ? copyData(node) : null;
+    }
+
+    /**
+     * Returns whether there is an entity with the key that has not expired, without reading its
+     * data.
+     */
+    synchronized boolean contains(RedisService.Type type, String key, long now) {
+        Node node = entities.get(type).get(key);
+        return node != null && node.expiresAt > now;
+    }
+
+    /**
+     * Returns a copy of the entities of the given type that have not expired.
+     */
+    synchronized Map<String, byte[]> readAll(RedisService.Type type, long now) {
+        advance(now);
+        Map<String, Node> typeEntities = entities.get(type);
+        Map<String, byte[]> result = new HashMap<>(typeEntities.size() * 2);
+        for (Node node : typeEntities.values()) {
+            if (node.expiresAt > now) {
+                result.put(node.key, copyData(node));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Passes the entities of the given type that have not expired to the reader, in key order,
+     * without copying their data. No entity is written or removed until the read is finished.
+     */
+    synchronized <T> T read(RedisService.Type type, long now, EntityReader<T> reader) {
+        advance(now);
+        for (Node node : entities.get(type).values()) {
+            if (node.expiresAt > now) {
+                reader.accept(node.key, view(node));
+            }
+        }
+        return reader.finish();
+    }
+
+    /**
+     * Loads the entities persisted by the journal that have not expired, and records every change
+     * from now on in it. Entities already in the store are kept unless loaded again.
+     *
+     * @return the number of records read from disk
+     */
+    synchronized long recover(EntityJournal journal, long now) throws IOException {
+        advance(now);
+        try {
+            return journal.recover(new EntityJournal.Loader() {
+                @Override
+                public void put(RedisService.Type type, String key, byte[] data, long expiresAt) {
+                    if (expiresAt > now) {
+                        InMemoryEntityStore.this.put(type, key, data, expiresAt, now);
+                    } else {
+                        remove(type, key);
+                    }
+                }
+
+                @Override
+                public void extend(RedisService.Type type, String key, long expiresAt) {
+                    if (!InMemoryEntityStore.this.extend(type, key, expiresAt, now)) {
+                        remove(type, key);
+                    }
+                }
+
+                @Override
+                public void remove(RedisService.Type type, String key) {
+                    InMemoryEntityStore.this.remove(type, key);
+                }
+            });
+        } finally {
+            // Attached even if recovery failed, so the next snapshot replaces what could not be read
+            this.journal = journal;
+        }
+    }
+
+    /**
+     * Writes the journal records of the changes so far to the operating system.
+     */
+    synchronized void flushJournal() {
+        if (journal != null) {
+            journal.flush();
+        }
+    }
+
+    /**
+     * Writes a snapshot of all entities that have not expired, which replaces the journal. Only
+     * starting it and copying each chunk of entities hold the store; the file is written without,
+     * so writes and reads go on.
+     *
+     * @return the number of entities written
+     */
+    long writeSnapshot(long now) throws IOException {
+        synchronized (snapshotLock) {
+            EntityJournal.SnapshotWriter writer;
+            synchronized (this) {
+                advance(now);
+                writer = journal.startSnapshot();
+            }
+            try (writer) {
+                List<SnapshotEntry> chunk = new ArrayList<>(SNAPSHOT_CHUNK_SIZE);
+                for (RedisService.Type type : RedisService.Type.values()) {
+                    String after = null;
+                    while ((after = copyChunk(type, after, now, chunk)) != null) {
+                        for (SnapshotEntry entry : chunk) {
+                            writer.put(type, entry.key(), ByteBuffer.wrap(entry.data()), entry.expiresAt());
+                        }
+                        chunk.clear();
+                    }
+                }
+                return writer.complete();
+            }
+        }
+    }
+
+    /**
+     * Adds copies of the entities of the type that have not expired to the chunk, visiting at most
+     * {@link #SNAPSHOT_CHUNK_SIZE} from the first key after {@code after}, or from the first if null.
+     * The data is copied to the heap if kept off it, so it stays valid once the store is released.
+     *
+     * @return the last key visited, null if there were none
+     */
+    private synchronized String copyChunk(RedisService.Type type, String after, long now, List<SnapshotEntry> chunk) {
+        TreeMap<String, Node> typeEntities = entities.get(type);
+        Map<String, Node> remaining = after != null ? typeEntities.tailMap(after, false) : typeEntities;
+        String last = null;
+        int visited = 0;
+        for (Node node : remaining.values()) {
+            if (visited++ == SNAPSHOT_CHUNK_SIZE) {
+                break;
+            }
+            if (node.expiresAt > now) {
+                chunk.add(new SnapshotEntry(node.key, copyData(node), node.expiresAt));
+            }
+            last = node.key;
+        }
+        return last;
+    }
+
+    synchronized void closeJournal() {
+        if (journal != null) {
+            journal.close();
+        }
+    }
+
+    /**
+     * Removes the entities that have expired, notifying the listener of each.
+     */
+    synchronized void expire(long now) {
+        advance(now);
+    }
+
+    synchronized int size(RedisService.Type type) {
+        return entities.get(type).size();
+    }
+
+    /**
+     * Estimated memory used by the entities of the given type, in bytes.
+     */
+    synchronized long weight(RedisService.Type type) {
+        return bytes.get(type);
+    }
+
+    boolean isOffHeap() {
+        return slabs != null;
+    }
+
+    /**
+     * Bytes of direct memory held for the data of the entities, 0 if kept on the heap.
+     */
+    synchronized long offHeapAllocatedBytes() {
+        return slabs != null ? slabs.allocatedBytes() : 0;
+    }
+
+    /**
+     * Share of the direct memory held that does not hold data, 0 if kept on the heap.
+     */
+    synchronized double offHeapFragmentation() {
+        return slabs != null ? slabs.fragmentation() : 0;
+    }
+
+    /**
+     * Removes all entities, without notifying the listener.
+     */
+    synchronized void clear() {
+        for (Map<String, Node> typeEntities : entities.values()) {
+            typeEntities.clear();
+        }
+        for (RedisService.Type type : RedisService.Type.values()) {
+            bytes.put(type, 0L);
+        }
+        totalBytes = 0;
+        if (slabs != null) {
+            slabs.clear();
+        }
+        for (Node[] level : wheel) {
+            for (Node sentinel : level) {
+                sentinel.next = sentinel;
+                sentinel.previous = sentinel;
+            }
+        }
+    }
+
+    /**
+     * Moves the wheel forward to {@code now}, visiting the buckets of each level whose time has
+     * passed. Entities in them that have expired are removed, the others are placed again, in a
+     * finer bucket.
+     */
+    private void advance(long now) {
+        long previous = time;
+        if (now <= previous) {
+            return;
+        }
+        time = now;
+        for (int level = 0; level < SHIFTS.length; level++) {
+            long previousTicks = previous >>> SHIFTS[level];
+            long currentTicks = now >>> SHIFTS[level];
+            if (currentTicks <= previousTicks) {
+                break;
+            }
+            int steps = (int) Math.min(1 + currentTicks - previousTicks, BUCKETS);
+            for (int step = 0; step < steps; step++) {
+                Node sentinel = wheel[level][(int) ((previousTicks + step) & (BUCKETS - 1))];
+                Node node = sentinel.next;
+                sentinel.next = sentinel;
+                sentinel.previous = sentinel;
+                while (node != sentinel) {
+                    Node next = node.next;
+                    node.next = null;
+                    node.previous = null;
+                    if (node.expiresAt <= now) {
+                        remove(node, RemovalCause.EXPIRED);
+                    } else {
+                        schedule(node);
+                    }
+                    node = next;
+                }
+            }
+        }
+    }
+
+    /**
+     * Places the node in the finest level that spans its time to expiry.
+     */
+    private void schedule(Node node) {
+        long delay = node.expiresAt - time;
+        int level = 0;
+        while (level < SHIFTS.length - 1 && delay >= 1L << SHIFTS[level + 1]) {
+            level++;
+        }
+        Node sentinel = wheel[level][(int) ((node.expiresAt >>> SHIFTS[level]) & (BUCKETS - 1))];
+        node.previous = sentinel.previous;
+        node.next = sentinel;
+        sentinel.previous.next = node;
+        sentinel.previous = node;
+    }
+
+    /**
+     * Evicts the entities closest to expiry until the entities are within the size bound.
+     */
+    private void evictIfNeeded() {
+        while (totalBytes > maxBytes) {
+            Node node = findFirstToExpire();
+            if (node == null) {
+                return;
+            }
+            unlink(node);
+            remove(node, RemovalCause.SIZE);
+        }
+    }
+
+    /**
+     * Returns an entity in the earliest non-empty bucket, looking at the finest level first.
+     */
+    private Node findFirstToExpire() {
+        for (int level = 0; level < SHIFTS.length; level++) {
+            long ticks = time >>> SHIFTS[level];
+            for (int i = 0; i < BUCKETS; i++) {
+                Node sentinel = wheel[level][(int) ((ticks + i) & (BUCKETS - 1))];
+                if (sentinel.next != sentinel) {
+                    return sentinel.next;
+                }
+            }
+        }
+        return null;
+    }
+
+    private void remove(Node node, RemovalCause cause) {
+        entities.get(node.type).remove(node.key);
+        addBytes(node.type, -node.weight());
+        freeData(node);
+        if (journal != null) {
+            journal.appendRemove(node.type, node.key);
+        }
+        listener.onRemoval(node.type, node.key, cause);
+    }
+
+    /**
+     * Read-only view of the data of the entity, valid until it is replaced or removed.
+     */
+    private ByteBuffer view(Node node) {
+        return slabs != null ? slabs.view(node.handle, node.length) : ByteBuffer.wrap(node.data).asReadOnlyBuffer();
+    }
+
+    private byte[] copyData(Node node) {
+        return node.data != null ? node.data : slabs.copy(node.handle, node.length);
+    }
+
+    private void freeData(Node node) {
+        if (slabs != null) {
+            slabs.free(node.handle, node.length);
+        }
+    }
+
+    private void addBytes(RedisService.Type type, long delta) {
+        bytes.merge(type, delta, Long::sum);
+        totalBytes += delta;
+    }
+
+    private static void unlink(Node node) {
+        if (node.previous != null) {
+            node.previous.next = node.next;
+            node.next.previous = node.previous;
+            node.next = null;
+            node.previous = null;
+        }
+    }
+
+    private record SnapshotEntry(String key, byte[] data, long expiresAt) {
+    }
+
+    /**
+     * An entity, linked into its bucket of the wheel. Each bucket is a circular list with a
+     * sentinel node at its head.
+     */
+    private static final class Node {
+        private final RedisService.Type type;
+        private final String key;
+        /**
+         * Null if the data is off the heap, at {@link #handle}.
+         */
+        private final byte[] data;
+        private final long handle;
+        private final int length;
+        private long expiresAt;
+        private Node previous;
+        private Node next;
+
+        private Node(RedisService.Type type, String key, byte[] data, long handle, int length, long expiresAt) {
+            this.type = type;
+            this.key = key;
+            this.data = data;
+            this.handle = handle;
+            this.length = length;
+            this.expiresAt = expiresAt;
+        }
+
+        private static Node sentinel() {
+            Node sentinel = new Node(null, null, null, 0, 0, 0);
+            sentinel.previous = sentinel;
+            sentinel.next = sentinel;
+            return sentinel;
+        }
+
+        private long weight() {
+            return ENTRY_OVERHEAD + 2L * key.length() + (data != null ? length : OffHeapSlabs.chunkSize(length));
+        }
+    }
+}
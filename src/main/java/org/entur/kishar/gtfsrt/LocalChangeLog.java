@@ -0,0 +1,64 @@
+package org.entur.kishar.gtfsrt;
+
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Change log of a store kept by this instance alone: the time of the last write or removal of each
+ * key, per map type, and the time from which it is complete.
+ */
+class LocalChangeLog {
+
+    private final Map<RedisService.Type, Map<String, Long>> changes = new ConcurrentHashMap<>();
+
+    private final Map<RedisService.Type, Long> start = new ConcurrentHashMap<>();
+
+    void log(RedisService.Type type, String key, long time) {
+        changes.computeIfAbsent(type, k -> new ConcurrentHashMap<>()).put(key, time);
+    }
+
+    /**
+     * Returns whether the log holds every change since {@code since}. The first call for a type
+     * marks the log as complete from {@code now}.
+     */
+    boolean isCompleteSince(RedisService.Type type, long since, long now) {
+        Long logStart = start.putIfAbsent(type, now);
+        return logStart != null && since > logStart;
+    }
+
+    /**
+     * Returns the keys written or removed at or after {@code from}.
+     */
+    Set<String> changedSince(RedisService.Type type, long from) {
+        Set<String> keys = new HashSet<>();
+        for (Map.Entry<String, Long> change : changes.getOrDefault(type, Map.of()).entrySet()) {
+            if (change.getValue() >= from) {
+                keys.add(change.getKey());
+            }
+        }
+        return keys;
+    }
+
+    /**
+     * Drops changes before {@code cutoff}; the log is then only complete from there.
+     */
+    void trim(RedisService.Type type, long cutoff) {
+        Map<String, Long> changeLog = changes.get(type);
+        if (changeLog != null) {
+            changeLog.values().removeIf(changedAt -> changedAt < cutoff);
+        }
+        start.computeIfPresent(type, (k, logStart) -> Math.max(logStart, cutoff));
+    }
+
+    /**
+     * Drops all changes, and marks the log as complete only from {@code now}.
+     */
+    void restart(long now) {
+        for (RedisService.Type type : RedisService.Type.values()) {
+            changes.remove(type);
+            start.put(type, now);
+        }
+    }
+}
@@ -0,0 +1,202 @@
+package org.entur.kishar.gtfsrt;
+
+import org.entur.kishar.gtfsrt.domain.CompositeKey;
+import org.entur.kishar.gtfsrt.helpers.FeedWireFormat;
+import org.entur.kishar.metrics.PrometheusMetricsService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Entities kept in memory by this instance, in an {@link InMemoryEntityStore}, optionally persisted
+ * to local disk by an {@link EntityJournal}.
+ */
+class LocalEntityStore implements EntityStore {
+
+    private static final Logger LOG = LoggerFactory.getLogger(LocalEntityStore.class);
+
+    private final InMemoryEntityStore store;
+
+    /**
+     * Null if the entities are not persisted.
+     */
+    private final EntityJournal journal;
+
+    private final LocalChangeLog changeLog = new LocalChangeLog();
+
+    private PrometheusMetricsService metrics;
+
+    LocalEntityStore(long maxBytes, boolean offHeap, EntityJournal journal) {
+        this.store = new InMemoryEntityStore(maxBytes, offHeap, this::onRemoval, System.currentTimeMillis());
+        this.journal = journal;
+    }
+
+    @Override
+    public void init(PrometheusMetricsService metrics) {
+        this.metrics = metrics;
+        if (journal != null) {
+            recover();
+        }
+        if (metrics != null) {
+            for (RedisService.Type type : RedisService.Type.values()) {
+                metrics.registerInMemoryStoreSize(type.name(), () -> store.size(type), () -> store.weight(type));
+            }
+            if (store.isOffHeap()) {
+                metrics.registerOffHeapStore(store::offHeapAllocatedBytes, store::offHeapFragmentation);
+            }
+        }
+    }
+
+    /**
+     * Loads the entities persisted on local disk by an earlier run, skipping those that have
+     * expired since.
+     */
+    private void recover() {
+        long start = System.currentTimeMillis();
+        try {
+            long records = store.recover(journal, start);
+            LOG.info("Read {} records from disk in {} ms", records, System.currentTimeMillis() - start);
+        } catch (IOException | RuntimeException e) {
+            LOG.error("Failed to recover entities from disk, starting with what could be read", e);
+        }
+        long recoveryMillis = System.currentTimeMillis() - start;
+        for (RedisService.Type type : RedisService.Type.values()) {
+            // Readers start from a full read, so recovered entities need no change log entries
+            LOG.info("Recovered {} entities of {} from disk", store.size(type), type);
+            if (metrics != null) {
+                metrics.registerInMemoryRecoveredEntities(type.name(), store.size(type));
+            }
+        }
+        if (metrics != null) {
+            metrics.registerInMemoryRecovery(recoveryMillis);
+        }
+    }
+
+    @Override
+    public WriteCounts write(RedisService.Type type, List<EntityWrite> entities, long now) {
+        int unchanged = 0;
+        int extended = 0;
+        int changed = 0;
+        for (EntityWrite entity : entities) {
+            if (store.isOffHeap() && !FeedWireFormat.isValidEntity(entity.data())) {
+                // Entities are read in place when the feeds are assembled, so they are checked here instead
+                LOG.error("Invalid feed entity with key: {}", CompositeKey.create(entity.key()));
+                continue;
+            }
+            // Entities evicted to stay within the size bound are written again
+            if (entity.outcome() == EntityFingerprints.Outcome.UNCHANGED && store.contains(type, entity.key(), now)) {
+                unchanged++;
+                continue;
+            }
+            if (entity.outcome() == EntityFingerprints.Outcome.EXPIRING && store.extend(type, entity.key(), entity.expiresAt(), now)) {
+                extended++;
+                continue;
+            }
+            store.put(type, entity.key(), entity.data(), entity.expiresAt(), now);
+            changeLog.log(type, entity.key(), now);
+            changed++;
+        }
+        store.flushJournal();
+        return new WriteCounts(unchanged, extended, changed);
+    }
+
+    @Override
+    public Map<String, byte[]> readAll(RedisService.Type type, long now) {
+        return store.readAll(type, now);
+    }
+
+    /**
+     * Passes the entities to the reader, in key order, without copying them. Writes wait until the
+     * reader has finished.
+     */
+    <T> T read(RedisService.Type type, long now, InMemoryEntityStore.EntityReader<T> reader) {
+        return store.read(type, now, reader);
+    }
+
+    /**
+     * Returns whether the entities are kept off the heap, and should be read in place with
+     * {@link #read} rather than copied.
+     */
+    boolean isOffHeap() {
+        return store.isOffHeap();
+    }
+
+    @Override
+    public RedisService.GtfsRtChanges readChanges(RedisService.Type type, long since, long now) {
+        if (!changeLog.isCompleteSince(type, since, now)) {
+            return null;
+        }
+        // Expired entities are logged as they are removed
+        store.expire(now);
+
+        Map<String, byte[]> updated = new HashMap<>();
+        Set<String> removed = new HashSet<>();
+        for (String key : changeLog.changedSince(type, since - RedisService.CHANGE_LOG_OVERLAP_MILLIS)) {
+            byte[] value = store.get(type, key, now);
+            if (value != null) {
+                updated.put(key, value);
+            } else {
+                removed.add(key);
+            }
+        }
+        return new RedisService.GtfsRtChanges(updated, removed);
+    }
+
+    @Override
+    public Set<String> readExpiredKeys(RedisService.Type type, long since, long now) {
+        store.expire(now);
+        Set<String> expired = changeLog.changedSince(type, since - RedisService.CHANGE_LOG_OVERLAP_MILLIS);
+        expired.removeIf(key -> store.contains(type, key, now));
+        return expired;
+    }
+
+    @Override
+    public void trimChangeLog(RedisService.Type type, long cutoff) {
+        changeLog.trim(type, cutoff);
+    }
+
+    @Override
+    public void clear(long now) {
+        store.clear();
+        try {
+            checkpoint(now);
+        } catch (IOException e) {
+            LOG.error("Failed to write snapshot", e);
+        }
+        changeLog.restart(now);
+    }
+
+    /**
+     * Writes a snapshot of the entities to local disk, if they are persisted, and starts a new
+     * journal.
+     */
+    @Override
+    public void checkpoint(long now) throws IOException {
+        if (journal == null) {
+            return;
+        }
+        long entities = store.writeSnapshot(now);
+        LOG.info("Wrote snapshot of {} entities in {} ms", entities, System.currentTimeMillis() - now);
+    }
+
+    @Override
+    public void close() {
+        store.closeJournal();
+    }
+
+    /**
+     * Logs the removal of an entity as a change, so mirrors drop it.
+     */
+    private void onRemoval(RedisService.Type type, String key, InMemoryEntityStore.RemovalCause cause) {
+        changeLog.log(type, key, System.currentTimeMillis());
+        if (metrics != null) {
+            metrics.registerInMemoryEviction(type.name(), cause.name().toLowerCase());
+        }
+    }
+}
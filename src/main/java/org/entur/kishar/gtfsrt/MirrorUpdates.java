@@ -0,0 +1,65 @@
+package org.entur.kishar.gtfsrt;
+
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Message published to the mirrors of a map when entities are written to it, or when it is reset.
+ * Encoded as the time of publishing, a reset flag, and the key and value of each entity written.
+ *
+ * @param publishedAt epoch millis
+ * @param reset       whether all data was removed, so mirrors must read the map again
+ * @param updated     entities written, by key
+ */
+record MirrorUpdates(long publishedAt, boolean reset, Map<String, byte[]> updated) {
+
+    static byte[] encodeUpdates(long publishedAt, Map<String, byte[]> updated) {
+        return encode(new MirrorUpdates(publishedAt, false, updated));
+    }
+
+    static byte[] encodeReset(long publishedAt) {
+        return encode(new MirrorUpdates(publishedAt, true, Map.of()));
+    }
+
+    static MirrorUpdates decode(byte[] message) throws IOException {
+        CodedInputStream input = CodedInputStream.newInstance(message);
+        long publishedAt = input.readFixed64();
+        boolean reset = input.readBool();
+        int count = input.readUInt32();
+        Map<String, byte[]> updated = new HashMap<>(count * 2);
+        for (int i = 0; i < count; i++) {
+            updated.put(new String(input.readByteArray(), StandardCharsets.UTF_8), input.readByteArray());
+        }
+        return new MirrorUpdates(publishedAt, reset, updated);
+    }
+
+    private static byte[] encode(MirrorUpdates updates) {
+        int size = 8 + 1 + CodedOutputStream.computeUInt32SizeNoTag(updates.updated().size());
+        Map<byte[], byte[]> encoded = new HashMap<>();
+        for (Map.Entry<String, byte[]> entry : updates.updated().entrySet()) {
+            byte[] key = entry.getKey().getBytes(StandardCharsets.UTF_8);
+            encoded.put(key, entry.getValue());
+            size += CodedOutputStream.computeByteArraySizeNoTag(key) + CodedOutputStream.computeByteArraySizeNoTag(entry.getValue());
+        }
+        byte[] result = new byte[size];
+        CodedOutputStream output = CodedOutputStream.newInstance(result);
+        try {
+            output.writeFixed64NoTag(updates.publishedAt());
+            output.writeBoolNoTag(updates.reset());
+            output.writeUInt32NoTag(encoded.size());
+            for (Map.Entry<byte[], byte[]> entry : encoded.entrySet()) {
+                output.writeByteArrayNoTag(entry.getKey());
+                output.writeByteArrayNoTag(entry.getValue());
+            }
+            output.checkNoSpaceLeft();
+        } catch (IOException e) {
+            throw new IllegalStateException("Failed to encode mirror updates", e);
+        }
+        return result;
+    }
+}
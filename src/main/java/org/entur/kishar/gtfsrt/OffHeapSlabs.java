@@ -0,0 +1,200 @@
+package org.entur.kishar.gtfsrt;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Memory outside the heap for the data of the entities in {@link InMemoryEntityStore}, allocated in
+ * slabs of direct buffers. Each slab is cut into chunks of one size class; the classes grow by a
+ * quarter from 64 bytes up to the slab size, so no more than about a fifth of a chunk is wasted.
+ * Data larger than a slab gets a buffer of its own.
+ * <p>
+ * A slab is released when its last chunk is freed, unless it is the only slab of its class with
+ * free chunks. Direct buffers are returned to the system when the garbage collector finds them
+ * unreachable, which costs a few objects per megabyte rather than one per entity.
+ * <p>
+ * Not thread safe; guarded by the store.
+ */
+class OffHeapSlabs {
+
+    static final int SLAB_SIZE = 1 << 20;
+
+    private static final int MIN_CHUNK_SIZE = 64;
+
+    private static final int[] CHUNK_SIZES = chunkSizes();
+
+    private final List<Slab> slabs = new ArrayList<>();
+
+    private final ArrayDeque<Integer> releasedSlabIds = new ArrayDeque<>();
+
+    /**
+     * Slabs with free chunks, per size class.
+     */
+    private final List<ArrayDeque<Slab>> partialSlabs = new ArrayList<>();
+
+    private long allocatedBytes;
+
+    private long usedBytes;
+
+    OffHeapSlabs() {
+        for (int i = 0; i < CHUNK_SIZES.length; i++) {
+            partialSlabs.add(new ArrayDeque<>());
+        }
+    }
+
+    /**
+     * Copies the data into a chunk.
+     *
+     * @return handle of the chunk, to read and free it with
+     */
+    long allocate(byte[] data) {
+        Slab slab;
+        if (data.length > SLAB_SIZE) {
+            slab = newSlab(-1, data.length);
+        } else {
+            int sizeClass = sizeClass(data.length);
+            slab = partialSlabs.get(sizeClass).peekFirst();
+            if (slab == null) {
+                slab = newSlab(sizeClass, CHUNK_SIZES[sizeClass]);
+                partialSlabs.get(sizeClass).addFirst(slab);
+            }
+        }
+        int chunk = slab.freeChunks[--slab.freeCount];
+        if (slab.freeCount == 0 && slab.sizeClass >= 0) {
+            partialSlabs.get(slab.sizeClass).removeFirstOccurrence(slab);
+        }
+        slab.buffer.put(chunk * slab.chunkSize, data);
+        usedBytes += data.length;
+        return (long) slab.id << 32 | chunk;
+    }
+
+    /**
+     * Returns a read-only view of the data in the chunk, valid until the chunk is freed.
+     */
+    ByteBuffer view(long handle, int length) {
+        Slab slab = slabs.get((int) (handle >>> 32));
+        return slab.buffer.slice((int) handle * slab.chunkSize, length).asReadOnlyBuffer();
+    }
+
+    byte[] copy(long handle, int length) {
+        Slab slab = slabs.get((int) (handle >>> 32));
+        byte[] data = new byte[length];
+        slab.buffer.get((int) handle * slab.chunkSize, data);
+        return data;
+    }
+
+    void free(long handle, int length) {
+        Slab slab = slabs.get((int) (handle >>> 32));
+        slab.freeChunks[slab.freeCount++] = (int) handle;
+        usedBytes -= length;
+        if (slab.sizeClass < 0) {
+            release(slab);
+            return;
+        }
+        ArrayDeque<Slab> partial = partialSlabs.get(slab.sizeClass);
+        if (slab.freeCount == 1) {
+            partial.addLast(slab);
+        }
+        if (slab.freeCount == slab.freeChunks.length && partial.size() > 1) {
+            partial.removeFirstOccurrence(slab);
+            release(slab);
+        }
+    }
+
+    /**
+     * Size of the chunk data of the given length is stored in.
+     */
+    static int chunkSize(int length) {
+        return length > SLAB_SIZE ? length : CHUNK_SIZES[sizeClass(length)];
+    }
+
+    /**
+     * Bytes of direct memory held in slabs.
+     */
+    long allocatedBytes() {
+        return allocatedBytes;
+    }
+
+    /**
+     * Bytes of data stored in the slabs.
+     */
+    long usedBytes() {
+        return usedBytes;
+    }
+
+    /**
+     * Share of the memory held that does not hold data: the unused end of each chunk, and free
+     * chunks.
+     */
+    double fragmentation() {
+        return allocatedBytes == 0 ? 0 : 1 - (double) usedBytes / allocatedBytes;
+    }
+
+    void clear() {
+        slabs.clear();
+        releasedSlabIds.clear();
+        partialSlabs.forEach(ArrayDeque::clear);
+        allocatedBytes = 0;
+        usedBytes = 0;
+    }
+
+    private Slab newSlab(int sizeClass, int chunkSize) {
+        int capacity = sizeClass < 0 ? chunkSize : SLAB_SIZE - SLAB_SIZE % chunkSize;
+        Integer id = releasedSlabIds.pollFirst();
+        Slab slab = new Slab(id != null ? id : slabs.size(), sizeClass, chunkSize, ByteBuffer.allocateDirect(capacity));
+        if (id != null) {
+            slabs.set(id, slab);
+        } else {
+            slabs.add(slab);
+        }
+        allocatedBytes += capacity;
+        return slab;
+    }
+
+    private void release(Slab slab) {
+        slabs.set(slab.id, null);
+        releasedSlabIds.addLast(slab.id);
+        allocatedBytes -= slab.buffer.capacity();
+    }
+
+    private static int sizeClass(int length) {
+        int index = Arrays.binarySearch(CHUNK_SIZES, length);
+        return index >= 0 ? index : -index - 1;
+    }
+
+    private static int[] chunkSizes() {
+        List<Integer> sizes = new ArrayList<>();
+        int size = MIN_CHUNK_SIZE;
+        while (size < SLAB_SIZE) {
+            sizes.add(size);
+            size = Math.max(size + 8, (size + size / 4 + 7) & ~7);
+        }
+        sizes.add(SLAB_SIZE);
+        return sizes.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    private static final class Slab {
+        private final int id;
+        private final int sizeClass;
+        private final int chunkSize;
+        private final ByteBuffer buffer;
+        private final int[] freeChunks;
+        private int freeCount;
+
+        private Slab(int id, int sizeClass, int chunkSize, ByteBuffer buffer) {
+            this.id = id;
+            this.sizeClass = sizeClass;
+            this.chunkSize = chunkSize;
+            this.buffer = buffer;
+            int chunks = buffer.capacity() / chunkSize;
+            this.freeChunks = new int[chunks];
+            for (int i = 0; i < chunks; i++) {
+                freeChunks[i] = chunks - 1 - i;
+            }
+            this.freeCount = chunks;
+        }
+    }
+}
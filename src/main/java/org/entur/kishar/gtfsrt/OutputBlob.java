@@ -0,0 +1,72 @@
+package org.entur.kishar.gtfsrt;
+
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The encoded feeds of one output cycle, as built by the leader and shared with the other
+ * instances. Encoded as, for trip updates, vehicle positions and alerts in turn: the combined feed,
+ * the number of datasources, and the name and feed of each datasource.
+ */
+record OutputBlob(FeedContent tripUpdates, FeedContent vehiclePositions, FeedContent alerts) {
+
+    /**
+     * @param feed              encoded FeedMessage with all entities
+     * @param feedsByDatasource encoded FeedMessage per datasource
+     */
+    record FeedContent(byte[] feed, Map<String, byte[]> feedsByDatasource) {
+    }
+
+    byte[] encode() {
+        int size = computeSize(tripUpdates) + computeSize(vehiclePositions) + computeSize(alerts);
+        byte[] result = new byte[size];
+        CodedOutputStream output = CodedOutputStream.newInstance(result);
+        try {
+            write(tripUpdates, output);
+            write(vehiclePositions, output);
+            write(alerts, output);
+            output.checkNoSpaceLeft();
+        } catch (IOException e) {
+            throw new IllegalStateException("Failed to encode output", e);
+        }
+        return result;
+    }
+
+    static OutputBlob decode(byte[] data) throws IOException {
+        CodedInputStream input = CodedInputStream.newInstance(data);
+        return new OutputBlob(read(input), read(input), read(input));
+    }
+
+    private static int computeSize(FeedContent content) {
+        int size = CodedOutputStream.computeByteArraySizeNoTag(content.feed())
+                + CodedOutputStream.computeUInt32SizeNoTag(content.feedsByDatasource().size());
+        for (Map.Entry<String, byte[]> entry : content.feedsByDatasource().entrySet()) {
+            size += CodedOutputStream.computeStringSizeNoTag(entry.getKey())
+                    + CodedOutputStream.computeByteArraySizeNoTag(entry.getValue());
+        }
+        return size;
+    }
+
+    private static void write(FeedContent content, CodedOutputStream output) throws IOException {
+        output.writeByteArrayNoTag(content.feed());
+        output.writeUInt32NoTag(content.feedsByDatasource().size());
+        for (Map.Entry<String, byte[]> entry : content.feedsByDatasource().entrySet()) {
+            output.writeStringNoTag(entry.getKey());
+            output.writeByteArrayNoTag(entry.getValue());
+        }
+    }
+
+    private static FeedContent read(CodedInputStream input) throws IOException {
+        byte[] feed = input.readByteArray();
+        int count = input.readUInt32();
+        Map<String, byte[]> feedsByDatasource = new HashMap<>();
+        for (int i = 0; i < count; i++) {
+            feedsByDatasource.put(input.readString(), input.readByteArray());
+        }
+        return new FeedContent(feed, feedsByDatasource);
+    }
+}
@@ -0,0 +1,726 @@
+package org.entur.kishar.gtfsrt;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.entur.kishar.gtfsrt.domain.CompositeKey;
+import org.entur.kishar.metrics.PrometheusMetricsService;
+import org.redisson.api.BatchOptions;
+import org.redisson.api.RAtomicLong;
+import org.redisson.api.RBatch;
+import org.redisson.api.RBucket;
+import org.redisson.api.RFuture;
+import org.redisson.api.RMap;
+import org.redisson.api.RMapCache;
+import org.redisson.api.RMapCacheNative;
+import org.redisson.api.RScoredSortedSet;
+import org.redisson.api.RedissonClient;
+import org.redisson.client.codec.ByteArrayCodec;
+import org.redisson.client.codec.IntegerCodec;
+import org.redisson.client.codec.LongCodec;
+import org.redisson.client.codec.StringCodec;
+import org.redisson.codec.CompositeCodec;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Entities stored in Redis, shared by all instances. Each map type is a Redisson map cache, or a
+ * hash with native field expiry, with sorted sets of the keys written and of the time they expire
+ * as its change log.
+ * <p>
+ * In a cluster the entities of each type are split into shards by datasource and a bucket of the
+ * key. Each shard has its own map and change log, in a slot of its own, so writes are spread over
+ * the nodes. The shards are listed in a set, so readers find them, and the number of buckets is
+ * kept in Redis, so all instances shard the keys the same way.
+ */
+class RedisEntityStore implements EntityStore {
+
+    private static final Logger LOG = LoggerFactory.getLogger(RedisEntityStore.class);
+
+    private final RedissonClient redisson;
+
+    /**
+     * Maximum number of entities sent to Redis in one batch.
+     */
+    private final int maxBatchSize;
+
+    /**
+     * Number of entries asked for in each HSCAN of a full read.
+     */
+    private final int scanPageSize;
+
+    /**
+     * Whether keys are written to redis in the JSON format of earlier versions, for running
+     * alongside them. Keys are read in both formats either way.
+     */
+    private final boolean writeLegacyKeys;
+
+    /**
+     * Whether entities are stored in a plain hash with native field expiry (HEXPIRE, Redis 7.4 or
+     * later), instead of a Redisson map cache with its own eviction.
+     */
+    private final boolean nativeExpiry;
+
+    /**
+     * Whether entities written are published to the mirrors of the other instances.
+     */
+    private final boolean publishUpdates;
+
+    /**
+     * Number of buckets the entities of each datasource are spread over, each a map of its own, so
+     * they are spread over the nodes of a cluster. 0 if all entities of a type are in one map.
+     */
+    private final int shardBuckets;
+
+    /**
+     * Reads the shards of a type in parallel. Null if not sharded.
+     */
+    private final ExecutorService shardReader;
+
+    /**
+     * Shards this instance has added to the set of shards of each type. The set is kept across
+     * resets, so each shard only needs adding once.
+     */
+    private final Map<RedisService.Type, Set<String>> registeredShards = new EnumMap<>(RedisService.Type.class);
+
+    /**
+     * Maps of the storage not being written that were found empty by the last full read.
+     */
+    private final Set<String> previousStorageDrained = ConcurrentHashMap.newKeySet();
+
+    private PrometheusMetricsService metrics;
+
+    RedisEntityStore(RedissonClient redisson, int maxBatchSize, int scanPageSize, boolean writeLegacyKeys, boolean nativeExpiry,
+                     boolean publishUpdates) {
+        this(redisson, maxBatchSize, scanPageSize, writeLegacyKeys, nativeExpiry, publishUpdates, 0, 1);
+    }
+
+    /**
+     * @param shardBuckets    number of maps the entities of each datasource are spread over, 0 to
+     *                        keep all entities of a type in one map
+     * @param readParallelism number of shards read at the same time in a full read
+     */
+    RedisEntityStore(RedissonClient redisson, int maxBatchSize, int scanPageSize, boolean writeLegacyKeys, boolean nativeExpiry,
+                     boolean publishUpdates, int shardBuckets, int readParallelism) {
+        this.redisson = redisson;
+        this.maxBatchSize = Math.max(1, maxBatchSize);
+        this.scanPageSize = Math.max(1, scanPageSize);
+        this.writeLegacyKeys = writeLegacyKeys;
+        this.nativeExpiry = nativeExpiry;
+        this.publishUpdates = publishUpdates;
+        this.shardBuckets = Math.max(0, shardBuckets);
+        this.shardReader = this.shardBuckets > 0
+                ? Executors.newFixedThreadPool(Math.max(1, readParallelism),
+                        new ThreadFactoryBuilder().setNameFormat("kishar-shard-reader-%d").setDaemon(true).build())
+                : null;
+        for (RedisService.Type type : RedisService.Type.values()) {
+            registeredShards.put(type, ConcurrentHashMap.newKeySet());
+        }
+    }
+
+    @Override
+    public void close() {
+        if (shardReader != null) {
+            shardReader.shutdownNow();
+        }
+    }
+
+    /**
+     * Also checks, when sharded, that the entities in Redis have been sharded into the same number
+     * of buckets. Entities written with another number would be looked for in the wrong shards, so
+     * the instance refuses to start.
+     */
+    @Override
+    public void init(PrometheusMetricsService metrics) {
+        this.metrics = metrics;
+        if (shardBuckets == 0) {
+            return;
+        }
+        for (RedisService.Type type : RedisService.Type.values()) {
+            RBucket<Integer> buckets = redisson.getBucket(type.getShardBucketsIdentifier(), IntegerCodec.INSTANCE);
+            buckets.setIfAbsent(shardBuckets);
+            Integer stored = buckets.get();
+            if (stored != null && stored != shardBuckets) {
+                throw new IllegalStateException("The entities of " + type + " in Redis are sharded into " + stored
+                        + " buckets, not " + shardBuckets + " as configured in kishar.redis.cluster.buckets. Set it to "
+                        + stored + ", or remove the entities and " + type.getShardBucketsIdentifier() + " to change it");
+            }
+        }
+    }
+
+    @Override
+    public WriteCounts write(RedisService.Type type, List<EntityWrite> entities, long now) {
+        int unchanged = 0;
+        int extended = 0;
+        int changed = 0;
+        RBatch batch = null;
+        int queued = 0;
+        Map<String, ShardChanges> changes = new HashMap<>();
+        Map<String, byte[]> published = new HashMap<>();
+        for (EntityWrite entity : entities) {
+            if (entity.outcome() == EntityFingerprints.Outcome.UNCHANGED) {
+                unchanged++;
+                continue;
+            }
+            if (batch == null) {
+                batch = redisson.createBatch(BatchOptions.defaults());
+            }
+            byte[] key = redisKey(entity.key());
+            String shard = shardOf(entity.key());
+            ShardChanges shardChanges = changes.computeIfAbsent(shard, s -> new ShardChanges());
+            Duration timeToLive = Duration.ofMillis(entity.expiresAt() - now);
+            if (entity.outcome() == EntityFingerprints.Outcome.EXPIRING) {
+                if (nativeExpiry) {
+                    batch.getMapCacheNative(type.getNativeMapIdentifier() + shard, ByteArrayCodec.INSTANCE)
+                            .expireEntryAsync(key, timeToLive);
+                } else {
+                    batch.getMapCache(type.getMapIdentifier() + shard, ByteArrayCodec.INSTANCE)
+                            .expireEntryAsync(key, timeToLive, Duration.ZERO);
+                }
+                extended++;
+            } else {
+                if (nativeExpiry) {
+                    batch.getMapCacheNative(type.getNativeMapIdentifier() + shard, ByteArrayCodec.INSTANCE)
+                            .fastPutAsync(key, entity.data(), timeToLive);
+                } else {
+                    batch.getMapCache(type.getMapIdentifier() + shard, ByteArrayCodec.INSTANCE)
+                            .fastPutAsync(key, entity.data(), timeToLive.toMillis(), TimeUnit.MILLISECONDS);
+                }
+                shardChanges.written.put(key, (double) now);
+                if (publishUpdates) {
+                    published.put(entity.key(), entity.data());
+                }
+                changed++;
+            }
+            shardChanges.expiry.put(key, (double) entity.expiresAt());
+            if (++queued >= maxBatchSize) {
+                executeBatch(batch, type, queued, changes, published);
+                batch = null;
+                queued = 0;
+                changes = new HashMap<>();
+                published = new HashMap<>();
+            }
+        }
+        if (batch != null) {
+            executeBatch(batch, type, queued, changes, published);
+        }
+        return new WriteCounts(unchanged, extended, changed);
+    }
+
+    @Override
+    public Map<String, byte[]> readAll(RedisService.Type type, long now) {
+        Map<String, byte[]> result = new HashMap<>();
+        readAll(type, now, EntitySink.of(result));
+        return result;
+    }
+
+    /**
+     * Scans the map, or each shard, with HSCAN, {@link #scanPageSize} entries at a time, passing
+     * them on as they arrive, so neither this instance nor Redis handles the whole map in one
+     * reply. Shards are read in parallel.
+     */
+    @Override
+    public void readAll(RedisService.Type type, long now, EntitySink sink) {
+        List<String> shards = getShards(type);
+        if (shardReader == null || shards.size() <= 1) {
+            for (String shard : shards) {
+                readShard(type, shard, sink);
+            }
+            return;
+        }
+
+        EntitySink shared = new EntitySink() {
+            @Override
+            public synchronized void put(String key, byte[] entity) {
+                sink.put(key, entity);
+            }
+
+            @Override
+            public synchronized boolean putIfAbsent(String key, byte[] entity) {
+                return sink.putIfAbsent(key, entity);
+            }
+        };
+        List<Future<?>> reads = new ArrayList<>(shards.size());
+        for (String shard : shards) {
+            reads.add(shardReader.submit(() -> readShard(type, shard, shared)));
+        }
+        try {
+            for (Future<?> read : reads) {
+                read.get();
+            }
+        } catch (ExecutionException e) {
+            reads.forEach(read -> read.cancel(true));
+            if (e.getCause() instanceof RuntimeException cause) {
+                throw cause;
+            }
+            throw new IllegalStateException("Failed to read " + type, e.getCause());
+        } catch (InterruptedException e) {
+            reads.forEach(read -> read.cancel(true));
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted reading " + type, e);
+        }
+    }
+
+    /**
+     * Reads one map, or shard, of the type. Each key is only ever in the same shard, so keys in
+     * the other format and entities in the previous storage are only looked for in that shard.
+     */
+    private void readShard(RedisService.Type type, String shard, EntitySink sink) {
+        RMap<byte[], byte[]> gtfsRtMap = getEntityMap(type, shard);
+        List<Map.Entry<byte[], byte[]>> otherFormat = new ArrayList<>();
+        int removed = 0;
+        for (Map.Entry<byte[], byte[]> entry : gtfsRtMap.entrySet(scanPageSize)) {
+            if (!isWrittenFormat(entry.getKey())) {
+                otherFormat.add(entry);
+                if (otherFormat.size() >= scanPageSize) {
+                    removed += addOtherFormatEntries(gtfsRtMap, otherFormat, sink);
+                }
+                continue;
+            }
+            final String key = keyString(entry.getKey());
+            if (key != null) {
+                sink.put(key, entry.getValue());
+            }
+        }
+        removed += addOtherFormatEntries(gtfsRtMap, otherFormat, sink);
+        if (removed > 0) {
+            LOG.info("Removed {} keys of {} replaced by keys in the current format", removed, type);
+        }
+
+        addPreviousStorageEntries(sink, type, shard);
+    }
+
+    /**
+     * Passes on a page of entities with keys in the format not being written, left from before a
+     * switch of format, and clears the list. Those written again in the current format, whether
+     * passed on already or still to come in the scan, are removed instead.
+     *
+     * @return the number of keys removed
+     */
+    private int addOtherFormatEntries(RMap<byte[], byte[]> gtfsRtMap, List<Map.Entry<byte[], byte[]>> entries, EntitySink sink) {
+        if (entries.isEmpty()) {
+            return 0;
+        }
+        Map<String, Map.Entry<byte[], byte[]>> byKey = new HashMap<>();
+        Set<byte[]> currentKeys = new HashSet<>();
+        for (Map.Entry<byte[], byte[]> entry : entries) {
+            final String key = keyString(entry.getKey());
+            if (key != null) {
+                byKey.put(key, entry);
+                currentKeys.add(redisKey(key));
+            }
+        }
+        Set<String> rewritten = new HashSet<>();
+        for (byte[] rawKey : gtfsRtMap.getAll(currentKeys).keySet()) {
+            rewritten.add(keyString(rawKey));
+        }
+
+        List<byte[]> replaced = new ArrayList<>();
+        for (Map.Entry<String, Map.Entry<byte[], byte[]>> entry : byKey.entrySet()) {
+            if (rewritten.contains(entry.getKey()) || !sink.putIfAbsent(entry.getKey(), entry.getValue().getValue())) {
+                replaced.add(entry.getValue().getKey());
+            }
+        }
+        entries.clear();
+        return replaced.isEmpty() ? 0 : remove(gtfsRtMap, replaced);
+    }
+
+    @Override
+    public RedisService.GtfsRtChanges readChanges(RedisService.Type type, long since, long now) {
+        RAtomicLong changeLogStart = redisson.getAtomicLong(type.getChangeLogStartIdentifier());
+        long start = changeLogStart.get();
+        if (start == 0) {
+            // First reader since the change log was introduced - it is complete from now on
+            changeLogStart.compareAndSet(0, now);
+            return null;
+        }
+        if (since <= start) {
+            return null;
+        }
+
+        long from = since - RedisService.CHANGE_LOG_OVERLAP_MILLIS;
+        List<String> shards = getShards(type);
+        List<RFuture<Collection<byte[]>>> reads = new ArrayList<>(shards.size() * 2);
+        for (String shard : shards) {
+            reads.add(getChangeSet(type, shard).valueRangeAsync(from, true, Double.POSITIVE_INFINITY, true));
+            reads.add(getExpirySet(type, shard).valueRangeAsync(from, true, now, true));
+        }
+        Set<String> keys = new HashSet<>();
+        Map<String, byte[]> otherFormatKeys = new HashMap<>();
+        for (RFuture<Collection<byte[]>> read : reads) {
+            addKeys(keys, otherFormatKeys, read.toCompletableFuture().join());
+        }
+
+        Map<String, byte[]> updated = new HashMap<>();
+        if (!keys.isEmpty()) {
+            addEntries(updated, type, false, keys, otherFormatKeys);
+            // Entities not yet written again since a switch of storage
+            addEntries(updated, type, true, keys, otherFormatKeys);
+        }
+        Set<String> removed = new HashSet<>(keys);
+        removed.removeAll(updated.keySet());
+        return new RedisService.GtfsRtChanges(updated, removed);
+    }
+
+    @Override
+    public Set<String> readExpiredKeys(RedisService.Type type, long since, long now) {
+        List<RFuture<Collection<byte[]>>> reads = new ArrayList<>();
+        for (String shard : getShards(type)) {
+            reads.add(getExpirySet(type, shard).valueRangeAsync(since - RedisService.CHANGE_LOG_OVERLAP_MILLIS, true, now, true));
+        }
+        Set<String> keys = new HashSet<>();
+        for (RFuture<Collection<byte[]>> read : reads) {
+            addKeys(keys, new HashMap<>(), read.toCompletableFuture().join());
+        }
+        return keys;
+    }
+
+    @Override
+    public void trimChangeLog(RedisService.Type type, long cutoff) {
+        List<RFuture<Integer>> trims = new ArrayList<>();
+        for (String shard : getShards(type)) {
+            trims.add(getChangeSet(type, shard).removeRangeByScoreAsync(0, true, cutoff, false));
+            trims.add(getExpirySet(type, shard).removeRangeByScoreAsync(0, true, cutoff, false));
+        }
+        trims.forEach(trim -> trim.toCompletableFuture().join());
+        RAtomicLong changeLogStart = redisson.getAtomicLong(type.getChangeLogStartIdentifier());
+        long start = changeLogStart.get();
+        if (start != 0 && start < cutoff) {
+            changeLogStart.compareAndSet(start, cutoff);
+        }
+    }
+
+    /**
+     * Removes the entities, and marks the change logs as complete only from now, so readers that
+     * have seen data from before the reset do a full read. The set of shards is kept, as the
+     * instances only add the shards they write to once.
+     */
+    @Override
+    public void clear(long now) {
+        for (RedisService.Type type : RedisService.Type.values()) {
+            List<String> shards = getShards(type);
+            for (String shard : shards) {
+                // Both storages, with the keys Redisson keeps alongside the map cache
+                getMapCache(type, shard).delete();
+                getNativeMap(type, shard).delete();
+            }
+            LOG.info("Removed all entities of {} in {} maps", type, shards.size());
+        }
+        for (RedisService.Type type : RedisService.Type.values()) {
+            for (String shard : getShards(type)) {
+                redisson.getKeys().delete(type.getChangeSetIdentifier() + shard, type.getExpirySetIdentifier() + shard);
+            }
+            redisson.getAtomicLong(type.getChangeLogStartIdentifier()).set(now);
+            if (publishUpdates) {
+                redisson.getTopic(type.getUpdateTopicIdentifier(), ByteArrayCodec.INSTANCE).publish(MirrorUpdates.encodeReset(now));
+            }
+        }
+    }
+
+    /**
+     * The dictionaries the entities of the type are compressed with, kept in Redis so all instances
+     * use the same.
+     */
+    EntityCompression.DictionaryStore dictionaries(RedisService.Type type) {
+        RMap<Integer, byte[]> dictionaries = redisson.getMap(type.getDictionaryIdentifier(),
+                new CompositeCodec(IntegerCodec.INSTANCE, ByteArrayCodec.INSTANCE));
+        RMap<Integer, Long> keptUntil = redisson.getMap(type.getDictionaryKeptUntilIdentifier(),
+                new CompositeCodec(IntegerCodec.INSTANCE, LongCodec.INSTANCE));
+        RAtomicLong latestVersion = redisson.getAtomicLong(type.getDictionaryVersionIdentifier());
+        return new EntityCompression.DictionaryStore() {
+            @Override
+            public int latestVersion() {
+                return (int) latestVersion.get();
+            }
+
+            @Override
+            public byte[] read(int version) {
+                return dictionaries.get(version);
+            }
+
+            @Override
+            public boolean publish(int version, byte[] dictionary) {
+                if (!dictionaries.fastPutIfAbsent(version, dictionary)) {
+                    return false;
+                }
+                long latest;
+                while ((latest = latestVersion.get()) < version && !latestVersion.compareAndSet(latest, version)) {
+                    // Raised by another instance in the meantime - check again
+                }
+                return true;
+            }
+
+            @Override
+            public void keepUntil(int version, long time) {
+                Long kept;
+                while ((kept = keptUntil.putIfAbsent(version, time)) != null && kept < time
+                        && !keptUntil.replace(version, kept, time)) {
+                    // Raised by another instance in the meantime - check again
+                }
+            }
+
+            @Override
+            public void removeBefore(int version, long now) {
+                Integer[] removed = dictionaries.readAllKeySet().stream()
+                        .filter(published -> published < version)
+                        .filter(published -> {
+                            Long kept = keptUntil.get(published);
+                            return kept == null || kept <= now;
+                        })
+                        .toArray(Integer[]::new);
+                if (removed.length > 0) {
+                    dictionaries.fastRemove(removed);
+                    keptUntil.fastRemove(removed);
+                }
+            }
+        };
+    }
+
+    /**
+     * Adds the change log entries of the entities in the batch, each to the change log of its shard,
+     * and the message to the mirrors if updates are published, and sends all of it to Redis in one
+     * round trip. In a cluster, Redisson sends the commands for each node to it in parallel.
+     */
+    private void executeBatch(RBatch batch, RedisService.Type type, int size, Map<String, ShardChanges> changes,
+                              Map<String, byte[]> published) {
+        List<String> newShards = new ArrayList<>();
+        for (Map.Entry<String, ShardChanges> shard : changes.entrySet()) {
+            ShardChanges shardChanges = shard.getValue();
+            if (!shardChanges.written.isEmpty()) {
+                batch.<byte[]>getScoredSortedSet(type.getChangeSetIdentifier() + shard.getKey(), ByteArrayCodec.INSTANCE)
+                        .addAllAsync(shardChanges.written);
+            }
+            batch.<byte[]>getScoredSortedSet(type.getExpirySetIdentifier() + shard.getKey(), ByteArrayCodec.INSTANCE)
+                    .addAllAsync(shardChanges.expiry);
+            if (shardBuckets > 0 && !registeredShards.get(type).contains(shard.getKey())) {
+                newShards.add(shard.getKey());
+            }
+        }
+        if (!newShards.isEmpty()) {
+            batch.getSet(type.getShardsIdentifier(), StringCodec.INSTANCE).addAllAsync(newShards);
+        }
+        if (!published.isEmpty()) {
+            batch.getTopic(type.getUpdateTopicIdentifier(), ByteArrayCodec.INSTANCE)
+                    .publishAsync(MirrorUpdates.encodeUpdates(System.currentTimeMillis(), published));
+        }
+        long start = System.nanoTime();
+        batch.execute();
+        registeredShards.get(type).addAll(newShards);
+        if (metrics != null) {
+            metrics.registerRedisBatch(type.name(), size, System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * The change log entries of the entities of one shard in a batch.
+     */
+    private static final class ShardChanges {
+        private final Map<byte[], Double> written = new HashMap<>();
+        private final Map<byte[], Double> expiry = new HashMap<>();
+    }
+
+    /**
+     * Adds the entities left in the storage not being written, after a switch of storage, that have
+     * not been written again. Entities that have are removed from it.
+     */
+    private void addPreviousStorageEntries(EntitySink sink, RedisService.Type type, String shard) {
+        RMap<byte[], byte[]> previousMap = getPreviousEntityMap(type, shard);
+        int read = 0;
+        int removed = 0;
+        List<byte[]> replaced = new ArrayList<>();
+        for (Map.Entry<byte[], byte[]> entry : previousMap.entrySet(scanPageSize)) {
+            read++;
+            final String key = keyString(entry.getKey());
+            if (key != null && !sink.putIfAbsent(key, entry.getValue())) {
+                replaced.add(entry.getKey());
+                if (replaced.size() >= scanPageSize) {
+                    removed += remove(previousMap, replaced);
+                }
+            }
+        }
+        if (read == 0) {
+            previousStorageDrained.add(previousMap.getName());
+            return;
+        }
+        previousStorageDrained.remove(previousMap.getName());
+        removed += remove(previousMap, replaced);
+        LOG.info("Read {} entities of {} from the previous storage, removed {} written again", read, type, removed);
+    }
+
+    /**
+     * Removes the keys from the map, at most {@link #scanPageSize} in each command, and clears the
+     * list.
+     *
+     * @return the number of keys removed
+     */
+    private int remove(RMap<byte[], byte[]> gtfsRtMap, List<byte[]> keys) {
+        int count = keys.size();
+        for (int i = 0; i < keys.size(); i += scanPageSize) {
+            List<byte[]> page = keys.subList(i, Math.min(i + scanPageSize, keys.size()));
+            gtfsRtMap.fastRemove(page.toArray(new byte[0][]));
+        }
+        keys.clear();
+        return count;
+    }
+
+    /**
+     * Returns the shard the entity with the given key is stored in, as the suffix of the names of
+     * its map and change log: the datasource and a bucket of the key, as a hash tag, so they and the
+     * keys Redisson keeps alongside the map are in the same slot. Empty if not sharded.
+     */
+    private String shardOf(String key) {
+        if (shardBuckets == 0) {
+            return "";
+        }
+        String datasource = CompositeKey.datasourceOf(key);
+        return ":{" + (datasource != null ? datasource : "") + ":" + Math.floorMod(key.hashCode(), shardBuckets) + "}";
+    }
+
+    /**
+     * Returns the shards of the type that have been written to, or the one map if not sharded.
+     */
+    private List<String> getShards(RedisService.Type type) {
+        if (shardBuckets == 0) {
+            return List.of("");
+        }
+        return new ArrayList<>(redisson.<String>getSet(type.getShardsIdentifier(), StringCodec.INSTANCE).readAll());
+    }
+
+    /**
+     * The map the entities are written to: a map cache, with expiry managed by Redisson, or a hash
+     * with native field expiry.
+     */
+    private RMap<byte[], byte[]> getEntityMap(RedisService.Type type, String shard) {
+        return nativeExpiry ? getNativeMap(type, shard) : getMapCache(type, shard);
+    }
+
+    /**
+     * The map the entities were written to before a switch of storage.
+     */
+    private RMap<byte[], byte[]> getPreviousEntityMap(RedisService.Type type, String shard) {
+        return nativeExpiry ? getMapCache(type, shard) : getNativeMap(type, shard);
+    }
+
+    private RMapCache<byte[], byte[]> getMapCache(RedisService.Type type, String shard) {
+        return redisson.getMapCache(type.getMapIdentifier() + shard, ByteArrayCodec.INSTANCE);
+    }
+
+    private RMapCacheNative<byte[], byte[]> getNativeMap(RedisService.Type type, String shard) {
+        return redisson.getMapCacheNative(type.getNativeMapIdentifier() + shard, ByteArrayCodec.INSTANCE);
+    }
+
+    /**
+     * Adds the keys, in string form, to {@code keys}. Keys in the format not being written are also
+     * added to {@code otherFormatKeys}, so they can be looked up as they are.
+     */
+    private void addKeys(Set<String> keys, Map<String, byte[]> otherFormatKeys, Collection<byte[]> rawKeys) {
+        for (byte[] rawKey : rawKeys) {
+            final String key = keyString(rawKey);
+            if (key != null) {
+                keys.add(key);
+                if (!isWrittenFormat(rawKey)) {
+                    otherFormatKeys.putIfAbsent(key, rawKey);
+                }
+            }
+        }
+    }
+
+    /**
+     * Adds the entities of the given keys, not already in {@code result}, from the map, or the map
+     * of the previous storage. Keys logged in the format not being written are looked up as they
+     * are if not found in the current format. The shards are read in parallel.
+     */
+    private void addEntries(Map<String, byte[]> result, RedisService.Type type, boolean previous, Set<String> keys,
+                            Map<String, byte[]> otherFormatKeys) {
+        Map<String, Set<byte[]>> rawKeys = new HashMap<>();
+        for (String key : keys) {
+            if (!result.containsKey(key)) {
+                rawKeys.computeIfAbsent(shardOf(key), shard -> new HashSet<>()).add(redisKey(key));
+            }
+        }
+        addEntries(result, type, previous, rawKeys);
+
+        // Entities not yet written again since a switch of key format
+        Map<String, Set<byte[]>> otherRawKeys = new HashMap<>();
+        for (Map.Entry<String, byte[]> key : otherFormatKeys.entrySet()) {
+            if (!result.containsKey(key.getKey())) {
+                otherRawKeys.computeIfAbsent(shardOf(key.getKey()), shard -> new HashSet<>()).add(key.getValue());
+            }
+        }
+        addEntries(result, type, previous, otherRawKeys);
+    }
+
+    private void addEntries(Map<String, byte[]> result, RedisService.Type type, boolean previous, Map<String, Set<byte[]>> rawKeysByShard) {
+        List<RFuture<Map<byte[], byte[]>>> reads = new ArrayList<>();
+        for (Map.Entry<String, Set<byte[]>> shard : rawKeysByShard.entrySet()) {
+            RMap<byte[], byte[]> gtfsRtMap = previous ? getPreviousEntityMap(type, shard.getKey()) : getEntityMap(type, shard.getKey());
+            if (!previous || !previousStorageDrained.contains(gtfsRtMap.getName())) {
+                reads.add(gtfsRtMap.getAllAsync(shard.getValue()));
+            }
+        }
+        for (RFuture<Map<byte[], byte[]>> read : reads) {
+            addEntries(result, read.toCompletableFuture().join());
+        }
+    }
+
+    private void addEntries(Map<String, byte[]> result, Map<byte[], byte[]> entries) {
+        for (Map.Entry<byte[], byte[]> entry : entries.entrySet()) {
+            final String key = keyString(entry.getKey());
+            if (key != null && entry.getValue() != null) {
+                result.putIfAbsent(key, entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * Returns the key in string form, or null if it is not a key. Binary keys are used as they are,
+     * legacy JSON keys are converted, and skipped if their datasource is too long to be.
+     */
+    private static String keyString(byte[] rawKey) {
+        if (CompositeKey.isBinary(rawKey)) {
+            return new String(rawKey, StandardCharsets.UTF_8);
+        }
+        final CompositeKey key = CompositeKey.reCreate(rawKey);
+        return key != null && key.isEncodable() ? key.asString() : null;
+    }
+
+    /**
+     * Returns the key as written to redis: as it is, or in the legacy JSON format if configured.
+     */
+    private byte[] redisKey(String key) {
+        if (writeLegacyKeys) {
+            final CompositeKey compositeKey = CompositeKey.create(key);
+            if (compositeKey != null) {
+                return compositeKey.asLegacyString().getBytes(StandardCharsets.UTF_8);
+            }
+        }
+        return key.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private boolean isWrittenFormat(byte[] rawKey) {
+        return CompositeKey.isBinary(rawKey) != writeLegacyKeys;
+    }
+
+    private RScoredSortedSet<byte[]> getChangeSet(RedisService.Type type, String shard) {
+        return redisson.getScoredSortedSet(type.getChangeSetIdentifier() + shard, ByteArrayCodec.INSTANCE);
+    }
+
+    private RScoredSortedSet<byte[]> getExpirySet(RedisService.Type type, String shard) {
+        return redisson.getScoredSortedSet(type.getExpirySetIdentifier() + shard, ByteArrayCodec.INSTANCE);
+    }
+}
@@ -1,29 +1,50 @@
 package org.entur.kishar.gtfsrt;
 
-import com.google.common.cache.Cache;
-import com.google.common.cache.CacheBuilder;
-import org.entur.kishar.gtfsrt.domain.CompositeKey;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
 import org.entur.kishar.gtfsrt.domain.GtfsRtData;
+import org.entur.kishar.metrics.PrometheusMetricsService;
 import org.redisson.Redisson;
-import org.redisson.api.RMapCache;
+import org.redisson.api.BatchOptions;
+import org.redisson.api.RBatch;
+import org.redisson.api.RBucket;
+import org.redisson.api.RScript;
+import org.redisson.api.RTopic;
 import org.redisson.api.RedissonClient;
+import org.redisson.api.listener.BaseStatusListener;
 import org.redisson.client.codec.ByteArrayCodec;
+import org.redisson.client.codec.StringCodec;
+import org.redisson.config.ClusterServersConfig;
 import org.redisson.config.Config;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.springframework.beans.factory.annotation.Value;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 
-import java.nio.charset.StandardCharsets;
-import java.util.HashMap;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
 
 @Service
 public class RedisService {
 
-    enum Type {
+    public enum Type {
         VEHICLE_POSITION("vehiclePositionMap"),
         TRIP_UPDATE("tripUpdateMap"),
         ALERT("alertMap");
@@ -37,101 +58,783 @@ public class RedisService {
         public String getMapIdentifier() {
             return mapIdentifier;
         }
+
+        /**
+         * Hash of the entities when stored with native hash field expiry. Not the same key as the
+         * map, as the two are stored differently.
+         */
+        String getNativeMapIdentifier() {
+            return mapIdentifier + ":native";
+        }
+
+        /**
+         * Sorted set of the keys written to the map, scored by time of the last write.
+         */
+        String getChangeSetIdentifier() {
+            return mapIdentifier + ":changes";
+        }
+
+        /**
+         * Sorted set of the keys in the map, scored by the time they expire.
+         */
+        String getExpirySetIdentifier() {
+            return mapIdentifier + ":expiry";
+        }
+
+        /**
+         * Channel on which the entities written to the map are published to the mirrors.
+         */
+        String getUpdateTopicIdentifier() {
+            return mapIdentifier + ":updates";
+        }
+
+        /**
+         * Time from which the change and expiry sets are complete.
+         */
+        String getChangeLogStartIdentifier() {
+            return mapIdentifier + ":changesSince";
+        }
+
+        /**
+         * Set of the shards the entities have been written to, when sharded, as the suffixes of
+         * the names of their maps.
+         */
+        String getShardsIdentifier() {
+            return mapIdentifier + ":shards";
+        }
+
+        /**
+         * Number of buckets the entities of each datasource are spread over, when sharded, as
+         * set by the first instance to write them.
+         */
+        String getShardBucketsIdentifier() {
+            return mapIdentifier + ":buckets";
+        }
+
+        /**
+         * Hash of the dictionaries the entities are compressed with, by version.
+         */
+        String getDictionaryIdentifier() {
+            return mapIdentifier + ":dictionaries";
+        }
+
+        /**
+         * Latest version of the dictionaries.
+         */
+        String getDictionaryVersionIdentifier() {
+            return mapIdentifier + ":dictionaryVersion";
+        }
+
+        /**
+         * Hash of the time until which each version of the dictionaries is kept, by version.
+         */
+        String getDictionaryKeptUntilIdentifier() {
+            return mapIdentifier + ":dictionaryKeptUntil";
+        }
+    }
+
+    /**
+     * Changes to a map since a point in time.
+     *
+     * @param updated entities written, by key
+     * @param removed keys that have been removed or have expired
+     */
+    record GtfsRtChanges(Map<String, byte[]> updated, Set<String> removed) {
     }
 
+    /**
+     * Holder of the lease to build the output, when only one instance does. The keys of the output
+     * share a hash tag, so in a cluster they are in the same slot and written together atomically.
+     */
+    private static final String OUTPUT_LEADER_IDENTIFIER = "{output}:leader";
+
+    /**
+     * The output built by the leader, and its version.
+     */
+    private static final String OUTPUT_BLOB_IDENTIFIER = "{output}:blob";
+    private static final String OUTPUT_VERSION_IDENTIFIER = "{output}:version";
+
+    /**
+     * Channel on which a reset of all data is announced to the other instances.
+     */
+    private static final String RESET_TOPIC_IDENTIFIER = "kishar:reset";
+
+    /**
+     * Takes the lease if it is free, or extends it if held by the owner, in one step so it cannot
+     * run out and be taken by another instance between the check and the extension.
+     */
+    private static final String ACQUIRE_OUTPUT_LEASE_SCRIPT = """
+            local holder = redis.call('get', KEYS[1])
+            if holder == false then
+                redis.call('set', KEYS[1], ARGV[1], 'px', ARGV[2])
+                return 2
+            end
+            if holder == ARGV[1] then
+                redis.call('pexpire', KEYS[1], ARGV[2])
+                return 1
+            end
+            return 0
+            """;
+    private static final long LEASE_NOT_HELD = 0;
+    private static final long LEASE_ACQUIRED = 2;
+
+    /**
+     * How far back changes are read in addition to what was asked for, to tolerate clock skew
+     * between the instances writing and reading.
+     */
+    static final long CHANGE_LOG_OVERLAP_MILLIS = 5000;
+
     private static final Logger LOG = LoggerFactory.getLogger(RedisService.class);
     private final boolean redisEnabled;
 
-    private Cache<String, Cache<String, byte[]>> hashMapRedisMock;
+    private final long changeLogRetentionMillis;
+
+    /**
+     * Null if writes go straight to the store.
+     */
+    private final GtfsRtWriteBuffer writeBuffer;
+
+    /**
+     * Held while flushing the write buffer, or clearing the store.
+     */
+    private final Object flushLock = new Object();
+
+    /**
+     * Whether entities written are published to the mirrors of the other instances. Only with redis.
+     */
+    private final boolean publishUpdates;
+
+    /**
+     * Null if every entity is written, changed or not.
+     */
+    private final EntityFingerprints fingerprints;
+
+    private final String instanceId = UUID.randomUUID().toString();
+
+    /**
+     * Runs the async variants of the reads and writes, so the callers do not wait for the store.
+     */
+    private final ThreadPoolExecutor asyncExecutor;
+
+    /**
+     * Held while counting the async requests in flight, and those waiting for room.
+     */
+    private final Object asyncLock = new Object();
+
+    /**
+     * Async requests given to the executor and not yet done, queued or running. At most
+     * {@link #asyncMaxInFlight}.
+     */
+    private int asyncInFlight;
+
+    /**
+     * Async requests waiting for room, in the order they came, each for at most
+     * {@link #asyncAcquireTimeoutMillis}. At most {@link #asyncMaxInFlight}, so a slow store makes
+     * requests fail instead of piling up. Callers are never held while their requests wait.
+     */
+    private final Deque<AsyncRequest<?>> asyncWaiting = new ArrayDeque<>();
+
+    /**
+     * Async writes done with the write buffer, and waiting for the flush that writes their entities
+     * to the store. They no longer count against {@link #asyncMaxInFlight}, so buffering is not
+     * limited by it, but are still reported as in flight and queued.
+     */
+    private int asyncAwaitingFlush;
+
+    private final int asyncMaxInFlight;
+
+    private final long asyncAcquireTimeoutMillis;
+
+    @Autowired
+    private PrometheusMetricsService prometheusMetricsService;
+
+    /**
+     * Redis, or without it a store local to this instance.
+     */
+    private final EntityStore entityStore;
 
     RedissonClient redisson;
 
-    public RedisService(@Value("${kishar.redis.enabled:false}") boolean redisEnabled,
-                        @Value("${kishar.redis.host:}") String host,
-                        @Value("${kishar.redis.port:}") String port,
-                        @Value("${kishar.redis.password:}") String password) {
-        this.redisEnabled = redisEnabled;
+    public RedisService(StoreSettings.Connection connection, StoreSettings.RedisStorage redisStorage, StoreSettings.Writes writes,
+                        StoreSettings.Compression compression, StoreSettings.InMemory inMemory) {
+        this.redisEnabled = connection.enabled();
+        this.changeLogRetentionMillis = TimeUnit.SECONDS.toMillis(redisStorage.changeLogRetentionSeconds());
+        this.writeBuffer = writes.bufferIntervalMillis() > 0 ? new GtfsRtWriteBuffer(writes.bufferMaxSize()) : null;
+        this.fingerprints = writes.fingerprintMaxSize() > 0 ? new EntityFingerprints(writes.fingerprintMaxSize()) : null;
+        this.publishUpdates = redisEnabled && redisStorage.nearCache();
+        final boolean nativeExpiry;
+        if ("native".equalsIgnoreCase(redisStorage.storage())) {
+            nativeExpiry = true;
+        } else if ("mapcache".equalsIgnoreCase(redisStorage.storage())) {
+            nativeExpiry = false;
+        } else {
+            throw new IllegalArgumentException("Unknown kishar.redis.storage: " + redisStorage.storage() + ", expected mapcache or native");
+        }
+        final boolean cluster;
+        if ("cluster".equalsIgnoreCase(connection.mode())) {
+            cluster = true;
+        } else if ("replicated".equalsIgnoreCase(connection.mode())) {
+            cluster = false;
+        } else {
+            throw new IllegalArgumentException("Unknown kishar.redis.mode: " + connection.mode() + ", expected replicated or cluster");
+        }
+        this.asyncMaxInFlight = Math.max(1, writes.asyncMaxInFlight());
+        this.asyncAcquireTimeoutMillis = writes.asyncAcquireTimeoutMillis();
+        int asyncThreads = Math.max(1, writes.asyncThreads());
+        // Never more queued than the permits allow
+        this.asyncExecutor = new ThreadPoolExecutor(asyncThreads, asyncThreads, 0, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>(), new ThreadFactoryBuilder().setNameFormat("kishar-store-%d").setDaemon(true).build());
 
         if (redisEnabled) {
+            String host = connection.host();
+            String port = connection.port();
+            String password = connection.password();
             LOG.info("redis url = " + host + ":" + port + ", password.length = " + (password == null ? 0 : password.length()));
             Config config = new Config();
-            config.useReplicatedServers()
-                    .addNodeAddress("redis://" + host + ":" + port)
-                    .setPassword(password == null || password.isBlank() ? null : password);
+            if (cluster) {
+                // Any of the nodes, the others are discovered from them
+                ClusterServersConfig clusterConfig = config.useClusterServers()
+                        .setPassword(password == null || password.isBlank() ? null : password);
+                for (String node : host.split(",")) {
+                    clusterConfig.addNodeAddress("redis://" + node.trim() + ":" + port);
+                }
+                LOG.info("Redis cluster mode - spreading the entities of each datasource over {} shards", connection.clusterBuckets());
+            } else {
+                config.useReplicatedServers()
+                        .addNodeAddress("redis://" + host + ":" + port)
+                        .setPassword(password == null || password.isBlank() ? null : password);
+            }
 
             redisson = Redisson.create(config);
+            RedisEntityStore redisStore = new RedisEntityStore(redisson, redisStorage.batchMaxSize(), redisStorage.scanPageSize(),
+                    redisStorage.legacyKeys(), nativeExpiry, publishUpdates,
+                    cluster ? Math.max(1, connection.clusterBuckets()) : 0, connection.clusterReadParallelism());
+            if (compression.enabled()) {
+                LOG.info("Compressing entities with a dictionary trained from {} entities, replaced every {} hours, keeping {} versions",
+                        compression.dictionarySamples(), compression.dictionaryRotationHours(), compression.dictionaryRetainedVersions());
+                entityStore = new CompressingEntityStore(redisStore, redisStore::dictionaries, compression.dictionarySamples(),
+                        TimeUnit.HOURS.toMillis(compression.dictionaryRotationHours()), compression.dictionaryRetainedVersions());
+            } else {
+                entityStore = redisStore;
+            }
+        } else if ("disk".equalsIgnoreCase(inMemory.storage())) {
+            if (!inMemory.isPersisted()) {
+                throw new IllegalArgumentException("kishar.inmemory.storage=disk needs kishar.inmemory.persistence.directory");
+            }
+            LOG.info("Redis not enabled - using on-disk store in {}", inMemory.persistenceDirectory());
+            try {
+                entityStore = new DiskEntityStore(Path.of(inMemory.persistenceDirectory()));
+            } catch (IOException e) {
+                throw new UncheckedIOException("Failed to open on-disk store in " + inMemory.persistenceDirectory(), e);
+            }
+        } else if ("memory".equalsIgnoreCase(inMemory.storage())) {
+            LOG.info("Redis not enabled - using {} in-memory store of at most {} bytes", inMemory.offHeap() ? "off-heap" : "on-heap", inMemory.maxBytes());
+            EntityJournal journal = null;
+            if (inMemory.isPersisted()) {
+                try {
+                    journal = new EntityJournal(Path.of(inMemory.persistenceDirectory()));
+                } catch (IOException e) {
+                    throw new UncheckedIOException("Failed to create persistence directory " + inMemory.persistenceDirectory(), e);
+                }
+            }
+            entityStore = new LocalEntityStore(inMemory.maxBytes(), inMemory.offHeap(), journal);
         } else {
-            LOG.info("Redis not enabled - using bounded cache");
-            hashMapRedisMock = CacheBuilder.newBuilder()
-                    .maximumSize(3)  // 3 map types (ET, VM, SX)
-                    .build();
+            throw new IllegalArgumentException("Unknown kishar.inmemory.storage: " + inMemory.storage() + ", expected memory or disk");
+        }
+    }
+
+    @PostConstruct
+    void initEntityStore() {
+        entityStore.init(prometheusMetricsService);
+        if (redisEnabled && fingerprints != null) {
+            RTopic topic = redisson.getTopic(RESET_TOPIC_IDENTIFIER, StringCodec.INSTANCE);
+            topic.addListener(new BaseStatusListener() {
+                @Override
+                public void onSubscribe(String channel) {
+                    // A reset may have been missed while not subscribed
+                    fingerprints.clear();
+                }
+            });
+            topic.addListener(String.class, (channel, resetBy) -> {
+                if (!instanceId.equals(resetBy)) {
+                    LOG.info("All data reset by another instance - forgetting the entities written");
+                    fingerprints.clear();
+                }
+            });
+        }
+        if (prometheusMetricsService != null) {
+            prometheusMetricsService.registerAsyncRequests(this::getAsyncInFlight, this::getAsyncQueueDepth);
         }
     }
+
+    @PreDestroy
+    public void shutdown() {
+        asyncExecutor.shutdown();
+        try {
+            if (!asyncExecutor.awaitTermination(asyncAcquireTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                LOG.warn("Shutting down with {} async requests not done", getAsyncInFlight());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flushWrites();
+        entityStore.close();
+        if (redisson != null) {
+            redisson.shutdown();
+        }
+    }
+
+    /**
+     * Makes the entities written so far durable, if they are kept on local disk: a snapshot of the
+     * in-memory store, which starts a new journal, or a sync of the on-disk store.
+     */
+    public void writeSnapshot() {
+        flushWrites();
+        try {
+            entityStore.checkpoint(System.currentTimeMillis());
+        } catch (IOException e) {
+            LOG.error("Failed to write snapshot", e);
+        }
+    }
+
     public void resetAllData() {
+        // Not while a flush is writing entities taken from the buffer before it was cleared
+        synchronized (flushLock) {
+            if (writeBuffer != null) {
+                writeBuffer.clear();
+            }
+            if (fingerprints != null) {
+                fingerprints.clear();
+            }
+            entityStore.clear(System.currentTimeMillis());
+        }
         if (redisEnabled) {
-            LOG.info("Before - VEHICLE_POSITION: " + redisson.getMap(Type.VEHICLE_POSITION.mapIdentifier).size());
-            redisson.getMap(Type.VEHICLE_POSITION.mapIdentifier).clear();
-            LOG.info("After - VEHICLE_POSITION: " + redisson.getMap(Type.VEHICLE_POSITION.mapIdentifier).size());
+            // The other instances have fingerprints of entities that are gone
+            redisson.getTopic(RESET_TOPIC_IDENTIFIER, StringCodec.INSTANCE).publish(instanceId);
+        }
+    }
 
-            LOG.info("Before - TRIP_UPDATE: " + redisson.getMap(Type.TRIP_UPDATE.mapIdentifier).size());
-            redisson.getMap(Type.TRIP_UPDATE.mapIdentifier).clear();
-            LOG.info("After - TRIP_UPDATE: " + redisson.getMap(Type.TRIP_UPDATE.mapIdentifier).size());
+    /**
+     * Writes the entities to the store, through the write buffer if there is one.
+     */
+    public void writeGtfsRt(Map<String, GtfsRtData> gtfsRt, Type type) {
+        write(gtfsRt, type);
+    }
+
+    /**
+     * Writes the entities to the store like {@link #writeGtfsRt}, without waiting for the store. If
+     * the limit of requests in flight has been reached, the write waits until one is done, but the
+     * caller does not.
+     *
+     * @return completed when written to the store, after the flush that writes them if they are
+     * buffered, or failed with a {@link RejectedExecutionException} if the limit was not lifted in
+     * time, or with what made the write fail
+     */
+    public CompletionStage<Void> writeGtfsRtAsync(Map<String, GtfsRtData> gtfsRt, Type type) {
+        return submit(type, () -> awaitFlush(write(gtfsRt, type))).thenCompose(written -> written);
+    }
 
-            LOG.info("Before - ALERT: " + redisson.getMap(Type.ALERT.mapIdentifier).size());
-            redisson.getMap(Type.ALERT.mapIdentifier).clear();
-            LOG.info("After - ALERT: " + redisson.getMap(Type.ALERT.mapIdentifier).size());
+    /**
+     * Counts the write as waiting for the flush until it is done. Counted before the request is
+     * done, so it is never left out of the gauges in between, and no longer counted when the caller
+     * sees it done.
+     */
+    private CompletableFuture<Void> awaitFlush(CompletableFuture<Void> flushed) {
+        if (flushed.isDone()) {
+            return flushed;
         }
-        if (hashMapRedisMock != null) {
-            hashMapRedisMock.invalidateAll();
+        synchronized (asyncLock) {
+            asyncAwaitingFlush++;
         }
+        return flushed.whenComplete((result, failure) -> {
+            synchronized (asyncLock) {
+                asyncAwaitingFlush--;
+            }
+        });
     }
 
-    public void writeGtfsRt(Map<String, GtfsRtData> gtfsRt, Type type) {
-        if (redisEnabled) {
-            RMapCache<byte[], byte[]> gtfsRtMap = redisson.getMapCache(type.getMapIdentifier(), ByteArrayCodec.INSTANCE);
-            for (Map.Entry<String, GtfsRtData> entry : gtfsRt.entrySet()) {
-                GtfsRtData gtfsRtData = entry.getValue();
-                long timeToLive = gtfsRtData.getTimeToLive().getSeconds();
-                if (timeToLive > 0) {
-                    gtfsRtMap.put(entry.getKey().getBytes(StandardCharsets.UTF_8), gtfsRtData.getData(), timeToLive, TimeUnit.SECONDS);
-                }
+    /**
+     * @return completed when the entities are in the store
+     */
+    private CompletableFuture<Void> write(Map<String, GtfsRtData> gtfsRt, Type type) {
+        if (writeBuffer == null) {
+            store(gtfsRt, type);
+            return CompletableFuture.completedFuture(null);
+        }
+        int superseded = writeBuffer.put(gtfsRt, type);
+        // May be that of a later flush, if one has just started, which is only later
+        CompletableFuture<Void> flushed = writeBuffer.getFlushed();
+        if (superseded > 0 && prometheusMetricsService != null) {
+            prometheusMetricsService.registerSupersededWrites(type.name(), superseded);
+        }
+        if (writeBuffer.isFull()) {
+            flushWrites();
+        }
+        return flushed;
+    }
+
+    /**
+     * Reads all entities of the map like {@link #readGtfsRtMap(Type)}, without waiting for the
+     * store. If the limit of requests in flight has been reached, the read waits until one is
+     * done, but the caller does not.
+     */
+    public CompletionStage<Map<String, byte[]>> readGtfsRtMapAsync(Type type) {
+        return submit(type, () -> readGtfsRtMap(type));
+    }
+
+    /**
+     * Runs the request on the async executor, at once if there is room for it, or else once a
+     * request in flight is done. Fails it with a {@link RejectedExecutionException} if no room is
+     * made in time, or if too many are waiting already.
+     */
+    private <T> CompletionStage<T> submit(Type type, Supplier<T> request) {
+        AsyncRequest<T> asyncRequest = new AsyncRequest<>(type, request);
+        boolean started = false;
+        boolean waiting = false;
+        synchronized (asyncLock) {
+            if (asyncInFlight < asyncMaxInFlight) {
+                asyncInFlight++;
+                started = true;
+            } else if (asyncWaiting.size() < asyncMaxInFlight) {
+                asyncWaiting.add(asyncRequest);
+                waiting = true;
             }
+        }
+        if (started) {
+            start(asyncRequest);
+        } else if (waiting) {
+            CompletableFuture.delayedExecutor(asyncAcquireTimeoutMillis, TimeUnit.MILLISECONDS)
+                    .execute(() -> expire(asyncRequest));
         } else {
+            reject(asyncRequest, "No room for request on " + type + ", " + asyncMaxInFlight + " in flight and as many waiting");
+        }
+        return asyncRequest.result;
+    }
+
+    private void start(AsyncRequest<?> request) {
+        try {
+            asyncExecutor.execute(request);
+        } catch (RejectedExecutionException e) {
+            // Shutting down
+            asyncDone();
+            request.result.completeExceptionally(e);
+        }
+    }
+
+    /**
+     * Makes room for the next request, or starts the one that has waited longest in its place.
+     */
+    private void asyncDone() {
+        AsyncRequest<?> next;
+        synchronized (asyncLock) {
+            next = asyncWaiting.poll();
+            if (next == null) {
+                asyncInFlight--;
+            }
+        }
+        if (next != null) {
+            start(next);
+        }
+    }
+
+    /**
+     * Fails the request if it is still waiting for room.
+     */
+    private void expire(AsyncRequest<?> request) {
+        synchronized (asyncLock) {
+            if (!asyncWaiting.remove(request)) {
+                return;
+            }
+        }
+        reject(request, "No room for request on " + request.type + " in " + asyncAcquireTimeoutMillis + " ms, " + asyncMaxInFlight + " in flight");
+    }
+
+    private void reject(AsyncRequest<?> request, String message) {
+        if (prometheusMetricsService != null) {
+            prometheusMetricsService.registerAsyncRejected(request.type.name());
+        }
+        request.result.completeExceptionally(new RejectedExecutionException(message));
+    }
+
+    /**
+     * A request on the async executor, and its result.
+     */
+    private final class AsyncRequest<T> implements Runnable {
+
+        private final Type type;
+
+        private final Supplier<T> request;
+
+        private final CompletableFuture<T> result = new CompletableFuture<>();
+
+        private AsyncRequest(Type type, Supplier<T> request) {
+            this.type = type;
+            this.request = request;
+        }
+
+        @Override
+        public void run() {
+            T value = null;
+            Throwable failure = null;
             try {
-                Cache<String, byte[]> map = hashMapRedisMock.get(
-                    type.getMapIdentifier(),
-                    () -> CacheBuilder.newBuilder()
-                        .maximumSize(50000)  // Max 50k entities per type (high traffic)
-                        .expireAfterWrite(1, TimeUnit.HOURS)
-                        .build()
-                );
-                for (Map.Entry<String, GtfsRtData> entry : gtfsRt.entrySet()) {
-                    map.put(entry.getKey(), entry.getValue().getData());
+                value = request.get();
+            } catch (Throwable e) {
+                failure = e;
+            }
+            // Done before completing, so the caller sees the room made
+            asyncDone();
+            if (failure != null) {
+                result.completeExceptionally(failure);
+            } else {
+                result.complete(value);
+            }
+        }
+    }
+
+    /**
+     * Returns the number of async requests accepted and not yet done, waiting for room, queued,
+     * running or waiting for the flush of the write buffer.
+     */
+    int getAsyncInFlight() {
+        synchronized (asyncLock) {
+            return asyncInFlight + asyncWaiting.size() + asyncAwaitingFlush;
+        }
+    }
+
+    /**
+     * Returns the number of async requests accepted and not yet running, waiting for room or for a
+     * thread, and of the writes waiting for the flush of the write buffer.
+     */
+    int getAsyncQueueDepth() {
+        synchronized (asyncLock) {
+            return asyncWaiting.size() + asyncExecutor.getQueue().size() + asyncAwaitingFlush;
+        }
+    }
+
+    /**
+     * Writes the entities held in the write buffer to the store. One flush at a time, so entities
+     * taken from the buffer are never written after those put in it later.
+     */
+    public void flushWrites() {
+        if (writeBuffer == null) {
+            return;
+        }
+        GtfsRtWriteBuffer.Drained drained;
+        RuntimeException failure = null;
+        synchronized (flushLock) {
+            drained = writeBuffer.drain();
+            for (Map.Entry<Type, Map<String, GtfsRtData>> buffered : drained.entities().entrySet()) {
+                if (buffered.getValue().isEmpty()) {
+                    continue;
+                }
+                try {
+                    store(buffered.getValue(), buffered.getKey());
+                } catch (RuntimeException e) {
+                    if (failure == null) {
+                        failure = e;
+                    } else {
+                        failure.addSuppressed(e);
+                    }
+                }
+            }
+        }
+        // Outside the lock, as it acknowledges the messages the entities came from
+        if (failure != null) {
+            drained.flushed().completeExceptionally(failure);
+            throw failure;
+        }
+        drained.flushed().complete(null);
+    }
+
+    private void store(Map<String, GtfsRtData> gtfsRt, Type type) {
+        long now = System.currentTimeMillis();
+        List<EntityStore.EntityWrite> writes = new ArrayList<>(gtfsRt.size());
+        long[] hashes = new long[gtfsRt.size()];
+        for (Map.Entry<String, GtfsRtData> entry : gtfsRt.entrySet()) {
+            GtfsRtData gtfsRtData = entry.getValue();
+            long timeToLive = gtfsRtData.getTimeToLive().getSeconds();
+            if (timeToLive > 0) {
+                long expiresAt = now + TimeUnit.SECONDS.toMillis(timeToLive);
+                EntityFingerprints.Outcome outcome = EntityFingerprints.Outcome.CHANGED;
+                if (fingerprints != null) {
+                    long hash = EntityFingerprints.hash(gtfsRtData.getData());
+                    hashes[writes.size()] = hash;
+                    outcome = fingerprints.check(type, entry.getKey(), hash, now, expiresAt);
                 }
-            } catch (Exception e) {
-                LOG.error("Failed to write to cache", e);
+                writes.add(new EntityStore.EntityWrite(entry.getKey(), gtfsRtData.getData(), expiresAt, outcome));
+            }
+        }
+        if (writes.isEmpty()) {
+            return;
+        }
+        EntityStore.WriteCounts counts;
+        try {
+            counts = entityStore.write(type, writes, now);
+        } catch (RuntimeException e) {
+            if (fingerprints != null) {
+                // Some may have been written, so what is stored is not known
+                fingerprints.forget(type, gtfsRt.keySet());
             }
+            throw e;
+        }
+        if (fingerprints != null) {
+            for (int i = 0; i < writes.size(); i++) {
+                EntityStore.EntityWrite write = writes.get(i);
+                if (write.outcome() != EntityFingerprints.Outcome.UNCHANGED) {
+                    fingerprints.record(type, write.key(), hashes[i], write.expiresAt());
+                }
+            }
+        }
+        if (fingerprints != null && prometheusMetricsService != null) {
+            prometheusMetricsService.registerFingerprintChecks(type.name(), counts.unchanged(), counts.extended(), counts.changed());
         }
     }
 
     public Map<String, byte[]> readGtfsRtMap(Type type) {
-        if (redisEnabled) {
-            RMapCache<byte[], byte[]> gtfsRtMap = redisson.getMapCache(type.getMapIdentifier(), ByteArrayCodec.INSTANCE);
+        flushWrites();
+        return entityStore.readAll(type, System.currentTimeMillis());
+    }
 
-            Map<String, byte[]> result = new HashMap<>();
+    /**
+     * Passes all entities of the map to the sink as they are read. From redis they are read a page
+     * at a time, so they are never all held twice.
+     */
+    void readGtfsRtMap(Type type, EntityStore.EntitySink sink) {
+        flushWrites();
+        entityStore.readAll(type, System.currentTimeMillis(), sink);
+    }
 
-            final Set<Map.Entry<byte[], byte[]>> entries = gtfsRtMap.readAllEntrySet();
-            for (Map.Entry<byte[], byte[]> entry : entries) {
-                final CompositeKey key = CompositeKey.reCreate(entry.getKey());
-                if (key != null) {
-                    result.put(key.asString(), entry.getValue());
-                }
+    /**
+     * Returns whether the entities are kept off the heap, and should be read in place with
+     * {@link #readEntities} rather than copied.
+     */
+    boolean isOffHeap() {
+        return entityStore instanceof LocalEntityStore local && local.isOffHeap();
+    }
+
+    /**
+     * Passes the entities of the in-memory store to the reader, in key order, without copying
+     * them. Writes wait until the reader has finished.
+     */
+    <T> T readEntities(Type type, InMemoryEntityStore.EntityReader<T> reader) {
+        flushWrites();
+        return ((LocalEntityStore) entityStore).read(type, System.currentTimeMillis(), reader);
+    }
+
+    /**
+     * Returns the entities written, and the keys removed or expired, since {@code since} (epoch
+     * millis). Returns null if the change log does not go back that far, e.g. because the data has
+     * been reset since then. The caller must then read the whole map with {@link #readGtfsRtMap(Type)}.
+     */
+    GtfsRtChanges readGtfsRtChanges(Type type, long since) {
+        flushWrites();
+        return entityStore.readChanges(type, since, System.currentTimeMillis());
+    }
+
+    /**
+     * Returns whether the entities written are published to the mirrors, so they can be kept up to
+     * date without reading the changes from redis.
+     */
+    boolean isPublishingUpdates() {
+        return publishUpdates;
+    }
+
+    /**
+     * Returns the entities received by a subscription to updates as written, decompressed if they
+     * were stored compressed.
+     */
+    Map<String, byte[]> decodeUpdates(Type type, Map<String, byte[]> updated) {
+        return entityStore instanceof CompressingEntityStore compressing ? compressing.decode(type, updated) : updated;
+    }
+
+    /**
+     * Subscribes to the entities written to the map, as encoded by {@link MirrorUpdates}.
+     *
+     * @param onSubscribe called every time the subscription is made, including after reconnecting,
+     *                    when messages may have been lost
+     */
+    void subscribeToUpdates(Type type, Consumer<byte[]> listener, Runnable onSubscribe) {
+        RTopic topic = redisson.getTopic(type.getUpdateTopicIdentifier(), ByteArrayCodec.INSTANCE);
+        topic.addListener(new BaseStatusListener() {
+            @Override
+            public void onSubscribe(String channel) {
+                onSubscribe.run();
             }
+        });
+        topic.addListener(byte[].class, (channel, message) -> listener.accept(message));
+    }
 
-            return result;
-        } else {
-            Cache<String, byte[]> cache = hashMapRedisMock.getIfPresent(type.getMapIdentifier());
-            return cache != null ? cache.asMap() : new HashMap<>();
+    /**
+     * Returns the keys of the entities that have expired since {@code since} (epoch millis), and not
+     * been written again.
+     */
+    Set<String> readExpiredKeys(Type type, long since) {
+        return entityStore.readExpiredKeys(type, since, System.currentTimeMillis());
+    }
+
+    /**
+     * Acquires, or renews, the lease to build the output for the given owner. Always succeeds
+     * without redis, as there is only one instance.
+     *
+     * @return whether the owner holds the lease
+     */
+    boolean tryAcquireOutputLease(String owner, long leaseMillis) {
+        if (!redisEnabled) {
+            return true;
+        }
+        Long held = redisson.getScript(StringCodec.INSTANCE).eval(OUTPUT_LEADER_IDENTIFIER, RScript.Mode.READ_WRITE,
+                ACQUIRE_OUTPUT_LEASE_SCRIPT, RScript.ReturnType.INTEGER,
+                List.of(OUTPUT_LEADER_IDENTIFIER), owner, String.valueOf(leaseMillis));
+        if (held == LEASE_ACQUIRED) {
+            LOG.info("Acquired output lease as {}", owner);
+        }
+        return held != LEASE_NOT_HELD;
+    }
+
+    /**
+     * Gives up the lease to build the output, if held by the given owner, so another instance can
+     * take over without waiting for it to run out.
+     */
+    void releaseOutputLease(String owner) {
+        if (redisEnabled) {
+            RBucket<String> leader = redisson.getBucket(OUTPUT_LEADER_IDENTIFIER, StringCodec.INSTANCE);
+            if (leader.compareAndSet(owner, null)) {
+                LOG.info("Released output lease as {}", owner);
+            }
         }
     }
+
+    /**
+     * Stores the output built by the leader, and its version, together.
+     */
+    void writeOutputBlob(String version, byte[] blob) {
+        if (redisEnabled) {
+            RBatch batch = redisson.createBatch(BatchOptions.defaults().executionMode(BatchOptions.ExecutionMode.IN_MEMORY_ATOMIC));
+            batch.getBucket(OUTPUT_BLOB_IDENTIFIER, ByteArrayCodec.INSTANCE).setAsync(blob);
+            batch.getBucket(OUTPUT_VERSION_IDENTIFIER, StringCodec.INSTANCE).setAsync(version);
+            batch.execute();
+        }
+    }
+
+    /**
+     * Returns the version of the output built by the leader, or null if there is none.
+     */
+    String readOutputVersion() {
+        return redisEnabled ? redisson.<String>getBucket(OUTPUT_VERSION_IDENTIFIER, StringCodec.INSTANCE).get() : null;
+    }
+
+    /**
+     * Returns the output built by the leader, as encoded by {@link OutputBlob}, or null if there is
+     * none.
+     */
+    byte[] readOutputBlob() {
+        return redisEnabled ? redisson.<byte[]>getBucket(OUTPUT_BLOB_IDENTIFIER, ByteArrayCodec.INSTANCE).get() : null;
+    }
+
+    /**
+     * Drops changes older than the retention period from the change log of the given map.
+     */
+    void trimChangeLog(Type type) {
+        entityStore.trimChangeLog(type, System.currentTimeMillis() - changeLogRetentionMillis);
+    }
 }
@@ -17,12 +17,12 @@ package org.entur.kishar.gtfsrt;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.Maps;
 import com.google.protobuf.Duration;
-import com.google.protobuf.InvalidProtocolBufferException;
 import com.google.transit.realtime.GtfsRealtime.Alert;
 import com.google.transit.realtime.GtfsRealtime.FeedEntity;
 import com.google.transit.realtime.GtfsRealtime.FeedMessage;
 import com.google.transit.realtime.GtfsRealtime.TripUpdate;
 import com.google.transit.realtime.GtfsRealtime.VehiclePosition;
+import jakarta.annotation.PreDestroy;
 import org.entur.avro.realtime.siri.model.EstimatedCallRecord;
 import org.entur.avro.realtime.siri.model.EstimatedJourneyVersionFrameRecord;
 import org.entur.avro.realtime.siri.model.EstimatedTimetableDeliveryRecord;
@@ -37,7 +37,11 @@ import org.entur.avro.realtime.siri.model.ValidityPeriodRecord;
 import org.entur.avro.realtime.siri.model.VehicleActivityRecord;
 import org.entur.avro.realtime.siri.model.VehicleMonitoringDeliveryRecord;
 import org.entur.kishar.gtfsrt.domain.CompositeKey;
+import org.entur.kishar.gtfsrt.domain.EncodedFeed;
+import org.entur.kishar.gtfsrt.domain.FeedSnapshot;
 import org.entur.kishar.gtfsrt.domain.GtfsRtData;
+import org.entur.kishar.gtfsrt.domain.GtfsRtSnapshot;
+import org.entur.kishar.gtfsrt.helpers.FeedWireFormat;
 import org.entur.kishar.gtfsrt.helpers.SiriLibrary;
 import org.entur.kishar.gtfsrt.helpers.graphql.ServiceJourneyService;
 import org.entur.kishar.gtfsrt.mappers.GtfsRtMapper;
@@ -48,12 +52,16 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.time.Instant;
 import java.util.ArrayList;
+import java.util.EnumMap;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 
 import static org.entur.kishar.gtfsrt.helpers.GtfsRealtimeLibrary.createFeedMessageBuilder;
 import static org.entur.kishar.gtfsrt.mappers.AvroHelper.getInstant;
@@ -62,10 +70,6 @@ import static org.entur.kishar.gtfsrt.mappers.AvroHelper.getInstant;
 public class SiriToGtfsRealtimeService {
     private static final Logger LOG = LoggerFactory.getLogger(SiriToGtfsRealtimeService.class);
 
-    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
-    private final Lock readLock = lock.readLock();
-    private final Lock writeLock = lock.writeLock();
-
     private static final String MEDIA_TYPE_APPLICATION_JSON = "application/json";
 
     private final AlertFactory alertFactory;
@@ -85,15 +89,41 @@ public class SiriToGtfsRealtimeService {
      * Time, in seconds, after which a vehicle update is considered stale
      */
     private static final int gracePeriod = 5 * 60;
-    private volatile FeedMessage tripUpdates = createFeedMessageBuilder().build();
-    private volatile Map<String, FeedMessage> tripUpdatesByDatasource = Maps.newHashMap();
-    private volatile FeedMessage vehiclePositions = createFeedMessageBuilder().build();
-    private volatile Map<String, FeedMessage> vehiclePositionsByDatasource = Maps.newHashMap();
-    private volatile FeedMessage alerts = createFeedMessageBuilder().build();
-    private volatile Map<String, FeedMessage> alertsByDatasource = Maps.newHashMap();
+
+    /**
+     * The current output. Replaced as a whole, so readers need no lock and always see all feed types
+     * from the same output cycle.
+     */
+    private final AtomicReference<GtfsRtSnapshot> snapshot = new AtomicReference<>(GtfsRtSnapshot.empty());
 
     private final GtfsRtMapper gtfsMapper;
 
+    @Value("${kishar.output.differential.history.size:" + FeedSnapshot.DEFAULT_HISTORY_SIZE + "}")
+    private int differentialHistorySize = FeedSnapshot.DEFAULT_HISTORY_SIZE;
+
+    private final Map<RedisService.Type, GtfsRtMapMirror> mirrors = new EnumMap<>(RedisService.Type.class);
+
+    /**
+     * Whether only the instance holding the output lease builds the feeds.
+     */
+    @Value("${kishar.output.leader.election.enabled:false}")
+    private boolean leaderElection;
+
+    @Value("${kishar.output.leader.lease.seconds:30}")
+    private int leaseSeconds = 30;
+
+    private final String instanceId = UUID.randomUUID().toString();
+
+    /**
+     * Version of the output last stored or fetched, with leader election.
+     */
+    private String outputVersion;
+
+    /**
+     * Time of the last output cycle, in epoch millis, whether or not it changed the output.
+     */
+    private volatile long lastOutputAt;
+
     public SiriToGtfsRealtimeService(@Autowired AlertFactory alertFactory,
                                      @Autowired RedisService redisService,
                                      @Autowired ServiceJourneyService serviceJourneyService,
@@ -101,13 +131,17 @@ public class SiriToGtfsRealtimeService {
                                      @Value("${kishar.datasource.vm.whitelist}") List<String> datasourceVMWhitelist,
                                      @Value("${kishar.datasource.sx.whitelist}") List<String> datasourceSXWhitelist,
                                      @Value("${kishar.settings.vm.close.to.stop.percentage}") int closeToNextStopPercentage,
-                                     @Value("${kishar.settings.vm.close.to.stop.distance}") int closeToNextStopDistance) {
+                                     @Value("${kishar.settings.vm.close.to.stop.distance}") int closeToNextStopDistance,
+                                     @Value("${kishar.output.full.resync.interval.seconds:300}") int fullResyncIntervalSeconds) {
         this.datasourceETWhitelist = datasourceETWhitelist;
         this.datasourceVMWhitelist = datasourceVMWhitelist;
         this.datasourceSXWhitelist = datasourceSXWhitelist;
         this.alertFactory = alertFactory;
         this.redisService = redisService;
         this.gtfsMapper = new GtfsRtMapper(closeToNextStopPercentage, closeToNextStopDistance, serviceJourneyService);
+        for (RedisService.Type type : RedisService.Type.values()) {
+            mirrors.put(type, new GtfsRtMapMirror(redisService, type, TimeUnit.SECONDS.toMillis(fullResyncIntervalSeconds)));
+        }
     }
 
     @SuppressWarnings("unused")
@@ -118,84 +152,70 @@ public class SiriToGtfsRealtimeService {
 
     @SuppressWarnings("unused")
     public String getStatus() {
-        readLock.lock();
-        try {
-            ArrayList<String> status = new ArrayList<>();
-            status.add("tripUpdates: " + tripUpdates.getEntityList().size());
-            status.add("vehiclePositions: " + vehiclePositions.getEntityList().size());
-            status.add("alerts: " + alerts.getEntityList().size());
-            return status.toString();
-        } finally {
-            readLock.unlock();
-        }
+        GtfsRtSnapshot current = snapshot.get();
+        ArrayList<String> status = new ArrayList<>();
+        status.add("tripUpdates: " + current.getTripUpdates().getFeed().getEntityCount());
+        status.add("vehiclePositions: " + current.getVehiclePositions().getFeed().getEntityCount());
+        status.add("alerts: " + current.getAlerts().getFeed().getEntityCount());
+        return status.toString();
     }
 
     public Object getTripUpdates(String contentType, String datasource) {
-        readLock.lock();
-        try {
-            if (prometheusMetricsService != null) {
-                prometheusMetricsService.registerIncomingRequest("SIRI_ET", 1);
-            }
-            FeedMessage feedMessage = tripUpdates;
-            if (datasource != null && !datasource.isEmpty()) {
-                feedMessage = tripUpdatesByDatasource.get(datasource);
-                if (feedMessage == null) {
-                    feedMessage = createFeedMessageBuilder().build();
-                }
-            }
-            return encodeFeedMessage(feedMessage, contentType);
-        } finally {
-            readLock.unlock();
+        return encodeFeed(getTripUpdatesSnapshot().getFeed(datasource), contentType);
+    }
+
+    /**
+     * The complete current output. Use this rather than the per-type getters when more than one
+     * feed type is needed, so they are all from the same output cycle.
+     */
+    public GtfsRtSnapshot getSnapshot() {
+        return snapshot.get();
+    }
+
+    /**
+     * Time the output was last built, or fetched from the leader, in epoch millis. A follower checks
+     * every cycle, so the output it serves is as fresh as this even if the snapshot is older.
+     */
+    public long getLastOutputAt() {
+        return lastOutputAt;
+    }
+
+    public FeedSnapshot getTripUpdatesSnapshot() {
+        if (prometheusMetricsService != null) {
+            prometheusMetricsService.registerIncomingRequest("SIRI_ET", 1);
         }
+        return snapshot.get().getTripUpdates();
     }
 
     public Object getVehiclePositions(String contentType, String datasource) {
-        readLock.lock();
-        try {
-            if (prometheusMetricsService != null) {
-                prometheusMetricsService.registerIncomingRequest("SIRI_VM", 1);
-            }
-            FeedMessage feedMessage = vehiclePositions;
-            if (datasource != null && !datasource.isEmpty()) {
-                feedMessage = vehiclePositionsByDatasource.get(datasource);
-                if (feedMessage == null) {
-                    feedMessage = createFeedMessageBuilder().build();
-                }
-            }
-            return encodeFeedMessage(feedMessage, contentType);
-        } finally {
-            readLock.unlock();
+        return encodeFeed(getVehiclePositionsSnapshot().getFeed(datasource), contentType);
+    }
+
+    public FeedSnapshot getVehiclePositionsSnapshot() {
+        if (prometheusMetricsService != null) {
+            prometheusMetricsService.registerIncomingRequest("SIRI_VM", 1);
         }
+        return snapshot.get().getVehiclePositions();
     }
 
     public Object getAlerts(String contentType, String datasource) {
-        readLock.lock();
-        try {
-            if (prometheusMetricsService != null) {
-                prometheusMetricsService.registerIncomingRequest("SIRI_SX", 1);
-            }
-            FeedMessage feedMessage = alerts;
-            if (datasource != null && !datasource.isEmpty()) {
-                feedMessage = alertsByDatasource.get(datasource);
-                if (feedMessage == null) {
-                    feedMessage = createFeedMessageBuilder().build();
-                }
-            }
-            return encodeFeedMessage(feedMessage, contentType);
-        } finally {
-            readLock.unlock();
+        return encodeFeed(getAlertsSnapshot().getFeed(datasource), contentType);
+    }
+
+    public FeedSnapshot getAlertsSnapshot() {
+        if (prometheusMetricsService != null) {
+            prometheusMetricsService.registerIncomingRequest("SIRI_SX", 1);
         }
+        return snapshot.get().getAlerts();
     }
 
-    private Object encodeFeedMessage(FeedMessage feedMessage, String contentType) {
+    private Object encodeFeed(EncodedFeed feed, String contentType) {
 
         if (contentType != null && contentType.equals(MEDIA_TYPE_APPLICATION_JSON)) {
-            return feedMessage;
+            return feed.getFeedMessage();
         }
-        if (feedMessage != null) {
-            return feedMessage.toByteArray();
-        }
-        return null;
+        // Encoded once per snapshot in writeOutput() - shared by all requests
+        return feed.getData();
     }
 
     private void checkPreconditions(VehicleActivityRecord vehicleActivity) {
@@ -285,131 +305,219 @@ public class SiriToGtfsRealtimeService {
         return TripAndVehicleKey.fromTripIdServiceDateAndVehicleId(tripId, startDate, vehicle);
     }
 
-    public void writeOutput() {
+    /**
+     * Builds and publishes new feeds from the data in redis. Output is built by one thread at a
+     * time; readers are never blocked. With leader election, only the instance holding the lease
+     * builds the feeds, and the others serve the feeds it has stored in redis.
+     */
+    public synchronized void writeOutput() {
         long t1 = System.currentTimeMillis();
-        writeTripUpdates();
-        writeVehiclePositions();
-        writeAlerts();
+        GtfsRtSnapshot previous = snapshot.get();
+        boolean leader = !leaderElection || redisService.tryAcquireOutputLease(instanceId, TimeUnit.SECONDS.toMillis(leaseSeconds));
+
+        OutputBlob blob;
+        if (leader) {
+            blob = new OutputBlob(
+                    buildFeedContent(RedisService.Type.TRIP_UPDATE),
+                    buildFeedContent(RedisService.Type.VEHICLE_POSITION),
+                    buildFeedContent(RedisService.Type.ALERT));
+        } else {
+            blob = readLeaderOutput();
+            lastOutputAt = t1;
+            if (blob == null) {
+                return;
+            }
+        }
+
+        GtfsRtSnapshot output = new GtfsRtSnapshot(
+                toFeedSnapshot(blob.tripUpdates(), previous.getTripUpdates()),
+                toFeedSnapshot(blob.vehiclePositions(), previous.getVehiclePositions()),
+                toFeedSnapshot(blob.alerts(), previous.getAlerts()));
+        snapshot.set(output);
+        lastOutputAt = t1;
+
+        if (leader && leaderElection) {
+            String version = getOutputVersion(output);
+            if (!version.equals(outputVersion)) {
+                redisService.writeOutputBlob(version, blob.encode());
+                outputVersion = version;
+            }
+        }
+
+        int tripUpdateCount = output.getTripUpdates().getFeed().getEntityCount();
+        int vehiclePositionCount = output.getVehiclePositions().getFeed().getEntityCount();
+        int alertCount = output.getAlerts().getFeed().getEntityCount();
         if (prometheusMetricsService != null) {
-            prometheusMetricsService.registerTotalGtfsRtEntities(tripUpdates.getEntityCount(), vehiclePositions.getEntityCount(), alerts.getEntityCount());
+            prometheusMetricsService.registerTotalGtfsRtEntities(tripUpdateCount, vehiclePositionCount, alertCount);
         }
-        LOG.info("Wrote output in {} ms: {} alerts, {} vehicle-positions, {} trip-updates",
+        LOG.info("{} output in {} ms: {} alerts, {} vehicle-positions, {} trip-updates",
+                leader ? "Wrote" : "Fetched",
                 (System.currentTimeMillis()-t1),
-                alerts.getEntityCount(),
-                vehiclePositions.getEntityCount(),
-                tripUpdates.getEntityCount());
+                alertCount,
+                vehiclePositionCount,
+                tripUpdateCount);
+    }
+
+    /**
+     * Returns the output stored by the leader, or null if there is none or it has not changed since
+     * the previous call.
+     */
+    private OutputBlob readLeaderOutput() {
+        String version = redisService.readOutputVersion();
+        if (version == null || version.equals(outputVersion)) {
+            return null;
+        }
+        // The local copies of the maps are only kept up to date by the leader
+        mirrors.values().forEach(GtfsRtMapMirror::invalidate);
+        byte[] data = redisService.readOutputBlob();
+        if (data == null) {
+            return null;
+        }
+        try {
+            OutputBlob blob = OutputBlob.decode(data);
+            outputVersion = version;
+            return blob;
+        } catch (IOException e) {
+            LOG.error("Failed to decode output version {} from leader", version, e);
+            return null;
+        }
+    }
+
+    /**
+     * Returns the key the entity is stored under, or null, with a warning, if its datasource is too
+     * long for a key.
+     */
+    private static String storeKey(String id, String datasource) {
+        CompositeKey key = new CompositeKey(id, datasource);
+        if (!key.isEncodable()) {
+            LOG.warn("Skipping entity {}: datasource is too long for a key: {}", id, datasource);
+            return null;
+        }
+        return key.asString();
     }
 
-    private record FeedOutput(FeedMessage feed, Map<String, FeedMessage> byDatasource) {}
+    private static String getOutputVersion(GtfsRtSnapshot output) {
+        return output.getTripUpdates().getFeed().getVersion()
+                + "-" + output.getVehiclePositions().getFeed().getVersion()
+                + "-" + output.getAlerts().getFeed().getVersion();
+    }
 
-    private FeedOutput buildFeedOutput(RedisService.Type type) {
-        FeedMessage.Builder feedMessageBuilder = createFeedMessageBuilder();
-        Map<String, FeedMessage.Builder> byDatasource = Maps.newHashMap();
+    private FeedSnapshot toFeedSnapshot(OutputBlob.FeedContent content, FeedSnapshot previous) {
+        return new FeedSnapshot(content.feed(), content.feedsByDatasource(), previous, differentialHistorySize);
+    }
 
-        Map<String, byte[]> entityMap = redisService.readGtfsRtMap(type);
+    @PreDestroy
+    public void releaseOutputLease() {
+        if (leaderElection) {
+            redisService.releaseOutputLease(instanceId);
+        }
+    }
 
+    /**
+     * Assembles the feeds directly from the encoded entities stored in redis. The stored values are
+     * copied into the FeedMessage wire format as they are - no FeedEntity objects are created. Only
+     * entities changed since the previous output are fetched from redis. Entities kept off the heap
+     * are read in place from the store instead.
+     */
+    private OutputBlob.FeedContent buildFeedContent(RedisService.Type type) {
+        byte[] header = createFeedMessageBuilder().getHeader().toByteArray();
+        if (redisService.isOffHeap()) {
+            return redisService.readEntities(type, new FeedContentBuilder(header));
+        }
+
+        GtfsRtMapMirror mirror = mirrors.get(type);
+        Map<String, byte[]> entityMap = mirror.refresh();
+        if (mirror.isNearCache() && prometheusMetricsService != null) {
+            prometheusMetricsService.registerMirrorStaleness(type.name(), mirror.getStaleness());
+        }
+
+        FeedContentBuilder builder = new FeedContentBuilder(header);
         for (Map.Entry<String, byte[]> entry : entityMap.entrySet()) {
-            CompositeKey key = CompositeKey.create(entry.getKey());
-            if (key == null) {
+            byte[] entity = entry.getValue();
+            if (!FeedWireFormat.isValidEntity(entity)) {
+                LOG.error("Invalid feed entity from redis with key: {}", CompositeKey.create(entry.getKey()));
                 continue;
             }
-            FeedEntity entity;
-            try {
-                entity = FeedEntity.parseFrom(entry.getValue());
-            } catch (InvalidProtocolBufferException e) {
-                LOG.error("Invalid feed entity from redis with key: {}", key, e);
-                continue;
-            }
-            feedMessageBuilder.addEntity(entity);
-            byDatasource
-                .computeIfAbsent(key.getDatasource(), k -> createFeedMessageBuilder())
-                .addEntity(entity);
+            builder.accept(entry.getKey(), ByteBuffer.wrap(entity));
         }
-
-        return new FeedOutput(feedMessageBuilder.build(), buildFeedMessageMap(byDatasource));
+        return builder.finish();
     }
 
-    private void writeTripUpdates() {
-        FeedOutput output = buildFeedOutput(RedisService.Type.TRIP_UPDATE);
-        setTripUpdates(output.feed(), output.byDatasource());
-    }
+    /**
+     * Adds each entity to the feed with all entities, and to the feed of its datasource.
+     */
+    private static class FeedContentBuilder implements InMemoryEntityStore.EntityReader<OutputBlob.FeedContent> {
+
+        private final byte[] header;
+
+        private final FeedWireFormat.FeedWriter feedWriter;
 
-    private Map<String, FeedMessage> buildFeedMessageMap(Map<String, FeedMessage.Builder> builders) {
-        Map<String, FeedMessage> result = Maps.newHashMap();
-        for (Map.Entry<String, FeedMessage.Builder> entry : builders.entrySet()) {
-            result.put(entry.getKey(), entry.getValue().build());
+        private final Map<String, FeedWireFormat.FeedWriter> byDatasource = Maps.newHashMap();
+
+        private FeedContentBuilder(byte[] header) {
+            this.header = header;
+            this.feedWriter = new FeedWireFormat.FeedWriter(header);
         }
-        return result;
-    }
 
-    private void writeVehiclePositions() {
-        FeedOutput output = buildFeedOutput(RedisService.Type.VEHICLE_POSITION);
-        setVehiclePositions(output.feed(), output.byDatasource());
-    }
+        @Override
+        public void accept(String key, ByteBuffer entity) {
+            String datasource = CompositeKey.datasourceOf(key);
+            if (datasource == null) {
+                return;
+            }
+            feedWriter.addEntity(entity);
+            byDatasource
+                .computeIfAbsent(datasource, k -> new FeedWireFormat.FeedWriter(header))
+                .addEntity(entity);
+        }
 
-    private void writeAlerts() {
-        FeedOutput output = buildFeedOutput(RedisService.Type.ALERT);
-        setAlerts(output.feed(), output.byDatasource());
+        @Override
+        public OutputBlob.FeedContent finish() {
+            Map<String, byte[]> feedsByDatasource = Maps.newHashMap();
+            for (Map.Entry<String, FeedWireFormat.FeedWriter> entry : byDatasource.entrySet()) {
+                feedsByDatasource.put(entry.getKey(), entry.getValue().toByteArray());
+            }
+            return new OutputBlob.FeedContent(feedWriter.toByteArray(), feedsByDatasource);
+        }
     }
 
     @SuppressWarnings("unused")
     public FeedMessage getTripUpdates() {
-        readLock.lock();
-        try {
-            return tripUpdates;
-        } finally {
-            readLock.unlock();
-        }
+        return snapshot.get().getTripUpdates().getFeed().getFeedMessage();
     }
 
     public void setTripUpdates(FeedMessage tripUpdates, Map<String, FeedMessage> tripUpdatesByDatasource) {
-        writeLock.lock();
-        try {
-            this.tripUpdates = tripUpdates;
-            this.tripUpdatesByDatasource = tripUpdatesByDatasource;
-        } finally {
-            writeLock.unlock();
-        }
+        setTripUpdates(new FeedSnapshot(tripUpdates, tripUpdatesByDatasource));
+    }
+
+    private void setTripUpdates(FeedSnapshot tripUpdates) {
+        snapshot.updateAndGet(current -> current.withTripUpdates(tripUpdates));
     }
 
     @SuppressWarnings("unused")
     public FeedMessage getVehiclePositions() {
-        readLock.lock();
-        try {
-            return vehiclePositions;
-        } finally {
-            readLock.unlock();
-        }
+        return snapshot.get().getVehiclePositions().getFeed().getFeedMessage();
     }
 
     public void setVehiclePositions(FeedMessage vehiclePositions, Map<String, FeedMessage> vehiclePositionsByDatasource) {
-        writeLock.lock();
-        try {
-            this.vehiclePositions = vehiclePositions;
-            this.vehiclePositionsByDatasource = vehiclePositionsByDatasource;
-        } finally {
-            writeLock.unlock();
-        }
+        setVehiclePositions(new FeedSnapshot(vehiclePositions, vehiclePositionsByDatasource));
+    }
+
+    private void setVehiclePositions(FeedSnapshot vehiclePositions) {
+        snapshot.updateAndGet(current -> current.withVehiclePositions(vehiclePositions));
     }
 
     @SuppressWarnings("unused")
     public FeedMessage getAlerts() {
-        readLock.lock();
-        try {
-            return alerts;
-        } finally {
-            readLock.unlock();
-        }
+        return snapshot.get().getAlerts().getFeed().getFeedMessage();
     }
 
     public void setAlerts(FeedMessage alerts, Map<String, FeedMessage> alertsByDatasource) {
-        writeLock.lock();
-        try {
-            this.alerts = alerts;
-            this.alertsByDatasource = alertsByDatasource;
-        } finally {
-            writeLock.unlock();
-        }
+        setAlerts(new FeedSnapshot(alerts, alertsByDatasource));
+    }
+
+    private void setAlerts(FeedSnapshot alerts) {
+        snapshot.updateAndGet(current -> current.withAlerts(alerts));
     }
 
     public Map<String, GtfsRtData> convertSiriVmToGtfsRt(VehicleActivityRecord activity) {
@@ -448,8 +556,10 @@ public class SiriToGtfsRealtimeService {
                     timeToLive = Duration.newBuilder().setSeconds(gracePeriod).build();
                 }
 
-                result.put(new CompositeKey(key, activity.getMonitoredVehicleJourney().getDataSource().toString()).asString(),
-                        new GtfsRtData(entity.build().toByteArray(), timeToLive));
+                String storeKey = storeKey(key, activity.getMonitoredVehicleJourney().getDataSource().toString());
+                if (storeKey != null) {
+                    result.put(storeKey, new GtfsRtData(entity.build().toByteArray(), timeToLive));
+                }
             }
         }
 
@@ -559,11 +669,10 @@ public class SiriToGtfsRealtimeService {
                     ).build();
                 }
 
-                result.put(
-                        new CompositeKey(
-                                key,
-                                estimatedVehicleJourney.getDataSource().toString()
-                        ).asString(), new GtfsRtData(entity.build().toByteArray(), timeToLive));
+                String storeKey = storeKey(key, estimatedVehicleJourney.getDataSource().toString());
+                if (storeKey != null) {
+                    result.put(storeKey, new GtfsRtData(entity.build().toByteArray(), timeToLive));
+                }
             } catch (IllegalStateException e) {
                 String id = estimatedVehicleJourney.getDataSource() != null
                         ? estimatedVehicleJourney.getDataSource().toString()
@@ -616,11 +725,10 @@ public class SiriToGtfsRealtimeService {
                     timeToLive = Duration.newBuilder().setSeconds(3600*24*365).build();
                 }
 
-                result.put(
-                        new CompositeKey(
-                                key,
-                                ptSituationElement.getParticipantRef().toString()).asString(),
-                        new GtfsRtData(entity.build().toByteArray(), timeToLive));
+                String storeKey = storeKey(key, ptSituationElement.getParticipantRef().toString());
+                if (storeKey != null) {
+                    result.put(storeKey, new GtfsRtData(entity.build().toByteArray(), timeToLive));
+                }
             } catch (IllegalStateException e) {
                 LOG.info("Failed parsing alert {}: {}", ptSituationElement.getSituationNumber(), e.getMessage());
             } catch (Exception e) {
@@ -0,0 +1,108 @@
+package org.entur.kishar.gtfsrt;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Settings of the entity store, in groups bound from the {@code kishar.redis} and
+ * {@code kishar.inmemory} properties. Each group has its defaults, the same as those of its
+ * properties, so a test only creates the groups it changes.
+ */
+public final class StoreSettings {
+
+    private StoreSettings() {
+    }
+
+    /**
+     * Whether Redis is used, and how to connect to it.
+     *
+     * @param mode           {@code replicated} or {@code cluster}
+     * @param clusterBuckets number of shards the entities of each datasource are spread over in a
+     *                       cluster
+     */
+    @Component
+    record Connection(@Value("${kishar.redis.enabled:false}") boolean enabled,
+                      @Value("${kishar.redis.host:}") String host,
+                      @Value("${kishar.redis.port:}") String port,
+                      @Value("${kishar.redis.password:}") String password,
+                      @Value("${kishar.redis.mode:replicated}") String mode,
+                      @Value("${kishar.redis.cluster.buckets:16}") int clusterBuckets,
+                      @Value("${kishar.redis.cluster.read.parallelism:4}") int clusterReadParallelism) {
+
+        static final Connection DEFAULTS = new Connection(false, "", "", "", "replicated", 16, 4);
+    }
+
+    /**
+     * How the entities are laid out in Redis, and read from it.
+     *
+     * @param storage {@code mapcache} or {@code native}
+     */
+    @Component
+    record RedisStorage(@Value("${kishar.redis.storage:mapcache}") String storage,
+                        @Value("${kishar.redis.keys.legacy:false}") boolean legacyKeys,
+                        @Value("${kishar.redis.batch.max.size:500}") int batchMaxSize,
+                        @Value("${kishar.redis.scan.page.size:1000}") int scanPageSize,
+                        @Value("${kishar.redis.changelog.retention.seconds:600}") int changeLogRetentionSeconds,
+                        @Value("${kishar.redis.nearcache.enabled:false}") boolean nearCache) {
+
+        static final RedisStorage DEFAULTS = new RedisStorage("mapcache", false, 500, 1000, 600, false);
+    }
+
+    /**
+     * How the entities received are written to the store.
+     *
+     * @param bufferIntervalMillis interval at which buffered writes are flushed, 0 to write
+     *                             straight to the store
+     * @param fingerprintMaxSize   number of fingerprints kept to skip unchanged entities, 0 to
+     *                             write every entity
+     */
+    @Component
+    public record Writes(@Value("${kishar.redis.write.buffer.interval.millis:0}") long bufferIntervalMillis,
+                  @Value("${kishar.redis.write.buffer.max.size:20000}") int bufferMaxSize,
+                  @Value("${kishar.redis.fingerprint.max.size:0}") long fingerprintMaxSize,
+                  @Value("${kishar.redis.async.threads:4}") int asyncThreads,
+                  @Value("${kishar.redis.async.max.in.flight:64}") int asyncMaxInFlight,
+                  @Value("${kishar.redis.async.acquire.timeout.millis:30000}") long asyncAcquireTimeoutMillis) {
+
+        static final Writes DEFAULTS = new Writes(0, 20000, 0, 4, 64, 30000);
+    }
+
+    /**
+     * Compression of the entities in Redis.
+     *
+     * @param dictionaryRotationHours interval at which a new dictionary is trained, 0 to keep the
+     *                                first
+     * @param dictionaryRetainedVersions number of the latest dictionary versions kept, 0 to keep
+     *                                   all. Older versions are kept until the entities compressed
+     *                                   with them expire
+     */
+    @Component
+    record Compression(@Value("${kishar.redis.compression.enabled:false}") boolean enabled,
+                       @Value("${kishar.redis.compression.dictionary.samples:1000}") int dictionarySamples,
+                       @Value("${kishar.redis.compression.dictionary.rotation.hours:0}") int dictionaryRotationHours,
+                       @Value("${kishar.redis.compression.dictionary.retained.versions:30}") int dictionaryRetainedVersions) {
+
+        static final Compression DEFAULTS = new Compression(false, 1000, 0, 30);
+    }
+
+    /**
+     * The store used without Redis.
+     *
+     * @param storage              {@code memory} or {@code disk}
+     * @param persistenceDirectory where the entities are kept on disk, empty to keep them only in
+     *                             memory
+     */
+    @Component
+    public record InMemory(@Value("${kishar.inmemory.storage:memory}") String storage,
+                    @Value("${kishar.inmemory.max.bytes:536870912}") long maxBytes,
+                    @Value("${kishar.inmemory.offheap.enabled:false}") boolean offHeap,
+                    @Value("${kishar.inmemory.persistence.directory:}") String persistenceDirectory,
+                    @Value("${kishar.inmemory.snapshot.interval.seconds:300}") int snapshotIntervalSeconds) {
+
+        static final InMemory DEFAULTS = new InMemory("memory", 536870912, false, "", 300);
+
+        public boolean isPersisted() {
+            return persistenceDirectory != null && !persistenceDirectory.isBlank();
+        }
+    }
+}
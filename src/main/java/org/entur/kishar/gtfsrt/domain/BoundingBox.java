@@ -0,0 +1,45 @@
+package org.entur.kishar.gtfsrt.domain;
+
+/**
+ * An area between two latitudes and two longitudes, in WGS84 degrees. Areas crossing the
+ * antimeridian are not supported.
+ */
+public record BoundingBox(double minLongitude, double minLatitude, double maxLongitude, double maxLatitude) {
+
+    public BoundingBox {
+        if (!(minLongitude <= maxLongitude) || !(minLatitude <= maxLatitude)
+                || minLatitude < -90 || maxLatitude > 90 || minLongitude < -180 || maxLongitude > 180) {
+            throw new IllegalArgumentException("Invalid bounding box: " + minLongitude + "," + minLatitude + "," + maxLongitude + "," + maxLatitude);
+        }
+    }
+
+    /**
+     * Parses a bounding box given as {@code minLon,minLat,maxLon,maxLat}, or returns null if none
+     * is given.
+     *
+     * @throws IllegalArgumentException if the bounding box is not valid
+     */
+    public static BoundingBox parse(String bbox) {
+        if (bbox == null || bbox.isBlank()) {
+            return null;
+        }
+        String[] parts = bbox.split(",");
+        if (parts.length != 4) {
+            throw new IllegalArgumentException("Bounding box must be given as minLon,minLat,maxLon,maxLat: " + bbox);
+        }
+        try {
+            return new BoundingBox(
+                    Double.parseDouble(parts[0].trim()),
+                    Double.parseDouble(parts[1].trim()),
+                    Double.parseDouble(parts[2].trim()),
+                    Double.parseDouble(parts[3].trim()));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Bounding box must be given as minLon,minLat,maxLon,maxLat: " + bbox, e);
+        }
+    }
+
+    public boolean contains(double latitude, double longitude) {
+        return latitude >= minLatitude && latitude <= maxLatitude
+                && longitude >= minLongitude && longitude <= maxLongitude;
+    }
+}
@@ -1,5 +1,6 @@
 package org.entur.kishar.gtfsrt.domain;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
 
@@ -7,9 +8,26 @@ import java.io.IOException;
 import java.io.Serializable;
 import java.nio.charset.StandardCharsets;
 
+/**
+ * Key of an entity in the store: the entity id and the datasource it came from.
+ * <p>
+ * Keys are encoded as a marker byte, the length of the datasource in UTF-8 bytes, the datasource
+ * and then the id: {@code 0x01 <length> <datasource> <id>}. The length is limited to 127, so the
+ * encoded key is valid UTF-8, and the same encoding is used for the string form of the key. The
+ * datasource and id can be read from an encoded key without decoding it; see
+ * {@link #datasourceOf(String)} and {@link #hasDatasource(byte[], byte[])}.
+ * <p>
+ * Keys written by earlier versions are JSON objects, {@code {"id":...,"datasource":...}}. They are
+ * still read by {@link #create(String)} and {@link #reCreate(byte[])}, and can be written with
+ * {@link #asLegacyString()}.
+ */
 @SuppressWarnings("unused")
 public class CompositeKey implements Serializable {
 
+    static final byte MARKER = 0x01;
+
+    static final int MAX_DATASOURCE_LENGTH = 127;
+
     private String id;
 
     private String datasource;
@@ -26,10 +44,20 @@ public class CompositeKey implements Serializable {
     }
 
     public static CompositeKey reCreate(byte[] input) {
+        if (isBinary(input)) {
+            int datasourceEnd = 2 + input[1];
+            return new CompositeKey(
+                    new String(input, datasourceEnd, input.length - datasourceEnd, StandardCharsets.UTF_8),
+                    new String(input, 2, input[1], StandardCharsets.UTF_8));
+        }
         return create(new String(input, StandardCharsets.UTF_8));
     }
 
     public static CompositeKey create(String input) {
+        int datasourceEnd = datasourceEnd(input);
+        if (datasourceEnd > 0) {
+            return new CompositeKey(input.substring(datasourceEnd), input.substring(2, datasourceEnd));
+        }
         try {
             return objectMapper.readValue(input, CompositeKey.class);
         }
@@ -39,7 +67,111 @@ public class CompositeKey implements Serializable {
         return null;
     }
 
+    /**
+     * Returns whether the key is in the binary encoding, as opposed to the legacy JSON encoding or
+     * not a key at all.
+     */
+    public static boolean isBinary(byte[] key) {
+        return key.length >= 2 && key[0] == MARKER && key[1] >= 0 && 2 + key[1] <= key.length;
+    }
+
+    /**
+     * Returns whether the key is in the binary encoding, as opposed to the legacy JSON encoding or
+     * not a key at all.
+     */
+    public static boolean isBinary(String key) {
+        return datasourceEnd(key) > 0;
+    }
+
+    /**
+     * Returns whether the binary encoded key has the given datasource, encoded as UTF-8, without
+     * decoding the key.
+     */
+    public static boolean hasDatasource(byte[] key, byte[] datasource) {
+        if (!isBinary(key) || key[1] != datasource.length) {
+            return false;
+        }
+        for (int i = 0; i < datasource.length; i++) {
+            if (key[2 + i] != datasource[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the datasource of a key in string form, or null if it is not a key. Keys in the binary
+     * encoding are not decoded.
+     */
+    public static String datasourceOf(String key) {
+        int datasourceEnd = datasourceEnd(key);
+        if (datasourceEnd > 0) {
+            return key.substring(2, datasourceEnd);
+        }
+        CompositeKey legacy = create(key);
+        return legacy != null ? legacy.getDatasource() : null;
+    }
+
+    /**
+     * Returns the index in the binary encoded key, in string form, where the datasource ends and the
+     * id starts, or -1 if the key is not binary encoded.
+     */
+    private static int datasourceEnd(String key) {
+        if (key.length() < 2 || key.charAt(0) != MARKER || key.charAt(1) > MAX_DATASOURCE_LENGTH) {
+            return -1;
+        }
+        int remaining = key.charAt(1);
+        int i = 2;
+        // The length is in UTF-8 bytes - only differs from the number of chars for non-ASCII datasources
+        while (remaining > 0 && i < key.length()) {
+            char c = key.charAt(i);
+            if (c < 0x80) {
+                remaining -= 1;
+            } else if (c < 0x800) {
+                remaining -= 2;
+            } else if (Character.isHighSurrogate(c)) {
+                remaining -= 4;
+                i++;
+            } else {
+                remaining -= 3;
+            }
+            i++;
+        }
+        return remaining == 0 && i <= key.length() ? i : -1;
+    }
+
+    /**
+     * Returns whether the key can be given in the binary encoding, i.e. whether its datasource is at
+     * most 127 bytes in UTF-8. Entities with other keys cannot be stored.
+     */
+    @JsonIgnore
+    public boolean isEncodable() {
+        return datasource.getBytes(StandardCharsets.UTF_8).length <= MAX_DATASOURCE_LENGTH;
+    }
+
+    /**
+     * Returns the key in the binary encoding.
+     *
+     * @throws IllegalStateException if the datasource is longer than 127 bytes in UTF-8; see
+     *                               {@link #isEncodable()}
+     */
     public String asString() {
+        int datasourceLength = datasource.getBytes(StandardCharsets.UTF_8).length;
+        if (datasourceLength > MAX_DATASOURCE_LENGTH) {
+            throw new IllegalStateException("Datasource too long for CompositeKey{id=" + id + ", datasource=" + datasource + "}");
+        }
+        return new StringBuilder(2 + datasource.length() + id.length())
+                .append((char) MARKER)
+                .append((char) datasourceLength)
+                .append(datasource)
+                .append(id)
+                .toString();
+    }
+
+    /**
+     * Returns the key in the JSON encoding used by earlier versions.
+     */
+    public String asLegacyString() {
         try {
             return objectMapper.writeValueAsString(this);
         } catch (JsonProcessingException e) {
@@ -0,0 +1,68 @@
+package org.entur.kishar.gtfsrt.domain;
+
+import java.util.Locale;
+
+/**
+ * HTTP content-codings that feeds are pre-compressed with, in order of server preference.
+ */
+public enum ContentEncoding {
+    GZIP("gzip"),
+    DEFLATE("deflate"),
+    IDENTITY("identity");
+
+    private final String name;
+
+    ContentEncoding(String name) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Picks the coding with the highest q-value in the given Accept-Encoding header, preferring
+     * gzip over deflate on ties. Falls back to identity when no compressed coding is acceptable.
+     */
+    public static ContentEncoding negotiate(String acceptEncoding) {
+        if (acceptEncoding == null || acceptEncoding.isBlank()) {
+            return IDENTITY;
+        }
+        ContentEncoding best = IDENTITY;
+        double bestQuality = 0;
+        for (ContentEncoding candidate : new ContentEncoding[]{GZIP, DEFLATE}) {
+            double quality = quality(acceptEncoding, candidate.name);
+            if (quality > bestQuality) {
+                best = candidate;
+                bestQuality = quality;
+            }
+        }
+        return best;
+    }
+
+    private static double quality(String acceptEncoding, String coding) {
+        double wildcard = 0;
+        for (String element : acceptEncoding.split(",")) {
+            String[] parts = element.split(";");
+            String token = parts[0].trim().toLowerCase(Locale.ROOT);
+            double quality = 1;
+            for (int i = 1; i < parts.length; i++) {
+                String parameter = parts[i].trim();
+                if (parameter.startsWith("q=")) {
+                    try {
+                        quality = Double.parseDouble(parameter.substring(2));
+                    } catch (NumberFormatException e) {
+                        quality = 0;
+                    }
+                }
+            }
+            if (token.equals(coding)) {
+                return quality;
+            }
+            if (token.equals("*")) {
+                wildcard = quality;
+            }
+        }
+        return wildcard;
+    }
+}
@@ -0,0 +1,304 @@
+package org.entur.kishar.gtfsrt.domain;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.util.JsonFormat;
+import com.google.transit.realtime.GtfsRealtime.FeedEntity;
+import com.google.transit.realtime.GtfsRealtime.FeedHeader;
+import com.google.transit.realtime.GtfsRealtime.FeedMessage;
+import org.entur.kishar.gtfsrt.helpers.CompressionLibrary;
+import org.entur.kishar.gtfsrt.helpers.FeedWireFormat;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * An encoded FeedMessage together with the gzip/deflate variants of it. The encodings of a built
+ * feed are done once when it is built, and the same bytes are served to every request. Filtered
+ * and differential feeds, and the JSON form, are only compressed with a content-coding the first
+ * time it is asked for, and then kept with the feed.
+ */
+public class EncodedFeed {
+
+    private static final JsonFormat.Printer JSON_PRINTER = JsonFormat.printer().omittingInsignificantWhitespace();
+
+    private static final int MAX_CACHED_FILTERS = 256;
+
+    private final byte[] data;
+
+    private final Encodings encodings;
+
+    private volatile Encodings jsonEncodings;
+
+    private final FeedWireFormat.FeedIndex index;
+
+    private final FeedVersion feedVersion;
+
+    /**
+     * Built on the first filtered request, so feeds that are never filtered are not indexed.
+     */
+    private volatile FeedFilterIndex filterIndex;
+
+    private final Cache<FeedFilter, EncodedFeed> filtered = CacheBuilder.newBuilder()
+            .maximumSize(MAX_CACHED_FILTERS)
+            .build();
+
+    private volatile FeedMessage feedMessage;
+
+    private EncodedFeed(byte[] data, FeedWireFormat.FeedIndex index, FeedMessage feedMessage, Encodings encodings) {
+        this.data = data;
+        this.index = index;
+        this.feedMessage = feedMessage;
+        this.encodings = encodings;
+
+        Map<String, Long> entityHashes = new HashMap<>();
+        for (int i = 0; i < index.getEntityCount(); i++) {
+            entityHashes.put(index.entityIds()[i], index.entityHashes()[i]);
+        }
+        this.feedVersion = new FeedVersion(index.version(), Collections.unmodifiableMap(entityHashes));
+    }
+
+    /**
+     * Encodes the feed, or returns {@code previous} if it has the same entities. Keeping the
+     * previous instance keeps its header timestamp, version and compressed variants, so clients
+     * polling an unchanged feed are not sent new bytes.
+     */
+    public static EncodedFeed encode(FeedMessage feedMessage, EncodedFeed previous) {
+        byte[] data = feedMessage.toByteArray();
+        FeedWireFormat.FeedIndex index = FeedWireFormat.index(data);
+        if (previous != null && previous.getVersion().equals(index.version())) {
+            return previous;
+        }
+        return new EncodedFeed(data, index, feedMessage, Encodings.of(data));
+    }
+
+    /**
+     * As {@link #encode(FeedMessage, EncodedFeed)}, for a feed that is already encoded. The feed is
+     * only parsed if {@link #getFeedMessage()} is called.
+     */
+    public static EncodedFeed encode(byte[] data, EncodedFeed previous) {
+        FeedWireFormat.FeedIndex index = FeedWireFormat.index(data);
+        if (previous != null && previous.getVersion().equals(index.version())) {
+            return previous;
+        }
+        return new EncodedFeed(data, index, null, Encodings.of(data));
+    }
+
+    /**
+     * Wraps an already encoded FeedMessage. It is only parsed if {@link #getFeedMessage()} is called,
+     * and only compressed with the content-codings asked for.
+     */
+    public static EncodedFeed wrap(byte[] data) {
+        return new EncodedFeed(data, FeedWireFormat.index(data), null, Encodings.lazy(data));
+    }
+
+    /**
+     * Builds a DIFFERENTIAL feed holding the entities that were added or changed since
+     * {@code base}, and an {@code is_deleted} entity for each one that has been removed.
+     */
+    public EncodedFeed differentialFrom(FeedVersion base) {
+        Map<String, Long> baseHashes = base.entityHashes();
+        FeedHeader header = index.header().toBuilder()
+                .setIncrementality(FeedHeader.Incrementality.DIFFERENTIAL)
+                .build();
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            CodedOutputStream output = CodedOutputStream.newInstance(out);
+            output.writeMessage(FeedMessage.HEADER_FIELD_NUMBER, header);
+            for (int i = 0; i < index.getEntityCount(); i++) {
+                Long baseHash = baseHashes.get(index.entityIds()[i]);
+                if (baseHash == null || baseHash != index.entityHashes()[i]) {
+                    int start = index.entityStarts()[i];
+                    output.writeRawBytes(data, start, index.entityEnds()[i] - start);
+                }
+            }
+            for (String id : baseHashes.keySet()) {
+                if (!feedVersion.entityHashes().containsKey(id)) {
+                    output.writeMessage(FeedMessage.ENTITY_FIELD_NUMBER,
+                            FeedEntity.newBuilder().setId(id).setIsDeleted(true).build());
+                }
+            }
+            output.flush();
+            return wrap(out.toByteArray());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Returns a feed with only the entities matching the filter, looked up in indexes built with
+     * this feed. Recently used filters are kept, so repeated requests get the same instance.
+     */
+    public EncodedFeed filter(FeedFilter filter) {
+        if (filter.isEmpty()) {
+            return this;
+        }
+        return filtered.asMap().computeIfAbsent(filter, this::select);
+    }
+
+    private EncodedFeed select(FeedFilter filter) {
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            CodedOutputStream output = CodedOutputStream.newInstance(out);
+            output.writeMessage(FeedMessage.HEADER_FIELD_NUMBER, index.header());
+            getFilterIndex().write(filter, output);
+            output.flush();
+            return wrap(out.toByteArray());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private FeedFilterIndex getFilterIndex() {
+        FeedFilterIndex result = filterIndex;
+        if (result == null) {
+            synchronized (this) {
+                result = filterIndex;
+                if (result == null) {
+                    result = new FeedFilterIndex(data, index);
+                    filterIndex = result;
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * The decoded feed, parsed on first use when the feed was not built from a FeedMessage.
+     */
+    public FeedMessage getFeedMessage() {
+        FeedMessage result = feedMessage;
+        if (result == null) {
+            try {
+                result = FeedMessage.parseFrom(data);
+            } catch (InvalidProtocolBufferException e) {
+                throw new IllegalStateException("Encoded feed could not be parsed", e);
+            }
+            feedMessage = result;
+        }
+        return result;
+    }
+
+    /**
+     * The encoded feed. The array is shared between all readers and must not be modified.
+     */
+    public byte[] getData() {
+        return data;
+    }
+
+    /**
+     * The encoded feed compressed with the given content-coding. The array is shared between all
+     * readers and must not be modified.
+     */
+    public byte[] getData(ContentEncoding encoding) {
+        return encodings.get(encoding);
+    }
+
+    /**
+     * The feed as UTF-8 encoded protobuf JSON, compressed with the given content-coding. Rendered
+     * on first use. The array is shared between all readers and must not be modified.
+     */
+    public byte[] getJson(ContentEncoding encoding) {
+        Encodings result = jsonEncodings;
+        if (result == null) {
+            synchronized (this) {
+                result = jsonEncodings;
+                if (result == null) {
+                    try {
+                        result = Encodings.lazy(JSON_PRINTER.print(getFeedMessage()).getBytes(StandardCharsets.UTF_8));
+                    } catch (InvalidProtocolBufferException e) {
+                        throw new IllegalStateException("Feed could not be rendered as JSON", e);
+                    }
+                    jsonEncodings = result;
+                }
+            }
+        }
+        return result.get(encoding);
+    }
+
+    /**
+     * Identifies the entity content of this feed. Used as ETag, and as the cursor clients pass to
+     * get a differential feed.
+     */
+    public String getVersion() {
+        return feedVersion.version();
+    }
+
+    public FeedVersion getFeedVersion() {
+        return feedVersion;
+    }
+
+    public FeedHeader getHeader() {
+        return index.header();
+    }
+
+    /**
+     * Time the content was created, in epoch seconds, as given by the feed header.
+     */
+    public long getLastModified() {
+        return index.header().getTimestamp();
+    }
+
+    public int getEntityCount() {
+        return index.getEntityCount();
+    }
+
+    /**
+     * The same content in every supported content-coding, either all compressed up front or each
+     * compressed the first time it is asked for.
+     */
+    private static final class Encodings {
+
+        private final byte[] identity;
+
+        private volatile byte[] gzip;
+
+        private volatile byte[] deflate;
+
+        private Encodings(byte[] identity) {
+            this.identity = identity;
+        }
+
+        static Encodings of(byte[] data) {
+            Encodings encodings = new Encodings(data);
+            byte[] deflated = CompressionLibrary.rawDeflate(data);
+            encodings.gzip = CompressionLibrary.toGzip(deflated, data);
+            encodings.deflate = CompressionLibrary.toZlib(deflated, data);
+            return encodings;
+        }
+
+        static Encodings lazy(byte[] data) {
+            return new Encodings(data);
+        }
+
+        byte[] get(ContentEncoding encoding) {
+            if (encoding == ContentEncoding.IDENTITY) {
+                return identity;
+            }
+            byte[] result = encoding == ContentEncoding.GZIP ? gzip : deflate;
+            if (result == null) {
+                synchronized (this) {
+                    result = encoding == ContentEncoding.GZIP ? gzip : deflate;
+                    if (result == null) {
+                        byte[] deflated = CompressionLibrary.rawDeflate(identity);
+                        if (encoding == ContentEncoding.GZIP) {
+                            result = CompressionLibrary.toGzip(deflated, identity);
+                            gzip = result;
+                        } else {
+                            result = CompressionLibrary.toZlib(deflated, identity);
+                            deflate = result;
+                        }
+                    }
+                }
+            }
+            return result;
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package org.entur.kishar.gtfsrt.domain;
+
+import java.util.Arrays;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/**
+ * Selects the entities of a feed that refer to any of the given routes, trips or stops, and that
+ * are positioned inside the given bounding box. Entities must match every criterion that is given,
+ * and any one of the ids of each kind.
+ *
+ * @param boundingBox area vehicle positions must be inside, or null for no limit
+ */
+public record FeedFilter(Set<String> routeIds, Set<String> tripIds, Set<String> stopIds, BoundingBox boundingBox) {
+
+    public static final FeedFilter NONE = new FeedFilter(Set.of(), Set.of(), Set.of(), null);
+
+    /**
+     * Creates a filter from comma-separated lists of ids. Missing or blank lists match everything.
+     */
+    public static FeedFilter of(String routeIds, String tripIds, String stopIds) {
+        return of(routeIds, tripIds, stopIds, null);
+    }
+
+    /**
+     * Creates a filter from comma-separated lists of ids and a bounding box given as
+     * {@code minLon,minLat,maxLon,maxLat}. Missing or blank values match everything.
+     *
+     * @throws IllegalArgumentException if the bounding box is not valid
+     */
+    public static FeedFilter of(String routeIds, String tripIds, String stopIds, String boundingBox) {
+        FeedFilter filter = new FeedFilter(parse(routeIds), parse(tripIds), parse(stopIds), BoundingBox.parse(boundingBox));
+        return filter.isEmpty() ? NONE : filter;
+    }
+
+    public boolean isEmpty() {
+        return !hasIds() && boundingBox == null;
+    }
+
+    public boolean hasIds() {
+        return !routeIds.isEmpty() || !tripIds.isEmpty() || !stopIds.isEmpty();
+    }
+
+    private static Set<String> parse(String ids) {
+        if (ids == null || ids.isBlank()) {
+            return Set.of();
+        }
+        return Arrays.stream(ids.split(","))
+                .map(String::trim)
+                .filter(id -> !id.isEmpty())
+                .collect(Collectors.toUnmodifiableSet());
+    }
+}
@@ -0,0 +1,137 @@
+package org.entur.kishar.gtfsrt.domain;
+
+import com.google.protobuf.CodedOutputStream;
+import org.entur.kishar.gtfsrt.helpers.FeedWireFormat;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Inverted indexes from route, trip and stop id to the positions of the entities in a feed that
+ * refer to them, and a spatial grid over the vehicle positions. Built once per feed, so filtered
+ * requests do not have to look at every entity.
+ */
+class FeedFilterIndex {
+
+    private final byte[] data;
+
+    private final FeedWireFormat.FeedIndex index;
+
+    private final Map<String, int[]> byRouteId;
+
+    private final Map<String, int[]> byTripId;
+
+    private final Map<String, int[]> byStopId;
+
+    /**
+     * Null if no entity has a position.
+     */
+    private final SpatialGrid grid;
+
+    /**
+     * Deleted entities in a differential feed. They carry no selectors, and are kept in every
+     * filtered feed so clients still learn about removals.
+     */
+    private final BitSet deleted = new BitSet();
+
+    FeedFilterIndex(byte[] data, FeedWireFormat.FeedIndex index) {
+        this.data = data;
+        this.index = index;
+        int entityCount = index.getEntityCount();
+        Map<String, List<Integer>> routes = new HashMap<>();
+        Map<String, List<Integer>> trips = new HashMap<>();
+        Map<String, List<Integer>> stops = new HashMap<>();
+        float[] latitudes = new float[entityCount];
+        float[] longitudes = new float[entityCount];
+        BitSet positioned = new BitSet(entityCount);
+        for (int i = 0; i < entityCount; i++) {
+            FeedWireFormat.EntitySelectors selectors = FeedWireFormat.readSelectors(data, index.entityStarts()[i], index.entityEnds()[i]);
+            if (selectors.deleted()) {
+                deleted.set(i);
+            }
+            add(routes, selectors.routeIds(), i);
+            add(trips, selectors.tripIds(), i);
+            add(stops, selectors.stopIds(), i);
+            if (selectors.hasPosition()) {
+                latitudes[i] = selectors.latitude();
+                longitudes[i] = selectors.longitude();
+                positioned.set(i);
+            }
+        }
+        this.byRouteId = toArrays(routes);
+        this.byTripId = toArrays(trips);
+        this.byStopId = toArrays(stops);
+        this.grid = positioned.isEmpty() ? null : new SpatialGrid(data, index, positioned.stream().toArray(), latitudes, longitudes);
+    }
+
+    /**
+     * Writes the encoded entity records matching the filter. A filter on bounding box only is
+     * answered by copying the pre-encoded grid cells.
+     */
+    void write(FeedFilter filter, CodedOutputStream output) throws IOException {
+        if (!filter.hasIds() && filter.boundingBox() != null) {
+            if (grid != null) {
+                grid.write(filter.boundingBox(), output);
+            }
+            writeRecords(deleted, output);
+        } else {
+            writeRecords(select(filter), output);
+        }
+    }
+
+    /**
+     * Returns the positions of the entities matching the filter.
+     */
+    private BitSet select(FeedFilter filter) {
+        BitSet result = new BitSet(index.getEntityCount());
+        result.set(0, index.getEntityCount());
+        and(result, byRouteId, filter.routeIds());
+        and(result, byTripId, filter.tripIds());
+        and(result, byStopId, filter.stopIds());
+        if (filter.boundingBox() != null) {
+            result.and(grid != null ? grid.select(filter.boundingBox()) : new BitSet());
+        }
+        result.or(deleted);
+        return result;
+    }
+
+    private void writeRecords(BitSet entities, CodedOutputStream output) throws IOException {
+        for (int i = entities.nextSetBit(0); i >= 0; i = entities.nextSetBit(i + 1)) {
+            int start = index.entityStarts()[i];
+            output.writeRawBytes(data, start, index.entityEnds()[i] - start);
+        }
+    }
+
+    private static void and(BitSet result, Map<String, int[]> index, Set<String> ids) {
+        if (ids.isEmpty()) {
+            return;
+        }
+        BitSet matches = new BitSet();
+        for (String id : ids) {
+            for (int position : index.getOrDefault(id, new int[0])) {
+                matches.set(position);
+            }
+        }
+        result.and(matches);
+    }
+
+    private static void add(Map<String, List<Integer>> index, Set<String> ids, int position) {
+        for (String id : ids) {
+            index.computeIfAbsent(id, k -> new ArrayList<>()).add(position);
+        }
+    }
+
+    private static Map<String, int[]> toArrays(Map<String, List<Integer>> index) {
+        Map<String, int[]> result = new HashMap<>();
+        for (Map.Entry<String, List<Integer>> entry : index.entrySet()) {
+            result.put(entry.getKey(), entry.getValue().stream().mapToInt(Integer::intValue).toArray());
+        }
+        return Collections.unmodifiableMap(result);
+    }
+}
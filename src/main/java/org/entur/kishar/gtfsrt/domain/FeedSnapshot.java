@@ -0,0 +1,156 @@
+package org.entur.kishar.gtfsrt.domain;
+
+import com.google.transit.realtime.GtfsRealtime.FeedMessage;
+import org.entur.kishar.gtfsrt.helpers.FeedWireFormat;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.entur.kishar.gtfsrt.helpers.GtfsRealtimeLibrary.createFeedMessageBuilder;
+
+/**
+ * Immutable, pre-encoded output for one feed type: the combined feed and one feed per datasource.
+ * It also remembers the entity fingerprints of the feeds in the last few snapshots, so that clients
+ * can ask for a differential feed relative to a version they already have.
+ */
+public class FeedSnapshot {
+
+    public static final int DEFAULT_HISTORY_SIZE = 6;
+
+    private static final String COMBINED = "";
+
+    private final EncodedFeed feed;
+
+    private final Map<String, EncodedFeed> byDatasource;
+
+    private final EncodedFeed empty;
+
+    private final long createdAt;
+
+    /**
+     * The last versions of the feed of each datasource (the combined feed under {@link #COMBINED}),
+     * newest first. A version is only added when the feed has changed.
+     */
+    private final Map<String, List<FeedVersion>> history;
+
+    private final Map<String, EncodedFeed> differentials = new ConcurrentHashMap<>();
+
+    public FeedSnapshot(FeedMessage feed, Map<String, FeedMessage> feedsByDatasource) {
+        this.createdAt = System.currentTimeMillis();
+        this.feed = EncodedFeed.encode(feed, null);
+        Map<String, EncodedFeed> encoded = new HashMap<>();
+        for (Map.Entry<String, FeedMessage> entry : feedsByDatasource.entrySet()) {
+            encoded.put(entry.getKey(), EncodedFeed.encode(entry.getValue(), null));
+        }
+        this.byDatasource = Collections.unmodifiableMap(encoded);
+        this.empty = emptyFeed(this.feed, null);
+        this.history = buildHistory(null, DEFAULT_HISTORY_SIZE);
+    }
+
+    /**
+     * Builds a snapshot from feeds that are already encoded, e.g. by {@link FeedWireFormat.FeedWriter}.
+     *
+     * @param previous    the snapshot this one replaces. Feeds whose entities are unchanged since then
+     *                    are carried over as-is, keeping their version and last-modified time.
+     * @param historySize number of versions of each feed, including this one, that differential
+     *                    feeds can be requested relative to
+     */
+    public FeedSnapshot(byte[] feed, Map<String, byte[]> feedsByDatasource, FeedSnapshot previous, int historySize) {
+        this.createdAt = System.currentTimeMillis();
+        this.feed = EncodedFeed.encode(feed, previous != null ? previous.feed : null);
+        Map<String, EncodedFeed> encoded = new HashMap<>();
+        for (Map.Entry<String, byte[]> entry : feedsByDatasource.entrySet()) {
+            EncodedFeed previousFeed = previous != null ? previous.byDatasource.get(entry.getKey()) : null;
+            encoded.put(entry.getKey(), EncodedFeed.encode(entry.getValue(), previousFeed));
+        }
+        this.byDatasource = Collections.unmodifiableMap(encoded);
+        this.empty = emptyFeed(this.feed, previous);
+        this.history = buildHistory(previous, historySize);
+    }
+
+    private static EncodedFeed emptyFeed(EncodedFeed feed, FeedSnapshot previous) {
+        return EncodedFeed.encode(new FeedWireFormat.FeedWriter(feed.getHeader()).toByteArray(),
+                previous != null ? previous.empty : null);
+    }
+
+    private Map<String, List<FeedVersion>> buildHistory(FeedSnapshot previous, int historySize) {
+        Map<String, List<FeedVersion>> result = new HashMap<>();
+        result.put(COMBINED, buildHistory(feed, previous != null ? previous.history.get(COMBINED) : null, historySize));
+        for (Map.Entry<String, EncodedFeed> entry : byDatasource.entrySet()) {
+            List<FeedVersion> older = previous != null ? previous.history.get(entry.getKey()) : null;
+            result.put(entry.getKey(), buildHistory(entry.getValue(), older, historySize));
+        }
+        return Collections.unmodifiableMap(result);
+    }
+
+    private static List<FeedVersion> buildHistory(EncodedFeed feed, List<FeedVersion> older, int historySize) {
+        FeedVersion current = feed.getFeedVersion();
+        if (older != null && !older.isEmpty() && older.get(0).version().equals(current.version())) {
+            return older;
+        }
+        List<FeedVersion> result = new ArrayList<>();
+        result.add(current);
+        if (older != null) {
+            for (FeedVersion version : older) {
+                if (result.size() >= historySize) {
+                    break;
+                }
+                result.add(version);
+            }
+        }
+        return Collections.unmodifiableList(result);
+    }
+
+    public static FeedSnapshot empty() {
+        return new FeedSnapshot(createFeedMessageBuilder().build(), Collections.emptyMap());
+    }
+
+    public EncodedFeed getFeed() {
+        return feed;
+    }
+
+    /**
+     * Returns the feed for the given datasource, or the combined feed if no datasource is given.
+     * Unknown datasources get an empty feed.
+     */
+    public EncodedFeed getFeed(String datasource) {
+        if (datasource == null || datasource.isEmpty()) {
+            return feed;
+        }
+        return byDatasource.getOrDefault(datasource, empty);
+    }
+
+    /**
+     * Returns what has changed in the feed for the given datasource since version {@code since}, as
+     * a DIFFERENTIAL feed. Falls back to the full dataset if {@code since} is missing or no longer in
+     * the history. Each differential is built at most once per snapshot.
+     */
+    public EncodedFeed getDifferentialFeed(String datasource, String since) {
+        EncodedFeed current = getFeed(datasource);
+        if (since == null || since.isEmpty()) {
+            return current;
+        }
+        String key = datasource == null || datasource.isEmpty() ? COMBINED : datasource;
+        for (FeedVersion base : history.getOrDefault(key, List.of())) {
+            if (base.version().equals(since)) {
+                return differentials.computeIfAbsent(key + "/" + since, k -> current.differentialFrom(base));
+            }
+        }
+        return current;
+    }
+
+    public Map<String, EncodedFeed> getFeedsByDatasource() {
+        return byDatasource;
+    }
+
+    /**
+     * Time this snapshot was built, in epoch millis.
+     */
+    public long getCreatedAt() {
+        return createdAt;
+    }
+}
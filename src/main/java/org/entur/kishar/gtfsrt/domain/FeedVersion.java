@@ -0,0 +1,12 @@
+package org.entur.kishar.gtfsrt.domain;
+
+import java.util.Map;
+
+/**
+ * The entity fingerprints of one version of a feed - what a client holding that version has seen.
+ *
+ * @param version      the feed version, as sent in the ETag
+ * @param entityHashes hash of each entity's encoding, by entity id
+ */
+public record FeedVersion(String version, Map<String, Long> entityHashes) {
+}
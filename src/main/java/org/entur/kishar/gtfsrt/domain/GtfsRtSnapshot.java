@@ -0,0 +1,50 @@
+package org.entur.kishar.gtfsrt.domain;
+
+/**
+ * Immutable output of one output cycle: the trip-update, vehicle-position and alert feeds.
+ * Published as a whole, so a reader always sees the three feed types from the same cycle.
+ */
+public class GtfsRtSnapshot {
+
+    private static final GtfsRtSnapshot EMPTY = new GtfsRtSnapshot(FeedSnapshot.empty(), FeedSnapshot.empty(), FeedSnapshot.empty());
+
+    private final FeedSnapshot tripUpdates;
+
+    private final FeedSnapshot vehiclePositions;
+
+    private final FeedSnapshot alerts;
+
+    public GtfsRtSnapshot(FeedSnapshot tripUpdates, FeedSnapshot vehiclePositions, FeedSnapshot alerts) {
+        this.tripUpdates = tripUpdates;
+        this.vehiclePositions = vehiclePositions;
+        this.alerts = alerts;
+    }
+
+    public static GtfsRtSnapshot empty() {
+        return EMPTY;
+    }
+
+    public FeedSnapshot getTripUpdates() {
+        return tripUpdates;
+    }
+
+    public FeedSnapshot getVehiclePositions() {
+        return vehiclePositions;
+    }
+
+    public FeedSnapshot getAlerts() {
+        return alerts;
+    }
+
+    public GtfsRtSnapshot withTripUpdates(FeedSnapshot tripUpdates) {
+        return new GtfsRtSnapshot(tripUpdates, vehiclePositions, alerts);
+    }
+
+    public GtfsRtSnapshot withVehiclePositions(FeedSnapshot vehiclePositions) {
+        return new GtfsRtSnapshot(tripUpdates, vehiclePositions, alerts);
+    }
+
+    public GtfsRtSnapshot withAlerts(FeedSnapshot alerts) {
+        return new GtfsRtSnapshot(tripUpdates, vehiclePositions, alerts);
+    }
+}
@@ -0,0 +1,169 @@
+package org.entur.kishar.gtfsrt.domain;
+
+import com.google.protobuf.CodedOutputStream;
+import org.entur.kishar.gtfsrt.helpers.FeedWireFormat;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Grid index over the positions of the vehicles in a feed. Each cell holds the encoded entity
+ * records of the vehicles inside it, concatenated, so cells that lie completely inside a bounding
+ * box are copied to the response as they are. Only the vehicles in cells on the edge of the box
+ * are looked at one by one.
+ */
+class SpatialGrid {
+
+    /**
+     * About 11 km north-south, and 5 km east-west in southern Norway.
+     */
+    static final double CELL_SIZE_DEGREES = 0.1;
+
+    private final byte[] data;
+
+    private final FeedWireFormat.FeedIndex index;
+
+    private final Map<Long, Cell> cells;
+
+    /**
+     * @param entities   positions in the feed of the entities to index
+     * @param latitudes  latitude of each entity in the feed
+     * @param longitudes longitude of each entity in the feed
+     */
+    SpatialGrid(byte[] data, FeedWireFormat.FeedIndex index, int[] entities, float[] latitudes, float[] longitudes) {
+        this.data = data;
+        this.index = index;
+        Map<Long, List<Integer>> byCell = new HashMap<>();
+        for (int entity : entities) {
+            byCell.computeIfAbsent(key(cellIndex(latitudes[entity], 90), cellIndex(longitudes[entity], 180)), k -> new ArrayList<>())
+                    .add(entity);
+        }
+        Map<Long, Cell> result = new HashMap<>();
+        for (Map.Entry<Long, List<Integer>> entry : byCell.entrySet()) {
+            result.put(entry.getKey(), new Cell(entry.getValue().stream().mapToInt(Integer::intValue).toArray(), latitudes, longitudes));
+        }
+        this.cells = result;
+    }
+
+    /**
+     * Returns the positions of the entities inside the bounding box.
+     */
+    BitSet select(BoundingBox boundingBox) {
+        BitSet result = new BitSet(index.getEntityCount());
+        for (Overlap overlap : overlapping(boundingBox)) {
+            Cell cell = overlap.cell();
+            for (int i = 0; i < cell.entities.length; i++) {
+                if (overlap.inside() || boundingBox.contains(cell.latitudes[i], cell.longitudes[i])) {
+                    result.set(cell.entities[i]);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Writes the encoded entity records of the vehicles inside the bounding box.
+     */
+    void write(BoundingBox boundingBox, CodedOutputStream output) throws IOException {
+        for (Overlap overlap : overlapping(boundingBox)) {
+            Cell cell = overlap.cell();
+            if (overlap.inside()) {
+                output.writeRawBytes(cell.fragment);
+                continue;
+            }
+            for (int i = 0; i < cell.entities.length; i++) {
+                if (boundingBox.contains(cell.latitudes[i], cell.longitudes[i])) {
+                    int start = index.entityStarts()[cell.entities[i]];
+                    output.writeRawBytes(data, start, index.entityEnds()[cell.entities[i]] - start);
+                }
+            }
+        }
+    }
+
+    /**
+     * A non-empty cell overlapping a bounding box.
+     *
+     * @param inside whether the whole cell is inside the bounding box
+     */
+    private record Overlap(Cell cell, boolean inside) {
+    }
+
+    /**
+     * Finds the non-empty cells overlapping the bounding box. Looks the cells up by index for small
+     * boxes, and goes through the non-empty cells for large ones.
+     */
+    private List<Overlap> overlapping(BoundingBox boundingBox) {
+        List<Overlap> result = new ArrayList<>();
+        int minLat = cellIndex(boundingBox.minLatitude(), 90);
+        int maxLat = cellIndex(boundingBox.maxLatitude(), 90);
+        int minLon = cellIndex(boundingBox.minLongitude(), 180);
+        int maxLon = cellIndex(boundingBox.maxLongitude(), 180);
+        long cellsInBox = (long) (maxLat - minLat + 1) * (maxLon - minLon + 1);
+
+        if (cellsInBox <= cells.size()) {
+            for (int lat = minLat; lat <= maxLat; lat++) {
+                for (int lon = minLon; lon <= maxLon; lon++) {
+                    Cell cell = cells.get(key(lat, lon));
+                    if (cell != null) {
+                        result.add(new Overlap(cell, isInside(lat, lon, boundingBox)));
+                    }
+                }
+            }
+        } else {
+            for (Map.Entry<Long, Cell> entry : cells.entrySet()) {
+                int lat = (int) (entry.getKey() >> 32);
+                int lon = (int) (long) entry.getKey();
+                if (lat >= minLat && lat <= maxLat && lon >= minLon && lon <= maxLon) {
+                    result.add(new Overlap(entry.getValue(), isInside(lat, lon, boundingBox)));
+                }
+            }
+        }
+        return result;
+    }
+
+    private static boolean isInside(int lat, int lon, BoundingBox boundingBox) {
+        return boundingBox.minLatitude() <= lat * CELL_SIZE_DEGREES - 90
+                && (lat + 1) * CELL_SIZE_DEGREES - 90 <= boundingBox.maxLatitude()
+                && boundingBox.minLongitude() <= lon * CELL_SIZE_DEGREES - 180
+                && (lon + 1) * CELL_SIZE_DEGREES - 180 <= boundingBox.maxLongitude();
+    }
+
+    private static int cellIndex(double degrees, double offset) {
+        return (int) Math.floor((degrees + offset) / CELL_SIZE_DEGREES);
+    }
+
+    private static long key(int lat, int lon) {
+        return ((long) lat << 32) | (lon & 0xffffffffL);
+    }
+
+    private class Cell {
+        private final int[] entities;
+        private final float[] latitudes;
+        private final float[] longitudes;
+        private final byte[] fragment;
+
+        Cell(int[] entities, float[] allLatitudes, float[] allLongitudes) {
+            this.entities = entities;
+            this.latitudes = new float[entities.length];
+            this.longitudes = new float[entities.length];
+            int size = 0;
+            for (int i = 0; i < entities.length; i++) {
+                latitudes[i] = allLatitudes[entities[i]];
+                longitudes[i] = allLongitudes[entities[i]];
+                size += index.entityEnds()[entities[i]] - index.entityStarts()[entities[i]];
+            }
+            this.fragment = new byte[size];
+            int offset = 0;
+            for (int entity : entities) {
+                int start = index.entityStarts()[entity];
+                int length = index.entityEnds()[entity] - start;
+                System.arraycopy(data, start, fragment, offset, length);
+                offset += length;
+            }
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package org.entur.kishar.gtfsrt.helpers;
+
+import java.io.ByteArrayOutputStream;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Builds gzip and zlib ("deflate" in HTTP) framings around a single raw DEFLATE stream, so that
+ * both content-codings can be offered while the payload is only compressed once.
+ */
+public class CompressionLibrary {
+
+    private static final byte[] GZIP_HEADER = {
+            0x1f, (byte) 0x8b,  // magic
+            Deflater.DEFLATED,  // compression method
+            0,                  // flags
+            0, 0, 0, 0,         // modification time
+            0,                  // extra flags
+            (byte) 0xff         // OS unknown
+    };
+
+    private static final byte[] ZLIB_HEADER = {0x78, (byte) 0x9c};
+
+    public static byte[] rawDeflate(byte[] data) {
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        try {
+            deflater.setInput(data);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(64, data.length / 4));
+            byte[] buffer = new byte[8192];
+            while (!deflater.finished()) {
+                int length = deflater.deflate(buffer);
+                out.write(buffer, 0, length);
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Wraps a raw DEFLATE stream of {@code original} in a gzip (RFC 1952) member.
+     */
+    public static byte[] toGzip(byte[] deflated, byte[] original) {
+        CRC32 crc = new CRC32();
+        crc.update(original);
+        byte[] result = new byte[GZIP_HEADER.length + deflated.length + 8];
+        System.arraycopy(GZIP_HEADER, 0, result, 0, GZIP_HEADER.length);
+        System.arraycopy(deflated, 0, result, GZIP_HEADER.length, deflated.length);
+        int offset = GZIP_HEADER.length + deflated.length;
+        writeIntLittleEndian(result, offset, (int) crc.getValue());
+        writeIntLittleEndian(result, offset + 4, original.length);
+        return result;
+    }
+
+    /**
+     * Wraps a raw DEFLATE stream of {@code original} in a zlib (RFC 1950) stream.
+     */
+    public static byte[] toZlib(byte[] deflated, byte[] original) {
+        Adler32 adler = new Adler32();
+        adler.update(original);
+        byte[] result = new byte[ZLIB_HEADER.length + deflated.length + 4];
+        System.arraycopy(ZLIB_HEADER, 0, result, 0, ZLIB_HEADER.length);
+        System.arraycopy(deflated, 0, result, ZLIB_HEADER.length, deflated.length);
+        writeIntBigEndian(result, ZLIB_HEADER.length + deflated.length, (int) adler.getValue());
+        return result;
+    }
+
+    private static void writeIntLittleEndian(byte[] target, int offset, int value) {
+        target[offset] = (byte) value;
+        target[offset + 1] = (byte) (value >>> 8);
+        target[offset + 2] = (byte) (value >>> 16);
+        target[offset + 3] = (byte) (value >>> 24);
+    }
+
+    private static void writeIntBigEndian(byte[] target, int offset, int value) {
+        target[offset] = (byte) (value >>> 24);
+        target[offset + 1] = (byte) (value >>> 16);
+        target[offset + 2] = (byte) (value >>> 8);
+        target[offset + 3] = (byte) value;
+    }
+}
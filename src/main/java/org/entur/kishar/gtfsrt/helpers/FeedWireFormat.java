@@ -0,0 +1,451 @@
+package org.entur.kishar.gtfsrt.helpers;
+
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.transit.realtime.GtfsRealtime.Alert;
+import com.google.transit.realtime.GtfsRealtime.EntitySelector;
+import com.google.transit.realtime.GtfsRealtime.FeedEntity;
+import com.google.transit.realtime.GtfsRealtime.FeedHeader;
+import com.google.transit.realtime.GtfsRealtime.FeedMessage;
+import com.google.transit.realtime.GtfsRealtime.Position;
+import com.google.transit.realtime.GtfsRealtime.TripDescriptor;
+import com.google.transit.realtime.GtfsRealtime.TripUpdate;
+import com.google.transit.realtime.GtfsRealtime.VehiclePosition;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Reads and writes the protobuf wire format of an encoded FeedMessage without building FeedEntity
+ * objects.
+ */
+public class FeedWireFormat {
+
+    private static final int WIRETYPE_VARINT = 0;
+    private static final int WIRETYPE_FIXED64 = 1;
+    private static final int WIRETYPE_LENGTH_DELIMITED = 2;
+    private static final int WIRETYPE_FIXED32 = 5;
+
+    /**
+     * Location and fingerprint of every entity in an encoded FeedMessage. Entity {@code i} is the
+     * complete field record (tag, length and payload) in {@code data[entityStarts[i], entityEnds[i])}.
+     */
+    public record FeedIndex(FeedHeader header,
+                            String[] entityIds,
+                            long[] entityHashes,
+                            int[] entityStarts,
+                            int[] entityEnds,
+                            String version) {
+
+        public int getEntityCount() {
+            return entityIds.length;
+        }
+    }
+
+    /**
+     * The routes, trips and stops an entity refers to: those of the trip and stop time updates of a
+     * TripUpdate, the trip and stop of a VehiclePosition, and the informed entities of an Alert.
+     * Also the position of a VehiclePosition, if it has one.
+     */
+    public static class EntitySelectors {
+        private final Set<String> routeIds = new HashSet<>();
+        private final Set<String> tripIds = new HashSet<>();
+        private final Set<String> stopIds = new HashSet<>();
+        private boolean deleted;
+        private float latitude = Float.NaN;
+        private float longitude = Float.NaN;
+
+        public Set<String> routeIds() {
+            return routeIds;
+        }
+
+        public Set<String> tripIds() {
+            return tripIds;
+        }
+
+        public Set<String> stopIds() {
+            return stopIds;
+        }
+
+        public boolean deleted() {
+            return deleted;
+        }
+
+        public boolean hasPosition() {
+            return !Float.isNaN(latitude) && !Float.isNaN(longitude);
+        }
+
+        public float latitude() {
+            return latitude;
+        }
+
+        public float longitude() {
+            return longitude;
+        }
+    }
+
+    public static FeedIndex index(byte[] data) {
+        FeedHeader header = FeedHeader.getDefaultInstance();
+        int count = 0;
+        String[] ids = new String[16];
+        long[] hashes = new long[16];
+        int[] starts = new int[16];
+        int[] ends = new int[16];
+        Hasher version = Hashing.farmHashFingerprint64().newHasher();
+
+        Cursor cursor = new Cursor(data, 0, data.length);
+        while (cursor.hasRemaining()) {
+            int start = cursor.pos;
+            int tag = (int) cursor.readVarint();
+            int fieldNumber = tag >>> 3;
+            if (fieldNumber == FeedMessage.ENTITY_FIELD_NUMBER && (tag & 7) == WIRETYPE_LENGTH_DELIMITED) {
+                int length = (int) cursor.readVarint();
+                int payloadStart = cursor.pos;
+                cursor.skip(length);
+                if (count == ids.length) {
+                    ids = Arrays.copyOf(ids, count * 2);
+                    hashes = Arrays.copyOf(hashes, count * 2);
+                    starts = Arrays.copyOf(starts, count * 2);
+                    ends = Arrays.copyOf(ends, count * 2);
+                }
+                ids[count] = readEntityId(data, payloadStart, cursor.pos);
+                hashes[count] = Hashing.farmHashFingerprint64().hashBytes(data, start, cursor.pos - start).asLong();
+                starts[count] = start;
+                ends[count] = cursor.pos;
+                version.putLong(hashes[count]);
+                count++;
+            } else if (fieldNumber == FeedMessage.HEADER_FIELD_NUMBER && (tag & 7) == WIRETYPE_LENGTH_DELIMITED) {
+                int length = (int) cursor.readVarint();
+                try {
+                    header = FeedHeader.parser().parseFrom(data, cursor.pos, length);
+                } catch (InvalidProtocolBufferException e) {
+                    throw new IllegalArgumentException("Invalid feed header", e);
+                }
+                cursor.skip(length);
+            } else {
+                cursor.skipField(tag);
+            }
+        }
+        return new FeedIndex(header,
+                Arrays.copyOf(ids, count),
+                Arrays.copyOf(hashes, count),
+                Arrays.copyOf(starts, count),
+                Arrays.copyOf(ends, count),
+                version.hash().toString());
+    }
+
+    /**
+     * Checks that {@code entity} is a structurally valid encoded FeedEntity with an id, without
+     * parsing it. Only the top-level fields are checked; the content of nested messages is not.
+     */
+    public static boolean isValidEntity(byte[] entity) {
+        if (entity == null || entity.length == 0) {
+            return false;
+        }
+        boolean hasId = false;
+        try {
+            Cursor cursor = new Cursor(entity, 0, entity.length);
+            while (cursor.hasRemaining()) {
+                int tag = (int) cursor.readVarint();
+                if ((tag >>> 3) == 0) {
+                    return false;
+                }
+                if ((tag >>> 3) == FeedEntity.ID_FIELD_NUMBER && (tag & 7) == WIRETYPE_LENGTH_DELIMITED) {
+                    hasId = true;
+                }
+                cursor.skipField(tag);
+            }
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+        return hasId;
+    }
+
+    /**
+     * Reads the selectors of the entity in the field record {@code data[recordStart, recordEnd)},
+     * as located by {@link #index(byte[])}.
+     */
+    public static EntitySelectors readSelectors(byte[] data, int recordStart, int recordEnd) {
+        EntitySelectors selectors = new EntitySelectors();
+        Cursor record = new Cursor(data, recordStart, recordEnd);
+        record.readVarint();
+        int length = (int) record.readVarint();
+        Cursor entity = new Cursor(data, record.pos, record.pos + length);
+        while (entity.hasRemaining()) {
+            int tag = (int) entity.readVarint();
+            int fieldNumber = tag >>> 3;
+            if (fieldNumber == FeedEntity.IS_DELETED_FIELD_NUMBER && (tag & 7) == WIRETYPE_VARINT) {
+                selectors.deleted = entity.readVarint() != 0;
+            } else if ((tag & 7) != WIRETYPE_LENGTH_DELIMITED) {
+                entity.skipField(tag);
+            } else if (fieldNumber == FeedEntity.TRIP_UPDATE_FIELD_NUMBER) {
+                readTripUpdate(entity.message(), selectors);
+            } else if (fieldNumber == FeedEntity.VEHICLE_FIELD_NUMBER) {
+                readVehiclePosition(entity.message(), selectors);
+            } else if (fieldNumber == FeedEntity.ALERT_FIELD_NUMBER) {
+                readAlert(entity.message(), selectors);
+            } else {
+                entity.skipField(tag);
+            }
+        }
+        return selectors;
+    }
+
+    private static void readTripUpdate(Cursor tripUpdate, EntitySelectors selectors) {
+        while (tripUpdate.hasRemaining()) {
+            int tag = (int) tripUpdate.readVarint();
+            if ((tag & 7) != WIRETYPE_LENGTH_DELIMITED) {
+                tripUpdate.skipField(tag);
+            } else if ((tag >>> 3) == TripUpdate.TRIP_FIELD_NUMBER) {
+                readTripDescriptor(tripUpdate.message(), selectors);
+            } else if ((tag >>> 3) == TripUpdate.STOP_TIME_UPDATE_FIELD_NUMBER) {
+                readStringField(tripUpdate.message(), TripUpdate.StopTimeUpdate.STOP_ID_FIELD_NUMBER, selectors.stopIds());
+            } else {
+                tripUpdate.skipField(tag);
+            }
+        }
+    }
+
+    private static void readVehiclePosition(Cursor vehiclePosition, EntitySelectors selectors) {
+        while (vehiclePosition.hasRemaining()) {
+            int tag = (int) vehiclePosition.readVarint();
+            if ((tag & 7) != WIRETYPE_LENGTH_DELIMITED) {
+                vehiclePosition.skipField(tag);
+            } else if ((tag >>> 3) == VehiclePosition.TRIP_FIELD_NUMBER) {
+                readTripDescriptor(vehiclePosition.message(), selectors);
+            } else if ((tag >>> 3) == VehiclePosition.STOP_ID_FIELD_NUMBER) {
+                selectors.stopIds().add(vehiclePosition.string());
+            } else if ((tag >>> 3) == VehiclePosition.POSITION_FIELD_NUMBER) {
+                readPosition(vehiclePosition.message(), selectors);
+            } else {
+                vehiclePosition.skipField(tag);
+            }
+        }
+    }
+
+    private static void readPosition(Cursor position, EntitySelectors selectors) {
+        while (position.hasRemaining()) {
+            int tag = (int) position.readVarint();
+            if ((tag >>> 3) == Position.LATITUDE_FIELD_NUMBER && (tag & 7) == WIRETYPE_FIXED32) {
+                selectors.latitude = Float.intBitsToFloat(position.readFixed32());
+            } else if ((tag >>> 3) == Position.LONGITUDE_FIELD_NUMBER && (tag & 7) == WIRETYPE_FIXED32) {
+                selectors.longitude = Float.intBitsToFloat(position.readFixed32());
+            } else {
+                position.skipField(tag);
+            }
+        }
+    }
+
+    private static void readAlert(Cursor alert, EntitySelectors selectors) {
+        while (alert.hasRemaining()) {
+            int tag = (int) alert.readVarint();
+            if ((tag >>> 3) == Alert.INFORMED_ENTITY_FIELD_NUMBER && (tag & 7) == WIRETYPE_LENGTH_DELIMITED) {
+                Cursor informedEntity = alert.message();
+                while (informedEntity.hasRemaining()) {
+                    int entityTag = (int) informedEntity.readVarint();
+                    if ((entityTag & 7) != WIRETYPE_LENGTH_DELIMITED) {
+                        informedEntity.skipField(entityTag);
+                    } else if ((entityTag >>> 3) == EntitySelector.ROUTE_ID_FIELD_NUMBER) {
+                        selectors.routeIds().add(informedEntity.string());
+                    } else if ((entityTag >>> 3) == EntitySelector.TRIP_FIELD_NUMBER) {
+                        readTripDescriptor(informedEntity.message(), selectors);
+                    } else if ((entityTag >>> 3) == EntitySelector.STOP_ID_FIELD_NUMBER) {
+                        selectors.stopIds().add(informedEntity.string());
+                    } else {
+                        informedEntity.skipField(entityTag);
+                    }
+                }
+            } else {
+                alert.skipField(tag);
+            }
+        }
+    }
+
+    private static void readTripDescriptor(Cursor trip, EntitySelectors selectors) {
+        while (trip.hasRemaining()) {
+            int tag = (int) trip.readVarint();
+            if ((tag & 7) != WIRETYPE_LENGTH_DELIMITED) {
+                trip.skipField(tag);
+            } else if ((tag >>> 3) == TripDescriptor.TRIP_ID_FIELD_NUMBER) {
+                selectors.tripIds().add(trip.string());
+            } else if ((tag >>> 3) == TripDescriptor.ROUTE_ID_FIELD_NUMBER) {
+                selectors.routeIds().add(trip.string());
+            } else {
+                trip.skipField(tag);
+            }
+        }
+    }
+
+    private static void readStringField(Cursor message, int fieldNumber, Set<String> values) {
+        while (message.hasRemaining()) {
+            int tag = (int) message.readVarint();
+            if ((tag >>> 3) == fieldNumber && (tag & 7) == WIRETYPE_LENGTH_DELIMITED) {
+                values.add(message.string());
+            } else {
+                message.skipField(tag);
+            }
+        }
+    }
+
+    /**
+     * Reads the id of a FeedEntity from its encoded payload, or returns an empty string if it has none.
+     */
+    public static String readEntityId(byte[] data, int from, int to) {
+        Cursor cursor = new Cursor(data, from, to);
+        while (cursor.hasRemaining()) {
+            int tag = (int) cursor.readVarint();
+            if ((tag >>> 3) == FeedEntity.ID_FIELD_NUMBER && (tag & 7) == WIRETYPE_LENGTH_DELIMITED) {
+                int length = (int) cursor.readVarint();
+                return new String(data, cursor.pos, length, StandardCharsets.UTF_8);
+            }
+            cursor.skipField(tag);
+        }
+        return "";
+    }
+
+    /**
+     * Assembles an encoded FeedMessage from a header and already encoded FeedEntity messages. Each
+     * entity is copied as-is into a field-2 record; nothing is parsed or re-serialized.
+     */
+    public static class FeedWriter {
+
+        private final byte[] header;
+
+        private final List<ByteBuffer> entities = new ArrayList<>();
+
+        private int size;
+
+        public FeedWriter(FeedHeader header) {
+            this(header.toByteArray());
+        }
+
+        /**
+         * @param header an encoded FeedHeader, which may be shared between writers
+         */
+        public FeedWriter(byte[] header) {
+            this.header = header;
+            this.size = recordSize(FeedMessage.HEADER_FIELD_NUMBER, header.length);
+        }
+
+        public FeedWriter addEntity(byte[] entity) {
+            return addEntity(ByteBuffer.wrap(entity));
+        }
+
+        /**
+         * Adds the entity in the buffer, from its start to its capacity. The buffer is read by
+         * {@link #toByteArray()}, so its content must not change until then.
+         */
+        public FeedWriter addEntity(ByteBuffer entity) {
+            entities.add(entity);
+            size += recordSize(FeedMessage.ENTITY_FIELD_NUMBER, entity.capacity());
+            return this;
+        }
+
+        public byte[] toByteArray() {
+            byte[] result = new byte[size];
+            CodedOutputStream output = CodedOutputStream.newInstance(result);
+            try {
+                output.writeByteArray(FeedMessage.HEADER_FIELD_NUMBER, header);
+                for (ByteBuffer entity : entities) {
+                    output.writeByteBuffer(FeedMessage.ENTITY_FIELD_NUMBER, entity);
+                }
+                output.checkNoSpaceLeft();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return result;
+        }
+
+        private static int recordSize(int fieldNumber, int length) {
+            return CodedOutputStream.computeTagSize(fieldNumber)
+                    + CodedOutputStream.computeUInt32SizeNoTag(length)
+                    + length;
+        }
+    }
+
+    private static class Cursor {
+        private final byte[] data;
+        private final int limit;
+        private int pos;
+
+        Cursor(byte[] data, int from, int to) {
+            this.data = data;
+            this.pos = from;
+            this.limit = to;
+        }
+
+        boolean hasRemaining() {
+            return pos < limit;
+        }
+
+        long readVarint() {
+            long result = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                if (pos >= limit) {
+                    throw new IllegalArgumentException("Truncated varint at " + pos);
+                }
+                byte b = data[pos++];
+                result |= (long) (b & 0x7f) << shift;
+                if ((b & 0x80) == 0) {
+                    return result;
+                }
+            }
+            throw new IllegalArgumentException("Malformed varint at " + pos);
+        }
+
+        void skip(int length) {
+            if (length < 0 || pos + length > limit) {
+                throw new IllegalArgumentException("Truncated field at " + pos);
+            }
+            pos += length;
+        }
+
+        /**
+         * Reads a length-delimited field and returns a cursor over its content.
+         */
+        Cursor message() {
+            int length = (int) readVarint();
+            int from = pos;
+            skip(length);
+            return new Cursor(data, from, pos);
+        }
+
+        int readFixed32() {
+            if (pos + 4 > limit) {
+                throw new IllegalArgumentException("Truncated fixed32 at " + pos);
+            }
+            int result = (data[pos] & 0xff)
+                    | (data[pos + 1] & 0xff) << 8
+                    | (data[pos + 2] & 0xff) << 16
+                    | (data[pos + 3] & 0xff) << 24;
+            pos += 4;
+            return result;
+        }
+
+        String string() {
+            int length = (int) readVarint();
+            int from = pos;
+            skip(length);
+            return new String(data, from, length, StandardCharsets.UTF_8);
+        }
+
+        void skipField(int tag) {
+            switch (tag & 7) {
+                case WIRETYPE_VARINT -> readVarint();
+                case WIRETYPE_FIXED64 -> skip(8);
+                case WIRETYPE_LENGTH_DELIMITED -> skip((int) readVarint());
+                case WIRETYPE_FIXED32 -> skip(4);
+                default -> throw new IllegalArgumentException("Unsupported wire type in tag " + tag);
+            }
+        }
+    }
+}
@@ -15,6 +15,7 @@
 
 package org.entur.kishar.metrics;
 
+import io.micrometer.core.instrument.Gauge;
 import io.micrometer.core.instrument.ImmutableTag;
 import io.micrometer.core.instrument.Meter;
 import io.micrometer.core.instrument.Tag;
@@ -28,6 +29,8 @@ import org.springframework.stereotype.Component;
 import java.math.BigInteger;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
 
 @Component
 public class PrometheusMetricsService extends PrometheusMeterRegistry {
@@ -41,6 +44,28 @@ public class PrometheusMetricsService extends PrometheusMeterRegistry {
 
     private final String GTFSRT_ENTITIES_TOTAL = METRICS_PREFIX + "gtfsrt.entitites.total";
 
+    private final String REDIS_BATCH_SIZE = METRICS_PREFIX + "redis.batch.size";
+    private final String REDIS_BATCH_FLUSH = METRICS_PREFIX + "redis.batch.flush";
+    private final String REDIS_SUPERSEDED_WRITES = METRICS_PREFIX + "redis.write.buffer.superseded";
+    private final String REDIS_FINGERPRINT_HITS = METRICS_PREFIX + "redis.fingerprint.hits";
+    private final String REDIS_FINGERPRINT_MISSES = METRICS_PREFIX + "redis.fingerprint.misses";
+    private final String REDIS_COMPRESSION_RAW_BYTES = METRICS_PREFIX + "redis.compression.raw.bytes";
+    private final String REDIS_COMPRESSION_STORED_BYTES = METRICS_PREFIX + "redis.compression.stored.bytes";
+    private final String REDIS_COMPRESSION_RATIO = METRICS_PREFIX + "redis.compression.ratio";
+    private final String REDIS_COMPRESSION_ENCODE = METRICS_PREFIX + "redis.compression.encode";
+    private final String REDIS_COMPRESSION_DECODE = METRICS_PREFIX + "redis.compression.decode";
+    private final String REDIS_ASYNC_IN_FLIGHT = METRICS_PREFIX + "redis.async.in.flight";
+    private final String REDIS_ASYNC_QUEUE_DEPTH = METRICS_PREFIX + "redis.async.queue.depth";
+    private final String REDIS_ASYNC_REJECTED = METRICS_PREFIX + "redis.async.rejected";
+    private final String NEARCACHE_STALENESS = METRICS_PREFIX + "nearcache.staleness";
+    private final String INMEMORY_EVICTIONS = METRICS_PREFIX + "inmemory.evictions";
+    private final String INMEMORY_ENTITIES = METRICS_PREFIX + "inmemory.entities";
+    private final String INMEMORY_BYTES = METRICS_PREFIX + "inmemory.bytes";
+    private final String INMEMORY_OFFHEAP_ALLOCATED = METRICS_PREFIX + "inmemory.offheap.allocated";
+    private final String INMEMORY_OFFHEAP_FRAGMENTATION = METRICS_PREFIX + "inmemory.offheap.fragmentation";
+    private final String INMEMORY_RECOVERY = METRICS_PREFIX + "inmemory.recovery";
+    private final String INMEMORY_RECOVERED_ENTITIES = METRICS_PREFIX + "inmemory.recovered.entities";
+
     public PrometheusMetricsService() {
         super(PrometheusConfig.DEFAULT);
     }
@@ -68,6 +93,154 @@ public class PrometheusMetricsService extends PrometheusMeterRegistry {
         }
     }
 
+    /**
+     * Registers a batch of writes sent to Redis: the number of entities in it, and the time taken
+     * to execute it.
+     */
+    public void registerRedisBatch(String mapType, int size, long flushNanos) {
+        List<Tag> tags = new ArrayList<>();
+        tags.add(new ImmutableTag("mapType", mapType));
+
+        summary(REDIS_BATCH_SIZE, tags).record(size);
+        timer(REDIS_BATCH_FLUSH, tags).record(flushNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Registers buffered entities that were replaced by a newer version before being written.
+     */
+    public void registerSupersededWrites(String mapType, int count) {
+        List<Tag> counterTags = new ArrayList<>();
+        counterTags.add(new ImmutableTag("mapType", mapType));
+
+        counter(REDIS_SUPERSEDED_WRITES, counterTags).increment(count);
+    }
+
+    /**
+     * Registers the outcome of comparing entities with the ones last written: hits are entities
+     * that were skipped or only had their time to live extended, misses are entities written.
+     */
+    public void registerFingerprintChecks(String mapType, int skipped, int extended, int written) {
+        List<Tag> counterTags = new ArrayList<>();
+        counterTags.add(new ImmutableTag("mapType", mapType));
+
+        List<Tag> skippedTags = new ArrayList<>(counterTags);
+        skippedTags.add(new ImmutableTag("action", "skipped"));
+        counter(REDIS_FINGERPRINT_HITS, skippedTags).increment(skipped);
+
+        List<Tag> extendedTags = new ArrayList<>(counterTags);
+        extendedTags.add(new ImmutableTag("action", "extended"));
+        counter(REDIS_FINGERPRINT_HITS, extendedTags).increment(extended);
+
+        counter(REDIS_FINGERPRINT_MISSES, counterTags).increment(written);
+    }
+
+    /**
+     * Registers a batch of entities compressed before being written: their size before and after,
+     * and the average time taken per entity.
+     */
+    public void registerEntityCompression(String mapType, int entities, long rawBytes, long storedBytes, long encodeNanos) {
+        List<Tag> tags = new ArrayList<>();
+        tags.add(new ImmutableTag("mapType", mapType));
+
+        counter(REDIS_COMPRESSION_RAW_BYTES, tags).increment(rawBytes);
+        counter(REDIS_COMPRESSION_STORED_BYTES, tags).increment(storedBytes);
+        if (rawBytes > 0) {
+            summary(REDIS_COMPRESSION_RATIO, tags).record((double) storedBytes / rawBytes);
+        }
+        timer(REDIS_COMPRESSION_ENCODE, tags).record(encodeNanos / entities, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Registers a batch of entities decompressed after being read, with the average time taken per
+     * entity.
+     */
+    public void registerEntityDecompression(String mapType, int entities, long decodeNanos) {
+        List<Tag> tags = new ArrayList<>();
+        tags.add(new ImmutableTag("mapType", mapType));
+
+        timer(REDIS_COMPRESSION_DECODE, tags).record(decodeNanos / entities, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Registers gauges of the async store requests accepted and not yet done, and of those among
+     * them not yet running, or waiting for the flush of the write buffer.
+     */
+    public void registerAsyncRequests(Supplier<Number> inFlight, Supplier<Number> queueDepth) {
+        Gauge.builder(REDIS_ASYNC_IN_FLIGHT, inFlight).register(this);
+        Gauge.builder(REDIS_ASYNC_QUEUE_DEPTH, queueDepth).register(this);
+    }
+
+    /**
+     * Registers an async store request given up on, as the limit of requests in flight was not
+     * lifted in time.
+     */
+    public void registerAsyncRejected(String mapType) {
+        List<Tag> counterTags = new ArrayList<>();
+        counterTags.add(new ImmutableTag("mapType", mapType));
+
+        counter(REDIS_ASYNC_REJECTED, counterTags).increment();
+    }
+
+    /**
+     * Registers the largest delay from an entity being written until it reached the local mirror,
+     * in an output cycle.
+     */
+    public void registerMirrorStaleness(String mapType, long stalenessMillis) {
+        List<Tag> tags = new ArrayList<>();
+        tags.add(new ImmutableTag("mapType", mapType));
+
+        timer(NEARCACHE_STALENESS, tags).record(stalenessMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Registers an entity removed from the in-memory store, with the cause: "expired" or "size".
+     */
+    public void registerInMemoryEviction(String mapType, String cause) {
+        List<Tag> counterTags = new ArrayList<>();
+        counterTags.add(new ImmutableTag("mapType", mapType));
+        counterTags.add(new ImmutableTag("cause", cause));
+
+        counter(INMEMORY_EVICTIONS, counterTags).increment();
+    }
+
+    /**
+     * Registers gauges of the number of entities in the in-memory store, and the estimated memory
+     * they use.
+     */
+    public void registerInMemoryStoreSize(String mapType, Supplier<Number> entities, Supplier<Number> bytes) {
+        List<Tag> tags = new ArrayList<>();
+        tags.add(new ImmutableTag("mapType", mapType));
+
+        Gauge.builder(INMEMORY_ENTITIES, entities).tags(tags).register(this);
+        Gauge.builder(INMEMORY_BYTES, bytes).tags(tags).baseUnit("bytes").register(this);
+    }
+
+    /**
+     * Registers gauges of the direct memory held by the off-heap store, and the share of it that does
+     * not hold data.
+     */
+    public void registerOffHeapStore(Supplier<Number> allocatedBytes, Supplier<Number> fragmentation) {
+        Gauge.builder(INMEMORY_OFFHEAP_ALLOCATED, allocatedBytes).baseUnit("bytes").register(this);
+        Gauge.builder(INMEMORY_OFFHEAP_FRAGMENTATION, fragmentation).register(this);
+    }
+
+    /**
+     * Registers the time taken to load the entities persisted on disk at startup.
+     */
+    public void registerInMemoryRecovery(long recoveryMillis) {
+        timer(INMEMORY_RECOVERY).record(recoveryMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Registers the entities loaded from disk at startup, that had not expired.
+     */
+    public void registerInMemoryRecoveredEntities(String mapType, int count) {
+        List<Tag> counterTags = new ArrayList<>();
+        counterTags.add(new ImmutableTag("mapType", mapType));
+
+        counter(INMEMORY_RECOVERED_ENTITIES, counterTags).increment(count);
+    }
+
     public synchronized void registerTotalGtfsRtEntities(int etCount, int vmCount, int sxCount) {
         // Create list copy to avoid concurrent modification
         List<Meter> metersToRemove = new ArrayList<>();
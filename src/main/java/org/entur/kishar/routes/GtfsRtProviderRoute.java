@@ -14,17 +14,48 @@
  */
 package org.entur.kishar.routes;
 
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import jakarta.servlet.http.HttpServletResponse;
+import org.apache.camel.Exchange;
+import org.apache.camel.Message;
+import org.apache.camel.http.common.HttpMessage;
 import org.entur.kishar.gtfsrt.SiriToGtfsRealtimeService;
+import org.entur.kishar.gtfsrt.domain.BoundingBox;
+import org.entur.kishar.gtfsrt.domain.ContentEncoding;
+import org.entur.kishar.gtfsrt.domain.EncodedFeed;
+import org.entur.kishar.gtfsrt.domain.FeedFilter;
+import org.entur.kishar.gtfsrt.domain.FeedSnapshot;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Set;
+import java.util.TreeSet;
+
 @Service
 public class GtfsRtProviderRoute extends RestRouteBuilder {
 
+    private static final String MEDIA_TYPE_APPLICATION_JSON = "application/json";
+
+    private static final String MEDIA_TYPE_APPLICATION_OCTET_STREAM = "application/octet-stream";
+
+    private static final char VERSION_TAG_SEPARATOR = '-';
+
     private final SiriToGtfsRealtimeService siriToGtfsRealtimeService;
 
-    public GtfsRtProviderRoute(@Autowired SiriToGtfsRealtimeService siriToGtfsRealtimeService) {
+    private final int outputIntervalSeconds;
+
+    public GtfsRtProviderRoute(@Autowired SiriToGtfsRealtimeService siriToGtfsRealtimeService,
+                               @Value("${kishar.output.interval.seconds:10}") int outputIntervalSeconds) {
         this.siriToGtfsRealtimeService = siriToGtfsRealtimeService;
+        this.outputIntervalSeconds = outputIntervalSeconds;
     }
 
     @Override
@@ -36,6 +67,9 @@ public class GtfsRtProviderRoute extends RestRouteBuilder {
                 .get("trip-updates").to("direct:getTripUpdates").produces("application/octet-stream").id("kishar.trip-updates")
                 .get("vehicle-positions").to("direct:getVehiclePositions").produces("application/octet-stream").id("kishar.vehicle-positions")
                 .get("alerts").to("direct:getAlerts").produces("application/octet-stream").id("kishar.alerts")
+                .get("trip-updates/differential").to("direct:getTripUpdatesDifferential").produces("application/octet-stream").id("kishar.trip-updates.differential")
+                .get("vehicle-positions/differential").to("direct:getVehiclePositionsDifferential").produces("application/octet-stream").id("kishar.vehicle-positions.differential")
+                .get("alerts/differential").to("direct:getAlertsDifferential").produces("application/octet-stream").id("kishar.alerts.differential")
         ;
 
         rest("/internal/")
@@ -57,28 +91,190 @@ public class GtfsRtProviderRoute extends RestRouteBuilder {
 
         from("direct:getTripUpdates")
                 .routeId("kishar.getTripUpdates")
-                .bean(siriToGtfsRealtimeService, "getTripUpdates(${header.Content-Type},${header.datasource})")
-                .setHeader("Content-Disposition", constant("attachment; filename=trip-updates.pbf"))
-                .setHeader("Content-Type", constant("application/octet-stream"))
+                .process(p -> writeFeed(p, siriToGtfsRealtimeService.getTripUpdatesSnapshot(), false, "trip-updates.pbf"))
+        ;
+
+        from("direct:getTripUpdatesDifferential")
+                .routeId("kishar.getTripUpdatesDifferential")
+                .process(p -> writeFeed(p, siriToGtfsRealtimeService.getTripUpdatesSnapshot(), true, "trip-updates.pbf"))
         ;
 
         from("direct:getVehiclePositions")
                 .routeId("kishar.getVehiclePositions")
-                .bean(siriToGtfsRealtimeService, "getVehiclePositions(${header.Content-Type},${header.datasource})")
-                .setHeader("Content-Disposition", constant("attachment; filename=vehicle-positions.pbf"))
-                .setHeader("Content-Type", constant("application/octet-stream"))
+                .process(p -> writeFeed(p, siriToGtfsRealtimeService.getVehiclePositionsSnapshot(), false, "vehicle-positions.pbf"))
+        ;
+
+        from("direct:getVehiclePositionsDifferential")
+                .routeId("kishar.getVehiclePositionsDifferential")
+                .process(p -> writeFeed(p, siriToGtfsRealtimeService.getVehiclePositionsSnapshot(), true, "vehicle-positions.pbf"))
         ;
 
         from("direct:getAlerts")
                 .routeId("kishar.getAlerts")
-                .bean(siriToGtfsRealtimeService, "getAlerts(${header.Content-Type},${header.datasource})")
-                .setHeader("Content-Disposition", constant("attachment; filename=alerts.pbf"))
-                .setHeader("Content-Type", constant("application/octet-stream"))
+                .process(p -> writeFeed(p, siriToGtfsRealtimeService.getAlertsSnapshot(), false, "alerts.pbf"))
+        ;
+
+        from("direct:getAlertsDifferential")
+                .routeId("kishar.getAlertsDifferential")
+                .process(p -> writeFeed(p, siriToGtfsRealtimeService.getAlertsSnapshot(), true, "alerts.pbf"))
         ;
 
-        from("timer://kishar.update.output?fixedRate=true&period=10s")
+        from("timer://kishar.update.output?fixedRate=true&period=" + outputIntervalSeconds + "s")
                 .bean(siriToGtfsRealtimeService, "writeOutput()")
                 .routeId("kishar.update.output")
         ;
     }
+
+    /**
+     * Sets the response body to the pre-encoded feed, picking the pre-compressed variant that matches
+     * the request's Accept-Encoding. Nothing is encoded per request, and each variant is compressed
+     * at most once per feed. Requests with
+     * Content-Type application/json get the JSON form, which is rendered once per feed. Requests for
+     * a version the client already has are answered with 304 Not Modified. The {@code route_id},
+     * {@code trip_id} and {@code stop_id} query parameters, each a comma-separated list, limit the
+     * feed to the entities referring to them. The {@code bbox} query parameter,
+     * {@code minLon,minLat,maxLon,maxLat}, limits it to the vehicles inside that area.
+     * <p>
+     * The ETag is the version of the feed for the full protobuf feed. For a differential, filtered
+     * or JSON response it is followed by a tag of the response, so each one is validated on its own.
+     *
+     * @param differential whether to send only the changes since the version given in the
+     *                     {@code since} query parameter
+     * @param filename     name of the feed file, given in the Content-Disposition of the response
+     */
+    private void writeFeed(Exchange exchange, FeedSnapshot snapshot, boolean differential, String filename) {
+        Message in = exchange.getIn();
+        String datasource = in.getHeader("datasource", String.class);
+        String since = differential ? sinceVersion(in.getHeader("since", String.class)) : null;
+        EncodedFeed feed = snapshot.getFeed(datasource);
+        EncodedFeed body = snapshot.getDifferentialFeed(datasource, since);
+        HttpServletResponse response = in instanceof HttpMessage httpMessage ? httpMessage.getResponse() : null;
+        FeedFilter filter;
+        try {
+            filter = FeedFilter.of(
+                    in.getHeader("route_id", String.class),
+                    in.getHeader("trip_id", String.class),
+                    in.getHeader("stop_id", String.class),
+                    in.getHeader("bbox", String.class));
+        } catch (IllegalArgumentException e) {
+            in.setHeader(Exchange.HTTP_RESPONSE_CODE, 400);
+            in.setHeader(Exchange.CONTENT_TYPE, "text/plain");
+            in.setBody(e.getMessage());
+            return;
+        }
+        body = body.filter(filter);
+
+        String requestContentType = in.getHeader(Exchange.CONTENT_TYPE, String.class);
+        boolean json = requestContentType != null && requestContentType.startsWith(MEDIA_TYPE_APPLICATION_JSON);
+        String entityTag = entityTag(feed, since, filter, json);
+
+        // Set on the servlet response directly - Camel's HTTP header filter drops Cache-Control, and
+        // Camel would gzip the body a second time if it found Content-Encoding among the message headers
+        setResponseHeader(in, response, "ETag", "W/\"" + entityTag + "\"");
+        setResponseHeader(in, response, "Last-Modified", formatHttpDate(body.getLastModified()));
+        setResponseHeader(in, response, "Cache-Control", "public, max-age=" + secondsUntilNextOutput());
+        setResponseHeader(in, response, "Vary", "Accept-Encoding, Content-Type, datasource");
+        in.setHeader("Content-Disposition", "attachment; filename=" + filename);
+        in.setHeader(Exchange.CONTENT_TYPE, json ? MEDIA_TYPE_APPLICATION_JSON + "; charset=UTF-8" : MEDIA_TYPE_APPLICATION_OCTET_STREAM);
+
+        if (isNotModified(in, entityTag, body.getLastModified())) {
+            in.setHeader(Exchange.HTTP_RESPONSE_CODE, 304);
+            in.setBody(null);
+            return;
+        }
+
+        ContentEncoding encoding = ContentEncoding.negotiate(in.getHeader("Accept-Encoding", String.class));
+        if (response == null) {
+            encoding = ContentEncoding.IDENTITY;
+        } else if (encoding != ContentEncoding.IDENTITY) {
+            setResponseHeader(in, response, "Content-Encoding", encoding.getName());
+        }
+        in.setBody(json ? body.getJson(encoding) : body.getData(encoding));
+    }
+
+    /**
+     * The version of the feed, followed by a tag of the since version, filter and form of the
+     * response if it is not the full protobuf feed.
+     */
+    private static String entityTag(EncodedFeed feed, String since, FeedFilter filter, boolean json) {
+        if (since == null && filter.isEmpty() && !json) {
+            return feed.getVersion();
+        }
+        Hasher hasher = Hashing.farmHashFingerprint64().newHasher()
+                .putString(since != null ? since : "", StandardCharsets.UTF_8)
+                .putBoolean(json);
+        putIds(hasher, filter.routeIds());
+        putIds(hasher, filter.tripIds());
+        putIds(hasher, filter.stopIds());
+        BoundingBox boundingBox = filter.boundingBox();
+        if (boundingBox != null) {
+            hasher.putDouble(boundingBox.minLongitude())
+                    .putDouble(boundingBox.minLatitude())
+                    .putDouble(boundingBox.maxLongitude())
+                    .putDouble(boundingBox.maxLatitude());
+        }
+        return feed.getVersion() + VERSION_TAG_SEPARATOR + hasher.hash();
+    }
+
+    private static void putIds(Hasher hasher, Set<String> ids) {
+        hasher.putInt(ids.size());
+        for (String id : new TreeSet<>(ids)) {
+            hasher.putString(id, StandardCharsets.UTF_8).putByte((byte) 0);
+        }
+    }
+
+    /**
+     * The feed version of a {@code since} parameter, which may be the ETag of any response.
+     */
+    private static String sinceVersion(String since) {
+        if (since == null || since.isEmpty()) {
+            return null;
+        }
+        int separator = since.indexOf(VERSION_TAG_SEPARATOR);
+        return separator < 0 ? since : since.substring(0, separator);
+    }
+
+    private boolean isNotModified(Message in, String entityTag, long lastModified) {
+        String ifNoneMatch = in.getHeader("If-None-Match", String.class);
+        if (ifNoneMatch != null) {
+            for (String tag : ifNoneMatch.split(",")) {
+                String opaqueTag = tag.trim();
+                if (opaqueTag.startsWith("W/")) {
+                    opaqueTag = opaqueTag.substring(2);
+                }
+                if (opaqueTag.equals("*") || opaqueTag.equals("\"" + entityTag + "\"")) {
+                    return true;
+                }
+            }
+            // If-Modified-Since must be ignored when If-None-Match is present
+            return false;
+        }
+        String ifModifiedSince = in.getHeader("If-Modified-Since", String.class);
+        if (ifModifiedSince != null) {
+            try {
+                long since = ZonedDateTime.parse(ifModifiedSince, DateTimeFormatter.RFC_1123_DATE_TIME).toEpochSecond();
+                return lastModified <= since;
+            } catch (DateTimeParseException e) {
+                return false;
+            }
+        }
+        return false;
+    }
+
+    private long secondsUntilNextOutput() {
+        long remainingMillis = siriToGtfsRealtimeService.getLastOutputAt() + outputIntervalSeconds * 1000L - System.currentTimeMillis();
+        return Math.max(0, Math.min(outputIntervalSeconds, (remainingMillis + 999) / 1000));
+    }
+
+    private static String formatHttpDate(long epochSecond) {
+        return DateTimeFormatter.RFC_1123_DATE_TIME.format(Instant.ofEpochSecond(epochSecond).atZone(ZoneOffset.UTC));
+    }
+
+    private static void setResponseHeader(Message in, HttpServletResponse response, String name, String value) {
+        if (response != null) {
+            response.setHeader(name, value);
+        } else {
+            in.setHeader(name, value);
+        }
+    }
 }
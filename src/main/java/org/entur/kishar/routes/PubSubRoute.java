@@ -1,8 +1,12 @@
 package org.entur.kishar.routes;
 
 
+import org.apache.camel.AsyncCallback;
+import org.apache.camel.Exchange;
 import org.apache.camel.builder.RouteBuilder;
+import org.apache.camel.support.AsyncProcessorSupport;
 import org.entur.avro.realtime.siri.helper.JsonReader;
+import org.entur.kishar.gtfsrt.RedisService;
 import org.entur.kishar.gtfsrt.SiriToGtfsRealtimeService;
 import org.entur.kishar.gtfsrt.domain.GtfsRtData;
 import org.entur.kishar.metrics.PrometheusMetricsService;
@@ -30,6 +34,9 @@ public class PubSubRoute extends RouteBuilder {
     @Autowired
     private PrometheusMetricsService metrics;
 
+    @Autowired
+    private RedisService redisService;
+
     @Autowired
     private SiriToGtfsRealtimeService siriToGtfsRealtimeService;
 
@@ -71,10 +78,7 @@ public class PubSubRoute extends RouteBuilder {
             ;
 
             from ("direct:register.gtfs.rt.trip.updates")
-                    .process( p -> {
-                        final Map<String, GtfsRtData> tripUpdate = p.getIn().getBody(Map.class);
-                        siriToGtfsRealtimeService.registerGtfsRtTripUpdates(tripUpdate);
-                    })
+                    .process(new StoreProcessor(RedisService.Type.TRIP_UPDATE))
             ;
 
             from ("direct:parse.siri.to.gtfs.rt.vehicle.positions")
@@ -88,9 +92,9 @@ public class PubSubRoute extends RouteBuilder {
             ;
 
             from ("direct:register.gtfs.rt.vehicle.positions")
+                    .process(new StoreProcessor(RedisService.Type.VEHICLE_POSITION))
                     .process( p -> {
                         final Map<String, GtfsRtData> vehiclePosition = p.getIn().getBody(Map.class);
-                        siriToGtfsRealtimeService.registerGtfsRtVehiclePosition(vehiclePosition);
                         p.getMessage().setBody(vehiclePosition.keySet());
                         p.getMessage().setHeaders(p.getIn().getHeaders());
                         p.getMessage().setHeader("map", vehiclePosition);
@@ -108,10 +112,7 @@ public class PubSubRoute extends RouteBuilder {
             ;
 
             from ("direct:register.gtfs.rt.alerts")
-                    .process( p -> {
-                        final Map<String, GtfsRtData> alert = p.getIn().getBody(Map.class);
-                        siriToGtfsRealtimeService.registerGtfsRtAlerts(alert);
-                    })
+                    .process(new StoreProcessor(RedisService.Type.ALERT))
             ;
 
             from("direct:log.incoming.data")
@@ -121,4 +122,32 @@ public class PubSubRoute extends RouteBuilder {
         }
     }
 
+    /**
+     * Writes the entities in the body to the store without holding the consumer thread while they
+     * are written. The exchange is done, and the message acknowledged, once they are in the store,
+     * after the flush that writes them if writes are buffered. When too many writes are in flight
+     * the write waits for room, without holding the consumer, and the exchange fails if none is
+     * made in time, so the message is delivered again later.
+     */
+    private class StoreProcessor extends AsyncProcessorSupport {
+
+        private final RedisService.Type type;
+
+        private StoreProcessor(RedisService.Type type) {
+            this.type = type;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public boolean process(Exchange exchange, AsyncCallback callback) {
+            final Map<String, GtfsRtData> entities = exchange.getIn().getBody(Map.class);
+            redisService.writeGtfsRtAsync(entities, type).whenComplete((result, e) -> {
+                if (e != null) {
+                    exchange.setException(e);
+                }
+                callback.done(false);
+            });
+            return false;
+        }
+    }
 }
@@ -0,0 +1,60 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+package org.entur.kishar.routes;
+
+import org.apache.camel.builder.RouteBuilder;
+import org.entur.kishar.gtfsrt.RedisService;
+import org.entur.kishar.gtfsrt.StoreSettings;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+/**
+ * Upkeep of the entity store, whichever way the entities arrive: flushing the buffered writes, and
+ * making those kept on local disk durable.
+ */
+@Service
+public class StoreRoute extends RouteBuilder {
+
+    private final RedisService redisService;
+
+    private final StoreSettings.Writes writes;
+
+    private final StoreSettings.InMemory inMemory;
+
+    public StoreRoute(@Autowired RedisService redisService, StoreSettings.Writes writes, StoreSettings.InMemory inMemory) {
+        this.redisService = redisService;
+        this.writes = writes;
+        this.inMemory = inMemory;
+    }
+
+    @Override
+    public void configure() {
+
+        if (writes.bufferIntervalMillis() > 0) {
+            from("timer://kishar.flush.writes?fixedRate=true&period=" + writes.bufferIntervalMillis())
+                .bean(redisService, "flushWrites()")
+                .routeId("kishar.flush.writes")
+            ;
+        }
+
+        if (inMemory.isPersisted()) {
+            int intervalSeconds = inMemory.snapshotIntervalSeconds();
+            from("timer://kishar.inmemory.snapshot?fixedRate=true&delay=" + intervalSeconds + "s&period=" + intervalSeconds + "s")
+                .bean(redisService, "writeSnapshot()")
+                .routeId("kishar.inmemory.snapshot")
+            ;
+        }
+    }
+}
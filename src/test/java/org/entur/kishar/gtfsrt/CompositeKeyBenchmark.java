@@ -0,0 +1,107 @@
+package org.entur.kishar.gtfsrt;
+
+import org.entur.kishar.gtfsrt.domain.CompositeKey;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the handling of the keys of one output cycle in the legacy JSON format and in the
+ * binary format: decoding the keys read from redis, and finding the datasource of each entity.
+ * Not run as part of the tests; run with
+ * {@code mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=org.entur.kishar.gtfsrt.CompositeKeyBenchmark}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CompositeKeyBenchmark {
+
+    @Param({"50000"})
+    private int keyCount;
+
+    private byte[][] legacyKeys;
+
+    private byte[][] binaryKeys;
+
+    private String[] keysToEncode;
+
+    @Setup
+    public void setup() {
+        legacyKeys = new byte[keyCount][];
+        binaryKeys = new byte[keyCount][];
+        keysToEncode = new String[keyCount];
+        for (int i = 0; i < keyCount; i++) {
+            String datasource = i % 3 == 0 ? "RUT" : "ENT";
+            CompositeKey key = new CompositeKey(datasource + ":ServiceJourney:" + i + "-2026-10-17", datasource);
+            legacyKeys[i] = key.asLegacyString().getBytes(StandardCharsets.UTF_8);
+            binaryKeys[i] = key.asString().getBytes(StandardCharsets.UTF_8);
+            keysToEncode[i] = key.getId();
+        }
+    }
+
+    /**
+     * Read path before the binary format: decode the JSON key, encode it again as the map key, and
+     * parse it once more for the datasource when building the feed.
+     */
+    @Benchmark
+    public void readLegacyKeys(Blackhole blackhole) {
+        for (byte[] rawKey : legacyKeys) {
+            CompositeKey key = CompositeKey.reCreate(rawKey);
+            String mapKey = key.asLegacyString();
+            blackhole.consume(CompositeKey.create(mapKey).getDatasource());
+        }
+    }
+
+    /**
+     * Read path with the binary format: the raw key is the map key, and the datasource is cut out of
+     * it without decoding the rest.
+     */
+    @Benchmark
+    public void readBinaryKeys(Blackhole blackhole) {
+        for (byte[] rawKey : binaryKeys) {
+            if (CompositeKey.isBinary(rawKey)) {
+                String mapKey = new String(rawKey, StandardCharsets.UTF_8);
+                blackhole.consume(CompositeKey.datasourceOf(mapKey));
+            }
+        }
+    }
+
+    @Benchmark
+    public void writeLegacyKeys(Blackhole blackhole) {
+        for (String id : keysToEncode) {
+            blackhole.consume(new CompositeKey(id, "RUT").asLegacyString().getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    @Benchmark
+    public void writeBinaryKeys(Blackhole blackhole) {
+        for (String id : keysToEncode) {
+            blackhole.consume(new CompositeKey(id, "RUT").asString().getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(CompositeKeyBenchmark.class.getSimpleName())
+                .build())
+                .run();
+    }
+}
@@ -0,0 +1,136 @@
+package org.entur.kishar.gtfsrt;
+
+import org.redisson.Redisson;
+import org.redisson.api.RedissonClient;
+import org.redisson.config.Config;
+import org.testcontainers.DockerClientFactory;
+import org.testcontainers.containers.GenericContainer;
+import org.testcontainers.utility.DockerImageName;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+/**
+ * The implementations of {@link EntityStore}, for the tests and benchmarks run against each of
+ * them. Redis runs in a container, shared by the stores created until {@link #shutdown()}, and is
+ * only available where Docker is.
+ */
+public enum EntityStoreBackend {
+    IN_MEMORY {
+        @Override
+        EntityStore create(Path directory) {
+            return new LocalEntityStore(Long.MAX_VALUE, false, null);
+        }
+    },
+    OFF_HEAP {
+        @Override
+        EntityStore create(Path directory) {
+            return new LocalEntityStore(Long.MAX_VALUE, true, null);
+        }
+    },
+    JOURNALED {
+        @Override
+        EntityStore create(Path directory) throws IOException {
+            return new LocalEntityStore(Long.MAX_VALUE, false, new EntityJournal(directory));
+        }
+
+        @Override
+        boolean isPersistent() {
+            return true;
+        }
+    },
+    DISK {
+        @Override
+        EntityStore create(Path directory) throws IOException {
+            return new DiskEntityStore(directory);
+        }
+
+        @Override
+        boolean isPersistent() {
+            return true;
+        }
+    },
+    REDIS {
+        @Override
+        EntityStore create(Path directory) {
+            return new RedisEntityStore(redisson(), 500, 1000, false, false, false);
+        }
+
+        @Override
+        boolean isAvailable() {
+            return DockerClientFactory.instance().isDockerAvailable();
+        }
+
+        @Override
+        boolean isPersistent() {
+            return true;
+        }
+    },
+    /**
+     * Sharded as in a cluster, on the one node.
+     */
+    REDIS_SHARDED {
+        @Override
+        EntityStore create(Path directory) {
+            return new RedisEntityStore(redisson(), 500, 1000, false, false, false, 8, 4);
+        }
+
+        @Override
+        boolean isAvailable() {
+            return DockerClientFactory.instance().isDockerAvailable();
+        }
+
+        @Override
+        boolean isPersistent() {
+            return true;
+        }
+    };
+
+    private static final int REDIS_PORT = 6379;
+
+    private static GenericContainer<?> redis;
+
+    private static RedissonClient redisson;
+
+    /**
+     * Creates a store, keeping its files in {@code directory} if it has any. The caller must call
+     * {@link EntityStore#init} before using it.
+     */
+    abstract EntityStore create(Path directory) throws IOException;
+
+    boolean isAvailable() {
+        return true;
+    }
+
+    /**
+     * Whether a store created again, in the same directory, has the entities written before.
+     */
+    boolean isPersistent() {
+        return false;
+    }
+
+    private static synchronized RedissonClient redisson() {
+        if (redisson == null) {
+            redis = new GenericContainer<>(DockerImageName.parse("redis:7.4-alpine")).withExposedPorts(REDIS_PORT);
+            redis.start();
+            Config config = new Config();
+            config.useSingleServer().setAddress("redis://" + redis.getHost() + ":" + redis.getMappedPort(REDIS_PORT));
+            redisson = Redisson.create(config);
+        }
+        return redisson;
+    }
+
+    /**
+     * Stops Redis, if it has been started.
+     */
+    static synchronized void shutdown() {
+        if (redisson != null) {
+            redisson.shutdown();
+            redisson = null;
+        }
+        if (redis != null) {
+            redis.stop();
+            redis = null;
+        }
+    }
+}
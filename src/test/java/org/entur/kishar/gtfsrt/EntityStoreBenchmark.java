@@ -0,0 +1,141 @@
+package org.entur.kishar.gtfsrt;
+
+import org.entur.kishar.gtfsrt.domain.CompositeKey;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Measures each {@link EntityStore} with 10 000, 50 000 and 200 000 entities stored: the write
+ * throughput, in entities per second, written in batches as the routes do, and the latency of
+ * reading all entities, as a full resync of the mirror does. Redis is only included where Docker
+ * is available. Not run as part of the tests; run with
+ * {@code mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=org.entur.kishar.gtfsrt.EntityStoreBenchmark}.
+ */
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgs = {"-Xmx2g", "-XX:MaxDirectMemorySize=2g"})
+public class EntityStoreBenchmark {
+
+    private static final int BATCH_SIZE = 500;
+
+    @Param
+    private EntityStoreBackend backend;
+
+    @Param({"10000", "50000", "200000"})
+    private int entityCount;
+
+    private EntityStore store;
+
+    private Path directory;
+
+    private String[] keys;
+
+    private final Random random = new Random(42);
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        directory = Files.createTempDirectory("kishar-store");
+        store = backend.create(directory);
+        store.init(null);
+        store.clear(System.currentTimeMillis());
+        keys = new String[entityCount];
+        for (int i = 0; i < entityCount; i++) {
+            keys[i] = new CompositeKey("RUT:ServiceJourney:" + i + "-2026-10-17", i % 3 == 0 ? "RUT" : "ENT").asString();
+        }
+        for (int i = 0; i < entityCount; i += BATCH_SIZE) {
+            write(Arrays.asList(keys).subList(i, Math.min(i + BATCH_SIZE, entityCount)));
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        store.close();
+        EntityStoreBackend.shutdown();
+        try (Stream<Path> files = Files.walk(directory)) {
+            for (Path file : files.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(file);
+            }
+        }
+    }
+
+    /**
+     * One batch of updates to entities picked at random.
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    @OperationsPerInvocation(BATCH_SIZE)
+    public void writeBatch() {
+        List<String> batch = new ArrayList<>(BATCH_SIZE);
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            batch.add(keys[random.nextInt(entityCount)]);
+        }
+        write(batch);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public Map<String, byte[]> readAll() {
+        return store.readAll(RedisService.Type.TRIP_UPDATE, System.currentTimeMillis());
+    }
+
+    private void write(List<String> batch) {
+        long now = System.currentTimeMillis();
+        List<EntityStore.EntityWrite> writes = new ArrayList<>(batch.size());
+        for (String key : batch) {
+            // Trip updates are mostly between a few hundred bytes and a few kilobytes
+            byte[] data = new byte[300 + random.nextInt(3000)];
+            random.nextBytes(data);
+            // A valid feed entity: an id, then the rest of the bytes as an unknown field 15
+            data[0] = 10;
+            data[1] = 1;
+            data[2] = 'x';
+            data[3] = (byte) (15 << 3 | 2);
+            data[4] = (byte) (0x80 | ((data.length - 6) & 0x7F));
+            data[5] = (byte) ((data.length - 6) >> 7);
+            writes.add(new EntityStore.EntityWrite(key, data, now + TimeUnit.HOURS.toMillis(2), EntityFingerprints.Outcome.CHANGED));
+        }
+        store.write(RedisService.Type.TRIP_UPDATE, writes, now);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        String[] backends = Arrays.stream(EntityStoreBackend.values())
+                .filter(EntityStoreBackend::isAvailable)
+                .map(Enum::name)
+                .toArray(String[]::new);
+        new Runner(new OptionsBuilder()
+                .include(EntityStoreBenchmark.class.getSimpleName())
+                .param("backend", backends)
+                .build())
+                .run();
+    }
+}
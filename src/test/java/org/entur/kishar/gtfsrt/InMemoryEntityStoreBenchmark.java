@@ -0,0 +1,138 @@
+package org.entur.kishar.gtfsrt;
+
+import org.entur.kishar.gtfsrt.domain.CompositeKey;
+import org.entur.kishar.gtfsrt.helpers.FeedWireFormat;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the in-memory store with the entities on and off the heap, at the size of the national
+ * dataset: writing the updates of one cycle, and assembling the feed from all entities. The
+ * memory used, the fragmentation of the off-heap slabs, the heap left after a full collection and
+ * the time spent in garbage collection are printed at the end of each trial; the allocation rate
+ * is reported by the GC profiler. Not run as part of the tests; run with
+ * {@code mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=org.entur.kishar.gtfsrt.InMemoryEntityStoreBenchmark}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgs = {"-Xmx2g", "-XX:MaxDirectMemorySize=2g"})
+public class InMemoryEntityStoreBenchmark {
+
+    @Param({"false", "true"})
+    private boolean offHeap;
+
+    @Param({"50000", "200000"})
+    private int entityCount;
+
+    private InMemoryEntityStore store;
+
+    private String[] keys;
+
+    private final Random random = new Random(42);
+
+    private final byte[] header = new byte[]{10, 3, '2', '.', '0'};
+
+    private long gcCountAtStart;
+
+    private long gcMillisAtStart;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        store = new InMemoryEntityStore(Long.MAX_VALUE, offHeap, (type, key, cause) -> {}, System.currentTimeMillis());
+        keys = new String[entityCount];
+        for (int i = 0; i < entityCount; i++) {
+            keys[i] = new CompositeKey("RUT:ServiceJourney:" + i + "-2026-10-17", i % 3 == 0 ? "RUT" : "ENT").asString();
+            write(keys[i]);
+        }
+        gcCountAtStart = gcCount();
+        gcMillisAtStart = gcMillis();
+    }
+
+    @TearDown(Level.Trial)
+    public void report() {
+        long gcCount = gcCount() - gcCountAtStart;
+        long gcMillis = gcMillis() - gcMillisAtStart;
+        System.gc();
+        long heapUsed = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+        System.out.printf("%n%s, %d entities: estimated %d MB, off-heap %d MB allocated, %.1f %% fragmentation, "
+                        + "heap after full GC %d MB, %d collections taking %d ms%n",
+                offHeap ? "off-heap" : "on-heap", entityCount,
+                store.weight(RedisService.Type.TRIP_UPDATE) >> 20, store.offHeapAllocatedBytes() >> 20,
+                store.offHeapFragmentation() * 100, heapUsed >> 20, gcCount, gcMillis);
+    }
+
+    /**
+     * One cycle of updates: a tenth of the entities written again, with a new size.
+     */
+    @Benchmark
+    public void writeCycle() {
+        for (int i = 0; i < entityCount / 10; i++) {
+            write(keys[random.nextInt(entityCount)]);
+        }
+    }
+
+    @Benchmark
+    public byte[] assembleFeed() {
+        return store.read(RedisService.Type.TRIP_UPDATE, System.currentTimeMillis(), new InMemoryEntityStore.EntityReader<>() {
+            private final FeedWireFormat.FeedWriter writer = new FeedWireFormat.FeedWriter(header);
+
+            @Override
+            public void accept(String key, ByteBuffer entity) {
+                writer.addEntity(entity);
+            }
+
+            @Override
+            public byte[] finish() {
+                return writer.toByteArray();
+            }
+        });
+    }
+
+    private void write(String key) {
+        // Trip updates are mostly between a few hundred bytes and a few kilobytes
+        byte[] data = new byte[300 + random.nextInt(3000)];
+        random.nextBytes(data);
+        long now = System.currentTimeMillis();
+        store.put(RedisService.Type.TRIP_UPDATE, key, data, now + TimeUnit.HOURS.toMillis(2), now);
+    }
+
+    private static long gcCount() {
+        return ManagementFactory.getGarbageCollectorMXBeans().stream().mapToLong(GarbageCollectorMXBean::getCollectionCount).sum();
+    }
+
+    private static long gcMillis() {
+        return ManagementFactory.getGarbageCollectorMXBeans().stream().mapToLong(GarbageCollectorMXBean::getCollectionTime).sum();
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(InMemoryEntityStoreBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build())
+                .run();
+    }
+}
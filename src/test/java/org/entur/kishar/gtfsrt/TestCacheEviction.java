@@ -18,7 +18,7 @@ import static org.junit.jupiter.api.Assertions.assertTrue;
  * Cache eviction tests for fixes implemented in Phase 2.
  * Tests cache size limits and eviction behavior for:
  * - ServiceJourneyService (10,000 entry limit)
- * - RedisService (50,000 entry limit per type with 1 hour expiration)
+ * - RedisService (in-memory store with per-entity time to live, bounded by size)
  */
 public class TestCacheEviction extends SiriToGtfsRealtimeServiceTest {
 
@@ -66,8 +66,7 @@ public class TestCacheEviction extends SiriToGtfsRealtimeServiceTest {
     }
 
     /**
-     * Test that RedisService mock uses bounded cache.
-     * When Redis is disabled, the mock should use Guava Cache with size limits.
+     * Test that RedisService uses the bounded in-memory store when Redis is disabled.
      */
     @Test
     public void testRedisServiceBoundedCache() {
@@ -247,6 +246,29 @@ public class TestCacheEviction extends SiriToGtfsRealtimeServiceTest {
         }
     }
 
+    /**
+     * Entities expire after their own time to live, not a fixed one.
+     */
+    @Test
+    public void testRedisServiceHonoursTimeToLive() throws InterruptedException {
+        redisService.resetAllData();
+
+        Map<String, GtfsRtData> data = createTestData("Long", 1);
+        data.put("TST:Entity:short", new GtfsRtData("Short".getBytes(), Duration.newBuilder().setSeconds(1).build()));
+        data.put("TST:Entity:expired", new GtfsRtData("Expired".getBytes(), Duration.newBuilder().setSeconds(0).build()));
+        redisService.writeGtfsRt(data, RedisService.Type.TRIP_UPDATE);
+
+        Map<String, byte[]> retrieved = redisService.readGtfsRtMap(RedisService.Type.TRIP_UPDATE);
+        assertEquals(2, retrieved.size(), "Entities without time to live should not be stored");
+        assertTrue(retrieved.containsKey("TST:Entity:short"));
+
+        Thread.sleep(1100);
+
+        retrieved = redisService.readGtfsRtMap(RedisService.Type.TRIP_UPDATE);
+        assertEquals(1, retrieved.size(), "Short-lived entity should have expired");
+        assertTrue(retrieved.containsKey("TST:Entity:0"));
+    }
+
     // Helper methods
 
     private Map<String, GtfsRtData> createTestData(String prefix, int count) {
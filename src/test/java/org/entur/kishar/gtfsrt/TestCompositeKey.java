@@ -0,0 +1,75 @@
+package org.entur.kishar.gtfsrt;
+
+import org.entur.kishar.gtfsrt.domain.CompositeKey;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class TestCompositeKey {
+
+    @Test
+    public void testBinaryKeyRoundTrip() {
+        String key = new CompositeKey("RUT:ServiceJourney:1-2", "RUT").asString();
+        byte[] raw = key.getBytes(StandardCharsets.UTF_8);
+
+        assertTrue(CompositeKey.isBinary(key));
+        assertTrue(CompositeKey.isBinary(raw));
+        assertEquals(2 + "RUT".length() + "RUT:ServiceJourney:1-2".length(), raw.length);
+        assertEquals("RUT", CompositeKey.datasourceOf(key));
+        assertTrue(CompositeKey.hasDatasource(raw, "RUT".getBytes(StandardCharsets.UTF_8)));
+        assertFalse(CompositeKey.hasDatasource(raw, "RU".getBytes(StandardCharsets.UTF_8)));
+
+        CompositeKey fromString = CompositeKey.create(key);
+        CompositeKey fromBytes = CompositeKey.reCreate(raw);
+        assertNotNull(fromString);
+        assertNotNull(fromBytes);
+        assertEquals("RUT:ServiceJourney:1-2", fromString.getId());
+        assertEquals("RUT", fromBytes.getDatasource());
+        assertEquals(key, fromBytes.asString());
+    }
+
+    @Test
+    public void testNonAsciiDatasource() {
+        String key = new CompositeKey("id-æøå", "ØST").asString();
+        assertEquals("ØST", CompositeKey.datasourceOf(key));
+        CompositeKey decoded = CompositeKey.reCreate(key.getBytes(StandardCharsets.UTF_8));
+        assertNotNull(decoded);
+        assertEquals("id-æøå", decoded.getId());
+        assertEquals("ØST", decoded.getDatasource());
+    }
+
+    @Test
+    public void testTooLongDatasourceIsNotEncodable() {
+        assertTrue(new CompositeKey("id", "T".repeat(127)).isEncodable());
+        assertFalse(new CompositeKey("id", "T".repeat(128)).isEncodable());
+        assertFalse(new CompositeKey("id", "Ø".repeat(64)).isEncodable());
+    }
+
+    @Test
+    public void testLegacyJsonKeysAreRead() {
+        String legacy = new CompositeKey("id", "TST").asLegacyString();
+        assertTrue(legacy.startsWith("{"));
+        assertFalse(CompositeKey.isBinary(legacy));
+
+        assertEquals("TST", CompositeKey.datasourceOf(legacy));
+        CompositeKey decoded = CompositeKey.reCreate(legacy.getBytes(StandardCharsets.UTF_8));
+        assertNotNull(decoded);
+        assertEquals(new CompositeKey("id", "TST").asString(), decoded.asString());
+    }
+
+    @Test
+    public void testOtherStringsAreNotKeys() {
+        assertNull(CompositeKey.datasourceOf("TST:Entity:0"));
+        assertNull(CompositeKey.datasourceOf(""));
+        assertNull(CompositeKey.datasourceOf("\u0001"));
+        // Datasource length beyond the end of the key
+        assertNull(CompositeKey.datasourceOf("\u0001\u0005TST"));
+        assertFalse(CompositeKey.isBinary(new byte[]{1, 5, 'T'}));
+    }
+}
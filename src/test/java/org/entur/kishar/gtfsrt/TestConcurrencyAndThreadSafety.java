@@ -1,8 +1,12 @@
 package org.entur.kishar.gtfsrt;
 
+import com.google.protobuf.Duration;
 import com.google.transit.realtime.GtfsRealtime;
 import org.entur.avro.realtime.siri.model.PtSituationElementRecord;
 import org.entur.avro.realtime.siri.model.SiriRecord;
+import org.entur.kishar.gtfsrt.domain.CompositeKey;
+import org.entur.kishar.gtfsrt.domain.GtfsRtData;
+import org.entur.kishar.gtfsrt.domain.GtfsRtSnapshot;
 import org.entur.kishar.gtfsrt.helpers.GtfsRealtimeLibrary;
 import org.entur.kishar.metrics.PrometheusMetricsService;
 import org.junit.jupiter.api.Test;
@@ -14,26 +18,32 @@ import java.util.ConcurrentModificationException;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertInstanceOf;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.junit.jupiter.api.Assertions.fail;
 
 /**
  * Thread-safety and concurrency tests for fixes implemented in Phase 1.
  * Tests concurrent access to:
- * - SiriToGtfsRealtimeService (read/write locks)
+ * - SiriToGtfsRealtimeService (atomic snapshot publication)
  * - AlertFactory (DateTimeFormatter thread-safety)
  * - PrometheusMetricsService (synchronized meter operations)
  */
@@ -50,7 +60,7 @@ public class TestConcurrencyAndThreadSafety extends SiriToGtfsRealtimeServiceTes
 
     /**
      * Test concurrent reads and writes to SiriToGtfsRealtimeService.
-     * Verifies that ReentrantReadWriteLock prevents data corruption and ConcurrentModificationException.
+     * Verifies that snapshot publication prevents data corruption and ConcurrentModificationException.
      */
     @Test
     public void testConcurrentReadWriteAccess() throws InterruptedException {
@@ -402,7 +412,7 @@ public class TestConcurrencyAndThreadSafety extends SiriToGtfsRealtimeServiceTes
      * Test getStatus() is consistent when called concurrently with setTripUpdates/setVehiclePositions/setAlerts.
      * Before the fix, the three volatile reads inside getStatus() were not atomic; a writer could
      * interleave between reads and produce an inconsistent snapshot.  After the fix, getStatus()
-     * holds the readLock for the entire snapshot, so it must never throw and must always return
+     * reads a single immutable snapshot, so it must never throw and must always return
      * a parseable list string.
      */
     @Test
@@ -617,4 +627,175 @@ public class TestConcurrencyAndThreadSafety extends SiriToGtfsRealtimeServiceTes
         executor.shutdown();
         assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS), "Executor should terminate");
     }
+
+    /**
+     * writeOutput() publishes all three feed types at once. The feeds are built in the order
+     * trip-updates, vehicle-positions, alerts, so within any snapshot a reader gets, the alerts can
+     * never be older than the trip-updates. Publishing each feed type on its own would let a reader
+     * see new trip-updates together with alerts from the previous cycle.
+     */
+    @Test
+    public void testReadersSeeAllFeedTypesFromSameOutput() throws InterruptedException {
+        rtService.writeOutput();
+
+        ExecutorService executor = Executors.newFixedThreadPool(NUM_THREADS);
+        CountDownLatch startLatch = new CountDownLatch(1);
+        AtomicInteger errorCount = new AtomicInteger(0);
+        AtomicBoolean done = new AtomicBoolean(false);
+
+        for (int i = 0; i < NUM_THREADS - 1; i++) {
+            executor.submit(() -> {
+                try {
+                    startLatch.await();
+                    while (!done.get()) {
+                        GtfsRtSnapshot snapshot = rtService.getSnapshot();
+                        if (snapshot.getAlerts().getCreatedAt() < snapshot.getTripUpdates().getCreatedAt()) {
+                            errorCount.incrementAndGet();
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+        }
+
+        startLatch.countDown();
+        for (int i = 0; i < OPERATIONS_PER_THREAD; i++) {
+            rtService.writeOutput();
+        }
+        done.set(true);
+
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS), "Executor should terminate");
+        assertEquals(0, errorCount.get(), "Readers must never see feed types from different outputs");
+    }
+
+    /**
+     * Test that async writes are done on other threads, and read back by async reads.
+     */
+    @Test
+    public void testAsyncWritesAreReadBack() throws Exception {
+        RedisService service = createInMemoryService(2, 8, 1000);
+        try {
+            List<CompletableFuture<Void>> writes = new ArrayList<>();
+            for (int i = 0; i < 20; i++) {
+                writes.add(service.writeGtfsRtAsync(entity("async-" + i), RedisService.Type.ALERT).toCompletableFuture());
+            }
+            CompletableFuture.allOf(writes.toArray(new CompletableFuture<?>[0])).get(10, TimeUnit.SECONDS);
+
+            Map<String, byte[]> alerts = service.readGtfsRtMapAsync(RedisService.Type.ALERT).toCompletableFuture().get(10, TimeUnit.SECONDS);
+            assertEquals(20, alerts.size());
+            assertEquals(0, service.getAsyncInFlight());
+        } finally {
+            service.shutdown();
+        }
+    }
+
+    /**
+     * Test that requests wait while the limit of async requests is reached, without holding the
+     * caller, and are given up on if no room is made in time, instead of being queued without
+     * limit.
+     */
+    @Test
+    public void testAsyncRequestsAreHeldBackWhenTooManyAreInFlight() throws Exception {
+        RedisService service = createInMemoryService(1, 1, 200);
+        CountDownLatch release = new CountDownLatch(1);
+        try {
+            // Held by the store until released
+            Map<String, GtfsRtData> blocking = new HashMap<>(entity("blocking")) {
+                @Override
+                public Set<Entry<String, GtfsRtData>> entrySet() {
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    return super.entrySet();
+                }
+            };
+            CompletableFuture<Void> first = service.writeGtfsRtAsync(blocking, RedisService.Type.ALERT).toCompletableFuture();
+            assertEquals(1, service.getAsyncInFlight());
+
+            long start = System.currentTimeMillis();
+            CompletableFuture<Void> second = service.writeGtfsRtAsync(entity("second"), RedisService.Type.ALERT).toCompletableFuture();
+            assertTrue(System.currentTimeMillis() - start < 200, "Caller should not wait for room");
+            assertEquals(2, service.getAsyncInFlight());
+            ExecutionException rejected = assertThrows(ExecutionException.class, () -> second.get(1, TimeUnit.SECONDS));
+            assertInstanceOf(RejectedExecutionException.class, rejected.getCause());
+            assertTrue(System.currentTimeMillis() - start >= 200, "Request should wait for room");
+
+            // Started once room is made, while no more than the limit wait
+            CompletableFuture<Void> third = service.writeGtfsRtAsync(entity("third"), RedisService.Type.ALERT).toCompletableFuture();
+            CompletableFuture<Void> fourth = service.writeGtfsRtAsync(entity("fourth"), RedisService.Type.ALERT).toCompletableFuture();
+            assertTrue(fourth.isCompletedExceptionally());
+            assertFalse(third.isDone());
+
+            release.countDown();
+            first.get(10, TimeUnit.SECONDS);
+            third.get(10, TimeUnit.SECONDS);
+            assertEquals(0, service.getAsyncInFlight());
+            assertEquals(2, service.readGtfsRtMap(RedisService.Type.ALERT).size());
+        } finally {
+            release.countDown();
+            service.shutdown();
+        }
+    }
+
+    /**
+     * Test that buffered async writes are only done once flushed, so the messages they came from
+     * are not acknowledged before their entities are in the store, and that concurrent flushes all
+     * complete.
+     */
+    @Test
+    public void testBufferedAsyncWritesAreDoneWhenFlushed() throws Exception {
+        RedisService service = createInMemoryService(new StoreSettings.Writes(60_000, 20000, 0, 4, 64, 1000));
+        ExecutorService flushers = Executors.newFixedThreadPool(4);
+        try {
+            List<CompletableFuture<Void>> writes = new ArrayList<>();
+            for (int i = 0; i < 20; i++) {
+                writes.add(service.writeGtfsRtAsync(entity("buffered-" + i), RedisService.Type.ALERT).toCompletableFuture());
+            }
+            CompletableFuture<Void> all = CompletableFuture.allOf(writes.toArray(new CompletableFuture<?>[0]));
+            Thread.sleep(200);
+            assertFalse(all.isDone(), "Buffered writes should wait for the flush");
+            assertEquals(20, service.getAsyncInFlight());
+            assertEquals(20, service.getAsyncQueueDepth());
+
+            List<Future<?>> flushes = new ArrayList<>();
+            for (int i = 0; i < 4; i++) {
+                flushes.add(flushers.submit(service::flushWrites));
+            }
+            for (Future<?> flush : flushes) {
+                flush.get(10, TimeUnit.SECONDS);
+            }
+            all.get(10, TimeUnit.SECONDS);
+            assertEquals(20, service.readGtfsRtMap(RedisService.Type.ALERT).size());
+            assertEquals(0, service.getAsyncInFlight());
+            assertEquals(0, service.getAsyncQueueDepth());
+        } finally {
+            flushers.shutdown();
+            service.shutdown();
+        }
+    }
+
+    private static RedisService createInMemoryService(int asyncThreads, int asyncMaxInFlight, long asyncAcquireTimeoutMillis) {
+        return createInMemoryService(new StoreSettings.Writes(0, 20000, 0, asyncThreads, asyncMaxInFlight, asyncAcquireTimeoutMillis));
+    }
+
+    private static RedisService createInMemoryService(StoreSettings.Writes writes) {
+        RedisService service = new RedisService(StoreSettings.Connection.DEFAULTS, StoreSettings.RedisStorage.DEFAULTS,
+                writes, StoreSettings.Compression.DEFAULTS, StoreSettings.InMemory.DEFAULTS);
+        service.initEntityStore();
+        return service;
+    }
+
+    private static Map<String, GtfsRtData> entity(String id) {
+        GtfsRealtime.FeedEntity entity = GtfsRealtime.FeedEntity.newBuilder()
+                .setId(id)
+                .setAlert(GtfsRealtime.Alert.newBuilder())
+                .build();
+        Map<String, GtfsRtData> result = new HashMap<>();
+        result.put(new CompositeKey(id, "TST").asString(), new GtfsRtData(entity.toByteArray(), Duration.newBuilder().setSeconds(300).build()));
+        return result;
+    }
 }
@@ -0,0 +1,257 @@
+package org.entur.kishar.gtfsrt;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.zip.DataFormatException;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class TestEntityCompression {
+
+    private static final long MINUTE = 60_000;
+
+    private static final long HOUR = 60 * MINUTE;
+
+    private final Random random = new Random(42);
+
+    @Test
+    public void testEntitiesAreReadAsWritten() throws DataFormatException {
+        EntityCompression compression = compression(new Dictionaries(), 10, 0);
+        compression.start(0);
+        for (int i = 0; i < 50; i++) {
+            byte[] entity = tripUpdate(i);
+            byte[] value = compression.encode(entity, 0, 0);
+            assertArrayEquals(entity, compression.decode(value));
+        }
+        assertEquals(1, compression.currentVersion());
+    }
+
+    @Test
+    public void testValuesNotSmallerAreStoredAsTheyAre() throws DataFormatException {
+        EntityCompression compression = compression(new Dictionaries(), 10, 0);
+        byte[] entity = new byte[200];
+        random.nextBytes(entity);
+        entity[0] = 10;
+        assertSame(entity, compression.encode(entity, 0, 0));
+        assertSame(entity, compression.decode(entity));
+    }
+
+    @Test
+    public void testDictionaryImprovesCompression() {
+        EntityCompression compression = compression(new Dictionaries(), 100, 0);
+        compression.start(0);
+        long before = storedBytes(compression, 0, 100);
+        assertEquals(1, compression.currentVersion());
+        long after = storedBytes(compression, 100, 200);
+        assertTrue(after < before * 0.8, "Stored " + before + " bytes without the dictionary, " + after + " with it");
+    }
+
+    @Test
+    public void testValuesOfEarlierDictionariesAreReadAfterRotation() throws DataFormatException {
+        Dictionaries dictionaries = new Dictionaries();
+        EntityCompression writer = compression(dictionaries, 10, 1000);
+        writer.start(0);
+        List<byte[]> values = new ArrayList<>();
+        for (int i = 0; i < 30; i++) {
+            // The first dictionary is trained at 900, and replaced from the entities written from 1900
+            values.add(writer.encode(tripUpdate(i), i * 100L, i * 100L));
+        }
+        assertEquals(2, writer.currentVersion());
+
+        EntityCompression reader = compression(dictionaries, 10, 0);
+        reader.start(0);
+        assertEquals(2, reader.currentVersion());
+        for (int i = 0; i < values.size(); i++) {
+            assertArrayEquals(tripUpdate(i), reader.decode(values.get(i)));
+        }
+    }
+
+    @Test
+    public void testInstancesShareTheFirstDictionaryPublished() throws DataFormatException {
+        Dictionaries dictionaries = new Dictionaries();
+        EntityCompression first = compression(dictionaries, 10, 0);
+        EntityCompression second = compression(dictionaries, 10, 0);
+        first.start(0);
+        second.start(0);
+        for (int i = 0; i < 10; i++) {
+            first.encode(tripUpdate(i), 0, 0);
+        }
+        // Loses the race to publish the next version, so takes the one published instead
+        dictionaries.publishing = false;
+        for (int i = 10; i < 20; i++) {
+            second.encode(tripUpdate(i), 0, 0);
+        }
+        assertEquals(1, second.currentVersion());
+        assertArrayEquals(tripUpdate(30), second.decode(first.encode(tripUpdate(30), 0, 0)));
+    }
+
+    @Test
+    public void testUnknownDictionaryIsRejected() {
+        Dictionaries dictionaries = new Dictionaries();
+        EntityCompression writer = compression(dictionaries, 10, 0);
+        writer.start(0);
+        for (int i = 0; i < 10; i++) {
+            writer.encode(tripUpdate(i), 0, 0);
+        }
+        byte[] value = writer.encode(tripUpdate(10), 0, 0);
+        dictionaries.versions.clear();
+        assertThrows(DataFormatException.class, () -> compression(dictionaries, 10, 0).decode(value));
+    }
+
+    @Test
+    public void testOldDictionariesAreRemovedOnceTheirEntitiesExpire() throws DataFormatException {
+        Dictionaries dictionaries = new Dictionaries();
+        EntityCompression writer = new EntityCompression("test", dictionaries, 10, HOUR * 2, 2, Runnable::run);
+        writer.start(0);
+        List<byte[]> values = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            // Dictionaries trained at 108, 336 and 564 minutes, each entity living a minute
+            long now = i * MINUTE * 12;
+            values.add(writer.encode(tripUpdate(i), now + MINUTE, now));
+        }
+        assertEquals(3, writer.currentVersion());
+        assertEquals(Set.of(2, 3), dictionaries.versions.keySet());
+
+        // The entities of the first dictionary have expired, so are not read, not even from the store
+        assertThrows(DataFormatException.class, () -> writer.decode(values.get(15)));
+        assertArrayEquals(tripUpdate(30), writer.decode(values.get(30)));
+        assertArrayEquals(tripUpdate(49), writer.decode(values.get(49)));
+    }
+
+    @Test
+    public void testOldDictionaryIsKeptWhileAnEntityCompressedWithItLives() throws DataFormatException {
+        Dictionaries dictionaries = new Dictionaries();
+        EntityCompression writer = new EntityCompression("test", dictionaries, 10, HOUR * 2, 2, Runnable::run);
+        writer.start(0);
+        List<byte[]> values = new ArrayList<>();
+        for (int i = 0; i < 90; i++) {
+            // Dictionaries trained at 108, 336, 564, 792 and 1020 minutes
+            long now = i * MINUTE * 12;
+            long expiresAt = i == 15 ? HOUR * 18 : now + MINUTE;
+            values.add(writer.encode(tripUpdate(i), expiresAt, now));
+        }
+        assertEquals(5, writer.currentVersion());
+        assertEquals(Set.of(1, 4, 5), dictionaries.versions.keySet());
+
+        EntityCompression reader = compression(dictionaries, 10, 0);
+        reader.start(0);
+        assertArrayEquals(tripUpdate(15), reader.decode(values.get(15)));
+        assertThrows(DataFormatException.class, () -> reader.decode(values.get(30)));
+
+        for (int i = 90; i < 110; i++) {
+            // Removed with the next rotation once the entity has expired, trained at 1248 minutes
+            long now = i * MINUTE * 12;
+            writer.encode(tripUpdate(i), now + MINUTE, now);
+        }
+        assertEquals(6, writer.currentVersion());
+        assertEquals(Set.of(5, 6), dictionaries.versions.keySet());
+    }
+
+    @Test
+    public void testExtendedEntitiesAreWrittenAgainWhenDictionariesAreRemoved() {
+        long now = System.currentTimeMillis();
+        EntityStore.EntityWrite extended = new EntityStore.EntityWrite("key", tripUpdate(0), now + HOUR, EntityFingerprints.Outcome.EXPIRING);
+        for (int retainedVersions : new int[] {0, 2}) {
+            CompressingEntityStore store = new CompressingEntityStore(new LocalEntityStore(1 << 20, false, null),
+                    type -> new Dictionaries(), 10, HOUR, retainedVersions);
+            store.init(null);
+            store.write(RedisService.Type.ALERT, List.of(new EntityStore.EntityWrite("key", tripUpdate(0), now + MINUTE,
+                    EntityFingerprints.Outcome.CHANGED)), now);
+            EntityStore.WriteCounts counts = store.write(RedisService.Type.ALERT, List.of(extended), now);
+            assertEquals(retainedVersions > 0 ? 1 : 0, counts.changed());
+            assertEquals(retainedVersions > 0 ? 0 : 1, counts.extended());
+            store.close();
+        }
+    }
+
+    @Test
+    public void testDictionaryIsTrainedWithoutHoldingWrites() throws DataFormatException {
+        List<Runnable> training = new ArrayList<>();
+        EntityCompression compression = new EntityCompression("test", new Dictionaries(), 10, 0, 0, training::add);
+        compression.start(0);
+        for (int i = 0; i < 20; i++) {
+            compression.encode(tripUpdate(i), 0, 0);
+        }
+        assertEquals(1, training.size());
+        assertEquals(0, compression.currentVersion());
+
+        training.get(0).run();
+        assertEquals(1, compression.currentVersion());
+        assertArrayEquals(tripUpdate(20), compression.decode(compression.encode(tripUpdate(20), 0, 0)));
+    }
+
+    private static EntityCompression compression(EntityCompression.DictionaryStore dictionaries, int sampleCount, long rotationMillis) {
+        return new EntityCompression("test", dictionaries, sampleCount, rotationMillis, 0, Runnable::run);
+    }
+
+    private long storedBytes(EntityCompression compression, int from, int to) {
+        long stored = 0;
+        for (int i = from; i < to; i++) {
+            stored += compression.encode(tripUpdate(i), 0, 0).length;
+        }
+        return stored;
+    }
+
+    /**
+     * Something like an encoded trip update: ids and stop references that differ between entities
+     * around the same structure.
+     */
+    private byte[] tripUpdate(int i) {
+        Random entityRandom = new Random(i);
+        StringBuilder entity = new StringBuilder();
+        entity.append("RUT:ServiceJourney:").append(entityRandom.nextInt(100_000)).append("-2026-10-17");
+        entity.append("\u0012RUT:Line:").append(entityRandom.nextInt(200)).append("\u0018");
+        for (int stop = 0; stop < 10 + entityRandom.nextInt(20); stop++) {
+            entity.append("\"NSR:Quay:").append(1000 + entityRandom.nextInt(5000))
+                    .append("\u0010").append(stop)
+                    .append("\u001aarrival\u0008").append(entityRandom.nextInt(600))
+                    .append("\"departure\u0008").append(entityRandom.nextInt(600))
+                    .append("SCHEDULED");
+        }
+        byte[] bytes = entity.toString().getBytes(StandardCharsets.UTF_8);
+        bytes[0] = 10;
+        return bytes;
+    }
+
+    private static class Dictionaries implements EntityCompression.DictionaryStore {
+        private final Map<Integer, byte[]> versions = new HashMap<>();
+        private final Map<Integer, Long> keptUntil = new HashMap<>();
+        private boolean publishing = true;
+
+        @Override
+        public int latestVersion() {
+            return versions.keySet().stream().mapToInt(Integer::intValue).max().orElse(0);
+        }
+
+        @Override
+        public byte[] read(int version) {
+            return versions.get(version);
+        }
+
+        @Override
+        public boolean publish(int version, byte[] dictionary) {
+            return publishing && versions.putIfAbsent(version, dictionary) == null;
+        }
+
+        @Override
+        public void keepUntil(int version, long time) {
+            keptUntil.merge(version, time, Math::max);
+        }
+
+        @Override
+        public void removeBefore(int version, long now) {
+            versions.keySet().removeIf(published -> published < version && keptUntil.getOrDefault(published, 0L) <= now);
+        }
+    }
+}
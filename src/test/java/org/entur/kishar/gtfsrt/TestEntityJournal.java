@@ -0,0 +1,279 @@
+package org.entur.kishar.gtfsrt;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class TestEntityJournal {
+
+    private static final long START = 1_700_000_000_000L;
+
+    @TempDir
+    Path directory;
+
+    private final List<String> removed = new ArrayList<>();
+
+    @Test
+    public void testSnapshotAndJournalAreRecovered() throws IOException {
+        InMemoryEntityStore store = createStore(false);
+        assertEquals(0, store.recover(new EntityJournal(directory), START));
+        store.put(RedisService.Type.ALERT, "alert", data(10, 1), START + 3_600_000, START);
+        store.put(RedisService.Type.TRIP_UPDATE, "kept", data(20, 2), START + 60_000, START);
+        store.put(RedisService.Type.TRIP_UPDATE, "expiring", data(30, 3), START + 5_000, START);
+        assertEquals(3, store.writeSnapshot(START + 1_000));
+
+        // Journal after the snapshot: a replaced, an extended, an expired and a new entity
+        store.put(RedisService.Type.TRIP_UPDATE, "kept", data(25, 4), START + 60_000, START + 2_000);
+        store.extend(RedisService.Type.ALERT, "alert", START + 7_200_000, START + 2_000);
+        store.expire(START + 8_000);
+        store.put(RedisService.Type.VEHICLE_POSITION, "short", data(5, 5), START + 20_000, START + 8_000);
+        store.flushJournal();
+        store.closeJournal();
+        assertEquals(List.of("TRIP_UPDATE:expiring:EXPIRED"), removed);
+        removed.clear();
+
+        InMemoryEntityStore recovered = createStore(true);
+        assertEquals(7, recovered.recover(new EntityJournal(directory), START + 10_000));
+        assertArrayEquals(data(25, 4), recovered.get(RedisService.Type.TRIP_UPDATE, "kept", START + 10_000));
+        assertNull(recovered.get(RedisService.Type.TRIP_UPDATE, "expiring", START + 10_000));
+        assertEquals(1, recovered.size(RedisService.Type.TRIP_UPDATE));
+        assertEquals(1, recovered.size(RedisService.Type.VEHICLE_POSITION));
+
+        // Extended past the original expiry
+        assertArrayEquals(data(10, 1), recovered.get(RedisService.Type.ALERT, "alert", START + 3_700_000));
+        recovered.closeJournal();
+
+        // Entities that expired while the instance was down are skipped
+        InMemoryEntityStore later = createStore(false);
+        later.recover(new EntityJournal(directory), START + 30_000);
+        assertEquals(0, later.size(RedisService.Type.VEHICLE_POSITION));
+        assertEquals(1, later.size(RedisService.Type.TRIP_UPDATE));
+        assertTrue(removed.isEmpty());
+    }
+
+    @Test
+    public void testRecordCutShortEndsTheJournal() throws IOException {
+        InMemoryEntityStore store = createStore(false);
+        store.recover(new EntityJournal(directory), START);
+        store.put(RedisService.Type.TRIP_UPDATE, "first", data(100, 1), START + 60_000, START);
+        store.flushJournal();
+        store.closeJournal();
+
+        // A crash in the middle of writing a record
+        Path journal = directory.resolve("entities.journal");
+        Files.write(journal, new byte[]{1, 1, 0, 0, 0, 9, 'x'}, StandardOpenOption.APPEND);
+
+        InMemoryEntityStore recovered = createStore(false);
+        assertEquals(1, recovered.recover(new EntityJournal(directory), START + 1_000));
+        recovered.put(RedisService.Type.TRIP_UPDATE, "second", data(100, 2), START + 60_000, START + 1_000);
+        recovered.flushJournal();
+        recovered.closeJournal();
+
+        InMemoryEntityStore again = createStore(false);
+        assertEquals(2, again.recover(new EntityJournal(directory), START + 2_000));
+        Map<String, byte[]> entities = again.readAll(RedisService.Type.TRIP_UPDATE, START + 2_000);
+        assertEquals(2, entities.size());
+        assertArrayEquals(data(100, 2), entities.get("second"));
+    }
+
+    @Test
+    public void testUnknownOperationEndsTheJournal() throws IOException {
+        InMemoryEntityStore store = createStore(false);
+        store.recover(new EntityJournal(directory), START);
+        store.put(RedisService.Type.TRIP_UPDATE, "first", data(100, 1), START + 60_000, START);
+        store.flushJournal();
+        store.closeJournal();
+
+        Path journal = directory.resolve("entities.journal");
+        Files.write(journal, new byte[]{42, 1, 0, 0, 0, 1, 'x'}, StandardOpenOption.APPEND);
+
+        // The journal is still opened, and records appended after recovery are read back
+        InMemoryEntityStore recovered = createStore(false);
+        assertEquals(1, recovered.recover(new EntityJournal(directory), START + 1_000));
+        recovered.put(RedisService.Type.TRIP_UPDATE, "second", data(100, 2), START + 60_000, START + 1_000);
+        recovered.flushJournal();
+        recovered.closeJournal();
+
+        InMemoryEntityStore again = createStore(false);
+        assertEquals(2, again.recover(new EntityJournal(directory), START + 2_000));
+        assertArrayEquals(data(100, 2), again.get(RedisService.Type.TRIP_UPDATE, "second", START + 2_000));
+    }
+
+    @Test
+    public void testCorruptLengthEndsTheJournal() throws IOException {
+        InMemoryEntityStore store = createStore(false);
+        store.recover(new EntityJournal(directory), START);
+        store.put(RedisService.Type.TRIP_UPDATE, "first", data(100, 1), START + 60_000, START);
+        store.flushJournal();
+        store.closeJournal();
+
+        // A key length of 2 GB is not allocated
+        Path journal = directory.resolve("entities.journal");
+        Files.write(journal, new byte[]{1, 1, 0x7f, (byte) 0xff, (byte) 0xff, (byte) 0xff, 'x'}, StandardOpenOption.APPEND);
+
+        InMemoryEntityStore recovered = createStore(false);
+        assertEquals(1, recovered.recover(new EntityJournal(directory), START + 1_000));
+        assertArrayEquals(data(100, 1), recovered.get(RedisService.Type.TRIP_UPDATE, "first", START + 1_000));
+        recovered.closeJournal();
+    }
+
+    @Test
+    public void testChecksumMismatchEndsTheJournal() throws IOException {
+        InMemoryEntityStore store = createStore(false);
+        store.recover(new EntityJournal(directory), START);
+        store.put(RedisService.Type.TRIP_UPDATE, "first", data(100, 1), START + 60_000, START);
+        store.flushJournal();
+        long firstLength = Files.size(directory.resolve("entities.journal"));
+        store.put(RedisService.Type.TRIP_UPDATE, "second", data(100, 2), START + 60_000, START);
+        store.flushJournal();
+        store.closeJournal();
+
+        // A byte of the data of the second record changed on disk
+        Path journal = directory.resolve("entities.journal");
+        byte[] content = Files.readAllBytes(journal);
+        content[(int) firstLength + 30] ^= 1;
+        Files.write(journal, content);
+
+        InMemoryEntityStore recovered = createStore(false);
+        assertEquals(1, recovered.recover(new EntityJournal(directory), START + 1_000));
+        assertNull(recovered.get(RedisService.Type.TRIP_UPDATE, "second", START + 1_000));
+        recovered.closeJournal();
+        assertEquals(firstLength, Files.size(journal));
+    }
+
+    @Test
+    public void testSnapshotReplacesJournal() throws IOException {
+        InMemoryEntityStore store = createStore(true);
+        store.recover(new EntityJournal(directory), START);
+        for (int i = 0; i < 1000; i++) {
+            store.put(RedisService.Type.TRIP_UPDATE, "key" + (i % 10), data(5000, i), START + 60_000, START);
+        }
+        store.flushJournal();
+        assertTrue(Files.size(directory.resolve("entities.journal")) > 1000 * 5000);
+
+        assertEquals(10, store.writeSnapshot(START + 1_000));
+        assertEquals(EntityJournal.HEADER_SIZE, Files.size(directory.resolve("entities.journal")));
+        assertFalse(Files.exists(directory.resolve("entities.snapshot.tmp")));
+        assertFalse(Files.exists(directory.resolve("entities.journal.previous")));
+        store.closeJournal();
+
+        InMemoryEntityStore recovered = createStore(false);
+        assertEquals(10, recovered.recover(new EntityJournal(directory), START + 2_000));
+        assertArrayEquals(data(5000, 999), recovered.get(RedisService.Type.TRIP_UPDATE, "key9", START + 2_000));
+    }
+
+    @Test
+    public void testWritesGoOnWhileTheSnapshotIsWritten() throws Exception {
+        InMemoryEntityStore store = createStore(true);
+        store.recover(new EntityJournal(directory), START);
+        for (int i = 0; i < 5000; i++) {
+            store.put(RedisService.Type.TRIP_UPDATE, "key" + i, data(1000, i), START + 60_000, START);
+        }
+
+        // Replaces and removes entities while the snapshot copies them
+        Thread writer = new Thread(() -> {
+            for (int i = 0; i < 5000; i += 2) {
+                store.put(RedisService.Type.TRIP_UPDATE, "key" + i, data(1000, i + 1), START + 60_000, START);
+                store.remove(RedisService.Type.TRIP_UPDATE, "key" + (i + 1));
+                store.flushJournal();
+            }
+        });
+        writer.start();
+        store.writeSnapshot(START + 1_000);
+        writer.join();
+        store.flushJournal();
+        store.closeJournal();
+
+        InMemoryEntityStore recovered = createStore(false);
+        recovered.recover(new EntityJournal(directory), START + 2_000);
+        Map<String, byte[]> entities = recovered.readAll(RedisService.Type.TRIP_UPDATE, START + 2_000);
+        assertEquals(2500, entities.size());
+        for (int i = 0; i < 5000; i += 2) {
+            assertArrayEquals(data(1000, i + 1), entities.get("key" + i));
+        }
+    }
+
+    @Test
+    public void testJournalOlderThanTheSnapshotIsNotRead() throws IOException {
+        InMemoryEntityStore store = createStore(false);
+        store.recover(new EntityJournal(directory), START);
+        store.put(RedisService.Type.TRIP_UPDATE, "cleared", data(100, 1), START + 60_000, START);
+        store.flushJournal();
+        byte[] journal = Files.readAllBytes(directory.resolve("entities.journal"));
+
+        store.clear();
+        store.put(RedisService.Type.TRIP_UPDATE, "kept", data(100, 2), START + 60_000, START);
+        assertEquals(1, store.writeSnapshot(START + 1_000));
+        store.closeJournal();
+
+        // As if the snapshot was completed, but the journal before it was not removed
+        Files.write(directory.resolve("entities.journal.previous"), journal);
+
+        InMemoryEntityStore recovered = createStore(false);
+        recovered.recover(new EntityJournal(directory), START + 2_000);
+        assertEquals(Set.of("kept"), recovered.readAll(RedisService.Type.TRIP_UPDATE, START + 2_000).keySet());
+        assertFalse(Files.exists(directory.resolve("entities.journal.previous")));
+        recovered.closeJournal();
+    }
+
+    @Test
+    public void testJournalBeforeAnIncompleteSnapshotIsRead() throws IOException {
+        InMemoryEntityStore store = createStore(false);
+        store.recover(new EntityJournal(directory), START);
+        store.put(RedisService.Type.TRIP_UPDATE, "first", data(100, 1), START + 60_000, START);
+        store.writeSnapshot(START);
+        byte[] snapshot = Files.readAllBytes(directory.resolve("entities.snapshot"));
+        store.put(RedisService.Type.TRIP_UPDATE, "second", data(100, 2), START + 60_000, START);
+        store.flushJournal();
+        byte[] journal = Files.readAllBytes(directory.resolve("entities.journal"));
+
+        store.writeSnapshot(START + 1_000);
+        store.put(RedisService.Type.TRIP_UPDATE, "third", data(100, 3), START + 60_000, START + 1_000);
+        store.flushJournal();
+        store.closeJournal();
+
+        // As if the second snapshot was not completed: the first, the journal moved aside for the second, and the one since
+        Files.write(directory.resolve("entities.snapshot"), snapshot);
+        Files.write(directory.resolve("entities.journal.previous"), journal);
+
+        InMemoryEntityStore recovered = createStore(false);
+        recovered.recover(new EntityJournal(directory), START + 2_000);
+        assertEquals(Set.of("first", "second", "third"), recovered.readAll(RedisService.Type.TRIP_UPDATE, START + 2_000).keySet());
+
+        // Both journals are kept until the next snapshot is complete
+        recovered.put(RedisService.Type.TRIP_UPDATE, "fourth", data(100, 4), START + 60_000, START + 2_000);
+        recovered.flushJournal();
+        recovered.closeJournal();
+        InMemoryEntityStore again = createStore(false);
+        again.recover(new EntityJournal(directory), START + 3_000);
+        assertEquals(4, again.size(RedisService.Type.TRIP_UPDATE));
+        assertEquals(4, again.writeSnapshot(START + 3_000));
+        assertFalse(Files.exists(directory.resolve("entities.journal.previous")));
+        again.closeJournal();
+    }
+
+    private InMemoryEntityStore createStore(boolean offHeap) {
+        return new InMemoryEntityStore(Long.MAX_VALUE, offHeap, (type, key, cause) -> removed.add(type + ":" + key + ":" + cause), START);
+    }
+
+    private static byte[] data(int size, int version) {
+        byte[] data = new byte[size];
+        data[0] = (byte) version;
+        data[size - 1] = (byte) (version >> 8);
+        return data;
+    }
+}
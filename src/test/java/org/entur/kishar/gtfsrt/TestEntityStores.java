@@ -0,0 +1,220 @@
+package org.entur.kishar.gtfsrt;
+
+import com.google.transit.realtime.GtfsRealtime;
+import org.entur.kishar.gtfsrt.domain.CompositeKey;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+/**
+ * What every {@link EntityStore} must do, run against each of them. The Redis store is skipped
+ * when Docker is not available.
+ */
+public class TestEntityStores {
+
+    @TempDir
+    Path directory;
+
+    private final List<EntityStore> stores = new ArrayList<>();
+
+    @AfterEach
+    public void close() {
+        stores.forEach(EntityStore::close);
+    }
+
+    @AfterAll
+    public static void stopRedis() {
+        EntityStoreBackend.shutdown();
+    }
+
+    @ParameterizedTest
+    @EnumSource(EntityStoreBackend.class)
+    public void testWriteAndReadAll(EntityStoreBackend backend) throws IOException {
+        EntityStore store = createStore(backend);
+        long now = System.currentTimeMillis();
+        store.write(RedisService.Type.TRIP_UPDATE, List.of(
+                write("first", "first", now + 300_000),
+                write("second", "second", now + 300_000)), now);
+        store.write(RedisService.Type.TRIP_UPDATE, List.of(write("first", "replaced", now + 300_000)), now);
+        store.write(RedisService.Type.ALERT, List.of(write("alert", "alert", now + 300_000)), now);
+
+        Map<String, byte[]> tripUpdates = store.readAll(RedisService.Type.TRIP_UPDATE, now);
+        assertEquals(Set.of(key("first"), key("second")), tripUpdates.keySet());
+        assertArrayEquals(entity("replaced"), tripUpdates.get(key("first")));
+        assertEquals(1, store.readAll(RedisService.Type.ALERT, now).size());
+        assertTrue(store.readAll(RedisService.Type.VEHICLE_POSITION, now).isEmpty());
+    }
+
+    @ParameterizedTest
+    @EnumSource(EntityStoreBackend.class)
+    public void testUnchangedEntitiesAreSkippedAndExpiringOnesExtended(EntityStoreBackend backend) throws IOException, InterruptedException {
+        EntityStore store = createStore(backend);
+        long now = System.currentTimeMillis();
+        store.write(RedisService.Type.VEHICLE_POSITION, List.of(
+                write("unchanged", "first", now + 300_000),
+                write("extended", "extended", now + 1_000)), now);
+
+        EntityStore.WriteCounts counts = store.write(RedisService.Type.VEHICLE_POSITION, List.of(
+                new EntityStore.EntityWrite(key("unchanged"), entity("second"), now + 300_000, EntityFingerprints.Outcome.UNCHANGED),
+                new EntityStore.EntityWrite(key("extended"), entity("extended"), now + 300_000, EntityFingerprints.Outcome.EXPIRING)), now);
+        assertEquals(new EntityStore.WriteCounts(1, 1, 0), counts);
+
+        Thread.sleep(2100);
+        Map<String, byte[]> vehiclePositions = store.readAll(RedisService.Type.VEHICLE_POSITION, System.currentTimeMillis());
+        assertEquals(2, vehiclePositions.size());
+        assertArrayEquals(entity("first"), vehiclePositions.get(key("unchanged")));
+    }
+
+    @ParameterizedTest
+    @EnumSource(EntityStoreBackend.class)
+    public void testChangesSince(EntityStoreBackend backend) throws IOException, InterruptedException {
+        EntityStore store = createStore(backend);
+        long cleared = System.currentTimeMillis();
+        store.clear(cleared);
+        // The change log does not go back to before the reset
+        assertNull(store.readChanges(RedisService.Type.TRIP_UPDATE, cleared, System.currentTimeMillis()));
+
+        Thread.sleep(10);
+        long since = System.currentTimeMillis();
+        store.write(RedisService.Type.TRIP_UPDATE, List.of(
+                write("kept", "kept", since + 300_000),
+                write("expiring", "expiring", since + 1_000)), since);
+        RedisService.GtfsRtChanges changes = store.readChanges(RedisService.Type.TRIP_UPDATE, since, System.currentTimeMillis());
+        assertNotNull(changes);
+        assertEquals(Set.of(key("kept"), key("expiring")), changes.updated().keySet());
+        assertTrue(changes.removed().isEmpty());
+
+        Thread.sleep(2100);
+        long now = System.currentTimeMillis();
+        changes = store.readChanges(RedisService.Type.TRIP_UPDATE, since, now);
+        assertNotNull(changes);
+        assertEquals(Set.of(key("kept")), changes.updated().keySet());
+        assertEquals(Set.of(key("expiring")), changes.removed());
+        assertEquals(Set.of(key("expiring")), store.readExpiredKeys(RedisService.Type.TRIP_UPDATE, since, now));
+        assertEquals(Set.of(key("kept")), store.readAll(RedisService.Type.TRIP_UPDATE, now).keySet());
+
+        store.clear(now);
+        assertTrue(store.readAll(RedisService.Type.TRIP_UPDATE, now).isEmpty());
+    }
+
+    @ParameterizedTest
+    @EnumSource(EntityStoreBackend.class)
+    public void testEntitiesAreKeptWhenOpenedAgain(EntityStoreBackend backend) throws IOException {
+        assumeTrue(backend.isPersistent(), backend + " is not persistent");
+        EntityStore store = createStore(backend);
+        long now = System.currentTimeMillis();
+        store.write(RedisService.Type.ALERT, List.of(
+                write("kept", "kept", now + 300_000),
+                write("short", "short", now + 1_000)), now);
+        store.write(RedisService.Type.ALERT, List.of(
+                new EntityStore.EntityWrite(key("short"), entity("short"), now + 300_000, EntityFingerprints.Outcome.EXPIRING)), now);
+        store.checkpoint(now);
+        store.write(RedisService.Type.ALERT, List.of(write("kept", "replaced", now + 300_000)), now);
+        store.close();
+        stores.remove(store);
+
+        EntityStore reopened = backend.create(directory);
+        reopened.init(null);
+        stores.add(reopened);
+        Map<String, byte[]> alerts = reopened.readAll(RedisService.Type.ALERT, now + 2_000);
+        assertEquals(Set.of(key("kept"), key("short")), alerts.keySet());
+        assertArrayEquals(entity("replaced"), alerts.get(key("kept")));
+    }
+
+    @Test
+    public void testDiskStoreIsCompacted() throws IOException {
+        DiskEntityStore store = new DiskEntityStore(directory, 100_000);
+        stores.add(store);
+        long now = System.currentTimeMillis();
+        for (int version = 0; version < 100; version++) {
+            List<EntityStore.EntityWrite> writes = new ArrayList<>();
+            for (int i = 0; i < 10; i++) {
+                writes.add(write("key" + i, "version" + version + "-".repeat(200), now + 300_000));
+            }
+            store.write(RedisService.Type.TRIP_UPDATE, writes, now);
+        }
+        // About 250 KB written in total, of which 2.5 KB is current
+        assertTrue(store.length() < 100_000, "Not compacted: " + store.length() + " bytes");
+        assertArrayEquals(entity("version99" + "-".repeat(200)), store.readAll(RedisService.Type.TRIP_UPDATE, now).get(key("key3")));
+        store.close();
+        stores.remove(store);
+
+        DiskEntityStore reopened = new DiskEntityStore(directory, 100_000);
+        stores.add(reopened);
+        Map<String, byte[]> tripUpdates = reopened.readAll(RedisService.Type.TRIP_UPDATE, now);
+        assertEquals(10, tripUpdates.size());
+        assertArrayEquals(entity("version99" + "-".repeat(200)), tripUpdates.get(key("key7")));
+    }
+
+    @Test
+    public void testFailedDiskWriteLeavesTheEntitiesAsTheyWere() throws IOException {
+        DiskEntityStore store = new DiskEntityStore(directory);
+        stores.add(store);
+        long now = System.currentTimeMillis();
+        store.write(RedisService.Type.ALERT, List.of(write("kept", "before", now + 300_000)), now);
+        long length = store.length();
+
+        // The second key is too long to be written, so neither is
+        List<EntityStore.EntityWrite> writes = List.of(
+                write("kept", "after", now + 300_000),
+                write("x".repeat(100_000), "too long", now + 300_000));
+        assertThrows(UncheckedIOException.class, () -> store.write(RedisService.Type.ALERT, writes, now));
+        assertEquals(length, store.length());
+        assertArrayEquals(entity("before"), store.readAll(RedisService.Type.ALERT, now).get(key("kept")));
+
+        store.write(RedisService.Type.ALERT, List.of(write("added", "later", now + 300_000)), now);
+        store.close();
+        stores.remove(store);
+
+        DiskEntityStore reopened = new DiskEntityStore(directory);
+        stores.add(reopened);
+        Map<String, byte[]> alerts = reopened.readAll(RedisService.Type.ALERT, now);
+        assertEquals(2, alerts.size());
+        assertArrayEquals(entity("before"), alerts.get(key("kept")));
+        assertArrayEquals(entity("later"), alerts.get(key("added")));
+    }
+
+    private EntityStore createStore(EntityStoreBackend backend) throws IOException {
+        assumeTrue(backend.isAvailable(), backend + " is not available");
+        EntityStore store = backend.create(directory);
+        store.init(null);
+        store.clear(System.currentTimeMillis());
+        stores.add(store);
+        return store;
+    }
+
+    private static EntityStore.EntityWrite write(String id, String content, long expiresAt) {
+        return new EntityStore.EntityWrite(key(id), entity(content), expiresAt, EntityFingerprints.Outcome.CHANGED);
+    }
+
+    private static String key(String id) {
+        return new CompositeKey(id, "TST").asString();
+    }
+
+    private static byte[] entity(String id) {
+        return GtfsRealtime.FeedEntity.newBuilder()
+                .setId(id)
+                .setAlert(GtfsRealtime.Alert.newBuilder())
+                .build()
+                .toByteArray();
+    }
+}
@@ -0,0 +1,172 @@
+package org.entur.kishar.gtfsrt;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class TestInMemoryEntityStore {
+
+    private static final long START = 1_700_000_000_000L;
+
+    private final List<String> removed = new ArrayList<>();
+
+    @Test
+    public void testEntitiesExpireAtTheirOwnTime() {
+        InMemoryEntityStore store = createStore(Long.MAX_VALUE);
+        store.put(RedisService.Type.TRIP_UPDATE, "short", data(10), START + 5_000, START);
+        store.put(RedisService.Type.TRIP_UPDATE, "long", data(10), START + TimeUnit.HOURS.toMillis(2), START);
+
+        assertEquals(2, store.readAll(RedisService.Type.TRIP_UPDATE, START + 4_000).size());
+
+        // Expired entities are not read, even before the wheel has removed them
+        assertNull(store.get(RedisService.Type.TRIP_UPDATE, "short", START + 5_000));
+        assertFalse(store.contains(RedisService.Type.TRIP_UPDATE, "short", START + 5_000));
+        assertTrue(store.contains(RedisService.Type.TRIP_UPDATE, "long", START + 5_000));
+        assertEquals(1, store.readAll(RedisService.Type.TRIP_UPDATE, START + 5_000).size());
+
+        store.expire(START + 7_000);
+        assertEquals(List.of("TRIP_UPDATE:short:EXPIRED"), removed);
+        assertEquals(1, store.size(RedisService.Type.TRIP_UPDATE));
+
+        // Cascades down from the coarser levels of the wheel
+        store.expire(START + TimeUnit.HOURS.toMillis(2) - 1);
+        assertEquals(1, store.size(RedisService.Type.TRIP_UPDATE));
+        store.expire(START + TimeUnit.HOURS.toMillis(2) + 2_000);
+        assertEquals(0, store.size(RedisService.Type.TRIP_UPDATE));
+        assertEquals("TRIP_UPDATE:long:EXPIRED", removed.get(1));
+        assertEquals(0, store.weight(RedisService.Type.TRIP_UPDATE));
+    }
+
+    @Test
+    public void testExtendAndReplace() {
+        InMemoryEntityStore store = createStore(Long.MAX_VALUE);
+        store.put(RedisService.Type.ALERT, "key", data(10), START + 5_000, START);
+        assertTrue(store.extend(RedisService.Type.ALERT, "key", START + 60_000, START + 1_000));
+        assertFalse(store.extend(RedisService.Type.ALERT, "other", START + 60_000, START + 1_000));
+
+        store.expire(START + 30_000);
+        assertArrayEquals(data(10), store.get(RedisService.Type.ALERT, "key", START + 30_000));
+
+        store.put(RedisService.Type.ALERT, "key", data(20), START + 40_000, START + 30_000);
+        assertEquals(InMemoryEntityStore.ENTRY_OVERHEAD + 2 * "key".length() + 20, store.weight(RedisService.Type.ALERT));
+
+        store.expire(START + 45_000);
+        assertEquals(List.of("ALERT:key:EXPIRED"), removed);
+    }
+
+    @Test
+    public void testEntitiesClosestToExpiryAreEvictedFirst() {
+        long entryWeight = InMemoryEntityStore.ENTRY_OVERHEAD + 2 + 100;
+        InMemoryEntityStore store = createStore(3 * entryWeight);
+        store.put(RedisService.Type.VEHICLE_POSITION, "a", data(100), START + 600_000, START);
+        store.put(RedisService.Type.TRIP_UPDATE, "b", data(100), START + 10_000, START);
+        store.put(RedisService.Type.ALERT, "c", data(100), START + TimeUnit.DAYS.toMillis(30), START);
+        assertTrue(removed.isEmpty());
+
+        store.put(RedisService.Type.VEHICLE_POSITION, "d", data(100), START + 300_000, START);
+        assertEquals(List.of("TRIP_UPDATE:b:SIZE"), removed);
+
+        store.put(RedisService.Type.VEHICLE_POSITION, "e", data(100), START + 900_000, START);
+        assertEquals("VEHICLE_POSITION:d:SIZE", removed.get(1));
+        assertEquals(2, store.size(RedisService.Type.VEHICLE_POSITION));
+        assertEquals(1, store.size(RedisService.Type.ALERT));
+    }
+
+    @Test
+    public void testClear() {
+        InMemoryEntityStore store = createStore(Long.MAX_VALUE);
+        store.put(RedisService.Type.TRIP_UPDATE, "key", data(10), START + 5_000, START);
+        store.clear();
+
+        assertEquals(0, store.size(RedisService.Type.TRIP_UPDATE));
+        store.expire(START + 10_000);
+        assertTrue(removed.isEmpty());
+    }
+
+    @Test
+    public void testOffHeapEntitiesAreReadInPlaceInKeyOrder() {
+        InMemoryEntityStore store = createStore(Long.MAX_VALUE, true);
+        store.put(RedisService.Type.TRIP_UPDATE, "b", data(100), START + 5_000, START);
+        store.put(RedisService.Type.TRIP_UPDATE, "a", data(3000), START + 60_000, START);
+        store.put(RedisService.Type.TRIP_UPDATE, "c", data(10), START + 60_000, START);
+        assertEquals(InMemoryEntityStore.ENTRY_OVERHEAD + 2 + OffHeapSlabs.chunkSize(100) + OffHeapSlabs.chunkSize(3000)
+                + InMemoryEntityStore.ENTRY_OVERHEAD * 2L + 4 + OffHeapSlabs.chunkSize(10), store.weight(RedisService.Type.TRIP_UPDATE));
+
+        List<String> keys = store.read(RedisService.Type.TRIP_UPDATE, START, new InMemoryEntityStore.EntityReader<>() {
+            private final List<String> keys = new ArrayList<>();
+
+            @Override
+            public void accept(String key, ByteBuffer entity) {
+                assertTrue(entity.isDirect());
+                byte[] data = new byte[entity.capacity()];
+                entity.get(data);
+                assertArrayEquals(data(data.length), data);
+                keys.add(key);
+            }
+
+            @Override
+            public List<String> finish() {
+                return keys;
+            }
+        });
+        assertEquals(List.of("a", "b", "c"), keys);
+        assertArrayEquals(data(100), store.get(RedisService.Type.TRIP_UPDATE, "b", START));
+
+        store.expire(START + 7_000);
+        assertEquals(List.of("TRIP_UPDATE:b:EXPIRED"), removed);
+        assertEquals(Set.of("a", "c"), store.readAll(RedisService.Type.TRIP_UPDATE, START + 7_000).keySet());
+    }
+
+    @Test
+    public void testOffHeapSlabsReuseAndReleaseMemory() {
+        OffHeapSlabs slabs = new OffHeapSlabs();
+        List<Long> handles = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            handles.add(slabs.allocate(data(100)));
+        }
+        long oneSlab = slabs.allocatedBytes();
+        assertTrue(oneSlab <= OffHeapSlabs.SLAB_SIZE);
+        assertEquals(100_000, slabs.usedBytes());
+        assertEquals(1 - 100_000.0 / oneSlab, slabs.fragmentation(), 1e-9);
+
+        // Freed chunks are reused before a new slab is allocated
+        slabs.free(handles.remove(0), 100);
+        handles.add(slabs.allocate(data(100)));
+        assertEquals(oneSlab, slabs.allocatedBytes());
+
+        long large = slabs.allocate(data(3 * OffHeapSlabs.SLAB_SIZE));
+        assertEquals(oneSlab + 3 * OffHeapSlabs.SLAB_SIZE, slabs.allocatedBytes());
+        assertArrayEquals(data(3 * OffHeapSlabs.SLAB_SIZE), slabs.copy(large, 3 * OffHeapSlabs.SLAB_SIZE));
+        slabs.free(large, 3 * OffHeapSlabs.SLAB_SIZE);
+        assertEquals(oneSlab, slabs.allocatedBytes());
+
+        for (long handle : handles) {
+            slabs.free(handle, 100);
+        }
+        assertEquals(0, slabs.usedBytes());
+    }
+
+    private InMemoryEntityStore createStore(long maxBytes) {
+        return createStore(maxBytes, false);
+    }
+
+    private InMemoryEntityStore createStore(long maxBytes, boolean offHeap) {
+        return new InMemoryEntityStore(maxBytes, offHeap, (type, key, cause) -> removed.add(type + ":" + key + ":" + cause), START);
+    }
+
+    private static byte[] data(int size) {
+        byte[] data = new byte[size];
+        data[0] = (byte) size;
+        return data;
+    }
+}
@@ -0,0 +1,215 @@
+package org.entur.kishar.gtfsrt;
+
+import com.google.protobuf.Duration;
+import com.google.transit.realtime.GtfsRealtime;
+import org.apache.camel.CamelContext;
+import org.entur.kishar.gtfsrt.domain.CompositeKey;
+import org.entur.kishar.gtfsrt.domain.GtfsRtData;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class TestIncrementalOutput extends SiriToGtfsRealtimeServiceTest {
+
+    @Autowired
+    private CamelContext camelContext;
+
+    @Test
+    public void testChangeLogHoldsKeysWrittenSinceCursor() throws InterruptedException {
+        String first = new CompositeKey("first", "TST").asString();
+        String second = new CompositeKey("second", "TST").asString();
+
+        // The change log is restarted by the reset, so it cannot answer for earlier times
+        assertNull(redisService.readGtfsRtChanges(RedisService.Type.TRIP_UPDATE, 0));
+
+        redisService.writeGtfsRt(entity(first, "first"), RedisService.Type.TRIP_UPDATE);
+        Thread.sleep(10);
+        long cursor = System.currentTimeMillis();
+        redisService.writeGtfsRt(entity(second, "second"), RedisService.Type.TRIP_UPDATE);
+
+        RedisService.GtfsRtChanges changes = redisService.readGtfsRtChanges(RedisService.Type.TRIP_UPDATE, cursor);
+        assertNotNull(changes);
+        assertTrue(changes.updated().containsKey(second));
+        assertTrue(changes.removed().isEmpty());
+
+        redisService.resetAllData();
+        assertNull(redisService.readGtfsRtChanges(RedisService.Type.TRIP_UPDATE, cursor));
+    }
+
+    @Test
+    public void testOutputFollowsWritesAndReset() throws IOException {
+        redisService.writeGtfsRt(entity(new CompositeKey("first", "TST").asString(), "first"), RedisService.Type.ALERT);
+        rtService.writeOutput();
+        assertEquals(1, alerts().getEntityCount());
+
+        redisService.writeGtfsRt(entity(new CompositeKey("second", "TST").asString(), "second"), RedisService.Type.ALERT);
+        rtService.writeOutput();
+        assertEquals(2, alerts().getEntityCount());
+
+        // Rewriting an entity replaces it
+        redisService.writeGtfsRt(entity(new CompositeKey("second", "TST").asString(), "second"), RedisService.Type.ALERT);
+        rtService.writeOutput();
+        assertEquals(2, alerts().getEntityCount());
+
+        redisService.resetAllData();
+        redisService.writeGtfsRt(entity(new CompositeKey("third", "TST").asString(), "third"), RedisService.Type.ALERT);
+        rtService.writeOutput();
+        GtfsRealtime.FeedMessage feed = alerts();
+        assertEquals(1, feed.getEntityCount());
+        assertEquals("third", feed.getEntity(0).getId());
+    }
+
+    @Test
+    public void testWriteBufferKeepsLatestVersionOfEachKey() {
+        GtfsRtWriteBuffer buffer = new GtfsRtWriteBuffer(3);
+        String key = new CompositeKey("first", "TST").asString();
+
+        assertEquals(0, buffer.put(entity(key, "old"), RedisService.Type.ALERT));
+        assertEquals(1, buffer.put(entity(key, "new"), RedisService.Type.ALERT));
+        assertFalse(buffer.isFull());
+        buffer.put(entity(new CompositeKey("second", "TST").asString(), "second"), RedisService.Type.ALERT);
+        buffer.put(entity(new CompositeKey("third", "TST").asString(), "third"), RedisService.Type.VEHICLE_POSITION);
+        assertTrue(buffer.isFull());
+
+        CompletableFuture<Void> flushed = buffer.getFlushed();
+        GtfsRtWriteBuffer.Drained drained = buffer.drain();
+        assertSame(flushed, drained.flushed());
+        assertNotSame(flushed, buffer.getFlushed());
+        Map<String, GtfsRtData> alerts = drained.entities().get(RedisService.Type.ALERT);
+        assertEquals(2, alerts.size());
+        assertTrue(new String(alerts.get(key).getData()).contains("new"));
+        long timeToLive = alerts.get(key).getTimeToLive().getSeconds();
+        assertTrue(timeToLive > 0 && timeToLive <= 300);
+        assertEquals(1, drained.entities().get(RedisService.Type.VEHICLE_POSITION).size());
+        assertFalse(buffer.isFull());
+        assertTrue(buffer.drain().entities().get(RedisService.Type.ALERT).isEmpty());
+    }
+
+    @Test
+    public void testBufferedWritesAreVisibleToReads() {
+        String key = new CompositeKey("first", "TST").asString();
+        redisService.writeGtfsRt(entity(key, "old"), RedisService.Type.ALERT);
+        redisService.writeGtfsRt(entity(key, "new"), RedisService.Type.ALERT);
+
+        Map<String, byte[]> alerts = redisService.readGtfsRtMap(RedisService.Type.ALERT);
+        assertEquals(1, alerts.size());
+        assertTrue(new String(alerts.get(key)).contains("new"));
+    }
+
+    @Test
+    public void testBufferedWritesAreFlushedWithoutPubSub() {
+        // Pub/Sub is disabled in the tests, and the buffer flushed every second
+        assertNotNull(camelContext.getRoute("kishar.flush.writes"));
+    }
+
+    @Test
+    public void testFingerprintsDetectUnchangedEntities() {
+        EntityFingerprints fingerprints = new EntityFingerprints(100);
+        String key = new CompositeKey("first", "TST").asString();
+        long data = EntityFingerprints.hash(entity(key, "first").get(key).getData());
+        long changed = EntityFingerprints.hash(entity(key, "changed").get(key).getData());
+        long now = System.currentTimeMillis();
+
+        assertEquals(EntityFingerprints.Outcome.CHANGED, fingerprints.check(RedisService.Type.ALERT, key, data, now, now + 300_000));
+        // Not written yet
+        assertEquals(EntityFingerprints.Outcome.CHANGED, fingerprints.check(RedisService.Type.ALERT, key, data, now, now + 300_000));
+        fingerprints.record(RedisService.Type.ALERT, key, data, now + 300_000);
+        assertEquals(EntityFingerprints.Outcome.UNCHANGED, fingerprints.check(RedisService.Type.ALERT, key, data, now + 1000, now + 301_000));
+        // Same key in another map is not the same entity
+        assertEquals(EntityFingerprints.Outcome.CHANGED, fingerprints.check(RedisService.Type.TRIP_UPDATE, key, data, now, now + 300_000));
+
+        // More than half of the time to live used up
+        assertEquals(EntityFingerprints.Outcome.EXPIRING, fingerprints.check(RedisService.Type.ALERT, key, data, now + 200_000, now + 500_000));
+        fingerprints.record(RedisService.Type.ALERT, key, data, now + 500_000);
+        assertEquals(EntityFingerprints.Outcome.UNCHANGED, fingerprints.check(RedisService.Type.ALERT, key, data, now + 201_000, now + 501_000));
+
+        assertEquals(EntityFingerprints.Outcome.CHANGED, fingerprints.check(RedisService.Type.ALERT, key, changed, now + 202_000, now + 502_000));
+
+        // A failed write is forgotten
+        fingerprints.forget(RedisService.Type.ALERT, List.of(key));
+        assertEquals(EntityFingerprints.Outcome.CHANGED, fingerprints.check(RedisService.Type.ALERT, key, data, now + 203_000, now + 503_000));
+
+        fingerprints.record(RedisService.Type.ALERT, key, changed, now + 503_000);
+        fingerprints.clear();
+        assertEquals(EntityFingerprints.Outcome.CHANGED, fingerprints.check(RedisService.Type.ALERT, key, changed, now + 204_000, now + 504_000));
+    }
+
+    @Test
+    public void testUnchangedEntityIsNotLoggedAsChange() throws InterruptedException {
+        String key = new CompositeKey("first", "TST").asString();
+        redisService.writeGtfsRt(entity(key, "first"), RedisService.Type.TRIP_UPDATE);
+        redisService.flushWrites();
+        Thread.sleep(10);
+        long cursor = System.currentTimeMillis() + RedisService.CHANGE_LOG_OVERLAP_MILLIS;
+
+        redisService.writeGtfsRt(entity(key, "first"), RedisService.Type.TRIP_UPDATE);
+        RedisService.GtfsRtChanges changes = redisService.readGtfsRtChanges(RedisService.Type.TRIP_UPDATE, cursor);
+        assertNotNull(changes);
+        assertTrue(changes.updated().isEmpty());
+        assertTrue(redisService.readGtfsRtMap(RedisService.Type.TRIP_UPDATE).containsKey(key));
+    }
+
+    @Test
+    public void testMirrorUpdatesRoundTrip() throws IOException {
+        String key = new CompositeKey("first", "TST").asString();
+        Map<String, byte[]> updated = Map.of(key, entity(key, "first").get(key).getData());
+
+        MirrorUpdates updates = MirrorUpdates.decode(MirrorUpdates.encodeUpdates(1234L, updated));
+        assertEquals(1234L, updates.publishedAt());
+        assertFalse(updates.reset());
+        assertEquals(1, updates.updated().size());
+        assertArrayEquals(updated.get(key), updates.updated().get(key));
+
+        MirrorUpdates reset = MirrorUpdates.decode(MirrorUpdates.encodeReset(5678L));
+        assertTrue(reset.reset());
+        assertTrue(reset.updated().isEmpty());
+    }
+
+    @Test
+    public void testOutputBlobRoundTrip() throws IOException {
+        redisService.writeGtfsRt(entity(new CompositeKey("first", "TST").asString(), "first"), RedisService.Type.ALERT);
+        rtService.writeOutput();
+        byte[] alerts = (byte[]) rtService.getAlerts(null, null);
+        byte[] tstAlerts = (byte[]) rtService.getAlerts(null, "TST");
+
+        OutputBlob blob = new OutputBlob(
+                new OutputBlob.FeedContent(new byte[0], Map.of()),
+                new OutputBlob.FeedContent(new byte[]{1, 2, 3}, Map.of()),
+                new OutputBlob.FeedContent(alerts, Map.of("TST", tstAlerts)));
+        OutputBlob decoded = OutputBlob.decode(blob.encode());
+
+        assertEquals(0, decoded.tripUpdates().feed().length);
+        assertArrayEquals(new byte[]{1, 2, 3}, decoded.vehiclePositions().feed());
+        assertArrayEquals(alerts, decoded.alerts().feed());
+        assertEquals(1, decoded.alerts().feedsByDatasource().size());
+        assertArrayEquals(tstAlerts, decoded.alerts().feedsByDatasource().get("TST"));
+    }
+
+    private GtfsRealtime.FeedMessage alerts() throws IOException {
+        return GtfsRealtime.FeedMessage.parseFrom((byte[]) rtService.getAlerts(null, null));
+    }
+
+    private Map<String, GtfsRtData> entity(String key, String id) {
+        GtfsRealtime.FeedEntity entity = GtfsRealtime.FeedEntity.newBuilder()
+                .setId(id)
+                .setAlert(GtfsRealtime.Alert.newBuilder())
+                .build();
+        Map<String, GtfsRtData> result = new HashMap<>();
+        result.put(key, new GtfsRtData(entity.toByteArray(), Duration.newBuilder().setSeconds(300).build()));
+        return result;
+    }
+}
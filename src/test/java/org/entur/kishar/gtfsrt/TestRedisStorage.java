@@ -0,0 +1,386 @@
+package org.entur.kishar.gtfsrt;
+
+import com.google.protobuf.Duration;
+import com.google.transit.realtime.GtfsRealtime;
+import org.entur.kishar.gtfsrt.domain.CompositeKey;
+import org.entur.kishar.gtfsrt.domain.GtfsRtData;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.redisson.api.RedissonClient;
+import org.redisson.api.options.KeysScanOptions;
+import org.testcontainers.DockerClientFactory;
+import org.testcontainers.containers.GenericContainer;
+import org.testcontainers.utility.DockerImageName;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+/**
+ * Runs the redis storage modes against a local Redis server in a container. Skipped when Docker is
+ * not available.
+ */
+public class TestRedisStorage {
+
+    private static final int REDIS_PORT = 6379;
+
+    private static GenericContainer<?> redis;
+
+    private final List<RedisService> services = new ArrayList<>();
+
+    private final List<EntityStore> stores = new ArrayList<>();
+
+    @BeforeAll
+    public static void startRedis() {
+        assumeTrue(DockerClientFactory.instance().isDockerAvailable(), "Docker is not available");
+        // Native hash field expiry needs Redis 7.4 or later
+        redis = new GenericContainer<>(DockerImageName.parse("redis:7.4-alpine")).withExposedPorts(REDIS_PORT);
+        redis.start();
+    }
+
+    @AfterAll
+    public static void stopRedis() {
+        if (redis != null) {
+            redis.stop();
+        }
+    }
+
+    @AfterEach
+    public void shutdown() {
+        stores.forEach(EntityStore::close);
+        services.forEach(RedisService::shutdown);
+    }
+
+    @Test
+    public void testNativeStorageReadsWritesAndChanges() throws InterruptedException {
+        RedisService redisService = createService("native");
+        redisService.resetAllData();
+        Thread.sleep(10);
+        long cursor = System.currentTimeMillis();
+
+        String key = new CompositeKey("first", "TST").asString();
+        redisService.writeGtfsRt(entity(key, "first", 300), RedisService.Type.TRIP_UPDATE);
+
+        Map<String, byte[]> tripUpdates = redisService.readGtfsRtMap(RedisService.Type.TRIP_UPDATE);
+        assertEquals(1, tripUpdates.size());
+        assertTrue(new String(tripUpdates.get(key), StandardCharsets.UTF_8).contains("first"));
+
+        RedisService.GtfsRtChanges changes = redisService.readGtfsRtChanges(RedisService.Type.TRIP_UPDATE, cursor);
+        assertNotNull(changes);
+        assertTrue(changes.updated().containsKey(key));
+        assertTrue(changes.removed().isEmpty());
+    }
+
+    @Test
+    public void testNativeStorageExpiresEntries() throws InterruptedException {
+        RedisService redisService = createService("native");
+        redisService.resetAllData();
+
+        String shortLived = new CompositeKey("short", "TST").asString();
+        String longLived = new CompositeKey("long", "TST").asString();
+        redisService.writeGtfsRt(entity(shortLived, "short", 1), RedisService.Type.VEHICLE_POSITION);
+        redisService.writeGtfsRt(entity(longLived, "long", 300), RedisService.Type.VEHICLE_POSITION);
+        assertEquals(2, redisService.readGtfsRtMap(RedisService.Type.VEHICLE_POSITION).size());
+
+        Thread.sleep(2100);
+        Map<String, byte[]> vehiclePositions = redisService.readGtfsRtMap(RedisService.Type.VEHICLE_POSITION);
+        assertEquals(1, vehiclePositions.size());
+        assertTrue(vehiclePositions.containsKey(longLived));
+    }
+
+    @Test
+    public void testSwitchFromMapCacheToNativeStorage() {
+        RedisService mapCache = createService("mapcache");
+        mapCache.resetAllData();
+        String kept = new CompositeKey("kept", "TST").asString();
+        String rewritten = new CompositeKey("rewritten", "TST").asString();
+        Map<String, GtfsRtData> alerts = new HashMap<>();
+        alerts.putAll(entity(kept, "kept", 300));
+        alerts.putAll(entity(rewritten, "old", 300));
+        mapCache.writeGtfsRt(alerts, RedisService.Type.ALERT);
+
+        RedisService nativeStorage = createService("native");
+        nativeStorage.writeGtfsRt(entity(rewritten, "new", 300), RedisService.Type.ALERT);
+
+        // Entities not yet written to the new storage are still read from the previous one
+        Map<String, byte[]> read = nativeStorage.readGtfsRtMap(RedisService.Type.ALERT);
+        assertEquals(2, read.size());
+        assertTrue(new String(read.get(kept), StandardCharsets.UTF_8).contains("kept"));
+        assertTrue(new String(read.get(rewritten), StandardCharsets.UTF_8).contains("new"));
+
+        // ... and those that have been are removed from it
+        Map<String, byte[]> previous = mapCache.readGtfsRtMap(RedisService.Type.ALERT);
+        assertFalse(new String(previous.get(rewritten), StandardCharsets.UTF_8).contains("old"));
+    }
+
+    @Test
+    public void testNearCacheReceivesWritesAndExpiries() throws InterruptedException {
+        RedisService writer = createService("mapcache", true);
+        RedisService reader = createService("mapcache", true);
+        writer.resetAllData();
+
+        GtfsRtMapMirror mirror = new GtfsRtMapMirror(reader, RedisService.Type.VEHICLE_POSITION, 300_000);
+        assertTrue(mirror.isNearCache());
+        assertTrue(mirror.refresh().isEmpty());
+
+        String pushed = new CompositeKey("pushed", "TST").asString();
+        String expiring = new CompositeKey("expiring", "TST").asString();
+        writer.writeGtfsRt(entity(pushed, "pushed", 300), RedisService.Type.VEHICLE_POSITION);
+        writer.writeGtfsRt(entity(expiring, "expiring", 1), RedisService.Type.VEHICLE_POSITION);
+
+        Map<String, byte[]> entities = mirror.refresh();
+        for (int i = 0; i < 50 && entities.size() < 2; i++) {
+            Thread.sleep(100);
+            entities = mirror.refresh();
+        }
+        assertEquals(2, entities.size());
+        assertTrue(new String(entities.get(pushed), StandardCharsets.UTF_8).contains("pushed"));
+
+        Thread.sleep(2100);
+        entities = mirror.refresh();
+        assertEquals(1, entities.size());
+        assertTrue(entities.containsKey(pushed));
+    }
+
+    @Test
+    public void testCompressedEntitiesAreReadByOtherInstances() throws InterruptedException {
+        RedisService writer = createService("mapcache", true, true);
+        RedisService reader = createService("mapcache", true, true);
+        writer.resetAllData();
+
+        GtfsRtMapMirror mirror = new GtfsRtMapMirror(reader, RedisService.Type.TRIP_UPDATE, 300_000);
+        assertTrue(mirror.refresh().isEmpty());
+
+        // The first two are sampled for the dictionary, the third is compressed with it once trained
+        Map<String, GtfsRtData> written = new HashMap<>();
+        for (String id : List.of("first", "second", "third")) {
+            Map<String, GtfsRtData> entity = entity(new CompositeKey(id, "TST").asString(), "RUT:ServiceJourney:" + id, 300);
+            written.putAll(entity);
+            writer.writeGtfsRt(entity, RedisService.Type.TRIP_UPDATE);
+        }
+
+        Map<String, byte[]> stored = reader.readGtfsRtMap(RedisService.Type.TRIP_UPDATE);
+        assertEquals(written.keySet(), stored.keySet());
+        for (Map.Entry<String, GtfsRtData> entry : written.entrySet()) {
+            assertArrayEquals(entry.getValue().getData(), stored.get(entry.getKey()));
+        }
+
+        Map<String, byte[]> mirrored = mirror.refresh();
+        for (int i = 0; i < 50 && mirrored.size() < 3; i++) {
+            Thread.sleep(100);
+            mirrored = mirror.refresh();
+        }
+        assertEquals(3, mirrored.size());
+        for (Map.Entry<String, GtfsRtData> entry : written.entrySet()) {
+            assertArrayEquals(entry.getValue().getData(), mirrored.get(entry.getKey()));
+        }
+    }
+
+    @Test
+    public void testFullReadIsScannedInPages() {
+        RedisService redisService = createService("native");
+        redisService.resetAllData();
+
+        // More than the page size, and more than Redis keeps in a compact hash
+        Map<String, GtfsRtData> written = new HashMap<>();
+        for (int i = 0; i < 1000; i++) {
+            written.putAll(entity(new CompositeKey("scanned" + i, "TST").asString(), "scanned" + i, 300));
+        }
+        redisService.writeGtfsRt(written, RedisService.Type.TRIP_UPDATE);
+
+        Map<String, byte[]> read = new TreeMap<>();
+        redisService.readGtfsRtMap(RedisService.Type.TRIP_UPDATE, EntityStore.EntitySink.of(read));
+        assertEquals(written.keySet(), read.keySet());
+        String key = new CompositeKey("scanned500", "TST").asString();
+        assertArrayEquals(written.get(key).getData(), read.get(key));
+    }
+
+    @Test
+    public void testShardsHaveTheirOwnChangeLogs() throws InterruptedException {
+        RedissonClient redisson = createService("mapcache").redisson;
+        RedisEntityStore store = createShardedStore(redisson, 8);
+        long since = System.currentTimeMillis();
+        Thread.sleep(10);
+
+        List<EntityStore.EntityWrite> writes = new ArrayList<>();
+        for (String datasource : List.of("TST", "RUT")) {
+            for (int i = 0; i < 40; i++) {
+                writes.add(new EntityStore.EntityWrite(new CompositeKey("sharded" + i, datasource).asString(),
+                        new byte[]{10, 1, 1}, System.currentTimeMillis() + 300_000, EntityFingerprints.Outcome.CHANGED));
+            }
+        }
+        store.write(RedisService.Type.TRIP_UPDATE, writes, System.currentTimeMillis());
+
+        Set<String> changeLogs = new HashSet<>();
+        redisson.getKeys().getKeys(KeysScanOptions.defaults().pattern(RedisService.Type.TRIP_UPDATE.getChangeSetIdentifier() + ":*"))
+                .forEach(changeLogs::add);
+        assertEquals(16, changeLogs.size(), changeLogs.toString());
+        assertTrue(changeLogs.contains(RedisService.Type.TRIP_UPDATE.getChangeSetIdentifier() + ":{RUT:0}"));
+
+        RedisService.GtfsRtChanges changes = store.readChanges(RedisService.Type.TRIP_UPDATE, since, System.currentTimeMillis());
+        assertNotNull(changes);
+        assertEquals(80, changes.updated().size());
+        assertEquals(80, store.readAll(RedisService.Type.TRIP_UPDATE, System.currentTimeMillis()).size());
+    }
+
+    @Test
+    public void testKeysInTheOtherFormatAreReadAPageAtATime() {
+        RedissonClient redisson = createService("mapcache").redisson;
+        RedisEntityStore legacy = new RedisEntityStore(redisson, 500, 10, true, false, false);
+        RedisEntityStore binary = new RedisEntityStore(redisson, 500, 10, false, false, false);
+        stores.add(legacy);
+        stores.add(binary);
+        long now = System.currentTimeMillis();
+        binary.clear(now);
+
+        List<EntityStore.EntityWrite> written = new ArrayList<>();
+        List<EntityStore.EntityWrite> rewritten = new ArrayList<>();
+        for (int i = 0; i < 25; i++) {
+            String key = new CompositeKey("format" + i, "TST").asString();
+            written.add(new EntityStore.EntityWrite(key, new byte[]{1}, now + 300_000, EntityFingerprints.Outcome.CHANGED));
+            if (i % 2 == 0) {
+                rewritten.add(new EntityStore.EntityWrite(key, new byte[]{2}, now + 300_000, EntityFingerprints.Outcome.CHANGED));
+            }
+        }
+        legacy.write(RedisService.Type.ALERT, written, now);
+        binary.write(RedisService.Type.ALERT, rewritten, now);
+
+        Map<String, byte[]> read = binary.readAll(RedisService.Type.ALERT, now);
+        assertEquals(25, read.size());
+        for (EntityStore.EntityWrite write : rewritten) {
+            assertArrayEquals(new byte[]{2}, read.get(write.key()));
+        }
+        // The legacy keys written again in the current format are gone
+        assertEquals(25, redisson.getMapCache(RedisService.Type.ALERT.getMapIdentifier()).size());
+    }
+
+    @Test
+    public void testOtherNumberOfShardBucketsIsRefused() {
+        RedissonClient redisson = createService("mapcache").redisson;
+        createShardedStore(redisson, 8);
+
+        RedisEntityStore store = new RedisEntityStore(redisson, 500, 1000, false, false, false, 16, 4);
+        try {
+            assertThrows(IllegalStateException.class, () -> store.init(null));
+        } finally {
+            store.close();
+        }
+    }
+
+    @Test
+    public void testOnlyOneInstanceHoldsTheOutputLease() {
+        RedisService first = createService("mapcache");
+        RedisService second = createService("mapcache");
+        first.releaseOutputLease("first");
+        second.releaseOutputLease("second");
+
+        assertTrue(first.tryAcquireOutputLease("first", 30_000));
+        assertFalse(second.tryAcquireOutputLease("second", 30_000));
+        // Renewed by the holder
+        assertTrue(first.tryAcquireOutputLease("first", 30_000));
+
+        first.releaseOutputLease("first");
+        assertTrue(second.tryAcquireOutputLease("second", 30_000));
+        assertFalse(first.tryAcquireOutputLease("first", 30_000));
+        second.releaseOutputLease("second");
+    }
+
+    @Test
+    public void testResetByAnotherInstanceClearsFingerprints() throws InterruptedException {
+        StoreSettings.Writes fingerprinted = new StoreSettings.Writes(0, 20000, 100, 4, 64, 30000);
+        RedisService writer = createService("mapcache", false, false, fingerprinted);
+        RedisService resetter = createService("mapcache", false, false, fingerprinted);
+        String key = new CompositeKey("reset", "TST").asString();
+        Map<String, GtfsRtData> entity = entity(key, "reset", 300);
+        writer.writeGtfsRt(entity, RedisService.Type.ALERT);
+
+        resetter.resetAllData();
+        assertTrue(writer.readGtfsRtMap(RedisService.Type.ALERT).isEmpty());
+
+        // Written again once the reset has been received, not skipped as unchanged
+        long deadline = System.currentTimeMillis() + 5000;
+        while (writer.readGtfsRtMap(RedisService.Type.ALERT).isEmpty() && System.currentTimeMillis() < deadline) {
+            writer.writeGtfsRt(entity, RedisService.Type.ALERT);
+            Thread.sleep(50);
+        }
+        assertEquals(Set.of(key), writer.readGtfsRtMap(RedisService.Type.ALERT).keySet());
+    }
+
+    @Test
+    public void testRenewalExtendsTheOutputLease() {
+        RedisService service = createService("mapcache");
+        service.releaseOutputLease("holder");
+
+        assertTrue(service.tryAcquireOutputLease("holder", 1_000));
+        assertTrue(service.tryAcquireOutputLease("holder", 30_000));
+        assertTrue(service.redisson.getBucket("{output}:leader").remainTimeToLive() > 1_000);
+        service.releaseOutputLease("holder");
+    }
+
+    @Test
+    public void testOutputBlobIsSharedWithVersion() {
+        RedisService leader = createService("mapcache");
+        RedisService follower = createService("mapcache");
+
+        leader.writeOutputBlob("v1", new byte[]{1, 2, 3});
+        assertEquals("v1", follower.readOutputVersion());
+        assertArrayEquals(new byte[]{1, 2, 3}, follower.readOutputBlob());
+    }
+
+    private RedisService createService(String storage) {
+        return createService(storage, false);
+    }
+
+    private RedisService createService(String storage, boolean nearCache) {
+        return createService(storage, nearCache, false);
+    }
+
+    private RedisService createService(String storage, boolean nearCache, boolean compression) {
+        return createService(storage, nearCache, compression, StoreSettings.Writes.DEFAULTS);
+    }
+
+    private RedisService createService(String storage, boolean nearCache, boolean compression, StoreSettings.Writes writes) {
+        RedisService redisService = new RedisService(
+                new StoreSettings.Connection(true, redis.getHost(), String.valueOf(redis.getMappedPort(REDIS_PORT)), "", "replicated", 16, 4),
+                new StoreSettings.RedisStorage(storage, false, 500, 100, 600, nearCache),
+                writes,
+                new StoreSettings.Compression(compression, 2, 0, 30),
+                StoreSettings.InMemory.DEFAULTS);
+        redisService.initEntityStore();
+        services.add(redisService);
+        return redisService;
+    }
+
+    private RedisEntityStore createShardedStore(RedissonClient redisson, int buckets) {
+        RedisEntityStore store = new RedisEntityStore(redisson, 500, 1000, false, false, false, buckets, 4);
+        stores.add(store);
+        store.init(null);
+        store.clear(System.currentTimeMillis());
+        return store;
+    }
+
+    private Map<String, GtfsRtData> entity(String key, String id, long timeToLive) {
+        GtfsRealtime.FeedEntity entity = GtfsRealtime.FeedEntity.newBuilder()
+                .setId(id)
+                .setAlert(GtfsRealtime.Alert.newBuilder())
+                .build();
+        Map<String, GtfsRtData> result = new HashMap<>();
+        result.put(key, new GtfsRtData(entity.toByteArray(), Duration.newBuilder().setSeconds(timeToLive).build()));
+        return result;
+    }
+}
@@ -1,15 +1,33 @@
 package org.entur.kishar.gtfsrt;
 
+import com.google.protobuf.util.JsonFormat;
+import com.google.transit.realtime.GtfsRealtime;
 import io.restassured.RestAssured;
+import io.restassured.config.DecoderConfig;
+import io.restassured.config.RestAssuredConfig;
 import io.restassured.filter.log.RequestLoggingFilter;
 import io.restassured.filter.log.ResponseLoggingFilter;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
 import static io.restassured.RestAssured.given;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.startsWith;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
 
 public class TestRestEndpoints extends SiriToGtfsRealtimeServiceTest{
 
+    private static final RestAssuredConfig NO_DECODING = RestAssuredConfig.config()
+            .decoderConfig(DecoderConfig.decoderConfig().noContentDecoders());
+
     @BeforeEach
     public void init() {
         RestAssured.port = 1234; //defined in application.properties
@@ -44,4 +62,200 @@ public class TestRestEndpoints extends SiriToGtfsRealtimeServiceTest{
                 .then()
                 .statusCode(200);
     }
+
+    @Test
+    public void testGzipEncodedTripUpdates() throws IOException {
+        byte[] body = given()
+                .config(NO_DECODING)
+                .header("Accept-Encoding", "gzip")
+                .when()
+                .get("/api/trip-updates")
+                .then()
+                .statusCode(200)
+                .header("Content-Encoding", "gzip")
+                .extract().asByteArray();
+
+        byte[] decoded = new GZIPInputStream(new ByteArrayInputStream(body)).readAllBytes();
+        assertEquals(0, GtfsRealtime.FeedMessage.parseFrom(decoded).getEntityCount());
+    }
+
+    @Test
+    public void testDeflateEncodedAlerts() throws IOException {
+        byte[] body = given()
+                .config(NO_DECODING)
+                .header("Accept-Encoding", "deflate")
+                .when()
+                .get("/api/alerts")
+                .then()
+                .statusCode(200)
+                .header("Content-Encoding", "deflate")
+                .extract().asByteArray();
+
+        byte[] decoded = new InflaterInputStream(new ByteArrayInputStream(body)).readAllBytes();
+        assertEquals(0, GtfsRealtime.FeedMessage.parseFrom(decoded).getEntityCount());
+    }
+
+    @Test
+    public void testUncompressedWhenNotAccepted() throws IOException {
+        byte[] body = given()
+                .config(NO_DECODING)
+                .header("Accept-Encoding", "identity")
+                .when()
+                .get("/api/vehicle-positions")
+                .then()
+                .statusCode(200)
+                .extract().asByteArray();
+
+        assertEquals(0, GtfsRealtime.FeedMessage.parseFrom(body).getEntityCount());
+    }
+
+    @Test
+    public void testNotModifiedWhenETagMatches() {
+        String etag = given()
+                .when()
+                .get("/api/trip-updates")
+                .then()
+                .statusCode(200)
+                .header("Cache-Control", startsWith("public, max-age="))
+                .extract().header("ETag");
+        assertNotNull(etag);
+
+        given()
+                .header("If-None-Match", etag)
+                .when()
+                .get("/api/trip-updates")
+                .then()
+                .statusCode(304)
+                .header("ETag", etag);
+
+        given()
+                .header("If-None-Match", "W/\"some-other-version\"")
+                .when()
+                .get("/api/trip-updates")
+                .then()
+                .statusCode(200);
+    }
+
+    @Test
+    public void testNotModifiedSinceLastModified() {
+        String lastModified = given()
+                .when()
+                .get("/api/alerts")
+                .then()
+                .statusCode(200)
+                .extract().header("Last-Modified");
+        assertNotNull(lastModified);
+
+        given()
+                .header("If-Modified-Since", lastModified)
+                .when()
+                .get("/api/alerts")
+                .then()
+                .statusCode(304);
+
+        given()
+                .header("If-Modified-Since", "Thu, 01 Jan 1970 00:00:00 GMT")
+                .when()
+                .get("/api/alerts")
+                .then()
+                .statusCode(200);
+    }
+
+    @Test
+    public void testGzipEncodedJsonAlerts() throws IOException {
+        byte[] body = given()
+                .config(NO_DECODING)
+                .contentType("application/json")
+                .header("Accept-Encoding", "gzip")
+                .when()
+                .get("/api/alerts")
+                .then()
+                .statusCode(200)
+                .contentType(startsWith("application/json"))
+                .header("Content-Encoding", "gzip")
+                .extract().asByteArray();
+
+        String json = new String(new GZIPInputStream(new ByteArrayInputStream(body)).readAllBytes(), StandardCharsets.UTF_8);
+        GtfsRealtime.FeedMessage.Builder feed = GtfsRealtime.FeedMessage.newBuilder();
+        JsonFormat.parser().merge(json, feed);
+        assertEquals("1.0", feed.getHeader().getGtfsRealtimeVersion());
+        assertEquals(0, feed.getEntityCount());
+    }
+
+    @Test
+    public void testFilteredVehiclePositions() throws IOException {
+        byte[] body = given()
+                .config(NO_DECODING)
+                .header("Accept-Encoding", "identity")
+                .queryParam("route_id", "TST:Line:1")
+                .queryParam("stop_id", "TST:Quay:1,TST:Quay:2")
+                .when()
+                .get("/api/vehicle-positions")
+                .then()
+                .statusCode(200)
+                .extract().asByteArray();
+
+        assertEquals(0, GtfsRealtime.FeedMessage.parseFrom(body).getEntityCount());
+    }
+
+    @Test
+    public void testJsonAndFilteredFeedsHaveTheirOwnETags() {
+        String etag = given()
+                .when()
+                .get("/api/vehicle-positions")
+                .then()
+                .statusCode(200)
+                .extract().header("ETag");
+        String jsonEtag = given()
+                .contentType("application/json")
+                .when()
+                .get("/api/vehicle-positions")
+                .then()
+                .statusCode(200)
+                .extract().header("ETag");
+        String filteredEtag = given()
+                .queryParam("route_id", "TST:Line:1")
+                .when()
+                .get("/api/vehicle-positions")
+                .then()
+                .statusCode(200)
+                .extract().header("ETag");
+        assertNotEquals(etag, jsonEtag);
+        assertNotEquals(etag, filteredEtag);
+        assertNotEquals(jsonEtag, filteredEtag);
+
+        given()
+                .contentType("application/json")
+                .header("If-None-Match", etag)
+                .when()
+                .get("/api/vehicle-positions")
+                .then()
+                .statusCode(200);
+
+        given()
+                .queryParam("route_id", "TST:Line:1")
+                .header("If-None-Match", filteredEtag)
+                .when()
+                .get("/api/vehicle-positions")
+                .then()
+                .statusCode(304);
+
+        given()
+                .queryParam("since", filteredEtag.substring(3, filteredEtag.length() - 1))
+                .when()
+                .get("/api/vehicle-positions/differential")
+                .then()
+                .statusCode(200);
+    }
+
+    @Test
+    public void testInvalidFilterIsNotSentAsAFeedFile() {
+        given()
+                .queryParam("bbox", "not,a,bounding,box")
+                .when()
+                .get("/api/vehicle-positions")
+                .then()
+                .statusCode(400)
+                .header("Content-Disposition", nullValue());
+    }
 }
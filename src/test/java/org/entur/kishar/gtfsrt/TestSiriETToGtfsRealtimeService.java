@@ -1,14 +1,22 @@
 package org.entur.kishar.gtfsrt;
 
 import com.google.common.collect.Maps;
+import com.google.protobuf.Duration;
+import com.google.protobuf.util.JsonFormat;
 import com.google.transit.realtime.GtfsRealtime;
 import org.entur.avro.realtime.siri.model.EstimatedVehicleJourneyRecord;
 import org.entur.avro.realtime.siri.model.SiriRecord;
+import org.entur.kishar.gtfsrt.domain.CompositeKey;
+import org.entur.kishar.gtfsrt.domain.ContentEncoding;
+import org.entur.kishar.gtfsrt.domain.EncodedFeed;
+import org.entur.kishar.gtfsrt.domain.FeedFilter;
+import org.entur.kishar.gtfsrt.domain.FeedSnapshot;
 import org.entur.kishar.gtfsrt.domain.GtfsRtData;
 import org.entur.kishar.gtfsrt.mappers.GtfsRtMapper;
 import org.junit.jupiter.api.Test;
 
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.time.ZonedDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.List;
@@ -17,7 +25,9 @@ import java.util.Map;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
 public class TestSiriETToGtfsRealtimeService extends SiriToGtfsRealtimeServiceTest {
@@ -395,6 +405,158 @@ public class TestSiriETToGtfsRealtimeService extends SiriToGtfsRealtimeServiceTe
         assertFalse(result.isEmpty());
     }
 
+    @Test
+    public void testEncodedFeedIsReusedUntilNextOutput() throws IOException {
+        SiriRecord siri = createSiriEtDelivery("TST:Line:1234", 3, 30, "TST:ServiceJourney:1234", "TST");
+
+        redisService.writeGtfsRt(rtService.convertSiriToGtfsRt(siri), RedisService.Type.TRIP_UPDATE);
+        rtService.writeOutput();
+
+        byte[] first = (byte[]) rtService.getTripUpdates(null, null);
+        byte[] second = (byte[]) rtService.getTripUpdates(null, null);
+        assertSame(first, second, "Feed should be encoded once per output cycle, not per request");
+        assertEquals(1, GtfsRealtime.FeedMessage.parseFrom(first).getEntityCount());
+
+        byte[] byDatasource = (byte[]) rtService.getTripUpdates(null, "TST");
+        assertSame(byDatasource, rtService.getTripUpdates(null, "TST"));
+        assertEquals(1, GtfsRealtime.FeedMessage.parseFrom(byDatasource).getEntityCount());
+    }
+
+    @Test
+    public void testJsonIsRenderedOncePerFeed() throws IOException {
+        SiriRecord siri = createSiriEtDelivery("TST:Line:1234", 3, 30, "TST:ServiceJourney:1234", "TST");
+
+        redisService.writeGtfsRt(rtService.convertSiriToGtfsRt(siri), RedisService.Type.TRIP_UPDATE);
+        rtService.writeOutput();
+
+        byte[] json = rtService.getTripUpdatesSnapshot().getFeed("TST").getJson(ContentEncoding.IDENTITY);
+        assertSame(json, rtService.getTripUpdatesSnapshot().getFeed("TST").getJson(ContentEncoding.IDENTITY),
+                "JSON should be rendered once per feed, not per request");
+
+        GtfsRealtime.FeedMessage.Builder feed = GtfsRealtime.FeedMessage.newBuilder();
+        JsonFormat.parser().merge(new String(json, StandardCharsets.UTF_8), feed);
+        assertEquals(1, feed.getEntityCount());
+        assertEquals("TST:ServiceJourney:1234", feed.getEntity(0).getTripUpdate().getTrip().getTripId());
+    }
+
+    @Test
+    public void testUnchangedFeedKeepsVersionAcrossOutputs() {
+        SiriRecord siri = createSiriEtDelivery("TST:Line:1234", 3, 30, "TST:ServiceJourney:1234", "TST");
+
+        redisService.writeGtfsRt(rtService.convertSiriToGtfsRt(siri), RedisService.Type.TRIP_UPDATE);
+        rtService.writeOutput();
+        String version = rtService.getTripUpdatesSnapshot().getFeed().getVersion();
+        byte[] data = (byte[]) rtService.getTripUpdates(null, null);
+
+        rtService.writeOutput();
+        assertEquals(version, rtService.getTripUpdatesSnapshot().getFeed().getVersion());
+        assertSame(data, rtService.getTripUpdates(null, null), "Unchanged feed should not be re-encoded");
+
+        SiriRecord other = createSiriEtDelivery("TST:Line:1234", 3, 30, "TST:ServiceJourney:5678", "TST");
+        redisService.writeGtfsRt(rtService.convertSiriToGtfsRt(other), RedisService.Type.TRIP_UPDATE);
+        rtService.writeOutput();
+        assertNotEquals(version, rtService.getTripUpdatesSnapshot().getFeed().getVersion());
+    }
+
+    @Test
+    public void testDifferentialTripUpdates() throws IOException {
+        SiriRecord first = createSiriEtDelivery("TST:Line:1234", 3, 30, "TST:ServiceJourney:1234", "TST");
+        redisService.writeGtfsRt(rtService.convertSiriToGtfsRt(first), RedisService.Type.TRIP_UPDATE);
+        rtService.writeOutput();
+        String firstVersion = rtService.getTripUpdatesSnapshot().getFeed().getVersion();
+
+        SiriRecord second = createSiriEtDelivery("TST:Line:1234", 3, 30, "TST:ServiceJourney:5678", "TST");
+        redisService.writeGtfsRt(rtService.convertSiriToGtfsRt(second), RedisService.Type.TRIP_UPDATE);
+        rtService.writeOutput();
+        String secondVersion = rtService.getTripUpdatesSnapshot().getFeed().getVersion();
+
+        GtfsRealtime.FeedMessage added = GtfsRealtime.FeedMessage.parseFrom(
+                rtService.getTripUpdatesSnapshot().getDifferentialFeed(null, firstVersion).getData());
+        assertEquals(GtfsRealtime.FeedHeader.Incrementality.DIFFERENTIAL, added.getHeader().getIncrementality());
+        assertEquals(1, added.getEntityCount());
+        assertEquals("TST:ServiceJourney:5678", added.getEntity(0).getTripUpdate().getTrip().getTripId());
+
+        // Only the second journey is left after this output
+        redisService.resetAllData();
+        redisService.writeGtfsRt(rtService.convertSiriToGtfsRt(second), RedisService.Type.TRIP_UPDATE);
+        rtService.writeOutput();
+
+        GtfsRealtime.FeedMessage deleted = GtfsRealtime.FeedMessage.parseFrom(
+                rtService.getTripUpdatesSnapshot().getDifferentialFeed(null, secondVersion).getData());
+        assertEquals(1, deleted.getEntityCount());
+        assertTrue(deleted.getEntity(0).getIsDeleted());
+
+        GtfsRealtime.FeedMessage unknownVersion = GtfsRealtime.FeedMessage.parseFrom(
+                rtService.getTripUpdatesSnapshot().getDifferentialFeed(null, "unknown").getData());
+        assertEquals(GtfsRealtime.FeedHeader.Incrementality.FULL_DATASET, unknownVersion.getHeader().getIncrementality());
+        assertEquals(1, unknownVersion.getEntityCount());
+    }
+
+    @Test
+    public void testUnchangedOutputsDoNotUseUpTheDifferentialHistory() throws IOException {
+        SiriRecord first = createSiriEtDelivery("TST:Line:1234", 3, 30, "TST:ServiceJourney:1234", "TST");
+        redisService.writeGtfsRt(rtService.convertSiriToGtfsRt(first), RedisService.Type.TRIP_UPDATE);
+        rtService.writeOutput();
+        String firstVersion = rtService.getTripUpdatesSnapshot().getFeed().getVersion();
+
+        SiriRecord second = createSiriEtDelivery("TST:Line:1234", 3, 30, "TST:ServiceJourney:5678", "TST");
+        redisService.writeGtfsRt(rtService.convertSiriToGtfsRt(second), RedisService.Type.TRIP_UPDATE);
+        for (int i = 0; i < FeedSnapshot.DEFAULT_HISTORY_SIZE * 2; i++) {
+            rtService.writeOutput();
+        }
+
+        GtfsRealtime.FeedMessage added = GtfsRealtime.FeedMessage.parseFrom(
+                rtService.getTripUpdatesSnapshot().getDifferentialFeed(null, firstVersion).getData());
+        assertEquals(GtfsRealtime.FeedHeader.Incrementality.DIFFERENTIAL, added.getHeader().getIncrementality());
+        assertEquals(1, added.getEntityCount());
+    }
+
+    @Test
+    public void testFilteredTripUpdates() throws IOException {
+        redisService.writeGtfsRt(rtService.convertSiriToGtfsRt(
+                createSiriEtDelivery("TST:Line:1234", 3, 30, "TST:ServiceJourney:1234", "TST")), RedisService.Type.TRIP_UPDATE);
+        redisService.writeGtfsRt(rtService.convertSiriToGtfsRt(
+                createSiriEtDelivery("TST:Line:5678", 3, 30, "TST:ServiceJourney:5678", "TST")), RedisService.Type.TRIP_UPDATE);
+        rtService.writeOutput();
+        EncodedFeed feed = rtService.getTripUpdatesSnapshot().getFeed();
+
+        GtfsRealtime.FeedMessage byRoute = GtfsRealtime.FeedMessage.parseFrom(
+                feed.filter(FeedFilter.of("TST:Line:5678", null, null)).getData());
+        assertEquals(1, byRoute.getEntityCount());
+        assertEquals("TST:ServiceJourney:5678", byRoute.getEntity(0).getTripUpdate().getTrip().getTripId());
+
+        assertEquals(2, feed.filter(FeedFilter.of(null, "TST:ServiceJourney:1234, TST:ServiceJourney:5678", null)).getEntityCount());
+        assertEquals(2, feed.filter(FeedFilter.of(null, null, "TST:Quay:1234-1")).getEntityCount());
+        assertEquals(0, feed.filter(FeedFilter.of("TST:Line:1234", "TST:ServiceJourney:5678", null)).getEntityCount());
+        assertEquals(0, feed.filter(FeedFilter.of(null, null, "TST:Quay:unknown")).getEntityCount());
+
+        assertSame(feed, feed.filter(FeedFilter.of("", null, " ")));
+        assertSame(feed.filter(FeedFilter.of("TST:Line:5678", null, null)), feed.filter(FeedFilter.of("TST:Line:5678", null, null)),
+                "Filtered feed should be built once per feed and filter");
+    }
+
+    @Test
+    public void testFeedIsAssembledFromStoredEntities() throws IOException {
+        SiriRecord siri = createSiriEtDelivery("TST:Line:1234", 3, 30, "TST:ServiceJourney:1234", "TST");
+        Map<String, GtfsRtData> tripUpdates = rtService.convertSiriToGtfsRt(siri);
+        byte[] storedEntity = tripUpdates.values().iterator().next().getData();
+
+        // Stored values that are not encoded FeedEntities are left out of the feed
+        tripUpdates.put(new CompositeKey("broken", "TST").asString(),
+                new GtfsRtData(new byte[]{(byte) 0xFF}, Duration.newBuilder().setSeconds(60).build()));
+        redisService.writeGtfsRt(tripUpdates, RedisService.Type.TRIP_UPDATE);
+        rtService.writeOutput();
+
+        GtfsRealtime.FeedMessage feed = GtfsRealtime.FeedMessage.parseFrom((byte[]) rtService.getTripUpdates(null, null));
+        assertEquals(GtfsRealtime.FeedHeader.Incrementality.FULL_DATASET, feed.getHeader().getIncrementality());
+        assertEquals(1, feed.getEntityCount());
+        assertEquals(GtfsRealtime.FeedEntity.parseFrom(storedEntity), feed.getEntity(0));
+
+        GtfsRealtime.FeedMessage json = (GtfsRealtime.FeedMessage) rtService.getTripUpdates("application/json", "TST");
+        assertEquals(1, json.getEntityCount());
+        assertEquals("TST:ServiceJourney:1234", json.getEntity(0).getTripUpdate().getTrip().getTripId());
+    }
+
     private SiriRecord createSiriEtDelivery(String lineRefValue, int calls, int delayPerStop, String datedVehicleJourneyRef, String datasource) {
         String startTime = ZonedDateTime.now().format(DateTimeFormatter.ISO_DATE_TIME);
         String etXmlHead = "<Siri version=\"2.0\" xmlns=\"http://www.siri.org.uk/siri\" xmlns:ns2=\"http://www.ifopt.org.uk/acsb\" xmlns:ns3=\"http://www.ifopt.org.uk/ifopt\" xmlns:ns4=\"http://datex2.eu/schema/2_0RC1/2_0\">\n" +
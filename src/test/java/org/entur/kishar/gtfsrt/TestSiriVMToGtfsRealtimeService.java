@@ -5,6 +5,8 @@ import com.google.protobuf.InvalidProtocolBufferException;
 import com.google.transit.realtime.GtfsRealtime;
 import org.entur.avro.realtime.siri.model.LocationRecord;
 import org.entur.avro.realtime.siri.model.SiriRecord;
+import org.entur.kishar.gtfsrt.domain.EncodedFeed;
+import org.entur.kishar.gtfsrt.domain.FeedFilter;
 import org.entur.kishar.gtfsrt.domain.GtfsRtData;
 import org.junit.jupiter.api.Test;
 import uk.org.siri.siri21.OccupancyEnumeration;
@@ -20,6 +22,7 @@ import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertInstanceOf;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
 public class TestSiriVMToGtfsRealtimeService extends SiriToGtfsRealtimeServiceTest{
@@ -236,6 +239,14 @@ public class TestSiriVMToGtfsRealtimeService extends SiriToGtfsRealtimeServiceTe
         assertTrue(entityList.isEmpty());
     }
 
+    @Test
+    public void testVmWithTooLongDatasourceIsSkipped() {
+        SiriRecord siri = createSiriVmDelivery("TST:Line:1234", 10.56, 59.63, "TST:ServiceJourney:1234",
+                "TST:Vehicle:1234", "T".repeat(128));
+
+        assertTrue(rtService.convertSiriToGtfsRt(siri).isEmpty());
+    }
+
     @Test
     public void testVmWithNullVehicleRefProducesVehiclePosition() throws IOException {
         // Issue #5: VehicleRef is null but FramedVehicleJourneyRef is set.
@@ -400,6 +411,37 @@ public class TestSiriVMToGtfsRealtimeService extends SiriToGtfsRealtimeServiceTe
                 "Timestamp should be in seconds (<= now + 5s), but was: " + vehiclePosition.getTimestamp());
     }
 
+    @Test
+    public void testVehiclePositionsInBoundingBox() throws IOException {
+        redisService.writeGtfsRt(rtService.convertSiriToGtfsRt(createSiriVmDelivery("TST:Line:1", 59.91, 10.75,
+                "TST:ServiceJourney:1", "TST:Vehicle:1", "TST")), RedisService.Type.VEHICLE_POSITION);
+        redisService.writeGtfsRt(rtService.convertSiriToGtfsRt(createSiriVmDelivery("TST:Line:2", 59.95, 10.80,
+                "TST:ServiceJourney:2", "TST:Vehicle:2", "TST")), RedisService.Type.VEHICLE_POSITION);
+        redisService.writeGtfsRt(rtService.convertSiriToGtfsRt(createSiriVmDelivery("TST:Line:2", 60.39, 5.32,
+                "TST:ServiceJourney:3", "TST:Vehicle:3", "TST")), RedisService.Type.VEHICLE_POSITION);
+        rtService.writeOutput();
+        EncodedFeed feed = rtService.getVehiclePositionsSnapshot().getFeed();
+
+        GtfsRealtime.FeedMessage oslo = GtfsRealtime.FeedMessage.parseFrom(
+                feed.filter(FeedFilter.of(null, null, null, "10.5,59.8,11.0,60.0")).getData());
+        assertEquals(2, oslo.getEntityCount());
+        for (GtfsRealtime.FeedEntity entity : oslo.getEntityList()) {
+            assertTrue(entity.getVehicle().getPosition().getLongitude() > 10.5);
+        }
+
+        // Large box - goes through the occupied cells instead of every cell in the box
+        assertEquals(3, feed.filter(FeedFilter.of(null, null, null, "-180,-90,180,90")).getEntityCount());
+        // Edge of the box inside a cell
+        assertEquals(1, feed.filter(FeedFilter.of(null, null, null, "10.7,59.9,10.78,59.92")).getEntityCount());
+        assertEquals(0, feed.filter(FeedFilter.of(null, null, null, "0,0,1,1")).getEntityCount());
+        // Combined with id filters
+        assertEquals(2, feed.filter(FeedFilter.of("TST:Line:2", null, null, "4,57,12,61")).getEntityCount());
+        assertEquals(1, feed.filter(FeedFilter.of("TST:Line:2", null, null, "4,59.5,6,61")).getEntityCount());
+
+        assertThrows(IllegalArgumentException.class, () -> FeedFilter.of(null, null, null, "10.5,59.8,11.0"));
+        assertThrows(IllegalArgumentException.class, () -> FeedFilter.of(null, null, null, "11,59.8,10.5,60"));
+    }
+
     private SiriRecord createSiriVmDeliveryWithoutRecordedAtTime(String lineRefValue, double latitude, double longitude, String datedVehicleJourneyRef, String vehicleRefValue, String datasource) {
 
         ZonedDateTime now = ZonedDateTime.now();
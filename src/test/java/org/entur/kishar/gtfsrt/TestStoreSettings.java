@@ -0,0 +1,28 @@
+package org.entur.kishar.gtfsrt;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Value;
+
+import java.lang.reflect.RecordComponent;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+
+public class TestStoreSettings {
+
+    @Test
+    public void testDefaultsAreThoseOfTheProperties() throws ReflectiveOperationException {
+        List<Record> defaults = List.of(StoreSettings.Connection.DEFAULTS, StoreSettings.RedisStorage.DEFAULTS,
+                StoreSettings.Writes.DEFAULTS, StoreSettings.Compression.DEFAULTS, StoreSettings.InMemory.DEFAULTS);
+        for (Record settings : defaults) {
+            for (RecordComponent component : settings.getClass().getRecordComponents()) {
+                Value value = component.getAccessor().getAnnotation(Value.class);
+                assertNotNull(value, component + " is not bound to a property");
+                String placeholder = value.value();
+                String propertyDefault = placeholder.substring(placeholder.indexOf(':') + 1, placeholder.length() - 1);
+                assertEquals(propertyDefault, String.valueOf(component.getAccessor().invoke(settings)), placeholder);
+            }
+        }
+    }
+}